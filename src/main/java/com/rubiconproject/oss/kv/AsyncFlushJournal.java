@@ -0,0 +1,269 @@
+package com.rubiconproject.oss.kv;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Append-only log of writes made to a JournaledAsyncFlushQueue, stored as a
+ * series of memory-mapped segment files. Each record carries a sequence
+ * number and a CRC so a torn write at the tail is detected on replay.
+ *
+ * Record layout: length (int, bytes following), sequence (long), type
+ * (byte), key length (short), key (UTF-8), value length (int), value, CRC32
+ * of the preceding fields (int). A zero length marks the end of a segment.
+ */
+public class AsyncFlushJournal {
+	public static final byte SET = 0;
+
+	public static final byte SET_TRANSCODED = 1;
+
+	public static final byte DELETE = 2;
+
+	private static final String PREFIX = "journal-";
+
+	private static final String SUFFIX = ".log";
+
+	private static Log log = LogFactory.getLog(AsyncFlushJournal.class);
+
+	private File directory;
+
+	private int segmentSize;
+
+	private LinkedList<Segment> segments = new LinkedList<Segment>();
+
+	private Segment active;
+
+	private long nextSequence = 1;
+
+	private long syncedSequence = 0;
+
+	private final Object syncLock = new Object();
+
+	public AsyncFlushJournal(File directory, int segmentSize) {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+	}
+
+	/**
+	 * Open the journal, returning all intact records from existing segments
+	 * in sequence order. New records are appended to a fresh segment.
+	 */
+	public synchronized List<Record> open() throws IOException {
+		if ((!directory.exists()) && (!directory.mkdirs()))
+			throw new IOException("Unable to create journal directory "
+					+ directory);
+		File[] files = directory.listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+			}
+		});
+		Arrays.sort(files);
+
+		List<Record> records = new ArrayList<Record>();
+		for (File file : files) {
+			Segment segment = new Segment(file, file.length());
+			segment.replay(records);
+			if (segment.lastSequence >= nextSequence)
+				nextSequence = segment.lastSequence + 1;
+			segments.add(segment);
+		}
+		syncedSequence = nextSequence - 1;
+		return records;
+	}
+
+	/**
+	 * Append a record and return its sequence number. The record is not
+	 * durable until sync() has been called with that sequence.
+	 */
+	public synchronized long append(byte type, String key, byte[] value)
+			throws IOException {
+		byte[] keyBytes = key.getBytes("UTF-8");
+		int valueLength = (value == null) ? 0 : value.length;
+		int length = 8 + 1 + 2 + keyBytes.length + 4 + valueLength + 4;
+		if ((active == null) || (active.buffer.remaining() < length + 8)) {
+			if (active != null)
+				active.buffer.force();
+			active = new Segment(new File(directory, String.format(
+					"%1$s%2$020d%3$s", PREFIX, nextSequence, SUFFIX)), Math
+					.max(segmentSize, length + 8));
+			segments.add(active);
+		}
+		long sequence = nextSequence++;
+		MappedByteBuffer buffer = active.buffer;
+		int start = buffer.position();
+		buffer.putInt(length);
+		buffer.putLong(sequence);
+		buffer.put(type);
+		buffer.putShort((short) keyBytes.length);
+		buffer.put(keyBytes);
+		buffer.putInt(valueLength);
+		if (value != null)
+			buffer.put(value);
+		buffer.putInt(checksum(buffer, start + 4, length - 4));
+		active.lastSequence = sequence;
+		return sequence;
+	}
+
+	/**
+	 * Force records up to and including the given sequence to disk. Callers
+	 * arriving while a force is in progress are covered by the next one, so
+	 * concurrent writers share a single fsync.
+	 */
+	public void sync(long sequence) throws IOException {
+		synchronized (syncLock) {
+			if (syncedSequence >= sequence)
+				return;
+			Segment segment;
+			long target;
+			synchronized (this) {
+				segment = active;
+				target = nextSequence - 1;
+			}
+			// earlier segments are forced when they are rolled
+			if (segment != null)
+				segment.buffer.force();
+			syncedSequence = target;
+		}
+	}
+
+	public synchronized long getNextSequence() {
+		return nextSequence;
+	}
+
+	public synchronized int getSegmentCount() {
+		return segments.size();
+	}
+
+	/**
+	 * Delete segments whose records all have sequence numbers below the
+	 * given value. The active segment is kept unless includeActive is set,
+	 * in which case the next append starts a new one.
+	 */
+	public synchronized void truncate(long sequence, boolean includeActive) {
+		while ((segments.size() > 0)
+				&& ((includeActive) || (segments.getFirst() != active))
+				&& (segments.getFirst().lastSequence < sequence)) {
+			Segment segment = segments.removeFirst();
+			if (segment == active)
+				active = null;
+			segment.close();
+			if (!segment.file.delete())
+				log.warn("Unable to delete journal segment " + segment.file);
+		}
+	}
+
+	public synchronized void close() {
+		for (Segment segment : segments) {
+			if (segment == active)
+				segment.buffer.force();
+			segment.close();
+		}
+		segments.clear();
+		active = null;
+	}
+
+	private static int checksum(MappedByteBuffer buffer, int offset,
+			int length) {
+		CRC32 crc = new CRC32();
+		for (int i = offset; i < offset + length; ++i)
+			crc.update(buffer.get(i));
+		return (int) crc.getValue();
+	}
+
+	public static class Record {
+		private long sequence;
+
+		private byte type;
+
+		private String key;
+
+		private byte[] value;
+
+		public Record(long sequence, byte type, String key, byte[] value) {
+			this.sequence = sequence;
+			this.type = type;
+			this.key = key;
+			this.value = value;
+		}
+
+		public long getSequence() {
+			return sequence;
+		}
+
+		public byte getType() {
+			return type;
+		}
+
+		public String getKey() {
+			return key;
+		}
+
+		public byte[] getValue() {
+			return value;
+		}
+	}
+
+	private static class Segment {
+		private File file;
+
+		private RandomAccessFile raf;
+
+		private MappedByteBuffer buffer;
+
+		private long lastSequence = 0;
+
+		Segment(File file, long size) throws IOException {
+			this.file = file;
+			this.raf = new RandomAccessFile(file, "rw");
+			if (raf.length() < size)
+				raf.setLength(size);
+			this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE,
+					0, raf.length());
+		}
+
+		void replay(List<Record> records) throws IOException {
+			while (buffer.remaining() >= 4) {
+				int start = buffer.position();
+				int length = buffer.getInt();
+				if ((length <= 0) || (length > buffer.remaining()))
+					break;
+				int stored = buffer.getInt(start + length);
+				if (stored != checksum(buffer, start + 4, length - 4)) {
+					log.warn("Corrupt record in journal segment " + file
+							+ " at offset " + start);
+					break;
+				}
+				long sequence = buffer.getLong();
+				byte type = buffer.get();
+				byte[] key = new byte[buffer.getShort() & 0xffff];
+				buffer.get(key);
+				byte[] value = new byte[buffer.getInt()];
+				buffer.get(value);
+				buffer.getInt();
+				records.add(new Record(sequence, type, new String(key,
+						"UTF-8"), value));
+				lastSequence = sequence;
+			}
+		}
+
+		void close() {
+			try {
+				raf.close();
+			} catch (IOException e) {
+				log.warn("Unable to close journal segment " + file, e);
+			}
+		}
+	}
+}
@@ -11,9 +11,10 @@ import com.rubiconproject.oss.kv.transcoder.Transcoder;
  */
 public interface AsyncFlushQueue {
 
-	public void set(String key, Object value);
+	public void set(String key, Object value) throws KeyValueStoreException;
 
-	public void set(String key, Object value, Transcoder transcoder);
+	public void set(String key, Object value, Transcoder transcoder)
+			throws KeyValueStoreException;
 
-	public void delete(String key);
+	public void delete(String key) throws KeyValueStoreException;
 }
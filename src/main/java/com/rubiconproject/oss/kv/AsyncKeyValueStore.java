@@ -0,0 +1,89 @@
+package com.rubiconproject.oss.kv;
+
+import java.util.List;
+import java.util.Map;
+
+import com.rubiconproject.oss.kv.transcoder.Transcoder;
+
+/**
+ * Non-blocking companion to KeyValueStore. Each method starts the operation
+ * and returns immediately; the result (or the KeyValueStoreException /
+ * IOException thrown by the operation, wrapped in an ExecutionException) is
+ * delivered through the returned future.
+ * 
+ * Backends with a native asynchronous client (memcached, thrift, the
+ * distributed client) implement these directly. All other backends inherit an
+ * executor-backed adapter from BaseKeyValueStore.
+ * 
+ */
+public interface AsyncKeyValueStore extends KeyValueStore {
+
+	/**
+	 * Asynchronously retrieve an object for a given key. The future yields
+	 * null if none found.
+	 * 
+	 * @param key
+	 * @return future for the stored object
+	 */
+	public KeyValueStoreFuture<Object> getAsync(String key);
+
+	/**
+	 * Asynchronously retrieve an object for a given key using the specified
+	 * transcoder. The future yields null if none found.
+	 * 
+	 * @param key
+	 * @param transcoder
+	 * @return future for the stored object
+	 */
+	public KeyValueStoreFuture<Object> getAsync(String key,
+			Transcoder transcoder);
+
+	/**
+	 * Asynchronously perform a bulk get operation.
+	 * 
+	 * @param keys
+	 * @return future for a map of key->object
+	 */
+	public KeyValueStoreFuture<Map<String, Object>> getBulkAsync(
+			List<String> keys);
+
+	/**
+	 * Asynchronously perform a bulk get operation using the specified
+	 * transcoder.
+	 * 
+	 * @param keys
+	 * @param transcoder
+	 * @return future for a map of key->object
+	 */
+	public KeyValueStoreFuture<Map<String, Object>> getBulkAsync(
+			List<String> keys, Transcoder transcoder);
+
+	/**
+	 * Asynchronously save an object for a given key.
+	 * 
+	 * @param key
+	 * @param value
+	 * @return future that completes once the write is acknowledged
+	 */
+	public KeyValueStoreFuture<Void> setAsync(String key, Object value);
+
+	/**
+	 * Asynchronously save an object for a given key using the specified
+	 * transcoder.
+	 * 
+	 * @param key
+	 * @param value
+	 * @param transcoder
+	 * @return future that completes once the write is acknowledged
+	 */
+	public KeyValueStoreFuture<Void> setAsync(String key, Object value,
+			Transcoder transcoder);
+
+	/**
+	 * Asynchronously delete an object for a given key.
+	 * 
+	 * @param key
+	 * @return future that completes once the delete is acknowledged
+	 */
+	public KeyValueStoreFuture<Void> deleteAsync(String key);
+}
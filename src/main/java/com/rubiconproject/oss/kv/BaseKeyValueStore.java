@@ -1,12 +1,21 @@
 package com.rubiconproject.oss.kv;
 
 import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 
 import com.rubiconproject.oss.kv.transcoder.Transcoder;
+import com.rubiconproject.oss.kv.util.ExecutorUtils;
 
-public abstract class BaseKeyValueStore implements KeyValueStore {
+public abstract class BaseKeyValueStore implements AsyncKeyValueStore {
 	protected KeyValueStoreStatus status = KeyValueStoreStatus.Offline;
 
+	protected ExecutorService asyncExecutor;
+
 	public void start() throws IOException {
 		this.status = KeyValueStoreStatus.Online;
 	}
@@ -23,6 +32,17 @@ public abstract class BaseKeyValueStore implements KeyValueStore {
 		this.status = status;
 	}
 
+	/**
+	 * Set the executor used to run the blocking methods on behalf of the
+	 * default AsyncKeyValueStore adapter. If unset a shared daemon thread
+	 * pool is used.
+	 * 
+	 * @param executor
+	 */
+	public void setAsyncExecutor(ExecutorService executor) {
+		this.asyncExecutor = executor;
+	}
+
 	protected void assertWriteable() throws KeyValueStoreUnavailable {
 		if (!status.equals(KeyValueStoreStatus.Online))
 			throw new KeyValueStoreUnavailable();
@@ -53,4 +73,124 @@ public abstract class BaseKeyValueStore implements KeyValueStore {
 
 	public abstract void delete(String key) throws KeyValueStoreException,
 			IOException;
+
+	/*
+	 * Default bulk write methods call set()/delete() once per key. Backends
+	 * that can batch writes should override these.
+	 */
+
+	public void setBulk(Map<String, Object> values)
+			throws KeyValueStoreException, IOException {
+		for (Map.Entry<String, Object> entry : values.entrySet())
+			set(entry.getKey(), entry.getValue());
+	}
+
+	public void setBulk(Map<String, Object> values, Transcoder transcoder)
+			throws KeyValueStoreException, IOException {
+		for (Map.Entry<String, Object> entry : values.entrySet())
+			set(entry.getKey(), entry.getValue(), transcoder);
+	}
+
+	public void deleteBulk(Collection<String> keys)
+			throws KeyValueStoreException, IOException {
+		for (String key : keys)
+			delete(key);
+	}
+
+	/*
+	 * Default AsyncKeyValueStore adapter. Each call runs the corresponding
+	 * blocking method on the async executor. Backends with a native
+	 * asynchronous client should override these.
+	 */
+
+	public KeyValueStoreFuture<Object> getAsync(final String key) {
+		return submitAsync(new Callable<Object>() {
+			public Object call() throws Exception {
+				return get(key);
+			}
+		});
+	}
+
+	public KeyValueStoreFuture<Object> getAsync(final String key,
+			final Transcoder transcoder) {
+		return submitAsync(new Callable<Object>() {
+			public Object call() throws Exception {
+				return get(key, transcoder);
+			}
+		});
+	}
+
+	public KeyValueStoreFuture<Map<String, Object>> getBulkAsync(
+			final List<String> keys) {
+		return submitAsync(new Callable<Map<String, Object>>() {
+			public Map<String, Object> call() throws Exception {
+				return getBulk(keys);
+			}
+		});
+	}
+
+	public KeyValueStoreFuture<Map<String, Object>> getBulkAsync(
+			final List<String> keys, final Transcoder transcoder) {
+		return submitAsync(new Callable<Map<String, Object>>() {
+			public Map<String, Object> call() throws Exception {
+				return getBulk(keys, transcoder);
+			}
+		});
+	}
+
+	public KeyValueStoreFuture<Void> setAsync(final String key,
+			final Object value) {
+		return submitAsync(new Callable<Void>() {
+			public Void call() throws Exception {
+				set(key, value);
+				return null;
+			}
+		});
+	}
+
+	public KeyValueStoreFuture<Void> setAsync(final String key,
+			final Object value, final Transcoder transcoder) {
+		return submitAsync(new Callable<Void>() {
+			public Void call() throws Exception {
+				set(key, value, transcoder);
+				return null;
+			}
+		});
+	}
+
+	public KeyValueStoreFuture<Void> deleteAsync(final String key) {
+		return submitAsync(new Callable<Void>() {
+			public Void call() throws Exception {
+				delete(key);
+				return null;
+			}
+		});
+	}
+
+	protected ExecutorService getAsyncExecutor() {
+		ExecutorService executor = asyncExecutor;
+		return (executor == null) ? DefaultAsyncExecutorHolder.executor
+				: executor;
+	}
+
+	protected <V> KeyValueStoreFuture<V> submitAsync(Callable<V> callable) {
+		DefaultKeyValueStoreFuture<V> future = new DefaultKeyValueStoreFuture<V>(
+				callable);
+		try {
+			getAsyncExecutor().execute(future);
+		} catch (RejectedExecutionException e) {
+			future.fail(e);
+		}
+		return future;
+	}
+
+	/**
+	 * Lazily created pool shared by all stores that do not configure their
+	 * own async executor.
+	 */
+	private static class DefaultAsyncExecutorHolder {
+		private static final ExecutorService executor = ExecutorUtils
+				.newFixedSizeDaemonThreadPool(Math.max(4, 2 * Runtime
+						.getRuntime().availableProcessors()));
+	}
 }
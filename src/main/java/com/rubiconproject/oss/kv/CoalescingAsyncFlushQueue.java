@@ -0,0 +1,523 @@
+package com.rubiconproject.oss.kv;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.rubiconproject.oss.kv.mgmt.AsyncFlushQueueImplMXBean;
+import com.rubiconproject.oss.kv.mgmt.JMXMbeanServerFactory;
+import com.rubiconproject.oss.kv.transcoder.Transcoder;
+
+/**
+ * A write-behind AsyncFlushQueue that keeps only the latest pending write per
+ * key and flushes to the store in batches using setBulk()/deleteBulk(). A
+ * batch is flushed when batchSize keys are pending or the oldest pending key
+ * has waited flushInterval milliseconds. At most maxPending keys are buffered;
+ * the overflow policy decides what happens to writes beyond that. Writes
+ * discarded by DropOldest are reported to the DropListener, if any.
+ */
+public class CoalescingAsyncFlushQueue implements AsyncFlushQueue {
+	public enum OverflowPolicy {
+		Block, DropOldest, Fail
+	}
+
+	/**
+	 * Told of each pending write discarded to make room for a new key.
+	 */
+	public interface DropListener {
+		void dropped(String key);
+	}
+
+	protected Log log = LogFactory.getLog(getClass());
+
+	protected KeyValueStore store;
+
+	private int batchSize = 100;
+
+	private long flushInterval = 100l;
+
+	private int maxPending = 10000;
+
+	private OverflowPolicy overflowPolicy = OverflowPolicy.Block;
+
+	private volatile DropListener dropListener;
+
+	protected final LinkedHashMap<String, PendingWrite> pending = new LinkedHashMap<String, PendingWrite>();
+
+	protected final ReentrantLock lock = new ReentrantLock();
+
+	private final Condition notEmpty = lock.newCondition();
+
+	private final Condition notFull = lock.newCondition();
+
+	private Thread flusher;
+
+	private volatile boolean running = false;
+
+	private final AtomicLong enqueued = new AtomicLong();
+
+	private final AtomicLong coalesced = new AtomicLong();
+
+	private final AtomicLong dropped = new AtomicLong();
+
+	private final AtomicLong flushes = new AtomicLong();
+
+	private final AtomicLong flushedWrites = new AtomicLong();
+
+	private final AtomicLong failedWrites = new AtomicLong();
+
+	private final AtomicLong flushNanos = new AtomicLong();
+
+	private volatile long lastFlushNanos = 0;
+
+	public CoalescingAsyncFlushQueue() {
+	}
+
+	public CoalescingAsyncFlushQueue(KeyValueStore store) {
+		this.store = store;
+	}
+
+	public void setStore(KeyValueStore store) {
+		this.store = store;
+	}
+
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Maximum time in milliseconds a write waits before being flushed.
+	 */
+	public void setFlushInterval(long flushInterval) {
+		this.flushInterval = flushInterval;
+	}
+
+	public void setMaxPending(int maxPending) {
+		this.maxPending = maxPending;
+	}
+
+	public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	public void setDropListener(DropListener dropListener) {
+		this.dropListener = dropListener;
+	}
+
+	public void start() {
+		running = true;
+		flusher = new Thread(new Flusher(), getClass().getSimpleName());
+		flusher.setDaemon(true);
+		flusher.start();
+		registerMXBean();
+	}
+
+	/**
+	 * Stop accepting writes and write out everything pending before
+	 * returning. Writers blocked on a full buffer fail.
+	 */
+	public void stop() {
+		lock.lock();
+		try {
+			running = false;
+			notEmpty.signalAll();
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		try {
+			if (flusher != null)
+				flusher.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		flusher = null;
+		unregisterMXBean();
+	}
+
+	public void set(String key, Object value) throws KeyValueStoreException {
+		enqueue(key, new PendingWrite(value, null, false));
+	}
+
+	public void set(String key, Object value, Transcoder transcoder)
+			throws KeyValueStoreException {
+		enqueue(key, new PendingWrite(value, transcoder, false));
+	}
+
+	public void delete(String key) throws KeyValueStoreException {
+		enqueue(key, new PendingWrite(null, null, true));
+	}
+
+	protected boolean isRunning() {
+		return running;
+	}
+
+	public int getPendingCount() {
+		lock.lock();
+		try {
+			return pending.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Age in milliseconds of the oldest write not yet flushed, or 0 if
+	 * nothing is pending. A retried write keeps the age of its first enqueue.
+	 */
+	public long getOldestPendingAge() {
+		long oldest = Long.MAX_VALUE;
+		lock.lock();
+		try {
+			for (PendingWrite write : pending.values())
+				oldest = Math.min(oldest, write.createTime);
+		} finally {
+			lock.unlock();
+		}
+		return (oldest == Long.MAX_VALUE) ? 0 : System.currentTimeMillis()
+				- oldest;
+	}
+
+	public long getEnqueuedCount() {
+		return enqueued.get();
+	}
+
+	/**
+	 * Number of writes that replaced a pending write for the same key.
+	 */
+	public long getCoalescedCount() {
+		return coalesced.get();
+	}
+
+	public double getCoalesceRatio() {
+		long total = enqueued.get();
+		return (total == 0) ? 0.0 : ((double) coalesced.get()) / total;
+	}
+
+	/**
+	 * Number of writes discarded or rejected because the buffer was full.
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	public long getFlushCount() {
+		return flushes.get();
+	}
+
+	public long getFlushedWriteCount() {
+		return flushedWrites.get();
+	}
+
+	public long getFailedWriteCount() {
+		return failedWrites.get();
+	}
+
+	/**
+	 * Average batch flush time in milliseconds.
+	 */
+	public double getAverageFlushLatency() {
+		long count = flushes.get();
+		return (count == 0) ? 0.0 : flushNanos.get() / 1000000.0 / count;
+	}
+
+	public double getLastFlushLatency() {
+		return lastFlushNanos / 1000000.0;
+	}
+
+	protected void enqueue(String key, PendingWrite write)
+			throws KeyValueStoreException {
+		Map.Entry<String, PendingWrite> eldest = null;
+		lock.lock();
+		try {
+			if (!running)
+				throw new KeyValueStoreUnavailable("Flush queue is stopped");
+			enqueued.incrementAndGet();
+			while (true) {
+				PendingWrite existing = pending.get(key);
+				if (existing != null) {
+					accept(key, write);
+					// keeps the key's position and first enqueue time
+					write.enqueueTime = existing.enqueueTime;
+					write.createTime = existing.createTime;
+					pending.put(key, write);
+					coalesced.incrementAndGet();
+					break;
+				}
+				if (pending.size() < maxPending) {
+					accept(key, write);
+					write.enqueueTime = System.currentTimeMillis();
+					write.createTime = write.enqueueTime;
+					pending.put(key, write);
+					if ((pending.size() == 1) || (pending.size() >= batchSize))
+						notEmpty.signal();
+					break;
+				}
+				switch (overflowPolicy) {
+				case Block:
+					try {
+						notFull.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new KeyValueStoreException(e);
+					}
+					if (!running)
+						throw new KeyValueStoreUnavailable(
+								"Flush queue is stopped");
+					break;
+				case DropOldest:
+					Iterator<Map.Entry<String, PendingWrite>> iter = pending
+							.entrySet().iterator();
+					eldest = iter.next();
+					iter.remove();
+					dropped.incrementAndGet();
+					break;
+				default:
+					dropped.incrementAndGet();
+					throw new KeyValueStoreUnavailable("Flush queue is full");
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+		if (eldest != null)
+			dropped(eldest.getKey(), eldest.getValue());
+		afterEnqueue(write);
+	}
+
+	/**
+	 * Called without the lock held with a pending write discarded by
+	 * DropOldest.
+	 */
+	protected void dropped(String key, PendingWrite write) {
+		DropListener listener = dropListener;
+		if (listener != null)
+			listener.dropped(key);
+	}
+
+	/**
+	 * Called with the lock held once a write has been accepted, before it is
+	 * added to the pending buffer. Throwing rejects the write.
+	 */
+	protected void accept(String key, PendingWrite write)
+			throws KeyValueStoreException {
+	}
+
+	/**
+	 * Called without the lock held after a write has been added to the
+	 * pending buffer.
+	 */
+	protected void afterEnqueue(PendingWrite write)
+			throws KeyValueStoreException {
+	}
+
+	/**
+	 * Called by the flusher thread after each batch with the writes that
+	 * failed.
+	 */
+	protected void flushed(Map<String, PendingWrite> batch,
+			Map<String, PendingWrite> failed) {
+	}
+
+	/**
+	 * Add a write to the pending buffer without applying the overflow
+	 * policy, unless a newer write for the key is already pending.
+	 */
+	protected void requeue(String key, PendingWrite write) {
+		lock.lock();
+		try {
+			if (!pending.containsKey(key)) {
+				write.enqueueTime = System.currentTimeMillis();
+				if (write.createTime == 0)
+					write.createTime = write.enqueueTime;
+				pending.put(key, write);
+				notEmpty.signal();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Wait until a batch is due and remove it from the pending buffer.
+	 * Returns null once stopped and drained.
+	 */
+	private Map<String, PendingWrite> nextBatch() throws InterruptedException {
+		lock.lock();
+		try {
+			while (true) {
+				if (pending.isEmpty()) {
+					if (!running)
+						return null;
+					notEmpty.await();
+					continue;
+				}
+				if ((!running) || (pending.size() >= batchSize))
+					break;
+				long age = System.currentTimeMillis()
+						- pending.values().iterator().next().enqueueTime;
+				if (age >= flushInterval)
+					break;
+				notEmpty.await(flushInterval - age, TimeUnit.MILLISECONDS);
+			}
+			Map<String, PendingWrite> batch = new LinkedHashMap<String, PendingWrite>();
+			Iterator<Map.Entry<String, PendingWrite>> iter = pending.entrySet()
+					.iterator();
+			while ((iter.hasNext()) && (batch.size() < batchSize)) {
+				Map.Entry<String, PendingWrite> entry = iter.next();
+				batch.put(entry.getKey(), entry.getValue());
+				iter.remove();
+			}
+			notFull.signalAll();
+			return batch;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Write a batch to the store: untranscoded sets in one setBulk(), sets
+	 * for each transcoder in their own setBulk() and deletes in one
+	 * deleteBulk(). Returns the writes that failed.
+	 */
+	protected Map<String, PendingWrite> flush(Map<String, PendingWrite> batch) {
+		Map<String, Object> sets = new HashMap<String, Object>();
+		Map<Transcoder, Map<String, Object>> transcoded = new HashMap<Transcoder, Map<String, Object>>();
+		List<String> deletes = new ArrayList<String>();
+		for (Map.Entry<String, PendingWrite> entry : batch.entrySet()) {
+			PendingWrite write = entry.getValue();
+			if (write.delete)
+				deletes.add(entry.getKey());
+			else if (write.transcoder == null)
+				sets.put(entry.getKey(), write.value);
+			else {
+				Map<String, Object> values = transcoded.get(write.transcoder);
+				if (values == null) {
+					values = new HashMap<String, Object>();
+					transcoded.put(write.transcoder, values);
+				}
+				values.put(entry.getKey(), write.value);
+			}
+		}
+
+		long start = System.nanoTime();
+		Map<String, PendingWrite> failed = new HashMap<String, PendingWrite>();
+		if (sets.size() > 0) {
+			try {
+				store.setBulk(sets);
+			} catch (Exception e) {
+				log.error("Exception calling setBulk()", e);
+				addFailed(batch, sets.keySet(), failed);
+			}
+		}
+		for (Map.Entry<Transcoder, Map<String, Object>> entry : transcoded
+				.entrySet()) {
+			try {
+				store.setBulk(entry.getValue(), entry.getKey());
+			} catch (Exception e) {
+				log.error("Exception calling setBulk()", e);
+				addFailed(batch, entry.getValue().keySet(), failed);
+			}
+		}
+		if (deletes.size() > 0) {
+			try {
+				store.deleteBulk(deletes);
+			} catch (Exception e) {
+				log.error("Exception calling deleteBulk()", e);
+				addFailed(batch, deletes, failed);
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+		lastFlushNanos = elapsed;
+		flushNanos.addAndGet(elapsed);
+		flushes.incrementAndGet();
+		flushedWrites.addAndGet(batch.size() - failed.size());
+		failedWrites.addAndGet(failed.size());
+		return failed;
+	}
+
+	private void addFailed(Map<String, PendingWrite> batch,
+			Collection<String> keys, Map<String, PendingWrite> failed) {
+		for (String key : keys)
+			failed.put(key, batch.get(key));
+	}
+
+	protected String getMXBeanObjectName() {
+		return String.format(
+				"OthersOnline:entity=AsyncFlushQueue,class=%1$s,id=%2$d",
+				getClass().getName(), System.identityHashCode(this));
+	}
+
+	private void registerMXBean() {
+		MBeanServer mbeanServer = JMXMbeanServerFactory.getMBeanServer();
+		try {
+			ObjectName objectName = new ObjectName(getMXBeanObjectName());
+			if (!mbeanServer.isRegistered(objectName))
+				mbeanServer.registerMBean(new AsyncFlushQueueImplMXBean(this),
+						objectName);
+		} catch (Exception e) {
+			log.warn("Unable to register MXBean", e);
+		}
+	}
+
+	private void unregisterMXBean() {
+		MBeanServer mbeanServer = JMXMbeanServerFactory.getMBeanServer();
+		try {
+			ObjectName objectName = new ObjectName(getMXBeanObjectName());
+			if (mbeanServer.isRegistered(objectName))
+				mbeanServer.unregisterMBean(objectName);
+		} catch (Exception e) {
+			log.warn("Unable to unregister MXBean", e);
+		}
+	}
+
+	protected static class PendingWrite {
+		protected final Object value;
+
+		protected final Transcoder transcoder;
+
+		protected final boolean delete;
+
+		protected long enqueueTime;
+
+		protected long createTime;
+
+		protected long sequence;
+
+		public PendingWrite(Object value, Transcoder transcoder, boolean delete) {
+			this.value = value;
+			this.transcoder = transcoder;
+			this.delete = delete;
+		}
+	}
+
+	private class Flusher implements Runnable {
+		public void run() {
+			while (true) {
+				Map<String, PendingWrite> batch;
+				try {
+					batch = nextBatch();
+				} catch (InterruptedException e) {
+					continue;
+				}
+				if (batch == null)
+					return;
+				flushed(batch, flush(batch));
+			}
+		}
+	}
+}
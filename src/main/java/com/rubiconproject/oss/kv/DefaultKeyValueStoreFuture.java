@@ -0,0 +1,118 @@
+package com.rubiconproject.oss.kv;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Default KeyValueStoreFuture implementation. May be used either as a task
+ * submitted to an executor (constructed with a Callable) or as a settable
+ * future completed by a callback via complete() or fail().
+ * 
+ * @param <V>
+ *            result type
+ */
+public class DefaultKeyValueStoreFuture<V> extends FutureTask<V> implements
+		KeyValueStoreFuture<V> {
+	private static final Callable<Object> NOOP = new Callable<Object>() {
+		public Object call() throws Exception {
+			throw new IllegalStateException(
+					"Settable future must be completed via complete() or fail()");
+		}
+	};
+
+	private static Log log = LogFactory
+			.getLog(DefaultKeyValueStoreFuture.class);
+
+	private List<KeyValueStoreFutureListener<V>> listeners = new ArrayList<KeyValueStoreFutureListener<V>>(
+			2);
+
+	private boolean fired = false;
+
+	/**
+	 * Create a settable future.
+	 */
+	@SuppressWarnings("unchecked")
+	public DefaultKeyValueStoreFuture() {
+		super((Callable<V>) NOOP);
+	}
+
+	/**
+	 * Create a future that computes its result by calling the given Callable
+	 * when run.
+	 * 
+	 * @param callable
+	 */
+	public DefaultKeyValueStoreFuture(Callable<V> callable) {
+		super(callable);
+	}
+
+	/**
+	 * Create an already-completed future.
+	 * 
+	 * @param <V>
+	 * @param value
+	 * @return a completed future
+	 */
+	public static <V> DefaultKeyValueStoreFuture<V> completed(V value) {
+		DefaultKeyValueStoreFuture<V> future = new DefaultKeyValueStoreFuture<V>();
+		future.complete(value);
+		return future;
+	}
+
+	/**
+	 * Create an already-failed future.
+	 * 
+	 * @param <V>
+	 * @param t
+	 * @return a failed future
+	 */
+	public static <V> DefaultKeyValueStoreFuture<V> failed(Throwable t) {
+		DefaultKeyValueStoreFuture<V> future = new DefaultKeyValueStoreFuture<V>();
+		future.fail(t);
+		return future;
+	}
+
+	public void complete(V value) {
+		super.set(value);
+	}
+
+	public void fail(Throwable t) {
+		super.setException(t);
+	}
+
+	public void addListener(KeyValueStoreFutureListener<V> listener) {
+		boolean callNow = false;
+		synchronized (listeners) {
+			if (fired)
+				callNow = true;
+			else
+				listeners.add(listener);
+		}
+		if (callNow)
+			fire(listener);
+	}
+
+	protected void done() {
+		List<KeyValueStoreFutureListener<V>> toFire;
+		synchronized (listeners) {
+			fired = true;
+			toFire = new ArrayList<KeyValueStoreFutureListener<V>>(listeners);
+			listeners.clear();
+		}
+		for (KeyValueStoreFutureListener<V> listener : toFire)
+			fire(listener);
+	}
+
+	private void fire(KeyValueStoreFutureListener<V> listener) {
+		try {
+			listener.completed(this);
+		} catch (Exception e) {
+			log.error("Exception calling completed() on listener", e);
+		}
+	}
+}
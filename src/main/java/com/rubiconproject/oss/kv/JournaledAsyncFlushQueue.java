@@ -0,0 +1,222 @@
+package com.rubiconproject.oss.kv;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.rubiconproject.oss.kv.transcoder.ByteArrayTranscoder;
+import com.rubiconproject.oss.kv.transcoder.SerializableTranscoder;
+import com.rubiconproject.oss.kv.transcoder.Transcoder;
+
+/**
+ * A CoalescingAsyncFlushQueue that records every accepted write in an
+ * AsyncFlushJournal before acknowledging it, giving at-least-once delivery
+ * to the store across restarts.
+ * 
+ * Values written without a transcoder are journaled with Java serialization
+ * and replayed with set(key, value); values written with a transcoder are
+ * journaled in encoded form and replayed with a ByteArrayTranscoder. On
+ * start() the latest journaled write for each key is queued again. Failed
+ * flushes are retried. Segments are deleted once every write in them has
+ * been flushed or superseded by a later write.
+ */
+public class JournaledAsyncFlushQueue extends CoalescingAsyncFlushQueue {
+	private File directory;
+
+	private int segmentSize = 64 * 1024 * 1024;
+
+	private boolean syncOnWrite = true;
+
+	private AsyncFlushJournal journal;
+
+	private Transcoder serializer = new SerializableTranscoder();
+
+	private Transcoder replayTranscoder = new ByteArrayTranscoder();
+
+	private volatile boolean retainJournal = false;
+
+	public JournaledAsyncFlushQueue() {
+	}
+
+	public JournaledAsyncFlushQueue(KeyValueStore store, File directory) {
+		super(store);
+		this.directory = directory;
+	}
+
+	public void setDirectory(File directory) {
+		this.directory = directory;
+	}
+
+	public void setSegmentSize(int segmentSize) {
+		this.segmentSize = segmentSize;
+	}
+
+	/**
+	 * If true (the default) each write returns only after its journal record
+	 * has been forced to disk. Concurrent writers share one fsync. If false,
+	 * records are forced when a segment fills and on stop().
+	 */
+	public void setSyncOnWrite(boolean syncOnWrite) {
+		this.syncOnWrite = syncOnWrite;
+	}
+
+	public int getSegmentCount() {
+		return (journal == null) ? 0 : journal.getSegmentCount();
+	}
+
+	public void start() {
+		journal = new AsyncFlushJournal(directory, segmentSize);
+		List<AsyncFlushJournal.Record> records;
+		try {
+			records = journal.open();
+		} catch (IOException e) {
+			throw new IllegalStateException("Unable to open journal in "
+					+ directory, e);
+		}
+		replay(records);
+		retainJournal = false;
+		super.start();
+	}
+
+	public void stop() {
+		super.stop();
+		if (!retainJournal)
+			truncate(true);
+		journal.close();
+	}
+
+	public void set(String key, Object value) throws KeyValueStoreException {
+		JournaledWrite write = new JournaledWrite(value, null, false);
+		write.type = AsyncFlushJournal.SET;
+		write.encoded = encode(serializer, value);
+		enqueue(key, write);
+	}
+
+	public void set(String key, Object value, Transcoder transcoder)
+			throws KeyValueStoreException {
+		JournaledWrite write = new JournaledWrite(value, transcoder, false);
+		write.type = AsyncFlushJournal.SET_TRANSCODED;
+		write.encoded = encode(transcoder, value);
+		enqueue(key, write);
+	}
+
+	public void delete(String key) throws KeyValueStoreException {
+		JournaledWrite write = new JournaledWrite(null, null, true);
+		write.type = AsyncFlushJournal.DELETE;
+		enqueue(key, write);
+	}
+
+	protected void accept(String key, PendingWrite write)
+			throws KeyValueStoreException {
+		JournaledWrite journaled = (JournaledWrite) write;
+		try {
+			write.sequence = journal.append(journaled.type, key,
+					journaled.encoded);
+		} catch (IOException e) {
+			throw new KeyValueStoreException(e);
+		}
+		// no longer needed once journaled
+		journaled.encoded = null;
+	}
+
+	protected void afterEnqueue(PendingWrite write)
+			throws KeyValueStoreException {
+		if (!syncOnWrite)
+			return;
+		try {
+			journal.sync(write.sequence);
+		} catch (IOException e) {
+			throw new KeyValueStoreException(e);
+		}
+	}
+
+	protected void flushed(Map<String, PendingWrite> batch,
+			Map<String, PendingWrite> failed) {
+		if (failed.size() > 0) {
+			if (!isRunning()) {
+				// leave them in the journal for the next start()
+				retainJournal = true;
+				return;
+			}
+			for (Map.Entry<String, PendingWrite> entry : failed.entrySet())
+				requeue(entry.getKey(), entry.getValue());
+		}
+		if (!retainJournal)
+			truncate(false);
+	}
+
+	/**
+	 * Delete segments older than the oldest write still pending.
+	 */
+	private void truncate(boolean includeActive) {
+		long lowWater;
+		lock.lock();
+		try {
+			lowWater = journal.getNextSequence();
+			for (PendingWrite write : pending.values()) {
+				if (write.sequence < lowWater)
+					lowWater = write.sequence;
+			}
+		} finally {
+			lock.unlock();
+		}
+		journal.truncate(lowWater, includeActive);
+	}
+
+	private void replay(List<AsyncFlushJournal.Record> records) {
+		Map<String, AsyncFlushJournal.Record> latest = new LinkedHashMap<String, AsyncFlushJournal.Record>();
+		for (AsyncFlushJournal.Record record : records) {
+			latest.remove(record.getKey());
+			latest.put(record.getKey(), record);
+		}
+		int replayed = 0;
+		for (AsyncFlushJournal.Record record : latest.values()) {
+			PendingWrite write;
+			try {
+				switch (record.getType()) {
+				case AsyncFlushJournal.SET:
+					write = new PendingWrite(serializer.decode(record
+							.getValue()), null, false);
+					break;
+				case AsyncFlushJournal.SET_TRANSCODED:
+					write = new PendingWrite(record.getValue(),
+							replayTranscoder, false);
+					break;
+				default:
+					write = new PendingWrite(null, null, true);
+				}
+			} catch (Exception e) {
+				log.error("Unable to decode journaled write for "
+						+ record.getKey(), e);
+				continue;
+			}
+			write.sequence = record.getSequence();
+			requeue(record.getKey(), write);
+			++replayed;
+		}
+		if (replayed > 0)
+			log.info("Replaying " + replayed + " journaled writes from "
+					+ directory);
+	}
+
+	private byte[] encode(Transcoder transcoder, Object value)
+			throws KeyValueStoreException {
+		try {
+			return transcoder.encode(value);
+		} catch (IOException e) {
+			throw new KeyValueStoreException(e);
+		}
+	}
+
+	private static class JournaledWrite extends PendingWrite {
+		private byte type;
+
+		private byte[] encoded;
+
+		JournaledWrite(Object value, Transcoder transcoder, boolean delete) {
+			super(value, transcoder, delete);
+		}
+	}
+}
@@ -1,6 +1,7 @@
 package com.rubiconproject.oss.kv;
 
 import java.io.IOException;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
@@ -139,4 +140,36 @@ public interface KeyValueStore {
 	 * @throws IOException
 	 */
 	public void delete(String key) throws KeyValueStoreException, IOException;
+
+	/**
+	 * Save a set of key->object mappings. Backends that support batched
+	 * writes apply the whole map in as few round trips as possible.
+	 * 
+	 * @param values
+	 * @throws KeyValueStoreException
+	 * @throws IOException
+	 */
+	public void setBulk(Map<String, Object> values)
+			throws KeyValueStoreException, IOException;
+
+	/**
+	 * Save a set of key->object mappings using the specified transcoder.
+	 * 
+	 * @param values
+	 * @param transcoder
+	 * @throws KeyValueStoreException
+	 * @throws IOException
+	 */
+	public void setBulk(Map<String, Object> values, Transcoder transcoder)
+			throws KeyValueStoreException, IOException;
+
+	/**
+	 * Delete objects for a set of keys.
+	 * 
+	 * @param keys
+	 * @throws KeyValueStoreException
+	 * @throws IOException
+	 */
+	public void deleteBulk(Collection<String> keys)
+			throws KeyValueStoreException, IOException;
 }
@@ -0,0 +1,24 @@
+package com.rubiconproject.oss.kv;
+
+import java.util.concurrent.Future;
+
+/**
+ * A Future returned by an AsyncKeyValueStore. In addition to the usual
+ * blocking get() methods it accepts listeners that are notified once the
+ * operation completes, allowing callers to chain work without parking a
+ * thread on each in-flight operation.
+ * 
+ * @param <V>
+ *            result type
+ */
+public interface KeyValueStoreFuture<V> extends Future<V> {
+
+	/**
+	 * Register a listener to be called when this future completes. If the
+	 * future is already complete the listener is called immediately on the
+	 * calling thread.
+	 * 
+	 * @param listener
+	 */
+	public void addListener(KeyValueStoreFutureListener<V> listener);
+}
@@ -0,0 +1,20 @@
+package com.rubiconproject.oss.kv;
+
+/**
+ * Callback interface for KeyValueStoreFuture completion.
+ * 
+ * @param <V>
+ *            result type
+ */
+public interface KeyValueStoreFutureListener<V> {
+
+	/**
+	 * Called once the future is done, successfully or not. Implementations
+	 * should call future.get() to retrieve the result or the failure and
+	 * should not block, since this may run on an I/O thread.
+	 * 
+	 * @param future
+	 *            the completed future
+	 */
+	public void completed(KeyValueStoreFuture<V> future);
+}
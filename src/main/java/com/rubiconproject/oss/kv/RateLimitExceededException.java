@@ -0,0 +1,21 @@
+package com.rubiconproject.oss.kv;
+
+/**
+ * Thrown by a rate limited store when an operation could not get a permit
+ * in time.
+ */
+public class RateLimitExceededException extends KeyValueStoreUnavailable {
+	private static final long serialVersionUID = -3307826312270611784L;
+
+	public RateLimitExceededException() {
+		super();
+	}
+
+	public RateLimitExceededException(String message) {
+		super(message);
+	}
+
+	public RateLimitExceededException(Throwable cause) {
+		super(cause);
+	}
+}
@@ -1,16 +1,23 @@
 package com.rubiconproject.oss.kv;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import com.rubiconproject.oss.kv.transcoder.Transcoder;
-import com.rubiconproject.oss.kv.util.DaemonThreadFactory;
+import com.rubiconproject.oss.kv.util.StripedExecutor;
 
+/**
+ * Flushes each write in a background thread. Writes are striped by key onto
+ * single-threaded lanes, so writes to the same key reach the store in the
+ * order they were made. A full lane blocks the writer.
+ */
 public class ThreadPoolAsyncFlushQueue implements AsyncFlushQueue {
-	private ExecutorService executor;
+	public static final int DEFAULT_LANE_CAPACITY = 10000;
+
+	private StripedExecutor executor;
 
 	private KeyValueStore store;
 
@@ -18,21 +25,49 @@ public class ThreadPoolAsyncFlushQueue implements AsyncFlushQueue {
 	}
 
 	public ThreadPoolAsyncFlushQueue(KeyValueStore store, int threadPoolSize) {
+		this(store, threadPoolSize, DEFAULT_LANE_CAPACITY);
+	}
+
+	public ThreadPoolAsyncFlushQueue(KeyValueStore store, int threadPoolSize,
+			int laneCapacity) {
 		this.store = store;
-		executor = Executors.newFixedThreadPool(threadPoolSize,
-				new DaemonThreadFactory());
+		executor = new StripedExecutor(threadPoolSize, laneCapacity);
+	}
+
+	public void set(String key, Object value) throws KeyValueStoreException {
+		submit(key, new SetRunnable(store, key, value));
 	}
 
-	public void set(String key, Object value) {
-		executor.submit(new SetRunnable(store, key, value));
+	public void set(String key, Object value, Transcoder transcoder)
+			throws KeyValueStoreException {
+		submit(key, new SetTranscoderRunnable(store, key, value, transcoder));
 	}
 
-	public void set(String key, Object value, Transcoder transcoder) {
-		executor.submit(new SetTranscoderRunnable(store, key, value, transcoder));
+	public void delete(String key) throws KeyValueStoreException {
+		submit(key, new DeleteRunnable(store, key));
 	}
 
-	public void delete(String key) {
-		executor.submit(new DeleteRunnable(store, key));
+	public int getQueuedCount() {
+		return executor.getQueuedCount();
+	}
+
+	/**
+	 * Stop accepting writes and wait up to the given number of milliseconds
+	 * for queued writes to be flushed.
+	 * 
+	 * @return the number of queued writes abandoned after the timeout
+	 */
+	public int stop(long timeout) {
+		return executor.shutdown(timeout, TimeUnit.MILLISECONDS);
+	}
+
+	private void submit(String key, Runnable runnable)
+			throws KeyValueStoreException {
+		try {
+			executor.execute(key, runnable);
+		} catch (RejectedExecutionException e) {
+			throw new KeyValueStoreUnavailable(e);
+		}
 	}
 
 	private static abstract class QueueRunnable implements Runnable {
@@ -0,0 +1,50 @@
+package com.rubiconproject.oss.kv.backends;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+/**
+ * Estimates the heap used by an entry in bytes. Strings, byte arrays, boxed
+ * primitives and CachedValue wrappers are sized directly; other Serializable
+ * values are weighed by their serialized length, which is costly, so caches
+ * of such values may prefer a weigher of their own.
+ */
+public class ApproximateSizeWeigher implements Weigher {
+	// map entry, cache node and key object headers
+	private static final int ENTRY_OVERHEAD = 96;
+
+	private static final int UNKNOWN_SIZE = 64;
+
+	public int weigh(String key, Object value) {
+		long size = ENTRY_OVERHEAD + sizeOf(key) + sizeOf(value);
+		return (int) Math.min(Integer.MAX_VALUE, size);
+	}
+
+	protected long sizeOf(Object value) {
+		if (value == null)
+			return 0;
+		if (value instanceof byte[])
+			return 16 + ((byte[]) value).length;
+		if (value instanceof String)
+			return 40 + 2 * ((String) value).length();
+		if ((value instanceof Number) || (value instanceof Boolean)
+				|| (value instanceof Character))
+			return 16;
+		if (value instanceof CachedValue)
+			return 32 + sizeOf(((CachedValue) value).getValue());
+		if (value instanceof Serializable) {
+			try {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				ObjectOutputStream out = new ObjectOutputStream(bytes);
+				out.writeObject(value);
+				out.close();
+				return bytes.size();
+			} catch (IOException e) {
+				return UNKNOWN_SIZE;
+			}
+		}
+		return UNKNOWN_SIZE;
+	}
+}
@@ -1,8 +1,13 @@
 package com.rubiconproject.oss.kv.backends;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 
 import com.rubiconproject.oss.kv.AsyncFlushQueue;
+import com.rubiconproject.oss.kv.CoalescingAsyncFlushQueue;
 import com.rubiconproject.oss.kv.KeyValueStore;
 import com.rubiconproject.oss.kv.KeyValueStoreException;
 import com.rubiconproject.oss.kv.transcoder.Transcoder;
@@ -13,6 +18,10 @@ import com.rubiconproject.oss.kv.transcoder.Transcoder;
  * not dictate the actual implementation of the write queue, but delegates to an
  * AsyncFlushQueue.
  * 
+ * Writes are queued before the cache is updated, so a write the queue
+ * rejects never shows up in the cache. Keys a CoalescingAsyncFlushQueue
+ * drops on overflow are removed from the cache.
+ * 
  * @author sam
  * 
  */
@@ -30,6 +39,7 @@ public class AsyncFlushCachingKeyValueStore extends CachingKeyValueStore {
 			KeyValueStore cache, AsyncFlushQueue queue) {
 		super(master, cache);
 		this.queue = queue;
+		listenForDrops();
 	}
 
 	@Override
@@ -41,25 +51,89 @@ public class AsyncFlushCachingKeyValueStore extends CachingKeyValueStore {
 	public void set(String key, Object value)
 			throws KeyValueStoreException, IOException {
 		assertWriteable();
-		cache.set(key, value);
 		if (queue != null)
 			queue.set(key, value);
+		cacheSet(key, value, null);
+		invalidateNegative(key);
 	}
 
 	@Override
 	public void set(String key, Object value, Transcoder transcoder)
 			throws KeyValueStoreException, IOException {
 		assertWriteable();
-		cache.set(key, value, transcoder);
 		if (queue != null)
 			queue.set(key, value, transcoder);
+		cacheSet(key, value, transcoder);
+		invalidateNegative(key);
 	}
 
 	@Override
 	public void delete(String key) throws KeyValueStoreException, IOException {
 		assertWriteable();
-		cache.delete(key);
 		if (queue != null)
 			queue.delete(key);
+		cache.delete(key);
+		invalidateNegative(key);
+	}
+
+	@Override
+	public void setBulk(Map<String, Object> values)
+			throws KeyValueStoreException, IOException {
+		setBulk(values, null);
+	}
+
+	@Override
+	public void setBulk(Map<String, Object> values, Transcoder transcoder)
+			throws KeyValueStoreException, IOException {
+		assertWriteable();
+		if (queue != null) {
+			List<String> queued = new ArrayList<String>(values.size());
+			try {
+				for (Map.Entry<String, Object> entry : values.entrySet()) {
+					if (transcoder == null)
+						queue.set(entry.getKey(), entry.getValue());
+					else
+						queue.set(entry.getKey(), entry.getValue(), transcoder);
+					queued.add(entry.getKey());
+				}
+			} catch (KeyValueStoreException e) {
+				// the writes already queued will replace what is cached
+				cache.deleteBulk(queued);
+				invalidateNegative(queued);
+				throw e;
+			}
+		}
+		cacheSetBulk(values, transcoder);
+		invalidateNegative(values.keySet());
+	}
+
+	@Override
+	public void deleteBulk(Collection<String> keys)
+			throws KeyValueStoreException, IOException {
+		assertWriteable();
+		if (queue != null)
+			for (String key : keys)
+				queue.delete(key);
+		cache.deleteBulk(keys);
+		invalidateNegative(keys);
+	}
+
+	/**
+	 * Keep a write the queue discards from being served from the cache.
+	 */
+	private void listenForDrops() {
+		if (!(queue instanceof CoalescingAsyncFlushQueue))
+			return;
+		((CoalescingAsyncFlushQueue) queue)
+				.setDropListener(new CoalescingAsyncFlushQueue.DropListener() {
+					public void dropped(String key) {
+						try {
+							cache.delete(key);
+						} catch (Exception e) {
+							log.warn("Unable to call delete() on cache: "
+									+ e.getMessage());
+						}
+					}
+				});
 	}
 }
@@ -0,0 +1,262 @@
+package com.rubiconproject.oss.kv.backends;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.rubiconproject.oss.kv.BaseManagedKeyValueStore;
+import com.rubiconproject.oss.kv.KeyValueStoreException;
+import com.rubiconproject.oss.kv.annotations.Configurable;
+import com.rubiconproject.oss.kv.annotations.Configurable.Type;
+import com.rubiconproject.oss.kv.transcoder.SerializableTranscoder;
+import com.rubiconproject.oss.kv.transcoder.Transcoder;
+import com.rubiconproject.oss.kv.util.DaemonThreadFactory;
+
+/**
+ * A persistent, log structured store in the style of Bitcask. Writes and
+ * deletes are appended as checksummed records to a memory mapped segment
+ * file, and an in-memory index maps every live key to the record holding
+ * its value, so a read is one hash lookup and one copy out of a mapping.
+ * Segments are sealed with hint files at segmentSize, so start() rarely
+ * reads data files; see SegmentLog.
+ *
+ * A background thread compacts every compactionInterval milliseconds,
+ * moving the live records out of each sealed segment in which at least
+ * compactionThreshold of the bytes are overwritten or deleted.
+ *
+ * Records are flushed to disk when a segment is sealed, on sync() and on
+ * stop(), or on every write with syncWrites.
+ */
+public class BitcaskKeyValueStore extends BaseManagedKeyValueStore implements
+		IterableKeyValueStore {
+	public static final String IDENTIFIER = "bitcask";
+
+	private static Log log = LogFactory.getLog(BitcaskKeyValueStore.class);
+
+	private static final String DATA_SUFFIX = ".data";
+
+	private static final String HINT_SUFFIX = ".hint";
+
+	private Transcoder defaultTranscoder = new SerializableTranscoder();
+
+	private String dir;
+
+	private int segmentSize = 64 * 1024 * 1024;
+
+	private double compactionThreshold = 0.5d;
+
+	private long compactionInterval = 60000l;
+
+	private boolean syncWrites = false;
+
+	private volatile SegmentLog segments;
+
+	private ScheduledExecutorService compactor;
+
+	public BitcaskKeyValueStore() {
+	}
+
+	public BitcaskKeyValueStore(String dir) {
+		this.dir = dir;
+	}
+
+	public String getIdentifier() {
+		return IDENTIFIER;
+	}
+
+	@Configurable(name = "dir", accepts = Type.StringType)
+	public void setDir(String dir) {
+		this.dir = dir;
+	}
+
+	@Configurable(name = "segmentSize", accepts = Type.IntType)
+	public void setSegmentSize(int segmentSize) {
+		this.segmentSize = segmentSize;
+	}
+
+	/**
+	 * Fraction of a segment that must be dead before it is compacted.
+	 */
+	@Configurable(name = "compactionThreshold", accepts = Type.DoubleType)
+	public void setCompactionThreshold(double compactionThreshold) {
+		this.compactionThreshold = compactionThreshold;
+	}
+
+	/**
+	 * Milliseconds between compaction runs, 0 to compact only on compact().
+	 */
+	@Configurable(name = "compactionInterval", accepts = Type.LongType)
+	public void setCompactionInterval(long compactionInterval) {
+		this.compactionInterval = compactionInterval;
+	}
+
+	@Configurable(name = "syncWrites", accepts = Type.BooleanType)
+	public void setSyncWrites(boolean syncWrites) {
+		this.syncWrites = syncWrites;
+	}
+
+	public void start() throws IOException {
+		segments = new SegmentLog(new File(dir), DATA_SUFFIX, HINT_SUFFIX, segmentSize,
+				compactionThreshold, true);
+		segments.open();
+		if (compactionInterval > 0) {
+			compactor = Executors
+					.newSingleThreadScheduledExecutor(new DaemonThreadFactory());
+			compactor.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					try {
+						compact();
+					} catch (Exception e) {
+						log.error("Exception compacting " + dir, e);
+					}
+				}
+			}, compactionInterval, compactionInterval, TimeUnit.MILLISECONDS);
+		}
+		super.start();
+	}
+
+	public void stop() {
+		super.stop();
+		if (compactor != null) {
+			compactor.shutdownNow();
+			try {
+				compactor.awaitTermination(10, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			compactor = null;
+		}
+		if (segments != null)
+			segments.close();
+	}
+
+	public int getSize() {
+		SegmentLog current = segments;
+		return (current == null) ? 0 : current.getSize();
+	}
+
+	public int getSegmentCount() {
+		SegmentLog current = segments;
+		return (current == null) ? 0 : current.getSegmentCount();
+	}
+
+	/**
+	 * Bytes of records that have been overwritten or deleted and not yet
+	 * compacted.
+	 */
+	public long getDeadBytes() {
+		SegmentLog current = segments;
+		return (current == null) ? 0 : current.getDeadBytes();
+	}
+
+	public long getCompactionCount() {
+		SegmentLog current = segments;
+		return (current == null) ? 0 : current.getCompactionCount();
+	}
+
+	public long getReclaimedBytes() {
+		SegmentLog current = segments;
+		return (current == null) ? 0 : current.getReclaimedBytes();
+	}
+
+	public boolean exists(String key) throws KeyValueStoreException,
+			IOException {
+		assertReadable();
+		return segments.contains(key);
+	}
+
+	public Object get(String key) throws KeyValueStoreException, IOException {
+		assertReadable();
+		return get(key, defaultTranscoder);
+	}
+
+	public Object get(String key, Transcoder transcoder)
+			throws KeyValueStoreException, IOException {
+		assertReadable();
+		byte[] bytes = segments.get(key);
+		return (bytes == null) ? null : transcoder.decode(bytes);
+	}
+
+	public Map<String, Object> getBulk(String... keys)
+			throws KeyValueStoreException, IOException {
+		return getBulk(Arrays.asList(keys));
+	}
+
+	public Map<String, Object> getBulk(List<String> keys)
+			throws KeyValueStoreException, IOException {
+		return getBulk(keys, defaultTranscoder);
+	}
+
+	public Map<String, Object> getBulk(List<String> keys, Transcoder transcoder)
+			throws KeyValueStoreException, IOException {
+		assertReadable();
+		Map<String, Object> results = new HashMap<String, Object>();
+		for (Map.Entry<String, byte[]> entry : segments.getAll(keys)
+				.entrySet())
+			results.put(entry.getKey(), transcoder.decode(entry.getValue()));
+		return results;
+	}
+
+	public void set(String key, Object value) throws KeyValueStoreException,
+			IOException {
+		assertWriteable();
+		set(key, value, defaultTranscoder);
+	}
+
+	public void set(String key, Object value, Transcoder transcoder)
+			throws KeyValueStoreException, IOException {
+		assertWriteable();
+		segments.put(key, transcoder.encode(value));
+		if (syncWrites)
+			segments.sync();
+	}
+
+	public void delete(String key) throws KeyValueStoreException, IOException {
+		assertWriteable();
+		segments.remove(key);
+		if (syncWrites)
+			segments.sync();
+	}
+
+	public KeyValueStoreIterator iterkeys() throws KeyValueStoreException {
+		assertReadable();
+		final Set<String> keys = segments.keys();
+		return new KeyValueStoreIterator() {
+			public Iterator<String> iterator() {
+				return keys.iterator();
+			}
+
+			public void close() {
+			}
+		};
+	}
+
+	/**
+	 * Flush the current segment to disk.
+	 */
+	public void sync() throws IOException {
+		SegmentLog current = segments;
+		if (current != null)
+			current.sync();
+	}
+
+	/**
+	 * Compact every sealed segment that is at least compactionThreshold dead.
+	 */
+	public void compact() throws IOException {
+		SegmentLog current = segments;
+		if (current != null)
+			current.compact();
+	}
+}
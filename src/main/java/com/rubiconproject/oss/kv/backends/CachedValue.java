@@ -0,0 +1,43 @@
+package com.rubiconproject.oss.kv.backends;
+
+import java.io.Serializable;
+
+/**
+ * A value stored in the cache tier of a CachingKeyValueStore along with its
+ * soft and hard expiry times (milliseconds since the epoch).
+ */
+public class CachedValue implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private Object value;
+
+	private long softExpiry;
+
+	private long hardExpiry;
+
+	public CachedValue(Object value, long softExpiry, long hardExpiry) {
+		this.value = value;
+		this.softExpiry = softExpiry;
+		this.hardExpiry = hardExpiry;
+	}
+
+	public Object getValue() {
+		return value;
+	}
+
+	public long getSoftExpiry() {
+		return softExpiry;
+	}
+
+	public long getHardExpiry() {
+		return hardExpiry;
+	}
+
+	public boolean isStale(long now) {
+		return now >= softExpiry;
+	}
+
+	public boolean isExpired(long now) {
+		return now >= hardExpiry;
+	}
+}
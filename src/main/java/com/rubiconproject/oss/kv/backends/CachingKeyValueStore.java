@@ -3,24 +3,44 @@ package com.rubiconproject.oss.kv.backends;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import com.rubiconproject.oss.kv.BaseManagedKeyValueStore;
+import com.rubiconproject.oss.kv.DefaultKeyValueStoreFuture;
 import com.rubiconproject.oss.kv.KeyValueStore;
 import com.rubiconproject.oss.kv.KeyValueStoreException;
 import com.rubiconproject.oss.kv.annotations.Configurable;
 import com.rubiconproject.oss.kv.annotations.Configurable.Type;
+import com.rubiconproject.oss.kv.mgmt.CachingImplMXBean;
+import com.rubiconproject.oss.kv.transcoder.CachedValueTranscoder;
 import com.rubiconproject.oss.kv.transcoder.Transcoder;
+import com.rubiconproject.oss.kv.util.DaemonThreadFactory;
+import com.rubiconproject.oss.kv.util.ExecutorUtils;
 
 public class CachingKeyValueStore extends BaseManagedKeyValueStore {
 	public static final String IDENTIFIER = "caching";
 
+	private static final double BULK_HIT_RATIO_WEIGHT = 0.2;
+
 	protected Log log = LogFactory.getLog(getClass());
 
 	protected KeyValueStore master;
@@ -31,6 +51,52 @@ public class CachingKeyValueStore extends BaseManagedKeyValueStore {
 
 	protected boolean cacheOnSet = true;
 
+	protected boolean coalesceMisses = false;
+
+	private final ConcurrentMap<String, InflightLoad> inflight = new ConcurrentHashMap<String, InflightLoad>();
+
+	private final AtomicLong issuedLoads = new AtomicLong();
+
+	private final AtomicLong coalescedLoads = new AtomicLong();
+
+	protected double parallelBulkHitRatio = 0.0;
+
+	private volatile double bulkHitRatio = 1.0;
+
+	private final AtomicLong parallelBulkGets = new AtomicLong();
+
+	private ExecutorService executor;
+
+	private int threadPoolSize = 4;
+
+	private boolean iOwnThreadPool = true;
+
+	protected long softTtl = 0;
+
+	protected long hardTtl = 0;
+
+	private int refreshThreadPoolSize = 2;
+
+	private int refreshQueueSize = 1000;
+
+	private ThreadPoolExecutor refreshExecutor;
+
+	private final ConcurrentMap<String, Boolean> refreshing = new ConcurrentHashMap<String, Boolean>();
+
+	private final AtomicLong staleHits = new AtomicLong();
+
+	private final AtomicLong refreshes = new AtomicLong();
+
+	private final AtomicLong rejectedRefreshes = new AtomicLong();
+
+	protected long negativeTtl = 0;
+
+	private int negativeCacheSize = 10000;
+
+	private NegativeCache negativeCache;
+
+	private final AtomicLong negativeHits = new AtomicLong();
+
 	public CachingKeyValueStore() {
 	}
 
@@ -57,14 +123,123 @@ public class CachingKeyValueStore extends BaseManagedKeyValueStore {
 		this.cacheOnSet = cacheOnSet;
 	}
 
+	@Configurable(name = "coalesceMisses", accepts = Type.BooleanType)
+	public void setCoalesceMisses(boolean coalesceMisses) {
+		this.coalesceMisses = coalesceMisses;
+	}
+
+	/**
+	 * Query cache and master in parallel for getBulk() calls while the
+	 * recent cache hit ratio of bulk gets is below this value. 0 (the
+	 * default) disables parallel queries.
+	 */
+	@Configurable(name = "parallelBulkHitRatio", accepts = Type.DoubleType)
+	public void setParallelBulkHitRatio(double parallelBulkHitRatio) {
+		this.parallelBulkHitRatio = parallelBulkHitRatio;
+	}
+
+	@Configurable(name = "threadPoolSize", accepts = Type.IntType)
+	public void setThreadPoolSize(int threadPoolSize) {
+		this.threadPoolSize = threadPoolSize;
+	}
+
+	public void setExecutorService(ExecutorService executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Milliseconds after which a cached value is stale. Stale values are
+	 * returned immediately and refreshed from master in the background. 0
+	 * (the default) disables expiry metadata; when enabled every writer of
+	 * the cache tier must go through a CachingKeyValueStore with it enabled.
+	 */
+	@Configurable(name = "softTtl", accepts = Type.LongType)
+	public void setSoftTtl(long softTtl) {
+		this.softTtl = softTtl;
+	}
+
+	/**
+	 * Milliseconds after which a cached value is ignored and reloaded from
+	 * master synchronously. 0 (the default) means never.
+	 */
+	@Configurable(name = "hardTtl", accepts = Type.LongType)
+	public void setHardTtl(long hardTtl) {
+		this.hardTtl = hardTtl;
+	}
+
+	@Configurable(name = "refreshThreadPoolSize", accepts = Type.IntType)
+	public void setRefreshThreadPoolSize(int refreshThreadPoolSize) {
+		this.refreshThreadPoolSize = refreshThreadPoolSize;
+	}
+
+	/**
+	 * Maximum number of pending background refreshes. Refreshes beyond this
+	 * are dropped; the stale value is served until a later read schedules
+	 * one.
+	 */
+	@Configurable(name = "refreshQueueSize", accepts = Type.IntType)
+	public void setRefreshQueueSize(int refreshQueueSize) {
+		this.refreshQueueSize = refreshQueueSize;
+	}
+
+	/**
+	 * Milliseconds to remember that a key was not found in master. Lookups of
+	 * such keys that miss the cache return null without reading master.
+	 * Writes through this store invalidate the entry; writes made elsewhere
+	 * are seen once they reach the cache tier (cacheOnSet) or the entry
+	 * expires. 0 (the default) disables negative caching.
+	 */
+	@Configurable(name = "negativeTtl", accepts = Type.LongType)
+	public void setNegativeTtl(long negativeTtl) {
+		this.negativeTtl = negativeTtl;
+	}
+
+	/**
+	 * Maximum number of absent keys remembered; the oldest are dropped first.
+	 */
+	@Configurable(name = "negativeCacheSize", accepts = Type.IntType)
+	public void setNegativeCacheSize(int negativeCacheSize) {
+		this.negativeCacheSize = negativeCacheSize;
+	}
+
 	public String getIdentifier() {
 		return IDENTIFIER;
 	}
 
 	public void start() throws IOException {
+		if ((executor == null) && (parallelBulkHitRatio > 0)) {
+			executor = ExecutorUtils
+					.newFixedSizeDaemonThreadPool(threadPoolSize);
+			iOwnThreadPool = true;
+		} else
+			iOwnThreadPool = false;
+		if ((refreshExecutor == null) && (softTtl > 0)) {
+			refreshExecutor = new ThreadPoolExecutor(refreshThreadPoolSize,
+					refreshThreadPoolSize, 0l, TimeUnit.MILLISECONDS,
+					new ArrayBlockingQueue<Runnable>(refreshQueueSize),
+					new DaemonThreadFactory());
+		}
+		if (negativeTtl > 0)
+			negativeCache = new NegativeCache(negativeCacheSize);
+		else
+			negativeCache = null;
 		super.start();
 	}
 
+	public void stop() {
+		if ((iOwnThreadPool) && (executor != null)) {
+			ExecutorUtils.shutdown(executor, TimeUnit.SECONDS, 2l,
+					TimeUnit.SECONDS, 2);
+			executor = null;
+		}
+		if (refreshExecutor != null) {
+			ExecutorUtils.shutdown(refreshExecutor, TimeUnit.SECONDS, 2l,
+					TimeUnit.SECONDS, 2);
+			refreshExecutor = null;
+		}
+		super.stop();
+	}
+
 	public boolean exists(String key) throws KeyValueStoreException,
 			IOException {
 		assertReadable();
@@ -83,22 +258,12 @@ public class CachingKeyValueStore extends BaseManagedKeyValueStore {
 		assertReadable();
 		Object obj = null;
 		try {
-			obj = cache.get(key);
+			obj = unwrap(key, cacheGet(key, null), null);
 		} catch (Exception e) {
 			log.warn("Unable to call get() on cache: " + e.getMessage());
 		}
-		if (obj == null) {
-			obj = master.get(key);
-			if ((obj != null) && (cacheOnMiss)) {
-				try {
-					cache.set(key, (Object) obj);
-				} catch (Exception e) {
-					log
-							.warn("Unable to call set() on cache: "
-									+ e.getMessage());
-				}
-			}
-		}
+		if (obj == null)
+			obj = loadFromMaster(key, null);
 		return obj;
 	}
 
@@ -107,30 +272,12 @@ public class CachingKeyValueStore extends BaseManagedKeyValueStore {
 		assertReadable();
 		Object obj = null;
 		try {
-			obj = cache.get(key, transcoder);
+			obj = unwrap(key, cacheGet(key, transcoder), transcoder);
 		} catch (Exception e) {
 			log.warn("Unable to call get() on cache: " + e.getMessage());
 		}
-		if (obj == null) {
-			obj = master.get(key, transcoder);
-			if ((obj != null) && (cacheOnMiss)) {
-				try {
-					cache.set(key, (Object) obj, transcoder);
-				} catch (KeyValueStoreException e) {
-					if ((e.getCause() != null)
-							&& (e.getCause().getClass()
-									.equals(TimeoutException.class))) {
-						log
-								.warn("Unable to call set() on cache due to TimeoutException: "
-										+ e.getMessage());
-					} else {
-						log.warn("Unable to call set() on cache", e);
-					}
-				} catch (Exception e) {
-					log.warn("Unable to call set() on cache", e);
-				}
-			}
-		}
+		if (obj == null)
+			obj = loadFromMaster(key, transcoder);
 		return obj;
 	}
 
@@ -143,38 +290,53 @@ public class CachingKeyValueStore extends BaseManagedKeyValueStore {
 	public Map<String, Object> getBulk(List<String> keys)
 			throws KeyValueStoreException, IOException {
 		assertReadable();
-		Map<String, Object> results = new HashMap<String, Object>();
-		try {
-			Map<String, Object> cached = cache.getBulk(keys);
-			results.putAll(cached);
-		} catch (Exception e) {
-			log.warn("Unable to call getBulk() on cache: " + e.getMessage());
-		}
-		if (results.size() < keys.size()) {
-			// find all keys not in cache
-			List<String> backendQueryKeys = new ArrayList<String>(keys.size()
-					- results.size());
-			for (String key : keys) {
-				if (!results.containsKey(key))
-					backendQueryKeys.add(key);
-			}
-			Map<String, Object> backendResults = master
-					.getBulk(backendQueryKeys);
-			results.putAll(backendResults);
-		}
-		return results;
+		return readThroughBulk(keys, null);
 	}
 
 	public Map<String, Object> getBulk(List<String> keys, Transcoder transcoder)
 			throws KeyValueStoreException, IOException {
 		assertReadable();
+		return readThroughBulk(keys, transcoder);
+	}
+
+	/**
+	 * Read from cache, then from master for any keys not in cache. Keys read
+	 * from master are written back to cache in a single setBulk() when
+	 * cacheOnMiss is set. If the recent bulk hit ratio is below
+	 * parallelBulkHitRatio, master is queried for all keys concurrently with
+	 * the cache.
+	 */
+	private Map<String, Object> readThroughBulk(final List<String> keys,
+			final Transcoder transcoder)
+			throws KeyValueStoreException, IOException {
+		Future<Map<String, Object>> parallel = null;
+		ExecutorService executor = this.executor;
+		if ((executor != null) && (bulkHitRatio < parallelBulkHitRatio)) {
+			parallelBulkGets.incrementAndGet();
+			parallel = executor.submit(new Callable<Map<String, Object>>() {
+				public Map<String, Object> call() throws Exception {
+					return loadBulkFromMaster(keys, transcoder);
+				}
+			});
+		}
+
 		Map<String, Object> results = new HashMap<String, Object>();
 		try {
-			Map<String, Object> cached = cache.getBulk(keys, transcoder);
-			results.putAll(cached);
+			Map<String, Object> cached = (transcoder == null) ? cache
+					.getBulk(keys) : cache.getBulk(keys, wrap(transcoder));
+			for (Map.Entry<String, Object> entry : cached.entrySet()) {
+				Object obj = unwrap(entry.getKey(), entry.getValue(),
+						transcoder);
+				if (obj != null)
+					results.put(entry.getKey(), obj);
+			}
 		} catch (Exception e) {
 			log.warn("Unable to call getBulk() on cache: " + e.getMessage());
 		}
+		if (keys.size() > 0)
+			bulkHitRatio += BULK_HIT_RATIO_WEIGHT
+					* (((double) results.size() / keys.size()) - bulkHitRatio);
+
 		if (results.size() < keys.size()) {
 			// find all keys not in cache
 			List<String> backendQueryKeys = new ArrayList<String>(keys.size()
@@ -183,9 +345,24 @@ public class CachingKeyValueStore extends BaseManagedKeyValueStore {
 				if (!results.containsKey(key))
 					backendQueryKeys.add(key);
 			}
-			Map<String, Object> backendResults = master.getBulk(
-					backendQueryKeys, transcoder);
-			results.putAll(backendResults);
+			Map<String, Object> backendResults = (parallel == null) ? loadBulkFromMaster(
+					backendQueryKeys, transcoder)
+					: await(parallel);
+			Map<String, Object> misses = new HashMap<String, Object>();
+			for (String key : backendQueryKeys) {
+				Object obj = backendResults.get(key);
+				if (obj != null)
+					misses.put(key, obj);
+			}
+			results.putAll(misses);
+			if ((cacheOnMiss) && (misses.size() > 0)) {
+				try {
+					cacheSetBulk(misses, transcoder);
+				} catch (Exception e) {
+					log.warn("Unable to call setBulk() on cache: "
+							+ e.getMessage());
+				}
+			}
 		}
 		return results;
 	}
@@ -195,13 +372,14 @@ public class CachingKeyValueStore extends BaseManagedKeyValueStore {
 		assertWriteable();
 		try {
 			if (cacheOnSet) {
-				cache.set(key, value);
+				cacheSet(key, value, null);
 			} else
 				cache.delete(key);
 		} catch (Exception e) {
 			log.warn("Unable to call set() on cache: " + e.getMessage());
 		}
 		master.set(key, value);
+		invalidateNegative(key);
 	}
 
 	public void set(String key, Object value, Transcoder transcoder)
@@ -209,13 +387,14 @@ public class CachingKeyValueStore extends BaseManagedKeyValueStore {
 		assertWriteable();
 		try {
 			if (cacheOnSet)
-				cache.set(key, value, transcoder);
+				cacheSet(key, value, transcoder);
 			else
 				cache.delete(key);
 		} catch (Exception e) {
 			log.warn("Unable to call set() on cache: " + e.getMessage());
 		}
 		master.set(key, value, transcoder);
+		invalidateNegative(key);
 	}
 
 	public void delete(String key) throws KeyValueStoreException, IOException {
@@ -226,6 +405,524 @@ public class CachingKeyValueStore extends BaseManagedKeyValueStore {
 			log.warn("Unable to call delete() on cache: " + e.getMessage());
 		}
 		master.delete(key);
+		invalidateNegative(key);
+	}
+
+	public void setBulk(Map<String, Object> values)
+			throws KeyValueStoreException, IOException {
+		assertWriteable();
+		try {
+			if (cacheOnSet)
+				cacheSetBulk(values, null);
+			else
+				cache.deleteBulk(values.keySet());
+		} catch (Exception e) {
+			log.warn("Unable to call setBulk() on cache: " + e.getMessage());
+		}
+		master.setBulk(values);
+		invalidateNegative(values.keySet());
+	}
+
+	public void setBulk(Map<String, Object> values, Transcoder transcoder)
+			throws KeyValueStoreException, IOException {
+		assertWriteable();
+		try {
+			if (cacheOnSet)
+				cacheSetBulk(values, transcoder);
+			else
+				cache.deleteBulk(values.keySet());
+		} catch (Exception e) {
+			log.warn("Unable to call setBulk() on cache: " + e.getMessage());
+		}
+		master.setBulk(values, transcoder);
+		invalidateNegative(values.keySet());
+	}
+
+	public void deleteBulk(Collection<String> keys)
+			throws KeyValueStoreException, IOException {
+		assertWriteable();
+		try {
+			cache.deleteBulk(keys);
+		} catch (Exception e) {
+			log.warn("Unable to call deleteBulk() on cache: "
+					+ e.getMessage());
+		}
+		master.deleteBulk(keys);
+		invalidateNegative(keys);
+	}
+
+	/**
+	 * Number of keys read from master on a cache miss.
+	 */
+	public long getIssuedLoadCount() {
+		return issuedLoads.get();
+	}
+
+	/**
+	 * Number of cache misses that joined a load already in flight for the
+	 * same key instead of reading from master.
+	 */
+	public long getCoalescedLoadCount() {
+		return coalescedLoads.get();
+	}
+
+	/**
+	 * Number of getBulk() calls that queried master in parallel with the
+	 * cache.
+	 */
+	public long getParallelBulkGetCount() {
+		return parallelBulkGets.get();
+	}
+
+	/**
+	 * Moving average of the fraction of keys found in cache by getBulk().
+	 */
+	public double getBulkHitRatio() {
+		return bulkHitRatio;
+	}
+
+	/**
+	 * Number of stale cached values returned while a refresh was scheduled.
+	 */
+	public long getStaleHitCount() {
+		return staleHits.get();
+	}
+
+	/**
+	 * Number of background refreshes run against master.
+	 */
+	public long getRefreshCount() {
+		return refreshes.get();
+	}
+
+	/**
+	 * Number of background refreshes dropped because the refresh queue was
+	 * full.
+	 */
+	public long getRejectedRefreshCount() {
+		return rejectedRefreshes.get();
+	}
+
+	/**
+	 * Number of cache misses answered from the negative cache.
+	 */
+	public long getNegativeHitCount() {
+		return negativeHits.get();
+	}
+
+	public Object getMXBean() {
+		return new CachingImplMXBean(this);
+	}
+
+	/**
+	 * Read a missed key from master and populate the cache. With
+	 * coalesceMisses enabled, concurrent misses for the same key (and
+	 * transcoder) wait on a single master read.
+	 */
+	protected Object loadFromMaster(String key, Transcoder transcoder)
+			throws KeyValueStoreException, IOException {
+		NegativeCache negatives = negativeCache;
+		if ((negatives != null) && (negatives.contains(key))) {
+			negativeHits.incrementAndGet();
+			return null;
+		}
+		if (!coalesceMisses) {
+			issuedLoads.incrementAndGet();
+			return loadAndCache(key, transcoder);
+		}
+		InflightLoad load = new InflightLoad(transcoder);
+		InflightLoad existing = inflight.putIfAbsent(key, load);
+		if (existing != null) {
+			if (existing.transcoder == transcoder) {
+				coalescedLoads.incrementAndGet();
+				return existing.await();
+			}
+			issuedLoads.incrementAndGet();
+			return loadAndCache(key, transcoder);
+		}
+		issuedLoads.incrementAndGet();
+		try {
+			Object obj = loadAndCache(key, transcoder);
+			load.complete(obj);
+			return obj;
+		} catch (KeyValueStoreException e) {
+			load.fail(e);
+			throw e;
+		} catch (IOException e) {
+			load.fail(e);
+			throw e;
+		} catch (RuntimeException e) {
+			load.fail(e);
+			throw e;
+		} finally {
+			inflight.remove(key, load);
+		}
+	}
+
+	/**
+	 * Read missed keys from master. With coalesceMisses enabled, keys that
+	 * already have a load in flight are not requested again; their results
+	 * are taken from the in-flight load.
+	 */
+	protected Map<String, Object> loadBulkFromMaster(List<String> keys,
+			Transcoder transcoder) throws KeyValueStoreException, IOException {
+		NegativeCache negatives = negativeCache;
+		if (negatives != null) {
+			List<String> remaining = new ArrayList<String>(keys.size());
+			for (String key : keys) {
+				if (negatives.contains(key))
+					negativeHits.incrementAndGet();
+				else
+					remaining.add(key);
+			}
+			keys = remaining;
+		}
+		if (!coalesceMisses) {
+			issuedLoads.addAndGet(keys.size());
+			return masterGetBulk(keys, transcoder);
+		}
+		Map<String, InflightLoad> owned = new HashMap<String, InflightLoad>();
+		Map<String, InflightLoad> joined = new HashMap<String, InflightLoad>();
+		List<String> queryKeys = new ArrayList<String>(keys.size());
+		for (String key : keys) {
+			if (owned.containsKey(key) || joined.containsKey(key))
+				continue;
+			InflightLoad load = new InflightLoad(transcoder);
+			InflightLoad existing = inflight.putIfAbsent(key, load);
+			if (existing == null) {
+				owned.put(key, load);
+				queryKeys.add(key);
+			} else if (existing.transcoder == transcoder) {
+				joined.put(key, existing);
+			} else
+				queryKeys.add(key);
+		}
+		issuedLoads.addAndGet(queryKeys.size());
+		coalescedLoads.addAndGet(joined.size());
+
+		Map<String, Object> results = new HashMap<String, Object>();
+		try {
+			if (queryKeys.size() > 0)
+				results.putAll(masterGetBulk(queryKeys, transcoder));
+			for (Map.Entry<String, InflightLoad> entry : owned.entrySet())
+				entry.getValue().complete(results.get(entry.getKey()));
+		} catch (KeyValueStoreException e) {
+			failAll(owned, e);
+			throw e;
+		} catch (IOException e) {
+			failAll(owned, e);
+			throw e;
+		} catch (RuntimeException e) {
+			failAll(owned, e);
+			throw e;
+		} finally {
+			for (Map.Entry<String, InflightLoad> entry : owned.entrySet())
+				inflight.remove(entry.getKey(), entry.getValue());
+		}
+		for (Map.Entry<String, InflightLoad> entry : joined.entrySet()) {
+			Object obj = entry.getValue().await();
+			if (obj != null)
+				results.put(entry.getKey(), obj);
+		}
+		return results;
+	}
+
+	private Object loadAndCache(String key, Transcoder transcoder)
+			throws KeyValueStoreException, IOException {
+		NegativeCache negatives = negativeCache;
+		long generation = (negatives == null) ? 0 : negatives.generation(key);
+		Object obj = (transcoder == null) ? master.get(key) : master.get(key,
+				transcoder);
+		if ((obj == null) && (negatives != null))
+			negatives.add(key, generation, negativeTtl);
+		if ((obj != null) && (cacheOnMiss)) {
+			try {
+				cacheSet(key, obj, transcoder);
+			} catch (KeyValueStoreException e) {
+				if ((e.getCause() != null)
+						&& (e.getCause().getClass()
+								.equals(TimeoutException.class))) {
+					log
+							.warn("Unable to call set() on cache due to TimeoutException: "
+									+ e.getMessage());
+				} else {
+					log.warn("Unable to call set() on cache", e);
+				}
+			} catch (Exception e) {
+				log.warn("Unable to call set() on cache", e);
+			}
+		}
+		return obj;
+	}
+
+	/**
+	 * Read a raw cache entry. With softTtl set, entries are CachedValues.
+	 */
+	protected Object cacheGet(String key, Transcoder transcoder)
+			throws KeyValueStoreException, IOException {
+		return (transcoder == null) ? cache.get(key) : cache.get(key,
+				wrap(transcoder));
+	}
+
+	/**
+	 * Write a value to the cache, wrapped with expiry times if softTtl is set.
+	 */
+	protected void cacheSet(String key, Object value, Transcoder transcoder)
+			throws KeyValueStoreException, IOException {
+		if (transcoder == null)
+			cache.set(key, wrap(value));
+		else
+			cache.set(key, wrap(value), wrap(transcoder));
+	}
+
+	protected void cacheSetBulk(Map<String, Object> values,
+			Transcoder transcoder) throws KeyValueStoreException, IOException {
+		Map<String, Object> wrapped = values;
+		if (softTtl > 0) {
+			wrapped = new HashMap<String, Object>();
+			for (Map.Entry<String, Object> entry : values.entrySet())
+				wrapped.put(entry.getKey(), wrap(entry.getValue()));
+		}
+		if (transcoder == null)
+			cache.setBulk(wrapped);
+		else
+			cache.setBulk(wrapped, wrap(transcoder));
+	}
+
+	private Object wrap(Object value) {
+		if (softTtl <= 0)
+			return value;
+		long now = System.currentTimeMillis();
+		long hardExpiry = (hardTtl > 0) ? now + hardTtl : Long.MAX_VALUE;
+		return new CachedValue(value, now + softTtl, hardExpiry);
+	}
+
+	private Transcoder wrap(Transcoder transcoder) {
+		return (softTtl <= 0) ? transcoder : new CachedValueTranscoder(
+				transcoder);
+	}
+
+	/**
+	 * Returns the value of a cache entry, or null if it is past its hard
+	 * expiry. Entries past their soft expiry are returned and a background
+	 * refresh is scheduled.
+	 */
+	private Object unwrap(String key, Object obj, Transcoder transcoder) {
+		if (!(obj instanceof CachedValue))
+			return obj;
+		CachedValue cv = (CachedValue) obj;
+		long now = System.currentTimeMillis();
+		if (cv.isExpired(now))
+			return null;
+		if (cv.isStale(now)) {
+			staleHits.incrementAndGet();
+			scheduleRefresh(key, transcoder);
+		}
+		return cv.getValue();
+	}
+
+	private void scheduleRefresh(final String key, final Transcoder transcoder) {
+		ThreadPoolExecutor executor = refreshExecutor;
+		if ((executor == null)
+				|| (refreshing.putIfAbsent(key, Boolean.TRUE) != null))
+			return;
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					try {
+						refreshes.incrementAndGet();
+						Object obj = (transcoder == null) ? master.get(key)
+								: master.get(key, transcoder);
+						if (obj == null)
+							cache.delete(key);
+						else
+							cacheSet(key, obj, transcoder);
+					} catch (Exception e) {
+						log.warn("Unable to refresh cached value for " + key
+								+ ": " + e.getMessage());
+					} finally {
+						refreshing.remove(key);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			refreshing.remove(key);
+			rejectedRefreshes.incrementAndGet();
+		}
+	}
+
+	private Map<String, Object> masterGetBulk(List<String> keys,
+			Transcoder transcoder) throws KeyValueStoreException, IOException {
+		NegativeCache negatives = negativeCache;
+		long[] generations = (negatives == null) ? null : negatives
+				.generations();
+		Map<String, Object> results = (transcoder == null) ? master
+				.getBulk(keys) : master.getBulk(keys, transcoder);
+		if (negatives != null) {
+			for (String key : keys) {
+				if (!results.containsKey(key))
+					negatives.add(key, generations, negativeTtl);
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Forget that a key was absent from master. Called after every write to
+	 * master.
+	 */
+	protected void invalidateNegative(String key) {
+		NegativeCache negatives = negativeCache;
+		if (negatives != null)
+			negatives.invalidate(key);
+	}
+
+	protected void invalidateNegative(Collection<String> keys) {
+		NegativeCache negatives = negativeCache;
+		if (negatives != null) {
+			for (String key : keys)
+				negatives.invalidate(key);
+		}
+	}
+
+	private void failAll(Map<String, InflightLoad> loads, Throwable t) {
+		for (InflightLoad load : loads.values())
+			load.fail(t);
+	}
+
+	private static <V> V await(Future<V> future)
+			throws KeyValueStoreException, IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new KeyValueStoreException(e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof KeyValueStoreException)
+				throw (KeyValueStoreException) cause;
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			throw new KeyValueStoreException(cause);
+		}
+	}
+
+	/**
+	 * Bounded set of keys recently found absent in master, with their expiry
+	 * times. Keys are spread over stripes, each with its own lock, bound and
+	 * generation counter. A stripe's generation is bumped on every
+	 * invalidation of one of its keys, so that a master read racing with a
+	 * write does not record a stale absence.
+	 */
+	private static class NegativeCache {
+		private static final int STRIPE_BITS = 4;
+
+		private final Stripe[] stripes = new Stripe[1 << STRIPE_BITS];
+
+		NegativeCache(int max) {
+			int perStripe = Math.max(1, (max + stripes.length - 1)
+					/ stripes.length);
+			for (int i = 0; i < stripes.length; ++i)
+				stripes[i] = new Stripe(perStripe);
+		}
+
+		boolean contains(String key) {
+			Stripe stripe = stripes[stripeFor(key)];
+			synchronized (stripe) {
+				Long expiry = stripe.expiries.get(key);
+				if (expiry == null)
+					return false;
+				if (expiry.longValue() <= System.currentTimeMillis()) {
+					stripe.expiries.remove(key);
+					return false;
+				}
+				return true;
+			}
+		}
+
+		/**
+		 * The generation of the key's stripe, to pass to add().
+		 */
+		long generation(String key) {
+			Stripe stripe = stripes[stripeFor(key)];
+			synchronized (stripe) {
+				return stripe.generation;
+			}
+		}
+
+		/**
+		 * The generations of every stripe, for adding several keys.
+		 */
+		long[] generations() {
+			long[] generations = new long[stripes.length];
+			for (int i = 0; i < stripes.length; ++i) {
+				synchronized (stripes[i]) {
+					generations[i] = stripes[i].generation;
+				}
+			}
+			return generations;
+		}
+
+		void add(String key, long generation, long ttl) {
+			Stripe stripe = stripes[stripeFor(key)];
+			synchronized (stripe) {
+				if (stripe.generation == generation)
+					stripe.expiries.put(key, System.currentTimeMillis() + ttl);
+			}
+		}
+
+		void add(String key, long[] generations, long ttl) {
+			add(key, generations[stripeFor(key)], ttl);
+		}
+
+		void invalidate(String key) {
+			Stripe stripe = stripes[stripeFor(key)];
+			synchronized (stripe) {
+				stripe.expiries.remove(key);
+				++stripe.generation;
+			}
+		}
+
+		private static int stripeFor(String key) {
+			int h = key.hashCode();
+			h ^= (h >>> 20) ^ (h >>> 12);
+			h ^= (h >>> 7) ^ (h >>> 4);
+			return h & ((1 << STRIPE_BITS) - 1);
+		}
+
+		private static class Stripe {
+			final LinkedHashMap<String, Long> expiries;
+
+			long generation = 0;
+
+			Stripe(final int max) {
+				expiries = new LinkedHashMap<String, Long>() {
+					private static final long serialVersionUID = 1L;
+
+					protected boolean removeEldestEntry(
+							Map.Entry<String, Long> entry) {
+						return size() > max;
+					}
+				};
+			}
+		}
+	}
+
+	/**
+	 * A master read shared by every caller that missed on the same key while
+	 * it was outstanding.
+	 */
+	private static class InflightLoad extends
+			DefaultKeyValueStoreFuture<Object> {
+		private final Transcoder transcoder;
+
+		InflightLoad(Transcoder transcoder) {
+			this.transcoder = transcoder;
+		}
+
+		Object await() throws KeyValueStoreException, IOException {
+			return CachingKeyValueStore.await(this);
+		}
 	}
 
 }
@@ -1,10 +1,17 @@
 package com.rubiconproject.oss.kv.backends;
 
 import java.io.IOException;
+import java.util.Iterator;
 import java.util.List;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.rubiconproject.oss.kv.BaseManagedKeyValueStore;
 import com.rubiconproject.oss.kv.KeyValueStore;
@@ -12,6 +19,8 @@ import com.rubiconproject.oss.kv.KeyValueStoreException;
 import com.rubiconproject.oss.kv.annotations.Configurable;
 import com.rubiconproject.oss.kv.annotations.Configurable.Type;
 import com.rubiconproject.oss.kv.transcoder.Transcoder;
+import com.rubiconproject.oss.kv.util.DaemonThreadFactory;
+import com.rubiconproject.oss.kv.util.TimingWheel;
 
 /**
  * A simple in-memory kv store based on {@link ConcurrentHashMap}. Useful for testing or debugging, particularly to simulate slow or non-responsive backends.
@@ -20,6 +29,17 @@ import com.rubiconproject.oss.kv.transcoder.Transcoder;
  *  - use a uri like 'hash://hash?writeSleepTime=800&readSleepTime=100'
  *  - will write after sleeping for 800ms and return from reads after sleeping for 100ms
  * 
+ * Entries may be given a time to live, either per write with
+ * set(key, value, ttl, unit) or for every write with defaultTtl. Expired
+ * entries are removed by a background thread driving a hierarchical timing
+ * wheel every tickDuration milliseconds, and are never returned by reads even
+ * if that thread has not reached them yet.
+ * 
+ * With maxEntries set, a write that takes the store over the limit evicts
+ * entries until it is back under: each eviction samples evictionSamples
+ * entries from a cursor that walks the map, and removes an expired one if
+ * it finds one or else the least recently used of the sample.
+ * 
  * @author stingleff
  *
  */
@@ -27,12 +47,35 @@ public class ConcurrentHashMapKeyValueStore extends BaseManagedKeyValueStore
 		implements KeyValueStore {
 	public static final String IDENTIFIER = "hashtable";
 
-	private Map<String, Object> map = new ConcurrentHashMap<String, Object>();
+	private ConcurrentMap<String, Entry> map = new ConcurrentHashMap<String, Entry>();
 
 	private long writeSleepTime = -1;
 
 	private long readSleepTime = -1;
 
+	private long defaultTtl = 0l;
+
+	private long tickDuration = 100l;
+
+	private int maxEntries = 0;
+
+	private int evictionSamples = 5;
+
+	private final AtomicInteger size = new AtomicInteger();
+
+	private final AtomicLong expirations = new AtomicLong();
+
+	private final AtomicLong evictions = new AtomicLong();
+
+	private volatile TimingWheel<Entry> wheel;
+
+	private ScheduledExecutorService expiryExecutor;
+
+	private final Object evictionLock = new Object();
+
+	// guarded by evictionLock
+	private Iterator<Entry> evictionCursor;
+
 	public String getIdentifier() {
 		return IDENTIFIER;
 	}
@@ -47,22 +90,86 @@ public class ConcurrentHashMapKeyValueStore extends BaseManagedKeyValueStore
 		this.readSleepTime = delay;
 	}
 
+	/**
+	 * Time to live in milliseconds for writes that do not give one. 0 (the
+	 * default) keeps entries until they are deleted or evicted.
+	 */
+	@Configurable(name = "defaultTtl", accepts = Type.LongType)
+	public void setDefaultTtl(long defaultTtl) {
+		this.defaultTtl = defaultTtl;
+	}
+
+	/**
+	 * Resolution of expiry in milliseconds. Takes effect on start().
+	 */
+	@Configurable(name = "tickDuration", accepts = Type.LongType)
+	public void setTickDuration(long tickDuration) {
+		this.tickDuration = tickDuration;
+	}
+
+	/**
+	 * Maximum number of entries, 0 (the default) for no limit.
+	 */
+	@Configurable(name = "maxEntries", accepts = Type.IntType)
+	public void setMaxEntries(int maxEntries) {
+		this.maxEntries = maxEntries;
+	}
+
+	@Configurable(name = "evictionSamples", accepts = Type.IntType)
+	public void setEvictionSamples(int evictionSamples) {
+		this.evictionSamples = Math.max(1, evictionSamples);
+	}
+
+	public int getSize() {
+		return size.get();
+	}
+
+	public long getExpirationCount() {
+		return expirations.get();
+	}
+
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	public void start() throws IOException {
+		wheel = new TimingWheel<Entry>(tickDuration, System.currentTimeMillis());
+		expiryExecutor = Executors
+				.newSingleThreadScheduledExecutor(new DaemonThreadFactory());
+		expiryExecutor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				expire();
+			}
+		}, tickDuration, tickDuration, TimeUnit.MILLISECONDS);
+		super.start();
+	}
+
 	public void stop() {
+		if (expiryExecutor != null) {
+			expiryExecutor.shutdownNow();
+			expiryExecutor = null;
+		}
 		map.clear();
+		size.set(0);
+		wheel = null;
+		synchronized (evictionLock) {
+			evictionCursor = null;
+		}
 		super.stop();
 	}
 
 	public boolean exists(String key) throws KeyValueStoreException,
 			IOException {
 		assertReadable();
-		return map.containsKey(key);
+		Entry entry = map.get(key);
+		return (entry != null) && (!expireIfStale(entry));
 	}
 
 	public Object get(String key) throws KeyValueStoreException, IOException {
 		assertReadable();
 		if (readSleepTime > 0)
 			sleep(readSleepTime);
-		return map.get(key);
+		return read(key);
 	}
 
 	public Object get(String key, Transcoder transcoder)
@@ -70,7 +177,7 @@ public class ConcurrentHashMapKeyValueStore extends BaseManagedKeyValueStore
 		assertReadable();
 		if (readSleepTime > 0)
 			sleep(readSleepTime);
-		return map.get(key);
+		return read(key);
 	}
 
 	public Map<String, Object> getBulk(String... keys)
@@ -120,7 +227,7 @@ public class ConcurrentHashMapKeyValueStore extends BaseManagedKeyValueStore
 		if (writeSleepTime > 0)
 			sleep(writeSleepTime);
 		assertWriteable();
-		map.put(key, value);
+		write(key, value, defaultTtl);
 	}
 
 	public void set(String key, Object value, Transcoder transcoder)
@@ -128,14 +235,132 @@ public class ConcurrentHashMapKeyValueStore extends BaseManagedKeyValueStore
 		assertWriteable();
 		if (writeSleepTime > 0)
 			sleep(writeSleepTime);
-		map.put(key, value);
+		write(key, value, defaultTtl);
+	}
+
+	/**
+	 * Set a value that expires after the given time. A ttl of 0 never
+	 * expires.
+	 */
+	public void set(String key, Object value, long ttl, TimeUnit unit)
+			throws KeyValueStoreException, IOException {
+		assertWriteable();
+		if (writeSleepTime > 0)
+			sleep(writeSleepTime);
+		write(key, value, unit.toMillis(ttl));
 	}
 
 	public void delete(String key) throws KeyValueStoreException, IOException {
 		assertWriteable();
 		if (writeSleepTime > 0)
 			sleep(writeSleepTime);
-		map.remove(key);
+		Entry entry = map.remove(key);
+		if (entry != null)
+			removed(entry);
+	}
+
+	private Object read(String key) {
+		Entry entry = map.get(key);
+		if ((entry == null) || (expireIfStale(entry)))
+			return null;
+		if (maxEntries > 0)
+			entry.lastAccess = System.currentTimeMillis();
+		return entry.value;
+	}
+
+	private void write(String key, Object value, long ttl) {
+		long now = System.currentTimeMillis();
+		Entry entry = new Entry(key, value, (ttl > 0) ? now + ttl : 0l, now);
+		Entry previous = map.put(key, entry);
+		if (previous == null)
+			size.incrementAndGet();
+		else
+			cancel(previous);
+		// scheduled after the put so that the timeout can always find the entry
+		TimingWheel<Entry> wheel = this.wheel;
+		if ((entry.expiresAt > 0) && (wheel != null))
+			entry.timeout = wheel.schedule(entry, entry.expiresAt);
+		if ((maxEntries > 0) && (size.get() > maxEntries))
+			evict();
+	}
+
+	/**
+	 * Remove the entry if it has expired, returning true if it had.
+	 */
+	private boolean expireIfStale(Entry entry) {
+		if (!entry.isExpired(System.currentTimeMillis()))
+			return false;
+		if (map.remove(entry.key, entry)) {
+			removed(entry);
+			expirations.incrementAndGet();
+		}
+		return true;
+	}
+
+	/**
+	 * Remove entries whose timeouts have passed. Runs on the expiry thread.
+	 */
+	private void expire() {
+		TimingWheel<Entry> wheel = this.wheel;
+		if (wheel == null)
+			return;
+		for (Entry entry : wheel.advance(System.currentTimeMillis())) {
+			// a later write to the key replaced this entry
+			if (map.remove(entry.key, entry)) {
+				size.decrementAndGet();
+				expirations.incrementAndGet();
+			}
+		}
+	}
+
+	private void evict() {
+		synchronized (evictionLock) {
+			while (size.get() > maxEntries) {
+				Entry victim = sample();
+				if (victim == null)
+					return;
+				if (map.remove(victim.key, victim)) {
+					removed(victim);
+					if (victim.isExpired(System.currentTimeMillis()))
+						expirations.incrementAndGet();
+					else
+						evictions.incrementAndGet();
+				}
+			}
+		}
+	}
+
+	/**
+	 * The first expired entry among the next evictionSamples entries of the
+	 * map, or the least recently used of them. Called with evictionLock held.
+	 */
+	private Entry sample() {
+		long now = System.currentTimeMillis();
+		Entry victim = null;
+		for (int i = 0; i < evictionSamples; ++i) {
+			if ((evictionCursor == null) || (!evictionCursor.hasNext())) {
+				evictionCursor = map.values().iterator();
+				if (!evictionCursor.hasNext())
+					break;
+			}
+			Entry entry = evictionCursor.next();
+			if (entry.isExpired(now))
+				return entry;
+			if ((victim == null) || (entry.lastAccess < victim.lastAccess))
+				victim = entry;
+		}
+		return victim;
+	}
+
+	private void removed(Entry entry) {
+		size.decrementAndGet();
+		cancel(entry);
+	}
+
+	private void cancel(Entry entry) {
+		TimingWheel<Entry> wheel = this.wheel;
+		if ((entry.timeout != null) && (wheel != null))
+			wheel.cancel(entry.timeout);
 	}
 
 	private void sleep(long millis) {
@@ -144,4 +369,28 @@ public class ConcurrentHashMapKeyValueStore extends BaseManagedKeyValueStore
 		} catch (InterruptedException e) {
 		}
 	}
+
+	private static class Entry {
+		final String key;
+
+		final Object value;
+
+		// milliseconds since the epoch, 0 for never
+		final long expiresAt;
+
+		volatile long lastAccess;
+
+		volatile TimingWheel.Timeout<Entry> timeout;
+
+		Entry(String key, Object value, long expiresAt, long now) {
+			this.key = key;
+			this.value = value;
+			this.expiresAt = expiresAt;
+			this.lastAccess = now;
+		}
+
+		boolean isExpired(long now) {
+			return (expiresAt > 0) && (now >= expiresAt);
+		}
+	}
 }
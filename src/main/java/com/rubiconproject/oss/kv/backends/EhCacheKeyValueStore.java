@@ -1,6 +1,8 @@
 package com.rubiconproject.oss.kv.backends;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.HashMap;
 import java.util.Map;
@@ -165,4 +167,24 @@ public class EhCacheKeyValueStore extends BaseManagedKeyValueStore {
 		assertWriteable();
 		cache.remove(key);
 	}
+
+	public void setBulk(Map<String, Object> values)
+			throws KeyValueStoreException, IOException {
+		assertWriteable();
+		List<Element> elements = new ArrayList<Element>(values.size());
+		for (Map.Entry<String, Object> entry : values.entrySet())
+			elements.add(new Element(entry.getKey(), entry.getValue()));
+		cache.putAll(elements);
+	}
+
+	public void setBulk(Map<String, Object> values, Transcoder transcoder)
+			throws KeyValueStoreException, IOException {
+		setBulk(values);
+	}
+
+	public void deleteBulk(Collection<String> keys)
+			throws KeyValueStoreException, IOException {
+		assertWriteable();
+		cache.removeAll(keys);
+	}
 }
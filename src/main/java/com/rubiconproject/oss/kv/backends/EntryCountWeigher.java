@@ -0,0 +1,10 @@
+package com.rubiconproject.oss.kv.backends;
+
+/**
+ * Weighs every entry as 1, so a cache's capacity is its number of entries.
+ */
+public class EntryCountWeigher implements Weigher {
+	public int weigh(String key, Object value) {
+		return 1;
+	}
+}
@@ -1,12 +1,34 @@
 package com.rubiconproject.oss.kv.backends;
 
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.util.List;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 
 import com.rubiconproject.oss.kv.BaseManagedKeyValueStore;
 import com.rubiconproject.oss.kv.KeyValueStoreException;
@@ -14,35 +36,148 @@ import com.rubiconproject.oss.kv.annotations.Configurable;
 import com.rubiconproject.oss.kv.annotations.Configurable.Type;
 import com.rubiconproject.oss.kv.transcoder.SerializableTranscoder;
 import com.rubiconproject.oss.kv.transcoder.Transcoder;
-import com.rubiconproject.oss.kv.util.StreamUtils;
+import com.rubiconproject.oss.kv.util.DaemonThreadFactory;
 
 /**
  * A key value store that uses the local file system for content.
- * 
+ *
+ * By default a key is a path below the root, with characters outside
+ * [a-zA-Z0-9.-_+/] replaced by '_' when sanitizeKeys is set. With
+ * fanOutLevels of 1 or 2, keys are instead stored as flat, escaped file
+ * names spread over one or two levels of 256 directories by hash, which
+ * keeps directories small however the keys are shaped. A key whose escaped
+ * name would be too long for the file system is stored under a hash of it
+ * instead, in a file that starts with the key.
+ *
+ * Values are written to a temporary file and renamed into place. The
+ * fsyncPolicy decides whether the data reaches disk before the rename:
+ * "never" leaves it to the operating system and "always" forces each write.
+ * "group" differs only for packed values (see below): appends to a pack
+ * are handed to a committer thread that forces the pack once for
+ * everything queued while its previous batch was being forced, so
+ * concurrent writers share the wait. Standalone files each need their own
+ * fsync, so under "group" they are forced as under "always". Reads of files
+ * of at least mmapThreshold bytes go through a memory mapping.
+ *
+ * With cleanEmptyDirectories, directories left empty by deletes are removed
+ * by a background sweep every sweepInterval milliseconds.
+ *
+ * With packThreshold set, encoded values smaller than it are appended to
+ * pack files in packDirectory (by default the root's name plus ".packs")
+ * instead of getting a file each; see SegmentLog. Packs that are mostly
+ * overwritten or deleted values are repacked every repackInterval
+ * milliseconds. getBulk() reads packed values in pack and offset order,
+ * merging nearby ones into a single read.
+ * A key moving between its pack and its file holds a lock striped by file
+ * for the whole move, and its packed value is dropped before its file is
+ * renamed into place. Standalone files then start with their key, so a file
+ * that keys share once sanitized is only read or removed for the key that
+ * wrote it.
+ *
  * @author samtingleff
- * 
+ *
  */
 public class FileSystemKeyValueStore extends BaseManagedKeyValueStore {
 	public static final String IDENTIFIER = "filesystem";
 
+	public static final String FSYNC_NEVER = "never";
+
+	public static final String FSYNC_ALWAYS = "always";
+
+	public static final String FSYNC_GROUP = "group";
+
+	private static Log log = LogFactory.getLog(FileSystemKeyValueStore.class);
+
+	// characters kept by the sanitizer
+	private static final boolean[] SAFE = new boolean[128];
+
+	private static final String[] BUCKETS = new String[256];
+
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+	// longest file name most file systems allow
+	private static final int MAX_NAME_LENGTH = 255;
+
+	// names of files holding keys too long to escape; never an escaped name
+	private static final String HASHED_PREFIX = "%%";
+
+	// starts a file holding its key ahead of the value
+	private static final int KEYED_MAGIC = 0x4b564b31;
+
+	private static final int LOCK_STRIPE_BITS = 6;
+
+	private static final String PACK_SUFFIX = ".pack";
+
+	private static final String PACK_INDEX_SUFFIX = ".idx";
+
+	static {
+		for (char c = 'a'; c <= 'z'; ++c)
+			SAFE[c] = true;
+		for (char c = 'A'; c <= 'Z'; ++c)
+			SAFE[c] = true;
+		for (char c = '0'; c <= '9'; ++c)
+			SAFE[c] = true;
+		for (char c : ".-_+/".toCharArray())
+			SAFE[c] = true;
+		for (int i = 0; i < BUCKETS.length; ++i)
+			BUCKETS[i] = String.format("%1$02x", i);
+	}
+
 	private Transcoder defaultTranscoder = new SerializableTranscoder();
 
 	private String rootDirectory;
 
 	private File root;
 
+	private String canonicalRoot;
+
 	private boolean sanitizeKeys = true;
 
 	private boolean removeEmptyDirectories = true;
 
+	private int fanOutLevels = 0;
+
+	private String fsyncPolicy = FSYNC_NEVER;
+
+	private int mmapThreshold = 256 * 1024;
+
+	private long sweepInterval = 60000l;
+
+	private int packThreshold = 0;
+
+	private String packDirectory;
+
+	private int packSize = 64 * 1024 * 1024;
+
+	private double repackThreshold = 0.5;
+
+	private long repackInterval = 60000l;
+
+	private ScheduledExecutorService sweeper;
+
+	private ScheduledExecutorService repacker;
+
+	private volatile SegmentLog packs;
+
+	private GroupCommitter committer;
+
+	private final AtomicLong fsyncs = new AtomicLong();
+
+	// held while a key moves between its pack and its file
+	private final ReadWriteLock[] locks = new ReadWriteLock[1 << LOCK_STRIPE_BITS];
+
 	public FileSystemKeyValueStore() {
+		for (int i = 0; i < locks.length; ++i)
+			locks[i] = new ReentrantReadWriteLock();
 	}
 
 	public FileSystemKeyValueStore(String rootDirectory) {
+		this();
 		this.rootDirectory = rootDirectory;
 	}
 
 	public FileSystemKeyValueStore(File root) {
+		this();
 		this.rootDirectory = root.getAbsolutePath();
 	}
 
@@ -61,24 +196,219 @@ public class FileSystemKeyValueStore extends BaseManagedKeyValueStore {
 		this.removeEmptyDirectories = removeEmptyDirectories;
 	}
 
+	/**
+	 * Levels of 256 hashed directories, 0 to map keys directly to paths.
+	 */
+	@Configurable(name = "fanOutLevels", accepts = Type.IntType)
+	public void setFanOutLevels(int fanOutLevels) {
+		if ((fanOutLevels < 0) || (fanOutLevels > 2))
+			throw new IllegalArgumentException("fanOutLevels must be 0, 1 or 2");
+		this.fanOutLevels = fanOutLevels;
+	}
+
+	/**
+	 * One of "never", "always" or "group".
+	 */
+	@Configurable(name = "fsyncPolicy", accepts = Type.StringType)
+	public void setFsyncPolicy(String fsyncPolicy) {
+		if (!(FSYNC_NEVER.equals(fsyncPolicy)
+				|| FSYNC_ALWAYS.equals(fsyncPolicy) || FSYNC_GROUP
+				.equals(fsyncPolicy)))
+			throw new IllegalArgumentException("Unknown fsync policy "
+					+ fsyncPolicy);
+		this.fsyncPolicy = fsyncPolicy;
+	}
+
+	/**
+	 * Files of at least this many bytes are read through a mapping, 0 to
+	 * never map.
+	 */
+	@Configurable(name = "mmapThreshold", accepts = Type.IntType)
+	public void setMmapThreshold(int mmapThreshold) {
+		this.mmapThreshold = mmapThreshold;
+	}
+
+	/**
+	 * Milliseconds between sweeps for empty directories. A directory must
+	 * also have been unchanged this long to be removed.
+	 */
+	@Configurable(name = "sweepInterval", accepts = Type.LongType)
+	public void setSweepInterval(long sweepInterval) {
+		this.sweepInterval = sweepInterval;
+	}
+
+	/**
+	 * Values encoded to fewer bytes than this are packed, 0 to give every
+	 * value its own file.
+	 */
+	@Configurable(name = "packThreshold", accepts = Type.IntType)
+	public void setPackThreshold(int packThreshold) {
+		this.packThreshold = packThreshold;
+	}
+
+	/**
+	 * Directory for pack files, outside the root so keys cannot collide with
+	 * them.
+	 */
+	@Configurable(name = "packDirectory", accepts = Type.StringType)
+	public void setPackDirectory(String packDirectory) {
+		this.packDirectory = packDirectory;
+	}
+
+	/**
+	 * Bytes written to a pack before starting the next one.
+	 */
+	@Configurable(name = "packSize", accepts = Type.IntType)
+	public void setPackSize(int packSize) {
+		this.packSize = packSize;
+	}
+
+	/**
+	 * Fraction of a pack that must be dead before it is repacked.
+	 */
+	@Configurable(name = "repackThreshold", accepts = Type.DoubleType)
+	public void setRepackThreshold(double repackThreshold) {
+		this.repackThreshold = repackThreshold;
+	}
+
+	/**
+	 * Milliseconds between checks for packs to repack, 0 to repack only on
+	 * repack().
+	 */
+	@Configurable(name = "repackInterval", accepts = Type.LongType)
+	public void setRepackInterval(long repackInterval) {
+		this.repackInterval = repackInterval;
+	}
+
 	public String getIdentifier() {
 		return IDENTIFIER;
 	}
 
+	public int getPackedCount() {
+		SegmentLog current = packs;
+		return (current == null) ? 0 : current.getSize();
+	}
+
+	public int getPackCount() {
+		SegmentLog current = packs;
+		return (current == null) ? 0 : current.getSegmentCount();
+	}
+
+	public long getPackDeadBytes() {
+		SegmentLog current = packs;
+		return (current == null) ? 0 : current.getDeadBytes();
+	}
+
+	public long getRepackCount() {
+		SegmentLog current = packs;
+		return (current == null) ? 0 : current.getCompactionCount();
+	}
+
+	/**
+	 * Number of fsyncs issued, counting once a pack forced for a batch of
+	 * writers.
+	 */
+	public long getFsyncCount() {
+		return fsyncs.get();
+	}
+
 	public void start() throws IOException {
 		root = new File(rootDirectory);
 		if (!root.exists()) {
 			root.mkdirs();
 		}
 		assert (root.canRead());
+		canonicalRoot = root.getCanonicalPath();
+		if (FSYNC_GROUP.equals(fsyncPolicy)) {
+			committer = new GroupCommitter();
+			committer.start();
+		}
+		if (removeEmptyDirectories && (sweepInterval > 0)) {
+			sweeper = Executors
+					.newSingleThreadScheduledExecutor(new DaemonThreadFactory());
+			sweeper.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					try {
+						sweep();
+					} catch (Exception e) {
+						log.error("Exception sweeping " + rootDirectory, e);
+					}
+				}
+			}, sweepInterval, sweepInterval, TimeUnit.MILLISECONDS);
+		}
+		if (packThreshold > 0) {
+			File dir = (packDirectory == null) ? new File(root
+					.getAbsoluteFile().getParentFile(), root.getName()
+					+ ".packs") : new File(packDirectory);
+			SegmentLog pack = new SegmentLog(dir, PACK_SUFFIX,
+					PACK_INDEX_SUFFIX, packSize, repackThreshold, false);
+			pack.open();
+			packs = pack;
+			if (repackInterval > 0) {
+				repacker = Executors
+						.newSingleThreadScheduledExecutor(new DaemonThreadFactory());
+				repacker.scheduleWithFixedDelay(new Runnable() {
+					public void run() {
+						try {
+							repack();
+						} catch (Exception e) {
+							log.error("Exception repacking " + rootDirectory, e);
+						}
+					}
+				}, repackInterval, repackInterval, TimeUnit.MILLISECONDS);
+			}
+		}
 		super.start();
 	}
 
+	public void stop() {
+		super.stop();
+		if (sweeper != null) {
+			sweeper.shutdownNow();
+			sweeper = null;
+		}
+		if (committer != null) {
+			committer.shutdown();
+			committer = null;
+		}
+		if (repacker != null) {
+			repacker.shutdown();
+			try {
+				repacker.awaitTermination(10, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			repacker = null;
+		}
+		if (packs != null) {
+			packs.close();
+			packs = null;
+		}
+	}
+
+	/**
+	 * Rewrite packs that are at least repackThreshold dead.
+	 */
+	public void repack() throws IOException {
+		SegmentLog current = packs;
+		if (current != null)
+			current.compact();
+	}
+
 	public boolean exists(String key) throws KeyValueStoreException,
 			IOException {
 		assertReadable();
 		File f = getFile(key);
-		return f.exists();
+		SegmentLog pack = packs;
+		if (pack == null)
+			return f.exists();
+		Lock lock = lockFor(f).readLock();
+		lock.lock();
+		try {
+			return pack.contains(key) || owns(key, f);
+		} finally {
+			lock.unlock();
+		}
 	}
 
 	public Object get(String key) throws KeyValueStoreException, IOException {
@@ -89,49 +419,32 @@ public class FileSystemKeyValueStore extends BaseManagedKeyValueStore {
 	public Object get(String key, Transcoder transcoder)
 			throws KeyValueStoreException, IOException {
 		assertReadable();
-		File f = getFile(key);
-		if (!f.exists())
-			return null;
-		try {
-			byte[] bytes = StreamUtils.fileToBytes(f);
-			Object obj = transcoder.decode(bytes);
-			return obj;
-		} finally {
-		}
+		byte[] bytes = read(key, packs);
+		return (bytes == null) ? null : transcoder.decode(bytes);
 	}
 
 	public Map<String, Object> getBulk(String... keys)
 			throws KeyValueStoreException, IOException {
-		assertReadable();
-		Map<String, Object> results = new HashMap<String, Object>();
-		for (String key : keys) {
-			Object obj = get(key);
-			if (obj != null)
-				results.put(key, obj);
-		}
-		return results;
+		return getBulk(Arrays.asList(keys), defaultTranscoder);
 	}
 
 	public Map<String, Object> getBulk(final List<String> keys)
 			throws KeyValueStoreException, IOException {
-		assertReadable();
-		Map<String, Object> results = new HashMap<String, Object>();
-		for (String key : keys) {
-			Object obj = get(key);
-			if (obj != null)
-				results.put(key, obj);
-		}
-		return results;
+		return getBulk(keys, defaultTranscoder);
 	}
 
 	public Map<String, Object> getBulk(final List<String> keys,
 			Transcoder transcoder) throws KeyValueStoreException, IOException {
 		assertReadable();
 		Map<String, Object> results = new HashMap<String, Object>();
+		SegmentLog pack = packs;
+		Map<String, byte[]> packed = (pack == null) ? null : pack.getAll(keys);
 		for (String key : keys) {
-			Object obj = get(key, transcoder);
-			if (obj != null)
-				results.put(key, obj);
+			byte[] bytes = (packed == null) ? null : packed.get(key);
+			if (bytes == null)
+				bytes = read(key, pack);
+			if (bytes != null)
+				results.put(key, transcoder.decode(bytes));
 		}
 		return results;
 	}
@@ -146,52 +459,496 @@ public class FileSystemKeyValueStore extends BaseManagedKeyValueStore {
 			throws KeyValueStoreException, IOException {
 		assertWriteable();
 		File f = getFile(key);
-		File tempFile = File.createTempFile("temp-file", ".tmp", f
-				.getParentFile());
+		byte[] bytes = transcoder.encode(value);
+		SegmentLog pack = packs;
+		if (pack == null) {
+			rename(writeTempFile(key, f, bytes), f);
+			return;
+		}
+		File tempFile = (bytes.length < packThreshold) ? null : writeTempFile(
+				key, f, bytes);
+		FileChannel channel;
+		Lock lock = lockFor(f).writeLock();
+		lock.lock();
 		try {
-			OutputStream os = new FileOutputStream(tempFile);
-			try {
-				byte[] bytes = transcoder.encode(value);
-				os.write(bytes);
-			} finally {
-				os.close();
-			}
-			tempFile.renameTo(f);
-		} catch (Exception e) {
-			try {
-				tempFile.delete();
-			} catch (Exception e1) {
+			if (tempFile == null) {
+				channel = pack.put(key, bytes);
+				// a file left from a larger value would otherwise be read next
+				if (owns(key, f))
+					f.delete();
+			} else {
+				// dropped first, so that the old packed value cannot hide the file
+				try {
+					channel = pack.remove(key);
+				} catch (IOException e) {
+					tempFile.delete();
+					throw e;
+				}
+				rename(tempFile, f);
 			}
+		} finally {
+			lock.unlock();
 		}
+		// the wait for an fsync is not held against other keys in the stripe
+		force(channel, committer);
 	}
 
 	public void delete(String key) throws KeyValueStoreException, IOException {
 		assertWriteable();
 		File f = getFile(key);
-		if (f.exists()) {
+		SegmentLog pack = packs;
+		if (pack == null) {
+			// empty directories are left to the sweeper
 			f.delete();
-			if (removeEmptyDirectories) {
-				// File parent = f.getParentFile();
-				File current = f.getParentFile();
-				while ((current.listFiles().length == 0)
-						&& (!current.equals(root))) {
-					current.delete();
-					current = current.getParentFile();
+			return;
+		}
+		FileChannel channel;
+		Lock lock = lockFor(f).writeLock();
+		lock.lock();
+		try {
+			if (owns(key, f))
+				f.delete();
+			channel = pack.remove(key);
+		} finally {
+			lock.unlock();
+		}
+		force(channel, committer);
+	}
+
+	/**
+	 * The value of the key from its pack or its file, read under the lock
+	 * that keeps it from moving between them meanwhile.
+	 */
+	private byte[] read(String key, SegmentLog pack) throws IOException,
+			KeyValueStoreException {
+		File f = getFile(key);
+		if (pack == null)
+			return read(key, f);
+		Lock lock = lockFor(f).readLock();
+		lock.lock();
+		try {
+			byte[] bytes = pack.get(key);
+			return (bytes == null) ? read(key, f) : bytes;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Write the value for the key to a temporary file next to f, forced as
+	 * fsyncPolicy requires.
+	 */
+	private File writeTempFile(String key, File f, byte[] bytes)
+			throws IOException {
+		File tempFile = createTempFile(f.getParentFile());
+		try {
+			FileOutputStream os = new FileOutputStream(tempFile);
+			try {
+				FileChannel channel = os.getChannel();
+				if (isKeyed(f))
+					write(channel, keyHeader(key));
+				write(channel, ByteBuffer.wrap(bytes));
+				// each file needs its own fsync, so there is none to share
+				if (!FSYNC_NEVER.equals(fsyncPolicy)) {
+					channel.force(false);
+					fsyncs.incrementAndGet();
+				}
+			} finally {
+				os.close();
+			}
+		} catch (IOException e) {
+			tempFile.delete();
+			throw e;
+		}
+		return tempFile;
+	}
+
+	private void rename(File tempFile, File f) throws IOException {
+		if (!tempFile.renameTo(f)) {
+			tempFile.delete();
+			throw new IOException("Unable to rename " + tempFile + " to " + f);
+		}
+	}
+
+	private void force(FileChannel channel, GroupCommitter group)
+			throws IOException {
+		if (channel == null)
+			return;
+		if (FSYNC_ALWAYS.equals(fsyncPolicy)) {
+			channel.force(false);
+			fsyncs.incrementAndGet();
+		} else if (group != null)
+			group.force(channel);
+	}
+
+	private static void write(FileChannel channel, ByteBuffer buffer)
+			throws IOException {
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+	}
+
+	/**
+	 * Remove directories below the root that are empty and have not changed
+	 * for sweepInterval milliseconds.
+	 */
+	public void sweep() {
+		sweep(root, System.currentTimeMillis() - sweepInterval);
+	}
+
+	private boolean sweep(File dir, long cutoff) {
+		File[] children = dir.listFiles();
+		if (children == null)
+			return false;
+		boolean empty = true;
+		for (File child : children) {
+			if (!(child.isDirectory() && sweep(child, cutoff)))
+				empty = false;
+		}
+		// a writer may have just created the directory for a new file
+		if (empty && (dir != root) && (dir.lastModified() <= cutoff))
+			return dir.delete();
+		return false;
+	}
+
+	/**
+	 * The value in the file, or null if there is none or the file starts
+	 * with another key.
+	 */
+	private byte[] read(String key, File f) throws IOException {
+		byte[] bytes = read(f);
+		if ((bytes == null) || (!isKeyed(f)))
+			return bytes;
+		byte[] header = keyHeader(key).array();
+		if ((bytes.length < header.length)
+				|| (!Arrays.equals(header, Arrays.copyOf(bytes, header.length))))
+			return null;
+		return Arrays.copyOfRange(bytes, header.length, bytes.length);
+	}
+
+	/**
+	 * Whether the file holds the value of the key: it exists and, if keyed,
+	 * starts with the key.
+	 */
+	private boolean owns(String key, File f) throws IOException {
+		if (!isKeyed(f))
+			return f.exists();
+		RandomAccessFile raf;
+		try {
+			raf = new RandomAccessFile(f, "r");
+		} catch (FileNotFoundException e) {
+			return false;
+		}
+		try {
+			byte[] header = keyHeader(key).array();
+			if (raf.length() < header.length)
+				return false;
+			byte[] start = new byte[header.length];
+			raf.readFully(start);
+			return Arrays.equals(header, start);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private byte[] read(File f) throws IOException {
+		RandomAccessFile raf;
+		try {
+			raf = new RandomAccessFile(f, "r");
+		} catch (FileNotFoundException e) {
+			return null;
+		}
+		try {
+			FileChannel channel = raf.getChannel();
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE)
+				throw new IOException(f + " is too large to read");
+			byte[] bytes = new byte[(int) size];
+			if ((mmapThreshold > 0) && (size >= mmapThreshold)) {
+				MappedByteBuffer mapped = channel.map(
+						FileChannel.MapMode.READ_ONLY, 0, size);
+				mapped.get(bytes);
+			} else {
+				ByteBuffer buffer = ByteBuffer.wrap(bytes);
+				while (buffer.hasRemaining()) {
+					if (channel.read(buffer) < 0)
+						break;
 				}
 			}
+			return bytes;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * A temporary file next to the destination, creating its directory if
+	 * needed. Retries in case the sweeper removes the directory first.
+	 */
+	private File createTempFile(File parent) throws IOException {
+		for (int attempt = 0;; ++attempt) {
+			if (!parent.isDirectory())
+				parent.mkdirs();
+			try {
+				return File.createTempFile("temp-file", ".tmp", parent);
+			} catch (IOException e) {
+				if (attempt >= 2)
+					throw e;
+			}
 		}
 	}
 
 	private File getFile(String key) throws IOException, KeyValueStoreException {
+		if (fanOutLevels > 0) {
+			String name = escape(key);
+			if (name.length() > MAX_NAME_LENGTH)
+				name = HASHED_PREFIX + sha1(key);
+			int hash = mix(key.hashCode());
+			File dir = new File(root, BUCKETS[hash >>> 24]);
+			if (fanOutLevels > 1)
+				dir = new File(dir, BUCKETS[(hash >>> 16) & 0xff]);
+			return new File(dir, name);
+		}
 		if (sanitizeKeys)
-			key = key.replaceAll("[^a-zA-Z0-9\\.\\-_\\+\\/]", "_");
+			key = sanitize(key);
 		File file = new File(root, key);
-		if (!(file.getCanonicalPath().startsWith(root.getCanonicalPath()))) {
+		// a symlink below the root can lead out of it as well as ".."
+		if (!(file.getCanonicalPath().startsWith(canonicalRoot))) {
 			throw new KeyValueStoreException("permission denied");
 		}
-		File parent = file.getParentFile();
-		if (!parent.exists())
-			parent.mkdirs();
 		return file;
 	}
+
+	/**
+	 * Whether the file is to start with the key it holds: its name does not
+	 * identify the key, or with packing, a file the key shares with another
+	 * must only be removed for the key that wrote it.
+	 */
+	private boolean isKeyed(File f) {
+		return (packThreshold > 0) || f.getName().startsWith(HASHED_PREFIX);
+	}
+
+	private ReadWriteLock lockFor(File f) {
+		return locks[mix(f.getPath().hashCode()) >>> (32 - LOCK_STRIPE_BITS)];
+	}
+
+	private static ByteBuffer keyHeader(String key) throws IOException {
+		byte[] bytes = key.getBytes("UTF-8");
+		ByteBuffer header = ByteBuffer.allocate(8 + bytes.length);
+		header.putInt(KEYED_MAGIC);
+		header.putInt(bytes.length);
+		header.put(bytes);
+		header.flip();
+		return header;
+	}
+
+	private static String sha1(String key) throws IOException {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(
+					key.getBytes("UTF-8"));
+			StringBuilder sb = new StringBuilder(digest.length * 2);
+			for (byte b : digest)
+				sb.append(HEX[(b >> 4) & 0x0f]).append(HEX[b & 0x0f]);
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e.toString());
+		}
+	}
+
+	/**
+	 * Replace each character outside [a-zA-Z0-9.-_+/] with '_'.
+	 */
+	static String sanitize(String key) {
+		int length = key.length();
+		int i = 0;
+		while ((i < length) && isSafe(key.charAt(i)))
+			++i;
+		if (i == length)
+			return key;
+		StringBuilder sb = new StringBuilder(length);
+		sb.append(key, 0, i);
+		while (i < length) {
+			int c = key.codePointAt(i);
+			sb.append(isSafe(c) ? (char) c : '_');
+			i += Character.charCount(c);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * A file name that maps back to exactly one key: safe characters other
+	 * than '/' and a leading '.' are kept, every other byte of the UTF-8
+	 * encoding is written as %XX.
+	 */
+	static String escape(String key) {
+		int length = key.length();
+		int i = 0;
+		while ((i < length) && isSafe(key.charAt(i))
+				&& (key.charAt(i) != '/') && ((i > 0) || (key.charAt(0) != '.')))
+			++i;
+		if ((i == length) && (length > 0))
+			return key;
+		StringBuilder sb = new StringBuilder(length + 16);
+		sb.append(key, 0, i);
+		byte[] utf8 = new byte[4];
+		while (i < length) {
+			int c = key.codePointAt(i);
+			if (isSafe(c) && (c != '/') && ((i > 0) || (c != '.')))
+				sb.append((char) c);
+			else {
+				int bytes = encodeUtf8(c, utf8);
+				for (int b = 0; b < bytes; ++b)
+					sb.append('%').append(HEX[(utf8[b] >> 4) & 0x0f]).append(
+							HEX[utf8[b] & 0x0f]);
+			}
+			i += Character.charCount(c);
+		}
+		// the empty key
+		if (sb.length() == 0)
+			sb.append('%');
+		return sb.toString();
+	}
+
+	private static boolean isSafe(int c) {
+		return (c < SAFE.length) && SAFE[c];
+	}
+
+	private static int encodeUtf8(int c, byte[] out) {
+		if (c < 0x80) {
+			out[0] = (byte) c;
+			return 1;
+		} else if (c < 0x800) {
+			out[0] = (byte) (0xc0 | (c >> 6));
+			out[1] = (byte) (0x80 | (c & 0x3f));
+			return 2;
+		} else if (c < 0x10000) {
+			out[0] = (byte) (0xe0 | (c >> 12));
+			out[1] = (byte) (0x80 | ((c >> 6) & 0x3f));
+			out[2] = (byte) (0x80 | (c & 0x3f));
+			return 3;
+		}
+		out[0] = (byte) (0xf0 | (c >> 18));
+		out[1] = (byte) (0x80 | ((c >> 12) & 0x3f));
+		out[2] = (byte) (0x80 | ((c >> 6) & 0x3f));
+		out[3] = (byte) (0x80 | (c & 0x3f));
+		return 4;
+	}
+
+	/**
+	 * Spread String.hashCode() over the high bits.
+	 */
+	private static int mix(int h) {
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	/**
+	 * Forces channels for writers in batches: each batch is everything
+	 * queued while the previous one was being forced, and a channel queued
+	 * by several writers is forced once for all of them.
+	 */
+	private class GroupCommitter extends Thread {
+		private final BlockingQueue<PendingForce> queue = new LinkedBlockingQueue<PendingForce>();
+
+		private boolean stopped = false;
+
+		GroupCommitter() {
+			super("FileSystemKeyValueStore group commit");
+			setDaemon(true);
+		}
+
+		void force(FileChannel channel) throws IOException {
+			PendingForce pending = new PendingForce(channel);
+			synchronized (this) {
+				if (stopped)
+					throw new IOException("Store stopped");
+				queue.add(pending);
+			}
+			try {
+				pending.done.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted waiting for fsync");
+			}
+			if (pending.error != null)
+				throw pending.error;
+		}
+
+		/**
+		 * Force everything already queued, then stop. Not done by interrupt,
+		 * which would close the channel being forced.
+		 */
+		void shutdown() {
+			synchronized (this) {
+				stopped = true;
+				queue.add(new PendingForce(null));
+			}
+			boolean interrupted = false;
+			while (isAlive()) {
+				try {
+					join();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+
+		public void run() {
+			List<PendingForce> batch = new ArrayList<PendingForce>();
+			Map<FileChannel, IOException> forced = new IdentityHashMap<FileChannel, IOException>();
+			boolean last = false;
+			try {
+				while (!last) {
+					batch.add(queue.take());
+					queue.drainTo(batch);
+					for (PendingForce pending : batch) {
+						// queued by shutdown() after every other writer
+						if (pending.channel == null) {
+							last = true;
+							continue;
+						}
+						if (!forced.containsKey(pending.channel)) {
+							IOException error = null;
+							try {
+								pending.channel.force(false);
+								fsyncs.incrementAndGet();
+							} catch (IOException e) {
+								error = e;
+							}
+							forced.put(pending.channel, error);
+						}
+						pending.error = forced.get(pending.channel);
+					}
+					forced.clear();
+					for (PendingForce pending : batch)
+						pending.done.countDown();
+					batch.clear();
+				}
+			} catch (InterruptedException e) {
+				// not expected; fail anyone still waiting
+				queue.drainTo(batch);
+				for (PendingForce pending : batch) {
+					pending.error = new IOException("Store stopped");
+					pending.done.countDown();
+				}
+			}
+		}
+	}
+
+	private static class PendingForce {
+		final FileChannel channel;
+
+		final CountDownLatch done = new CountDownLatch(1);
+
+		volatile IOException error;
+
+		PendingForce(FileChannel channel) {
+			this.channel = channel;
+		}
+	}
 }
@@ -5,6 +5,7 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -284,6 +285,53 @@ public class JdbcKeyValueStore extends BaseManagedKeyValueStore implements
 		}
 	}
 
+	public void setBulk(Map<String, Object> values)
+			throws KeyValueStoreException, IOException {
+		setBulk(values, defaultTranscoder);
+	}
+
+	public void setBulk(Map<String, Object> values, Transcoder transcoder)
+			throws KeyValueStoreException, IOException {
+		assertWriteable();
+		if (values.isEmpty())
+			return;
+		Connection conn = null;
+		PreparedStatement ps = null;
+		try {
+			conn = getConnection();
+			ps = dao.prepareBulkInsert(conn, values, transcoder);
+			ps.executeBatch();
+			if (!conn.getAutoCommit())
+				conn.commit();
+		} catch (SQLException e) {
+			throw new KeyValueStoreException(e);
+		} finally {
+			release(ps);
+			release(conn);
+		}
+	}
+
+	public void deleteBulk(Collection<String> keys)
+			throws KeyValueStoreException, IOException {
+		assertWriteable();
+		if (keys.isEmpty())
+			return;
+		Connection conn = null;
+		PreparedStatement ps = null;
+		try {
+			conn = getConnection();
+			ps = dao.prepareBulkDelete(conn, keys);
+			ps.executeBatch();
+			if (!conn.getAutoCommit())
+				conn.commit();
+		} catch (SQLException e) {
+			throw new KeyValueStoreException(e);
+		} finally {
+			release(ps);
+			release(conn);
+		}
+	}
+
 	public long size() throws KeyValueStoreException {
 		assertReadable();
 		Connection conn = null;
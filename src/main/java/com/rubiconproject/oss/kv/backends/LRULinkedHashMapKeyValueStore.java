@@ -13,6 +13,11 @@ import com.rubiconproject.oss.kv.annotations.Configurable;
 import com.rubiconproject.oss.kv.annotations.Configurable.Type;
 import com.rubiconproject.oss.kv.transcoder.Transcoder;
 
+/**
+ * @deprecated access ordering makes every read a write, so this store is not
+ *             safe for concurrent use; use {@link TinyLfuKeyValueStore}
+ */
+@Deprecated
 public class LRULinkedHashMapKeyValueStore extends BaseManagedKeyValueStore
 		implements KeyValueStore {
 	private static final String IDENTIFIER = "lrulinkedhashmap";
@@ -0,0 +1,912 @@
+package com.rubiconproject.oss.kv.backends;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.rubiconproject.oss.kv.BaseManagedKeyValueStore;
+import com.rubiconproject.oss.kv.KeyValueStoreException;
+import com.rubiconproject.oss.kv.annotations.Configurable;
+import com.rubiconproject.oss.kv.annotations.Configurable.Type;
+import com.rubiconproject.oss.kv.transcoder.SerializableTranscoder;
+import com.rubiconproject.oss.kv.transcoder.Transcoder;
+import com.rubiconproject.oss.kv.util.DaemonThreadFactory;
+import com.rubiconproject.oss.kv.util.RateLimiter;
+import com.rubiconproject.oss.kv.util.TokenBucketRateLimiter;
+
+/**
+ * A persistent log structured merge tree. Writes go to a write-ahead log and
+ * a sorted in-memory memtable; once the memtable holds memtableSize bytes it
+ * is frozen, a new one is started, and a background thread writes the frozen
+ * one out as an SSTable and deletes its log. Writers wait only if a second
+ * memtable fills before the first has been written.
+ *
+ * A read looks in the memtables and then in the tables from newest to
+ * oldest, stopping at the first value or tombstone. Each table's bloom
+ * filter lets most tables that do not hold the key be skipped without I/O.
+ *
+ * Tables are compacted size-tiered: whenever at least minMergeTables tables
+ * adjacent in age are within twice the size of one another they are merged
+ * into one, keeping the newest value of each key. Only tables adjacent in
+ * age are merged, so a merged table never holds values newer than a table it
+ * is older than. Tombstones are dropped only when the oldest table takes part
+ * in the merge. Compaction writes are throttled to compactionThroughput KB
+ * per second, 0 for no limit.
+ *
+ * Keys are iterated in order by merging the memtables and tables.
+ */
+public class LsmKeyValueStore extends BaseManagedKeyValueStore implements
+		IterableKeyValueStore {
+	public static final String IDENTIFIER = "lsm";
+
+	private static Log log = LogFactory.getLog(LsmKeyValueStore.class);
+
+	private static final String TABLE_SUFFIX = ".sst";
+
+	private static final String LOG_SUFFIX = ".log";
+
+	// a deleted key in a memtable
+	private static final byte[] TOMBSTONE = new byte[0];
+
+	// per entry memtable overhead, roughly
+	private static final int ENTRY_OVERHEAD = 64;
+
+	private static final int MAX_MERGE_TABLES = 32;
+
+	private Transcoder defaultTranscoder = new SerializableTranscoder();
+
+	private String dir;
+
+	private File root;
+
+	private int memtableSize = 4 * 1024 * 1024;
+
+	private int blockSize = 4096;
+
+	private int bloomBitsPerKey = 10;
+
+	private int minMergeTables = 4;
+
+	private int compactionThroughput = 0;
+
+	private boolean syncWrites = false;
+
+	private final Object writeLock = new Object();
+
+	private volatile Memtable active;
+
+	// frozen memtable being written out, if any
+	private volatile Memtable flushing;
+
+	// newest first, replaced on every change
+	private volatile List<SSTable> tables = Collections.emptyList();
+
+	// guarded by writeLock
+	private long nextSequence;
+
+	// guarded by writeLock
+	private int nextFileId;
+
+	private ExecutorService flusher;
+
+	private ExecutorService compactor;
+
+	private RateLimiter throttle;
+
+	private final AtomicBoolean compactionScheduled = new AtomicBoolean(false);
+
+	private volatile long flushes = 0;
+
+	private volatile long compactions = 0;
+
+	public LsmKeyValueStore() {
+	}
+
+	public LsmKeyValueStore(String dir) {
+		this.dir = dir;
+	}
+
+	public String getIdentifier() {
+		return IDENTIFIER;
+	}
+
+	@Configurable(name = "dir", accepts = Type.StringType)
+	public void setDir(String dir) {
+		this.dir = dir;
+	}
+
+	/**
+	 * Approximate bytes held in a memtable before it is written out.
+	 */
+	@Configurable(name = "memtableSize", accepts = Type.IntType)
+	public void setMemtableSize(int memtableSize) {
+		this.memtableSize = memtableSize;
+	}
+
+	@Configurable(name = "blockSize", accepts = Type.IntType)
+	public void setBlockSize(int blockSize) {
+		this.blockSize = blockSize;
+	}
+
+	@Configurable(name = "bloomBitsPerKey", accepts = Type.IntType)
+	public void setBloomBitsPerKey(int bloomBitsPerKey) {
+		this.bloomBitsPerKey = bloomBitsPerKey;
+	}
+
+	/**
+	 * Number of similarly sized tables merged at once, 0 to compact only on
+	 * compact().
+	 */
+	@Configurable(name = "minMergeTables", accepts = Type.IntType)
+	public void setMinMergeTables(int minMergeTables) {
+		this.minMergeTables = minMergeTables;
+	}
+
+	/**
+	 * KB per second written by compaction, 0 for no limit.
+	 */
+	@Configurable(name = "compactionThroughput", accepts = Type.IntType)
+	public void setCompactionThroughput(int compactionThroughput) {
+		this.compactionThroughput = compactionThroughput;
+	}
+
+	@Configurable(name = "syncWrites", accepts = Type.BooleanType)
+	public void setSyncWrites(boolean syncWrites) {
+		this.syncWrites = syncWrites;
+	}
+
+	public void start() throws IOException {
+		root = new File(dir);
+		if (!root.exists())
+			root.mkdirs();
+		throttle = (compactionThroughput > 0) ? new TokenBucketRateLimiter(
+				TimeUnit.SECONDS, 1, compactionThroughput) : null;
+		synchronized (writeLock) {
+			load();
+			active = createMemtable(nextSequence++);
+		}
+		flusher = Executors.newSingleThreadExecutor(new DaemonThreadFactory());
+		compactor = Executors
+				.newSingleThreadExecutor(new DaemonThreadFactory());
+		super.start();
+		scheduleCompaction();
+	}
+
+	public void stop() {
+		super.stop();
+		if (flusher == null)
+			return;
+		// tables are about to be closed, so an interrupted merge is harmless
+		compactor.shutdownNow();
+		awaitTermination(compactor);
+		flusher.shutdown();
+		awaitTermination(flusher);
+		flusher = null;
+		compactor = null;
+		synchronized (writeLock) {
+			// oldest first, so a log is never newer than a written table
+			if ((flushing == null) || close(flushing))
+				close(active);
+			else
+				active.close(false);
+			active = null;
+			flushing = null;
+			for (SSTable table : tables)
+				table.release();
+			tables = Collections.emptyList();
+		}
+	}
+
+	public int getTableCount() {
+		return tables.size();
+	}
+
+	/**
+	 * Bytes held in tables on disk.
+	 */
+	public long getTableBytes() {
+		long total = 0;
+		for (SSTable table : tables)
+			total += table.getSize();
+		return total;
+	}
+
+	public long getFlushCount() {
+		return flushes;
+	}
+
+	public long getCompactionCount() {
+		return compactions;
+	}
+
+	public boolean exists(String key) throws KeyValueStoreException,
+			IOException {
+		assertReadable();
+		return read(key) != null;
+	}
+
+	public Object get(String key) throws KeyValueStoreException, IOException {
+		assertReadable();
+		return get(key, defaultTranscoder);
+	}
+
+	public Object get(String key, Transcoder transcoder)
+			throws KeyValueStoreException, IOException {
+		assertReadable();
+		byte[] bytes = read(key);
+		return (bytes == null) ? null : transcoder.decode(bytes);
+	}
+
+	public Map<String, Object> getBulk(String... keys)
+			throws KeyValueStoreException, IOException {
+		return getBulk(Arrays.asList(keys));
+	}
+
+	public Map<String, Object> getBulk(List<String> keys)
+			throws KeyValueStoreException, IOException {
+		return getBulk(keys, defaultTranscoder);
+	}
+
+	public Map<String, Object> getBulk(List<String> keys, Transcoder transcoder)
+			throws KeyValueStoreException, IOException {
+		assertReadable();
+		Map<String, Object> results = new HashMap<String, Object>();
+		for (String key : keys) {
+			byte[] bytes = read(key);
+			if (bytes != null)
+				results.put(key, transcoder.decode(bytes));
+		}
+		return results;
+	}
+
+	public void set(String key, Object value) throws KeyValueStoreException,
+			IOException {
+		assertWriteable();
+		set(key, value, defaultTranscoder);
+	}
+
+	public void set(String key, Object value, Transcoder transcoder)
+			throws KeyValueStoreException, IOException {
+		assertWriteable();
+		write(key, transcoder.encode(value));
+	}
+
+	public void delete(String key) throws KeyValueStoreException, IOException {
+		assertWriteable();
+		write(key, TOMBSTONE);
+	}
+
+	public KeyValueStoreIterator iterkeys() throws KeyValueStoreException {
+		assertReadable();
+		List<Iterator<SSTable.Entry>> sources = new ArrayList<Iterator<SSTable.Entry>>();
+		// the memtables before the tables, as in read()
+		sources.add(entries(active));
+		Memtable frozen = flushing;
+		if (frozen != null)
+			sources.add(entries(frozen));
+		final List<SSTable> acquired = acquireTables();
+		for (SSTable table : acquired)
+			sources.add(table.scan());
+		final MergeIterator merged = new MergeIterator(sources, false);
+		return new KeyValueStoreIterator() {
+			public Iterator<String> iterator() {
+				return new Iterator<String>() {
+					public boolean hasNext() {
+						return merged.hasNext();
+					}
+
+					public String next() {
+						return merged.next().key;
+					}
+
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+
+			public void close() {
+				for (SSTable table : acquired)
+					table.release();
+				acquired.clear();
+			}
+		};
+	}
+
+	/**
+	 * Write out the current memtable and wait for it to reach disk as a
+	 * table.
+	 */
+	public void flush() throws IOException {
+		synchronized (writeLock) {
+			if (!active.map.isEmpty())
+				rotate(active);
+		}
+		waitFor(flusher);
+	}
+
+	/**
+	 * Merge tables until no run of minMergeTables similarly sized tables is
+	 * left.
+	 */
+	public void compact() throws IOException {
+		ExecutorService executor = compactor;
+		if (executor == null)
+			return;
+		try {
+			executor.submit(new Callable<Object>() {
+				public Object call() throws IOException {
+					compactTables();
+					return null;
+				}
+			}).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException(e.getCause().toString());
+		}
+	}
+
+	private byte[] read(String key) throws IOException {
+		byte[] value = active.map.get(key);
+		if (value == null) {
+			Memtable frozen = flushing;
+			if (frozen != null)
+				value = frozen.map.get(key);
+		}
+		if (value == null)
+			value = readTables(key);
+		return ((value == null) || (value == TOMBSTONE) || (value == SSTable.DELETED)) ? null
+				: value;
+	}
+
+	private byte[] readTables(String key) throws IOException {
+		byte[] keyBytes = key.getBytes("UTF-8");
+		retry: while (true) {
+			for (SSTable table : tables) {
+				if (!table.acquire())
+					// retired by compaction, whose table is now current
+					continue retry;
+				try {
+					byte[] value = table.get(key, keyBytes);
+					if (value != null)
+						return value;
+				} finally {
+					table.release();
+				}
+			}
+			return null;
+		}
+	}
+
+	private List<SSTable> acquireTables() {
+		while (true) {
+			List<SSTable> current = tables;
+			List<SSTable> acquired = new ArrayList<SSTable>(current.size());
+			for (SSTable table : current) {
+				if (!table.acquire())
+					break;
+				acquired.add(table);
+			}
+			if (acquired.size() == current.size())
+				return acquired;
+			for (SSTable table : acquired)
+				table.release();
+		}
+	}
+
+	private void write(String key, byte[] value) throws IOException {
+		byte[] keyBytes = key.getBytes("UTF-8");
+		synchronized (writeLock) {
+			active.append(keyBytes, value);
+			active.map.put(key, value);
+			active.size += keyBytes.length + value.length + ENTRY_OVERHEAD;
+			if (active.size >= memtableSize)
+				rotate(active);
+		}
+	}
+
+	/**
+	 * Freeze the current memtable and start writing it out, first waiting
+	 * for the one before it. Does nothing if another writer rotated full
+	 * while waiting. Called with writeLock held.
+	 */
+	private void rotate(Memtable full) throws IOException {
+		while (flushing != null) {
+			try {
+				writeLock.wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted waiting for memtable flush");
+			}
+		}
+		if (active != full)
+			return;
+		flushing = active;
+		active = createMemtable(nextSequence++);
+		flusher.execute(new Runnable() {
+			public void run() {
+				flushMemtable();
+			}
+		});
+	}
+
+	private void flushMemtable() {
+		Memtable frozen = flushing;
+		while (true) {
+			try {
+				SSTable table = SSTable.open(writeTable(frozen.sequence,
+						frozen.sequence, entries(frozen), frozen.map.size(),
+						null));
+				synchronized (writeLock) {
+					install(table, Collections.<SSTable> emptyList());
+					frozen.close(true);
+					flushing = null;
+					writeLock.notifyAll();
+				}
+				++flushes;
+				break;
+			} catch (IOException e) {
+				log.error("IOException writing memtable " + frozen.sequence
+						+ ", retrying", e);
+				try {
+					Thread.sleep(1000);
+				} catch (InterruptedException e1) {
+					return;
+				}
+			}
+		}
+		scheduleCompaction();
+	}
+
+	/**
+	 * Write a memtable as a table during stop(). Called with writeLock held.
+	 */
+	private void writeMemtable(Memtable memtable) throws IOException {
+		install(SSTable.open(writeTable(memtable.sequence, memtable.sequence,
+				entries(memtable), memtable.map.size(), null)), Collections
+				.<SSTable> emptyList());
+	}
+
+	/**
+	 * Write out a memtable and remove its log, or keep the log to be
+	 * replayed if that fails. Called with writeLock held.
+	 */
+	private boolean close(Memtable memtable) {
+		try {
+			if (!memtable.map.isEmpty())
+				writeMemtable(memtable);
+			memtable.close(true);
+			return true;
+		} catch (IOException e) {
+			log.error("IOException writing memtable " + memtable.sequence, e);
+			memtable.close(false);
+			return false;
+		}
+	}
+
+	private void scheduleCompaction() {
+		if ((minMergeTables <= 0) || (compactor == null))
+			return;
+		if (!compactionScheduled.compareAndSet(false, true))
+			return;
+		try {
+			compactor.execute(new Runnable() {
+				public void run() {
+					compactionScheduled.set(false);
+					try {
+						compactTables();
+					} catch (IOException e) {
+						log.error("IOException compacting " + dir, e);
+					}
+				}
+			});
+		} catch (RuntimeException e) {
+			// stopping
+			compactionScheduled.set(false);
+		}
+	}
+
+	/**
+	 * Runs on the compactor thread, which is the only one to remove tables.
+	 */
+	private void compactTables() throws IOException {
+		int minimum = Math.max(2, minMergeTables);
+		while (!Thread.currentThread().isInterrupted()) {
+			List<SSTable> current = tables;
+			List<SSTable> run = selectRun(current, minimum);
+			if (run == null)
+				return;
+			boolean oldest = run.get(run.size() - 1) == current.get(current
+					.size() - 1);
+			List<Iterator<SSTable.Entry>> sources = new ArrayList<Iterator<SSTable.Entry>>();
+			int expectedKeys = 0;
+			for (SSTable table : run) {
+				sources.add(table.scan());
+				expectedKeys += table.getEntryCount();
+			}
+			SSTable merged = SSTable.open(writeTable(run.get(run.size() - 1)
+					.getMinSequence(), run.get(0).getSequence(),
+					new MergeIterator(sources, !oldest), expectedKeys, throttle));
+			synchronized (writeLock) {
+				install(merged, run);
+			}
+			for (SSTable table : run)
+				table.retire();
+			++compactions;
+		}
+	}
+
+	/**
+	 * The smallest run of tables adjacent in age and within twice the size
+	 * of one another, or null if none has the minimum number of tables.
+	 * Overwrites and deletes make flushed tables vary in size, so those
+	 * smaller than a memtable are treated as the same size.
+	 */
+	private List<SSTable> selectRun(List<SSTable> current, int minimum) {
+		List<SSTable> best = null;
+		long bestSize = Long.MAX_VALUE;
+		for (int start = 0; start < current.size(); ++start) {
+			long smallest = Long.MAX_VALUE;
+			long largest = 0;
+			long total = 0;
+			int end = start;
+			while ((end < current.size()) && (end - start < MAX_MERGE_TABLES)) {
+				long size = Math.max(memtableSize, current.get(end).getSize());
+				if ((Math.max(largest, size) > 2 * Math.min(smallest, size)))
+					break;
+				smallest = Math.min(smallest, size);
+				largest = Math.max(largest, size);
+				total += size;
+				++end;
+			}
+			if ((end - start >= minimum) && (total < bestSize)) {
+				best = current.subList(start, end);
+				bestSize = total;
+			}
+		}
+		return (best == null) ? null : new ArrayList<SSTable>(best);
+	}
+
+	/**
+	 * Replace the given tables with the new one. Called with writeLock held.
+	 */
+	private void install(SSTable table, List<SSTable> replaced) {
+		List<SSTable> updated = new ArrayList<SSTable>(tables);
+		updated.removeAll(replaced);
+		updated.add(table);
+		Collections.sort(updated, NEWEST_FIRST);
+		tables = Collections.unmodifiableList(updated);
+	}
+
+	private File writeTable(long minSequence, long sequence,
+			Iterator<SSTable.Entry> entries, int expectedKeys,
+			RateLimiter throttle) throws IOException {
+		int id;
+		synchronized (writeLock) {
+			id = nextFileId++;
+		}
+		File file = new File(root, String.format("%010d", id) + TABLE_SUFFIX);
+		SSTable.write(file, minSequence, sequence, entries, expectedKeys,
+				blockSize, bloomBitsPerKey, throttle);
+		return file;
+	}
+
+	/**
+	 * Open the tables, dropping any left behind by a compaction that did not
+	 * finish removing them, then replay and write out any logs. Called with
+	 * writeLock held.
+	 */
+	private void load() throws IOException {
+		List<SSTable> loaded = new ArrayList<SSTable>();
+		List<Long> logs = new ArrayList<Long>();
+		nextFileId = 0;
+		nextSequence = 0;
+		for (File file : root.listFiles()) {
+			String name = file.getName();
+			if (name.endsWith(".tmp"))
+				file.delete();
+			else if (name.endsWith(TABLE_SUFFIX)) {
+				loaded.add(SSTable.open(file));
+				nextFileId = Math.max(nextFileId, Integer.parseInt(name
+						.substring(0, name.length() - TABLE_SUFFIX.length())) + 1);
+			} else if (name.endsWith(LOG_SUFFIX))
+				logs.add(Long.valueOf(name.substring(0, name.length()
+						- LOG_SUFFIX.length())));
+		}
+		List<SSTable> live = new ArrayList<SSTable>();
+		for (SSTable table : loaded) {
+			boolean superseded = false;
+			for (SSTable other : loaded) {
+				if ((other != table)
+						&& (other.getMinSequence() <= table.getMinSequence())
+						&& (other.getSequence() >= table.getSequence())
+						&& (other.getSequence() - other.getMinSequence() > table
+								.getSequence()
+								- table.getMinSequence()))
+					superseded = true;
+			}
+			if (superseded)
+				table.retire();
+			else {
+				live.add(table);
+				nextSequence = Math.max(nextSequence, table.getSequence() + 1);
+			}
+		}
+		Collections.sort(live, NEWEST_FIRST);
+		tables = Collections.unmodifiableList(live);
+
+		Collections.sort(logs);
+		for (Long sequence : logs) {
+			File file = logFile(sequence);
+			if (sequence < nextSequence) {
+				// written out before the log was removed
+				file.delete();
+				continue;
+			}
+			Memtable memtable = replay(sequence);
+			if (!memtable.map.isEmpty())
+				writeMemtable(memtable);
+			file.delete();
+			nextSequence = sequence + 1;
+		}
+	}
+
+	private Memtable replay(long sequence) throws IOException {
+		Memtable memtable = new Memtable(sequence, logFile(sequence));
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(memtable.logFile)));
+		try {
+			while (true) {
+				int crc = in.readInt();
+				int keyLength = in.readInt();
+				int valueLength = in.readInt();
+				if ((keyLength < 0) || (valueLength < -1))
+					break;
+				byte[] key = new byte[keyLength];
+				in.readFully(key);
+				byte[] value = (valueLength < 0) ? TOMBSTONE
+						: new byte[valueLength];
+				in.readFully(value);
+				if (crc != checksum(key, value))
+					break;
+				memtable.map.put(new String(key, "UTF-8"), value);
+			}
+		} catch (EOFException e) {
+			// a torn last record
+		} finally {
+			in.close();
+		}
+		return memtable;
+	}
+
+	private Memtable createMemtable(long sequence) throws IOException {
+		Memtable memtable = new Memtable(sequence, logFile(sequence));
+		memtable.open();
+		return memtable;
+	}
+
+	private File logFile(long sequence) {
+		return new File(root, String.format("%010d", sequence) + LOG_SUFFIX);
+	}
+
+	private static int checksum(byte[] key, byte[] value) {
+		CRC32 crc = new CRC32();
+		crc.update(ByteBuffer.allocate(8).putInt(key.length).putInt(
+				(value == TOMBSTONE) ? -1 : value.length).array());
+		crc.update(key);
+		crc.update(value);
+		return (int) crc.getValue();
+	}
+
+	private static Iterator<SSTable.Entry> entries(Memtable memtable) {
+		final Iterator<Map.Entry<String, byte[]>> iter = memtable.map
+				.entrySet().iterator();
+		return new Iterator<SSTable.Entry>() {
+			public boolean hasNext() {
+				return iter.hasNext();
+			}
+
+			public SSTable.Entry next() {
+				Map.Entry<String, byte[]> entry = iter.next();
+				byte[] value = entry.getValue();
+				return new SSTable.Entry(entry.getKey(),
+						(value == TOMBSTONE) ? null : value);
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	private static void awaitTermination(ExecutorService executor) {
+		try {
+			if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+				executor.shutdownNow();
+				executor.awaitTermination(10, TimeUnit.SECONDS);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static void waitFor(ExecutorService executor) throws IOException {
+		try {
+			executor.submit(new Runnable() {
+				public void run() {
+				}
+			}).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause().toString());
+		}
+	}
+
+	private static final Comparator<SSTable> NEWEST_FIRST = new Comparator<SSTable>() {
+		public int compare(SSTable a, SSTable b) {
+			return (a.getSequence() > b.getSequence()) ? -1 : ((a
+					.getSequence() < b.getSequence()) ? 1 : 0);
+		}
+	};
+
+	private class Memtable {
+		final long sequence;
+
+		final File logFile;
+
+		final ConcurrentSkipListMap<String, byte[]> map = new ConcurrentSkipListMap<String, byte[]>();
+
+		// guarded by writeLock
+		long size = 0;
+
+		private FileOutputStream fos;
+
+		private DataOutputStream out;
+
+		Memtable(long sequence, File logFile) {
+			this.sequence = sequence;
+			this.logFile = logFile;
+		}
+
+		void open() throws IOException {
+			fos = new FileOutputStream(logFile);
+			out = new DataOutputStream(new BufferedOutputStream(fos));
+		}
+
+		/**
+		 * Log a write. Called with writeLock held.
+		 */
+		void append(byte[] key, byte[] value) throws IOException {
+			out.writeInt(checksum(key, value));
+			out.writeInt(key.length);
+			out.writeInt((value == TOMBSTONE) ? -1 : value.length);
+			out.write(key);
+			out.write(value);
+			out.flush();
+			if (syncWrites)
+				fos.getFD().sync();
+		}
+
+		/**
+		 * Close the log, deleting it once the memtable is safely in a table.
+		 */
+		void close(boolean written) {
+			try {
+				if (out != null)
+					out.close();
+			} catch (IOException e) {
+				log.error("IOException closing " + logFile, e);
+			}
+			if (written)
+				logFile.delete();
+		}
+	}
+
+	/**
+	 * Merges sorted sources, given newest first, into one sorted sequence
+	 * holding the newest entry for each key.
+	 */
+	private static class MergeIterator implements Iterator<SSTable.Entry> {
+		private final PriorityQueue<Cursor> queue = new PriorityQueue<Cursor>();
+
+		private final boolean keepTombstones;
+
+		private SSTable.Entry next;
+
+		MergeIterator(List<Iterator<SSTable.Entry>> sources,
+				boolean keepTombstones) {
+			this.keepTombstones = keepTombstones;
+			for (int i = 0; i < sources.size(); ++i)
+				step(new Cursor(sources.get(i), i));
+			next = advance();
+		}
+
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		public SSTable.Entry next() {
+			if (next == null)
+				throw new NoSuchElementException();
+			SSTable.Entry entry = next;
+			next = advance();
+			return entry;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		private SSTable.Entry advance() {
+			while (!queue.isEmpty()) {
+				Cursor cursor = queue.poll();
+				SSTable.Entry entry = cursor.current;
+				step(cursor);
+				// older entries for the same key
+				while ((!queue.isEmpty())
+						&& queue.peek().current.key.equals(entry.key))
+					step(queue.poll());
+				if ((entry.value != null) || keepTombstones)
+					return entry;
+			}
+			return null;
+		}
+
+		private void step(Cursor cursor) {
+			if (cursor.source.hasNext()) {
+				cursor.current = cursor.source.next();
+				queue.add(cursor);
+			}
+		}
+	}
+
+	private static class Cursor implements Comparable<Cursor> {
+		final Iterator<SSTable.Entry> source;
+
+		final int rank;
+
+		SSTable.Entry current;
+
+		Cursor(Iterator<SSTable.Entry> source, int rank) {
+			this.source = source;
+			this.rank = rank;
+		}
+
+		public int compareTo(Cursor other) {
+			int comparison = current.key.compareTo(other.current.key);
+			return (comparison != 0) ? comparison : rank - other.rank;
+		}
+	}
+}
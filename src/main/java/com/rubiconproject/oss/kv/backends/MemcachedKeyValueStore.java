@@ -4,16 +4,20 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
@@ -32,9 +36,16 @@ import net.spy.memcached.ops.Operation;
 import net.spy.memcached.protocol.binary.BinaryMemcachedNodeImpl;
 import net.spy.memcached.protocol.binary.BinaryOperationFactory;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.rubiconproject.oss.kv.AsyncKeyValueStore;
 import com.rubiconproject.oss.kv.BaseManagedKeyValueStore;
+import com.rubiconproject.oss.kv.DefaultKeyValueStoreFuture;
 import com.rubiconproject.oss.kv.KeyValueStore;
 import com.rubiconproject.oss.kv.KeyValueStoreException;
+import com.rubiconproject.oss.kv.KeyValueStoreFuture;
+import com.rubiconproject.oss.kv.KeyValueStoreFutureListener;
 import com.rubiconproject.oss.kv.annotations.Configurable;
 import com.rubiconproject.oss.kv.annotations.Configurable.Type;
 import com.rubiconproject.oss.kv.mgmt.MemcachedImplMXBean;
@@ -49,9 +60,11 @@ import com.rubiconproject.oss.kv.transcoder.spy.SpyMemcachedByteArrayTranscoder;
  * 
  */
 public class MemcachedKeyValueStore extends BaseManagedKeyValueStore implements
-		KeyValueStore {
+		KeyValueStore, AsyncKeyValueStore {
 	public static final String IDENTIFIER = "memcached";
 
+	private static Log log = LogFactory.getLog(MemcachedKeyValueStore.class);
+
 	private SpyMemcachedByteArrayTranscoder spyByteTranscoder = new SpyMemcachedByteArrayTranscoder();
 
 	private MemcachedClient mcc;
@@ -356,6 +369,230 @@ public class MemcachedKeyValueStore extends BaseManagedKeyValueStore implements
 		}
 	}
 
+	/*
+	 * Bulk writes are pipelined: every operation is queued on the client
+	 * before waiting on any of them, and the whole batch shares a single
+	 * setOperationTimeout deadline.
+	 */
+
+	public void setBulk(Map<String, Object> values)
+			throws KeyValueStoreException, IOException {
+		assertWriteable();
+		MemcachedClient mcc = getMemcachedClient();
+		try {
+			List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>(
+					values.size());
+			for (Map.Entry<String, Object> entry : values.entrySet())
+				futures.add(mcc.set(entry.getKey(), 0, entry.getValue()));
+			awaitAll(futures, setOperationTimeout);
+		} finally {
+			releaseMemcachedClient(mcc);
+		}
+	}
+
+	public void setBulk(Map<String, Object> values, Transcoder transcoder)
+			throws KeyValueStoreException, IOException {
+		assertWriteable();
+		MemcachedClient mcc = getMemcachedClient();
+		try {
+			List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>(
+					values.size());
+			for (Map.Entry<String, Object> entry : values.entrySet()) {
+				byte[] bytes = transcoder.encode(entry.getValue());
+				futures.add(mcc.set(entry.getKey(), 0, bytes,
+						spyByteTranscoder));
+			}
+			awaitAll(futures, setOperationTimeout);
+		} finally {
+			releaseMemcachedClient(mcc);
+		}
+	}
+
+	public void deleteBulk(Collection<String> keys)
+			throws KeyValueStoreException, IOException {
+		assertWriteable();
+		MemcachedClient mcc = getMemcachedClient();
+		try {
+			List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>(
+					keys.size());
+			for (String key : keys)
+				futures.add(mcc.delete(key));
+			awaitAll(futures, setOperationTimeout);
+		} finally {
+			releaseMemcachedClient(mcc);
+		}
+	}
+
+	private void awaitAll(List<Future<Boolean>> futures, long timeout)
+			throws KeyValueStoreException {
+		long deadline = System.currentTimeMillis() + timeout;
+		try {
+			for (Future<Boolean> future : futures) {
+				long remaining = Math.max(0l, deadline
+						- System.currentTimeMillis());
+				future.get(remaining, TimeUnit.MILLISECONDS);
+			}
+		} catch (InterruptedException e) {
+			throw new KeyValueStoreException(e);
+		} catch (ExecutionException e) {
+			throw new KeyValueStoreException(e);
+		} catch (TimeoutException e) {
+			throw new KeyValueStoreException(e);
+		}
+	}
+
+	/*
+	 * Native AsyncKeyValueStore implementation. The spy client already runs
+	 * every operation on its own I/O thread, so these simply hand back the
+	 * spy future wrapped to apply our transcoder and operation timeouts.
+	 */
+
+	public KeyValueStoreFuture<Object> getAsync(String key) {
+		try {
+			assertReadable();
+			MemcachedClient mcc = getMemcachedClient();
+			try {
+				Future<Object> future = mcc.asyncGet(key);
+				return new SpyKeyValueStoreFuture<Object, Object>(future,
+						getOperationTimeout, getAsyncExecutor()) {
+					protected Object convert(Object value) {
+						return value;
+					}
+				};
+			} finally {
+				releaseMemcachedClient(mcc);
+			}
+		} catch (KeyValueStoreException e) {
+			return DefaultKeyValueStoreFuture.failed(e);
+		}
+	}
+
+	public KeyValueStoreFuture<Object> getAsync(String key,
+			final Transcoder transcoder) {
+		try {
+			assertReadable();
+			MemcachedClient mcc = getMemcachedClient();
+			try {
+				Future<byte[]> future = mcc.asyncGet(key, spyByteTranscoder);
+				return new SpyKeyValueStoreFuture<byte[], Object>(future,
+						getOperationTimeout, getAsyncExecutor()) {
+					protected Object convert(byte[] bytes) throws IOException {
+						return (bytes == null) ? null : transcoder.decode(bytes);
+					}
+				};
+			} finally {
+				releaseMemcachedClient(mcc);
+			}
+		} catch (KeyValueStoreException e) {
+			return DefaultKeyValueStoreFuture.failed(e);
+		}
+	}
+
+	public KeyValueStoreFuture<Map<String, Object>> getBulkAsync(
+			List<String> keys) {
+		try {
+			assertReadable();
+			MemcachedClient mcc = getMemcachedClient();
+			try {
+				Future<Map<String, Object>> future = mcc.asyncGetBulk(keys);
+				return new SpyKeyValueStoreFuture<Map<String, Object>, Map<String, Object>>(
+						future, getOperationTimeout, getAsyncExecutor()) {
+					protected Map<String, Object> convert(
+							Map<String, Object> results) {
+						return results;
+					}
+				};
+			} finally {
+				releaseMemcachedClient(mcc);
+			}
+		} catch (KeyValueStoreException e) {
+			return DefaultKeyValueStoreFuture.failed(e);
+		}
+	}
+
+	public KeyValueStoreFuture<Map<String, Object>> getBulkAsync(
+			List<String> keys, final Transcoder transcoder) {
+		try {
+			assertReadable();
+			MemcachedClient mcc = getMemcachedClient();
+			try {
+				Future<Map<String, byte[]>> future = mcc.asyncGetBulk(keys,
+						spyByteTranscoder);
+				return new SpyKeyValueStoreFuture<Map<String, byte[]>, Map<String, Object>>(
+						future, getOperationTimeout, getAsyncExecutor()) {
+					protected Map<String, Object> convert(
+							Map<String, byte[]> results) throws IOException {
+						Map<String, Object> retval = new HashMap<String, Object>(
+								results.size());
+						for (Entry<String, byte[]> entry : results.entrySet()) {
+							byte[] bytes = entry.getValue();
+							Object obj = transcoder.decode(bytes);
+							retval.put(entry.getKey(), obj);
+						}
+						return retval;
+					}
+				};
+			} finally {
+				releaseMemcachedClient(mcc);
+			}
+		} catch (KeyValueStoreException e) {
+			return DefaultKeyValueStoreFuture.failed(e);
+		}
+	}
+
+	public KeyValueStoreFuture<Void> setAsync(String key, Object value) {
+		try {
+			assertWriteable();
+			MemcachedClient mcc = getMemcachedClient();
+			try {
+				Future<Boolean> future = mcc.set(key, 0, value);
+				return new AcknowledgementFuture(future, setOperationTimeout,
+						getAsyncExecutor());
+			} finally {
+				releaseMemcachedClient(mcc);
+			}
+		} catch (KeyValueStoreException e) {
+			return DefaultKeyValueStoreFuture.failed(e);
+		}
+	}
+
+	public KeyValueStoreFuture<Void> setAsync(String key, Object value,
+			Transcoder transcoder) {
+		try {
+			assertWriteable();
+			MemcachedClient mcc = getMemcachedClient();
+			try {
+				byte[] bytes = transcoder.encode(value);
+				Future<Boolean> future = mcc.set(key, 0, bytes,
+						spyByteTranscoder);
+				return new AcknowledgementFuture(future, setOperationTimeout,
+						getAsyncExecutor());
+			} finally {
+				releaseMemcachedClient(mcc);
+			}
+		} catch (KeyValueStoreException e) {
+			return DefaultKeyValueStoreFuture.failed(e);
+		} catch (IOException e) {
+			return DefaultKeyValueStoreFuture.failed(e);
+		}
+	}
+
+	public KeyValueStoreFuture<Void> deleteAsync(String key) {
+		try {
+			assertWriteable();
+			MemcachedClient mcc = getMemcachedClient();
+			try {
+				Future<Boolean> future = mcc.delete(key);
+				return new AcknowledgementFuture(future, setOperationTimeout,
+						getAsyncExecutor());
+			} finally {
+				releaseMemcachedClient(mcc);
+			}
+		} catch (KeyValueStoreException e) {
+			return DefaultKeyValueStoreFuture.failed(e);
+		}
+	}
+
 	/**
 	 * Increment the given counter, returning the new value.
 	 * 
@@ -442,7 +679,7 @@ public class MemcachedKeyValueStore extends BaseManagedKeyValueStore implements
 			throws KeyValueStoreException {
 		MemcachedClient mcc = getMemcachedClient();
 		try {
-			return mcc.incr(key, by, def, exp);
+			return mcc.decr(key, by, def, exp);
 		} finally {
 			releaseMemcachedClient(mcc);
 		}
@@ -533,6 +770,187 @@ public class MemcachedKeyValueStore extends BaseManagedKeyValueStore implements
 	private void releaseMemcachedClient(MemcachedClient client) {
 	}
 
+	/**
+	 * Adapts a spy memcached future to KeyValueStoreFuture. get() without a
+	 * timeout applies the configured operation timeout, matching the blocking
+	 * methods above. spymemcached 2.7 has no completion callbacks, so a
+	 * listener added before the operation completes is handed to the
+	 * CompletionPoller, and run on the given executor once the operation is
+	 * done or its timeout has passed.
+	 * 
+	 * @param <T>
+	 *            spy future type
+	 * @param <V>
+	 *            converted result type
+	 */
+	private static abstract class SpyKeyValueStoreFuture<T, V> implements
+			KeyValueStoreFuture<V> {
+		private Future<T> delegate;
+
+		private long timeout;
+
+		private Executor listenerExecutor;
+
+		private volatile boolean expired = false;
+
+		public SpyKeyValueStoreFuture(Future<T> delegate, long timeout,
+				Executor listenerExecutor) {
+			this.delegate = delegate;
+			this.timeout = timeout;
+			this.listenerExecutor = listenerExecutor;
+		}
+
+		protected abstract V convert(T value) throws IOException;
+
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			return delegate.cancel(mayInterruptIfRunning);
+		}
+
+		public boolean isCancelled() {
+			return delegate.isCancelled();
+		}
+
+		public boolean isDone() {
+			return expired || delegate.isDone();
+		}
+
+		public V get() throws InterruptedException, ExecutionException {
+			try {
+				return get(expired ? 0l : timeout, TimeUnit.MILLISECONDS);
+			} catch (TimeoutException e) {
+				throw new ExecutionException(new KeyValueStoreException(e));
+			}
+		}
+
+		public V get(long timeout, TimeUnit unit) throws InterruptedException,
+				ExecutionException, TimeoutException {
+			T value = delegate.get(timeout, unit);
+			try {
+				return convert(value);
+			} catch (IOException e) {
+				throw new ExecutionException(e);
+			}
+		}
+
+		public void addListener(final KeyValueStoreFutureListener<V> listener) {
+			if (isDone()) {
+				listener.completed(this);
+				return;
+			}
+			final SpyKeyValueStoreFuture<T, V> future = this;
+			final long deadline = System.currentTimeMillis() + timeout;
+			CompletionPoller.instance.watch(new PendingCompletion() {
+				boolean poll(long now) {
+					if (delegate.isDone())
+						return true;
+					if (now < deadline)
+						return false;
+					expired = true;
+					return true;
+				}
+
+				void complete() {
+					Runnable notify = new Runnable() {
+						public void run() {
+							listener.completed(future);
+						}
+					};
+					try {
+						listenerExecutor.execute(notify);
+					} catch (RejectedExecutionException e) {
+						notify.run();
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * A listener waiting on the CompletionPoller.
+	 */
+	private abstract static class PendingCompletion {
+		/**
+		 * Whether the operation is done or has timed out. Called with the
+		 * poller's lock held, so must not block.
+		 */
+		abstract boolean poll(long now);
+
+		abstract void complete();
+	}
+
+	/**
+	 * A single daemon thread that checks every pending listener's operation
+	 * each POLL_INTERVAL milliseconds, instead of parking a thread in get()
+	 * for each listener.
+	 */
+	private static class CompletionPoller implements Runnable {
+		private static final long POLL_INTERVAL = 1l;
+
+		static final CompletionPoller instance = new CompletionPoller();
+
+		private final List<PendingCompletion> pending = new ArrayList<PendingCompletion>();
+
+		private CompletionPoller() {
+			Thread thread = new Thread(this, "MemcachedKeyValueStore listeners");
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		synchronized void watch(PendingCompletion completion) {
+			pending.add(completion);
+			if (pending.size() == 1)
+				notifyAll();
+		}
+
+		public void run() {
+			List<PendingCompletion> ready = new ArrayList<PendingCompletion>();
+			while (true) {
+				try {
+					synchronized (this) {
+						while (pending.isEmpty())
+							wait();
+						long now = System.currentTimeMillis();
+						for (Iterator<PendingCompletion> iter = pending
+								.iterator(); iter.hasNext();) {
+							PendingCompletion completion = iter.next();
+							if (completion.poll(now)) {
+								iter.remove();
+								ready.add(completion);
+							}
+						}
+					}
+					for (PendingCompletion completion : ready) {
+						try {
+							completion.complete();
+						} catch (RuntimeException e) {
+							log.error("Exception notifying listener", e);
+						}
+					}
+					ready.clear();
+					Thread.sleep(POLL_INTERVAL);
+				} catch (InterruptedException e) {
+					// daemon thread; keep serving the other stores
+				}
+			}
+		}
+	}
+
+	/**
+	 * Future for a spy write or delete; completes with null once memcached
+	 * has acknowledged the operation.
+	 */
+	private static class AcknowledgementFuture extends
+			SpyKeyValueStoreFuture<Boolean, Void> {
+		public AcknowledgementFuture(Future<Boolean> delegate, long timeout,
+				Executor listenerExecutor) {
+			super(delegate, timeout, listenerExecutor);
+		}
+
+		protected Void convert(Boolean value) {
+			return null;
+		}
+	}
+
 	/**
 	 * Subclassing DefaultConnectionFactory to (1) allow isDaemon() to return
 	 * true if desired and (2) allow for bounded read/write op queues. Without
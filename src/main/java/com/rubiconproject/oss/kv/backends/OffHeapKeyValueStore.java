@@ -0,0 +1,816 @@
+package com.rubiconproject.oss.kv.backends;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.rubiconproject.oss.kv.BaseManagedKeyValueStore;
+import com.rubiconproject.oss.kv.KeyValueStore;
+import com.rubiconproject.oss.kv.KeyValueStoreException;
+import com.rubiconproject.oss.kv.annotations.Configurable;
+import com.rubiconproject.oss.kv.annotations.Configurable.Type;
+import com.rubiconproject.oss.kv.mgmt.OffHeapImplMXBean;
+import com.rubiconproject.oss.kv.transcoder.ByteArrayTranscoder;
+import com.rubiconproject.oss.kv.transcoder.SerializableTranscoder;
+import com.rubiconproject.oss.kv.transcoder.Transcoder;
+
+/**
+ * An in-memory store keeping keys and values outside the java heap, in
+ * direct ByteBuffers, so that a large cache adds nothing to garbage
+ * collection. Keys are spread over independently locked stripes, each with
+ * its own share of capacity.
+ *
+ * A stripe allocates memory in slabs of slabSize bytes. Unless slabSize is
+ * set, it is the largest power of two up to 1MB that leaves every stripe at
+ * least one slab per size class, so classes rarely have to trade slabs.
+ * Each slab is given
+ * to one size class and cut into equal chunks; an entry (a 16 byte header,
+ * the key and the value) goes in a chunk of the smallest class it fits, and
+ * entries larger than a slab are not stored. Once all slabs are allocated, a
+ * class that is full evicts with CLOCK, sweeping its chunks and taking the
+ * first that has not been read since the last sweep. A class that has no
+ * slab at all takes one from the class with the most.
+ *
+ * The index is an open addressing hash table, also off heap, of chunk
+ * addresses and key hashes.
+ *
+ * byte[] values written without a transcoder, or with a ByteArrayTranscoder,
+ * are stored as is and read back as byte[]. Anything else is encoded with
+ * the transcoder given, or serialized. Direct memory is released when the
+ * store is stopped and the buffers collected; -XX:MaxDirectMemorySize must
+ * allow for capacity plus the index.
+ */
+public class OffHeapKeyValueStore extends BaseManagedKeyValueStore implements
+		KeyValueStore {
+	public static final String IDENTIFIER = "offheap";
+
+	private static Log log = LogFactory.getLog(OffHeapKeyValueStore.class);
+
+	private static final int HEADER_SIZE = 16;
+
+	private static final int STATE = 0;
+
+	private static final int REFERENCED = 1;
+
+	private static final int KEY_LENGTH = 2;
+
+	private static final int VALUE_LENGTH = 4;
+
+	private static final int HASH = 8;
+
+	private static final int NEXT_FREE = 8;
+
+	private static final int FLAGS = 12;
+
+	private static final byte FREE = 0;
+
+	private static final byte USED = 1;
+
+	private static final byte RAW = 1;
+
+	private static final int SLOT_SIZE = 16;
+
+	private static final int MIN_CHUNK_SIZE = 64;
+
+	private static final int MAX_AUTO_SLAB_SIZE = 1024 * 1024;
+
+	private static final int MIN_AUTO_SLAB_SIZE = 4 * 1024;
+
+	private Transcoder defaultTranscoder = new SerializableTranscoder();
+
+	private long capacity = 64l * 1024 * 1024;
+
+	// 0 to size slabs from capacity
+	private int slabSize = 0;
+
+	private int stripeCount = 16;
+
+	private double growthFactor = 1.25d;
+
+	private volatile Stripe[] stripes;
+
+	public OffHeapKeyValueStore() {
+	}
+
+	public OffHeapKeyValueStore(long capacity) {
+		this.capacity = capacity;
+	}
+
+	public String getIdentifier() {
+		return IDENTIFIER;
+	}
+
+	/**
+	 * Total bytes of slabs, shared evenly between stripes.
+	 */
+	@Configurable(name = "capacity", accepts = Type.LongType)
+	public void setCapacity(long capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Bytes per slab, which is also the largest entry that can be stored. 0
+	 * (the default) sizes slabs from capacity.
+	 */
+	@Configurable(name = "slabSize", accepts = Type.IntType)
+	public void setSlabSize(int slabSize) {
+		this.slabSize = slabSize;
+	}
+
+	/**
+	 * Number of independently locked stripes, rounded up to a power of two.
+	 */
+	@Configurable(name = "stripes", accepts = Type.IntType)
+	public void setStripes(int stripes) {
+		int count = 1;
+		while (count < stripes)
+			count <<= 1;
+		this.stripeCount = count;
+	}
+
+	/**
+	 * Ratio between the chunk sizes of consecutive size classes.
+	 */
+	@Configurable(name = "growthFactor", accepts = Type.DoubleType)
+	public void setGrowthFactor(double growthFactor) {
+		this.growthFactor = growthFactor;
+	}
+
+	public void setDefaultTranscoder(Transcoder defaultTranscoder) {
+		this.defaultTranscoder = defaultTranscoder;
+	}
+
+	public void start() throws IOException {
+		long perStripe = capacity / stripeCount;
+		int size = slabSize;
+		if (size == 0) {
+			size = MAX_AUTO_SLAB_SIZE;
+			while ((size > MIN_AUTO_SLAB_SIZE)
+					&& (perStripe / size < chunkSizes(size, growthFactor).length))
+				size /= 2;
+		}
+		if (perStripe < size)
+			throw new IllegalArgumentException("Capacity of " + capacity
+					+ " bytes is less than one slab of " + size + " bytes for each of "
+					+ stripeCount + " stripes");
+		int[] chunkSizes = chunkSizes(size, growthFactor);
+		int slabsPerStripe = (int) (perStripe / size);
+		if (slabsPerStripe < chunkSizes.length)
+			log.warn("Only " + slabsPerStripe + " slabs per stripe for "
+					+ chunkSizes.length
+					+ " size classes; size classes will evict each other");
+		Stripe[] stripes = new Stripe[stripeCount];
+		for (int i = 0; i < stripes.length; ++i)
+			stripes[i] = new Stripe(size, slabsPerStripe, chunkSizes);
+		this.stripes = stripes;
+		super.start();
+	}
+
+	public void stop() {
+		super.stop();
+		stripes = null;
+	}
+
+	public Object getMXBean() {
+		return new OffHeapImplMXBean(this);
+	}
+
+	public long getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Bytes per slab in use, and so the largest entry stored.
+	 */
+	public int getSlabSize() {
+		Stripe[] stripes = stripes();
+		return (stripes.length == 0) ? slabSize : stripes[0].slabSize;
+	}
+
+	public long getHitCount() {
+		long total = 0;
+		for (Stripe stripe : stripes())
+			total += stripe.hits;
+		return total;
+	}
+
+	public long getMissCount() {
+		long total = 0;
+		for (Stripe stripe : stripes())
+			total += stripe.misses;
+		return total;
+	}
+
+	public double getHitRate() {
+		long hits = getHitCount();
+		long total = hits + getMissCount();
+		return (total == 0) ? 0.0 : ((double) hits) / total;
+	}
+
+	public long getEvictionCount() {
+		long total = 0;
+		for (Stripe stripe : stripes())
+			total += stripe.evictions;
+		return total;
+	}
+
+	/**
+	 * Writes that were dropped because the entry was larger than a slab.
+	 */
+	public long getRejectedCount() {
+		long total = 0;
+		for (Stripe stripe : stripes())
+			total += stripe.rejections;
+		return total;
+	}
+
+	public long getSize() {
+		long total = 0;
+		for (Stripe stripe : stripes())
+			total += stripe.count;
+		return total;
+	}
+
+	/**
+	 * Bytes of chunks holding entries.
+	 */
+	public long getUsedBytes() {
+		long total = 0;
+		for (Stripe stripe : stripes())
+			total += stripe.usedBytes;
+		return total;
+	}
+
+	/**
+	 * Bytes of slabs allocated so far.
+	 */
+	public long getAllocatedBytes() {
+		long total = 0;
+		for (Stripe stripe : stripes())
+			total += ((long) stripe.slabCount) * stripe.slabSize;
+		return total;
+	}
+
+	public boolean exists(String key) throws KeyValueStoreException,
+			IOException {
+		assertReadable();
+		byte[] keyBytes = key.getBytes("UTF-8");
+		int hash = hash(key);
+		return stripe(hash).contains(keyBytes, hash);
+	}
+
+	public Object get(String key) throws KeyValueStoreException, IOException {
+		assertReadable();
+		return read(key, null);
+	}
+
+	public Object get(String key, Transcoder transcoder)
+			throws KeyValueStoreException, IOException {
+		assertReadable();
+		return read(key, transcoder);
+	}
+
+	public Map<String, Object> getBulk(String... keys)
+			throws KeyValueStoreException, IOException {
+		return getBulk(Arrays.asList(keys));
+	}
+
+	public Map<String, Object> getBulk(List<String> keys)
+			throws KeyValueStoreException, IOException {
+		return getBulk(keys, null);
+	}
+
+	public Map<String, Object> getBulk(List<String> keys, Transcoder transcoder)
+			throws KeyValueStoreException, IOException {
+		assertReadable();
+		Map<String, Object> results = new HashMap<String, Object>();
+		for (String key : keys) {
+			Object value = read(key, transcoder);
+			if (value != null)
+				results.put(key, value);
+		}
+		return results;
+	}
+
+	public void set(String key, Object value) throws KeyValueStoreException,
+			IOException {
+		assertWriteable();
+		write(key, value, null);
+	}
+
+	public void set(String key, Object value, Transcoder transcoder)
+			throws KeyValueStoreException, IOException {
+		assertWriteable();
+		write(key, value, transcoder);
+	}
+
+	public void delete(String key) throws KeyValueStoreException, IOException {
+		assertWriteable();
+		byte[] keyBytes = key.getBytes("UTF-8");
+		int hash = hash(key);
+		stripe(hash).remove(keyBytes, hash);
+	}
+
+	private Object read(String key, Transcoder transcoder) throws IOException {
+		byte[] keyBytes = key.getBytes("UTF-8");
+		int hash = hash(key);
+		StoredValue value = stripe(hash).get(keyBytes, hash);
+		if (value == null)
+			return null;
+		if (transcoder != null)
+			return transcoder.decode(value.bytes);
+		if (value.flags == RAW)
+			return value.bytes;
+		return defaultTranscoder.decode(value.bytes);
+	}
+
+	private void write(String key, Object value, Transcoder transcoder)
+			throws KeyValueStoreException, IOException {
+		byte[] keyBytes = key.getBytes("UTF-8");
+		if (keyBytes.length > 0xffff)
+			throw new KeyValueStoreException("Key too long: " + key);
+		byte flags = 0;
+		byte[] bytes;
+		if ((value instanceof byte[])
+				&& ((transcoder == null) || (transcoder instanceof ByteArrayTranscoder))) {
+			bytes = (byte[]) value;
+			flags = RAW;
+		} else
+			bytes = ((transcoder == null) ? defaultTranscoder : transcoder)
+					.encode(value);
+		int hash = hash(key);
+		if (!stripe(hash).put(keyBytes, hash, bytes, flags))
+			log.debug("Not caching " + key + " of " + bytes.length
+					+ " bytes, larger than a slab");
+	}
+
+	private Stripe[] stripes() {
+		Stripe[] stripes = this.stripes;
+		return (stripes == null) ? new Stripe[0] : stripes;
+	}
+
+	private Stripe stripe(int hash) {
+		Stripe[] stripes = this.stripes;
+		return stripes[(hash >>> 16) & (stripes.length - 1)];
+	}
+
+	private static int hash(String key) {
+		int h = key.hashCode() * 0x9e3779b9;
+		return h ^ (h >>> 15);
+	}
+
+	/**
+	 * Chunk sizes from MIN_CHUNK_SIZE up to slabSize, each growthFactor times
+	 * the last and a multiple of 8 bytes.
+	 */
+	static int[] chunkSizes(int slabSize, double growthFactor) {
+		List<Integer> sizes = new ArrayList<Integer>();
+		int size = MIN_CHUNK_SIZE;
+		while (size < slabSize) {
+			sizes.add(size);
+			size = Math.max(size + 8, (((int) (size * growthFactor)) + 7) & ~7);
+		}
+		sizes.add(slabSize);
+		int[] result = new int[sizes.size()];
+		for (int i = 0; i < result.length; ++i)
+			result[i] = sizes.get(i);
+		return result;
+	}
+
+	private static class StoredValue {
+		final byte[] bytes;
+
+		final byte flags;
+
+		StoredValue(byte[] bytes, byte flags) {
+			this.bytes = bytes;
+			this.flags = flags;
+		}
+	}
+
+	private static class SizeClass {
+		final int chunkSize;
+
+		final List<Integer> slabs = new ArrayList<Integer>();
+
+		long freeHead = -1;
+
+		int carveSlab = -1;
+
+		int carveOffset = 0;
+
+		// position of the clock hand, an index into slabs and an offset
+		int handSlab = 0;
+
+		int handOffset = 0;
+
+		SizeClass(int chunkSize) {
+			this.chunkSize = chunkSize;
+		}
+	}
+
+	/**
+	 * One lock's worth of the store: its slabs, size classes and index. All
+	 * methods take the lock; statistics are read without it.
+	 */
+	private static class Stripe {
+		final ReentrantLock lock = new ReentrantLock();
+
+		final int slabSize;
+
+		final ByteBuffer[] slabs;
+
+		// size class each slab is assigned to
+		final SizeClass[] owners;
+
+		final SizeClass[] classes;
+
+		ByteBuffer index;
+
+		int indexMask;
+
+		volatile int slabCount = 0;
+
+		volatile int count = 0;
+
+		volatile long usedBytes = 0;
+
+		volatile long hits, misses, evictions, rejections;
+
+		Stripe(int slabSize, int maxSlabs, int[] chunkSizes) {
+			this.slabSize = slabSize;
+			this.slabs = new ByteBuffer[maxSlabs];
+			this.owners = new SizeClass[maxSlabs];
+			this.classes = new SizeClass[chunkSizes.length];
+			for (int i = 0; i < chunkSizes.length; ++i)
+				classes[i] = new SizeClass(chunkSizes[i]);
+			this.index = ByteBuffer.allocateDirect(1024 * SLOT_SIZE);
+			this.indexMask = 1023;
+		}
+
+		boolean contains(byte[] key, int hash) {
+			lock.lock();
+			try {
+				return find(key, hash) >= 0;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		StoredValue get(byte[] key, int hash) {
+			lock.lock();
+			try {
+				int slot = find(key, hash);
+				if (slot < 0) {
+					++misses;
+					return null;
+				}
+				++hits;
+				long address = address(slot);
+				ByteBuffer slab = slab(address);
+				int offset = offset(address);
+				slab.put(offset + REFERENCED, (byte) 1);
+				int keyLength = slab.getChar(offset + KEY_LENGTH);
+				byte[] value = new byte[slab.getInt(offset + VALUE_LENGTH)];
+				slab.position(offset + HEADER_SIZE + keyLength);
+				slab.get(value);
+				return new StoredValue(value, slab.get(offset + FLAGS));
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Store the entry, returning false if it is too large for a slab.
+		 */
+		boolean put(byte[] key, int hash, byte[] value, byte flags) {
+			int size = HEADER_SIZE + key.length + value.length;
+			lock.lock();
+			try {
+				SizeClass sizeClass = sizeClass(size);
+				if (sizeClass == null) {
+					++rejections;
+					int slot = find(key, hash);
+					if (slot >= 0)
+						removeSlot(slot);
+					return false;
+				}
+				int slot = find(key, hash);
+				if ((slot >= 0)
+						&& (sizeClass(address(slot)) == sizeClass)) {
+					// same size class: overwrite in place
+					writeChunk(address(slot), key, hash, value, flags);
+					return true;
+				}
+				long address = allocate(sizeClass);
+				if (address < 0) {
+					if (slot >= 0)
+						removeSlot(find(key, hash));
+					return false;
+				}
+				writeChunk(address, key, hash, value, flags);
+				usedBytes += sizeClass.chunkSize;
+				// allocating may have evicted this key or moved its slot
+				slot = find(key, hash);
+				if (slot >= 0) {
+					freeChunk(address(slot));
+					setSlot(slot, address, hash);
+				} else
+					insertSlot(address, hash);
+				return true;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		void remove(byte[] key, int hash) {
+			lock.lock();
+			try {
+				int slot = find(key, hash);
+				if (slot >= 0)
+					removeSlot(slot);
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		private SizeClass sizeClass(int size) {
+			for (SizeClass sizeClass : classes) {
+				if (sizeClass.chunkSize >= size)
+					return sizeClass;
+			}
+			return null;
+		}
+
+		private SizeClass sizeClass(long address) {
+			return owners[(int) (address / slabSize)];
+		}
+
+		private ByteBuffer slab(long address) {
+			return slabs[(int) (address / slabSize)];
+		}
+
+		private int offset(long address) {
+			return (int) (address % slabSize);
+		}
+
+		private void writeChunk(long address, byte[] key, int hash,
+				byte[] value, byte flags) {
+			ByteBuffer slab = slab(address);
+			int offset = offset(address);
+			slab.put(offset + STATE, USED);
+			slab.put(offset + REFERENCED, (byte) 0);
+			slab.putChar(offset + KEY_LENGTH, (char) key.length);
+			slab.putInt(offset + VALUE_LENGTH, value.length);
+			slab.putInt(offset + HASH, hash);
+			slab.put(offset + FLAGS, flags);
+			slab.position(offset + HEADER_SIZE);
+			slab.put(key);
+			slab.put(value);
+		}
+
+		private void freeChunk(long address) {
+			SizeClass sizeClass = sizeClass(address);
+			ByteBuffer slab = slab(address);
+			int offset = offset(address);
+			slab.put(offset + STATE, FREE);
+			slab.putLong(offset + NEXT_FREE, sizeClass.freeHead);
+			sizeClass.freeHead = address;
+			usedBytes -= sizeClass.chunkSize;
+		}
+
+		/**
+		 * A free chunk of the given class, evicting if need be, or -1 if none
+		 * can be had.
+		 */
+		private long allocate(SizeClass sizeClass) {
+			if (sizeClass.freeHead >= 0) {
+				long address = sizeClass.freeHead;
+				sizeClass.freeHead = slab(address).getLong(
+						offset(address) + NEXT_FREE);
+				return address;
+			}
+			if ((sizeClass.carveSlab < 0)
+					|| (sizeClass.carveOffset + sizeClass.chunkSize > slabSize)) {
+				if (slabCount < slabs.length) {
+					slabs[slabCount] = ByteBuffer
+							.allocateDirect(slabSize);
+					assign(slabCount++, sizeClass);
+				} else if (sizeClass.slabs.isEmpty()) {
+					if (!reassign(sizeClass))
+						return -1;
+				} else
+					return clock(sizeClass);
+			}
+			long address = ((long) sizeClass.carveSlab) * slabSize
+					+ sizeClass.carveOffset;
+			sizeClass.carveOffset += sizeClass.chunkSize;
+			return address;
+		}
+
+		private void assign(int slabIndex, SizeClass sizeClass) {
+			sizeClass.slabs.add(slabIndex);
+			owners[slabIndex] = sizeClass;
+			sizeClass.carveSlab = slabIndex;
+			sizeClass.carveOffset = 0;
+		}
+
+		/**
+		 * End of the chunks cut so far from the given slab of a class.
+		 */
+		private int limit(SizeClass sizeClass, int slabIndex) {
+			if (slabIndex == sizeClass.carveSlab)
+				return sizeClass.carveOffset;
+			return (slabSize / sizeClass.chunkSize) * sizeClass.chunkSize;
+		}
+
+		/**
+		 * Sweep the class's chunks from the clock hand, clearing reference
+		 * bits, and evict the first entry found without one.
+		 */
+		private long clock(SizeClass sizeClass) {
+			int chunks = sizeClass.slabs.size()
+					* (slabSize / sizeClass.chunkSize);
+			for (int steps = 0; steps <= 2 * chunks + sizeClass.slabs.size(); ++steps) {
+				if (sizeClass.handSlab >= sizeClass.slabs.size()) {
+					sizeClass.handSlab = 0;
+					sizeClass.handOffset = 0;
+				}
+				int slabIndex = sizeClass.slabs.get(sizeClass.handSlab);
+				if (sizeClass.handOffset + sizeClass.chunkSize > limit(
+						sizeClass, slabIndex)) {
+					++sizeClass.handSlab;
+					sizeClass.handOffset = 0;
+					continue;
+				}
+				long address = ((long) slabIndex) * slabSize
+						+ sizeClass.handOffset;
+				sizeClass.handOffset += sizeClass.chunkSize;
+				ByteBuffer slab = slabs[slabIndex];
+				int offset = offset(address);
+				if (slab.get(offset + STATE) != USED)
+					continue;
+				if (slab.get(offset + REFERENCED) != 0) {
+					slab.put(offset + REFERENCED, (byte) 0);
+					continue;
+				}
+				evict(address);
+				// take the chunk back off the free list
+				sizeClass.freeHead = slab.getLong(offset + NEXT_FREE);
+				return address;
+			}
+			return -1;
+		}
+
+		/**
+		 * Give the class a slab taken from the class with the most: the one
+		 * under its clock hand, whose entries are evicted.
+		 */
+		private boolean reassign(SizeClass sizeClass) {
+			SizeClass donor = null;
+			for (SizeClass candidate : classes) {
+				if ((candidate != sizeClass)
+						&& ((donor == null) || (candidate.slabs.size() > donor.slabs
+								.size())))
+					donor = candidate;
+			}
+			if ((donor == null) || (donor.slabs.isEmpty()))
+				return false;
+			if (donor.handSlab >= donor.slabs.size())
+				donor.handSlab = 0;
+			int slabIndex = donor.slabs.remove(donor.handSlab);
+			donor.handOffset = 0;
+			ByteBuffer slab = slabs[slabIndex];
+			int limit = limit(donor, slabIndex);
+			if (donor.carveSlab == slabIndex)
+				donor.carveSlab = -1;
+			for (int offset = 0; offset + donor.chunkSize <= limit; offset += donor.chunkSize) {
+				if (slab.get(offset + STATE) == USED)
+					evict(((long) slabIndex) * slabSize + offset);
+			}
+			// rebuild the donor's free list without the slab's chunks
+			long head = -1;
+			for (long address = donor.freeHead; address >= 0;) {
+				long next = slab(address).getLong(offset(address) + NEXT_FREE);
+				if (address / slabSize != slabIndex) {
+					slab(address).putLong(offset(address) + NEXT_FREE, head);
+					head = address;
+				}
+				address = next;
+			}
+			donor.freeHead = head;
+			assign(slabIndex, sizeClass);
+			return true;
+		}
+
+		private void evict(long address) {
+			int hash = slab(address).getInt(offset(address) + HASH);
+			for (int slot = ideal(hash);; slot = (slot + 1) & indexMask) {
+				if (address(slot) == address) {
+					removeSlot(slot);
+					break;
+				}
+			}
+			++evictions;
+		}
+
+		private int ideal(int hash) {
+			int h = hash * 0x85ebca6b;
+			return (h ^ (h >>> 13)) & indexMask;
+		}
+
+		private long address(int slot) {
+			return index.getLong(slot * SLOT_SIZE) - 1;
+		}
+
+		private int slotHash(int slot) {
+			return index.getInt(slot * SLOT_SIZE + 8);
+		}
+
+		private void setSlot(int slot, long address, int hash) {
+			index.putLong(slot * SLOT_SIZE, address + 1);
+			index.putInt(slot * SLOT_SIZE + 8, hash);
+		}
+
+		private int find(byte[] key, int hash) {
+			for (int slot = ideal(hash);; slot = (slot + 1) & indexMask) {
+				long address = address(slot);
+				if (address < 0)
+					return -1;
+				if ((slotHash(slot) == hash) && (keyEquals(address, key)))
+					return slot;
+			}
+		}
+
+		private boolean keyEquals(long address, byte[] key) {
+			ByteBuffer slab = slab(address);
+			int offset = offset(address);
+			if (slab.getChar(offset + KEY_LENGTH) != key.length)
+				return false;
+			offset += HEADER_SIZE;
+			for (int i = 0; i < key.length; ++i) {
+				if (slab.get(offset + i) != key[i])
+					return false;
+			}
+			return true;
+		}
+
+		private void insertSlot(long address, int hash) {
+			if ((count + 1) * 4l > (indexMask + 1) * 3l)
+				resize();
+			int slot = ideal(hash);
+			while (address(slot) >= 0)
+				slot = (slot + 1) & indexMask;
+			setSlot(slot, address, hash);
+			++count;
+		}
+
+		/**
+		 * Free the slot's chunk and close the gap by shifting back any later
+		 * entries of the probe run that belong before it.
+		 */
+		private void removeSlot(int slot) {
+			freeChunk(address(slot));
+			--count;
+			int gap = slot;
+			for (int next = (gap + 1) & indexMask;; next = (next + 1) & indexMask) {
+				long address = address(next);
+				if (address < 0)
+					break;
+				int ideal = ideal(slotHash(next));
+				boolean movable = (gap <= next) ? ((ideal <= gap) || (ideal > next))
+						: ((ideal <= gap) && (ideal > next));
+				if (movable) {
+					setSlot(gap, address, slotHash(next));
+					gap = next;
+				}
+			}
+			index.putLong(gap * SLOT_SIZE, 0l);
+		}
+
+		private void resize() {
+			ByteBuffer old = index;
+			int oldSlots = indexMask + 1;
+			index = ByteBuffer.allocateDirect(oldSlots * 2 * SLOT_SIZE);
+			indexMask = oldSlots * 2 - 1;
+			for (int i = 0; i < oldSlots; ++i) {
+				long address = old.getLong(i * SLOT_SIZE) - 1;
+				if (address < 0)
+					continue;
+				int hash = old.getInt(i * SLOT_SIZE + 8);
+				int slot = ideal(hash);
+				while (address(slot) >= 0)
+					slot = (slot + 1) & indexMask;
+				setSlot(slot, address, hash);
+			}
+		}
+	}
+}
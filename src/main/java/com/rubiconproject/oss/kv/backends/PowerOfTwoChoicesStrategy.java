@@ -0,0 +1,33 @@
+package com.rubiconproject.oss.kv.backends;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Picks two replicas at random and reads from the one with the lower
+ * expected cost, estimated as EWMA latency times (in-flight requests + 1).
+ * This steers load away from slow replicas without herding every request
+ * onto the single fastest one.
+ */
+public class PowerOfTwoChoicesStrategy implements ReplicaSelectionStrategy {
+	public static final String IDENTIFIER = "p2c";
+
+	private Random random = new Random();
+
+	public ReplicaStats select(List<ReplicaStats> replicas) {
+		int size = replicas.size();
+		if (size == 1)
+			return replicas.get(0);
+		int i = random.nextInt(size);
+		int j = random.nextInt(size - 1);
+		if (j >= i)
+			++j;
+		ReplicaStats a = replicas.get(i);
+		ReplicaStats b = replicas.get(j);
+		return (cost(a) <= cost(b)) ? a : b;
+	}
+
+	private double cost(ReplicaStats replica) {
+		return replica.getLatencyEwma() * (replica.getInflightCount() + 1);
+	}
+}
@@ -0,0 +1,18 @@
+package com.rubiconproject.oss.kv.backends;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Picks a replica uniformly at random.
+ */
+public class RandomReplicaSelectionStrategy implements
+		ReplicaSelectionStrategy {
+	public static final String IDENTIFIER = "random";
+
+	private Random random = new Random();
+
+	public ReplicaStats select(List<ReplicaStats> replicas) {
+		return replicas.get(random.nextInt(replicas.size()));
+	}
+}
@@ -1,26 +1,67 @@
 package com.rubiconproject.oss.kv.backends;
 
 import java.io.IOException;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import com.rubiconproject.oss.kv.BaseManagedKeyValueStore;
 import com.rubiconproject.oss.kv.KeyValueStore;
 import com.rubiconproject.oss.kv.KeyValueStoreException;
 import com.rubiconproject.oss.kv.KeyValueStoreUnavailable;
+import com.rubiconproject.oss.kv.RateLimitExceededException;
+import com.rubiconproject.oss.kv.annotations.Configurable;
+import com.rubiconproject.oss.kv.annotations.Configurable.Type;
+import com.rubiconproject.oss.kv.mgmt.RateLimitingImplMXBean;
 import com.rubiconproject.oss.kv.transcoder.Transcoder;
+import com.rubiconproject.oss.kv.util.LatencyReservoir;
 import com.rubiconproject.oss.kv.util.RateLimiter;
+import com.rubiconproject.oss.kv.util.TokenBucketRateLimiter;
 
+/**
+ * Limits the rate of operations on master, with separate budgets for point
+ * reads, bulk reads, writes and deletes. Bulk reads are limited by keys
+ * rather than calls, as are bulk writes and deletes. The bulk read budget
+ * defaults to the read budget and the delete budget to the write budget.
+ *
+ * By default an operation without a permit fails immediately with
+ * RateLimitExceededException; with maxWait set it waits up to that many
+ * milliseconds for one first.
+ */
 public class RateLimitingKeyValueStore extends BaseManagedKeyValueStore
 		implements KeyValueStore {
 	public static final String IDENTIFIER = "ratelimiting";
 
+	public enum OperationClass {
+		PointRead, BulkRead, Write, Delete
+	}
+
 	private KeyValueStore master;
 
 	private RateLimiter readLimiter;
 
+	private RateLimiter bulkReadLimiter;
+
 	private RateLimiter writeLimiter;
 
+	private RateLimiter deleteLimiter;
+
+	private long maxWait = 0l;
+
+	private final AtomicLongArray rejected = new AtomicLongArray(
+			OperationClass.values().length);
+
+	private final AtomicLongArray permitWaitNanos = new AtomicLongArray(
+			OperationClass.values().length);
+
+	private final AtomicLong permitWaits = new AtomicLong();
+
+	private final LatencyReservoir permitWaitLatencies = new LatencyReservoir(
+			1000);
+
 	public RateLimitingKeyValueStore() {
 	}
 
@@ -39,14 +80,119 @@ public class RateLimitingKeyValueStore extends BaseManagedKeyValueStore
 		this.master = master;
 	}
 
+	/**
+	 * Limits point reads, and bulk reads by key unless a bulk read limiter
+	 * is set.
+	 */
 	public void setReadRateLimiter(RateLimiter limiter) {
 		this.readLimiter = limiter;
 	}
 
+	/**
+	 * Limits keys read by getBulk().
+	 */
+	public void setBulkReadRateLimiter(RateLimiter limiter) {
+		this.bulkReadLimiter = limiter;
+	}
+
+	/**
+	 * Limits keys written, and deleted unless a delete limiter is set.
+	 */
 	public void setWriteRateLimiter(RateLimiter limiter) {
 		this.writeLimiter = limiter;
 	}
 
+	/**
+	 * Limits keys deleted.
+	 */
+	public void setDeleteRateLimiter(RateLimiter limiter) {
+		this.deleteLimiter = limiter;
+	}
+
+	@Configurable(name = "readsPerSecond", accepts = Type.LongType)
+	public void setReadsPerSecond(long readsPerSecond) {
+		setReadRateLimiter(new TokenBucketRateLimiter(TimeUnit.SECONDS, 1,
+				readsPerSecond));
+	}
+
+	@Configurable(name = "bulkReadKeysPerSecond", accepts = Type.LongType)
+	public void setBulkReadKeysPerSecond(long keysPerSecond) {
+		setBulkReadRateLimiter(new TokenBucketRateLimiter(TimeUnit.SECONDS, 1,
+				keysPerSecond));
+	}
+
+	@Configurable(name = "writesPerSecond", accepts = Type.LongType)
+	public void setWritesPerSecond(long writesPerSecond) {
+		setWriteRateLimiter(new TokenBucketRateLimiter(TimeUnit.SECONDS, 1,
+				writesPerSecond));
+	}
+
+	@Configurable(name = "deletesPerSecond", accepts = Type.LongType)
+	public void setDeletesPerSecond(long deletesPerSecond) {
+		setDeleteRateLimiter(new TokenBucketRateLimiter(TimeUnit.SECONDS, 1,
+				deletesPerSecond));
+	}
+
+	/**
+	 * Milliseconds to wait for a permit before failing. 0 (the default)
+	 * fails immediately.
+	 */
+	@Configurable(name = "maxWait", accepts = Type.LongType)
+	public void setMaxWait(long maxWait) {
+		this.maxWait = maxWait;
+	}
+
+	public long getRejectedCount() {
+		long total = 0;
+		for (int i = 0; i < rejected.length(); ++i)
+			total += rejected.get(i);
+		return total;
+	}
+
+	public long getRejectedCount(OperationClass operationClass) {
+		return rejected.get(operationClass.ordinal());
+	}
+
+	/**
+	 * Total time in milliseconds operations of the given class spent
+	 * waiting for permits.
+	 */
+	public double getThrottleDelay(OperationClass operationClass) {
+		return permitWaitNanos.get(operationClass.ordinal()) / 1000000.0;
+	}
+
+	/**
+	 * Number of operations that waited for a permit.
+	 */
+	public long getPermitWaitCount() {
+		return permitWaits.get();
+	}
+
+	/**
+	 * Average time in milliseconds an operation that waited spent waiting
+	 * for its permit.
+	 */
+	public double getAveragePermitWait() {
+		long count = permitWaits.get();
+		if (count == 0)
+			return 0.0;
+		long total = 0;
+		for (int i = 0; i < permitWaitNanos.length(); ++i)
+			total += permitWaitNanos.get(i);
+		return total / 1000000.0 / count;
+	}
+
+	/**
+	 * Percentile of recent permit waits, in milliseconds.
+	 */
+	public double getPermitWaitPercentile(double percentile) {
+		return permitWaitLatencies.getPercentile(percentile);
+	}
+
+	public Object getMXBean() {
+		return new RateLimitingImplMXBean(this);
+	}
+
 	@Override
 	public void start() throws IOException {
 		super.start();
@@ -60,73 +206,129 @@ public class RateLimitingKeyValueStore extends BaseManagedKeyValueStore
 	public boolean exists(String key) throws KeyValueStoreException,
 			IOException {
 		assertReadable();
+		acquire(OperationClass.PointRead, 1);
 		return master.exists(key);
 	}
 
 	public Object get(String key) throws KeyValueStoreException, IOException {
 		assertReadable();
+		acquire(OperationClass.PointRead, 1);
 		return master.get(key);
 	}
 
 	public Object get(String key, Transcoder transcoder)
 			throws KeyValueStoreException, IOException {
 		assertReadable();
+		acquire(OperationClass.PointRead, 1);
 		return master.get(key, transcoder);
 	}
 
 	public Map<String, Object> getBulk(String... keys)
 			throws KeyValueStoreException, IOException {
 		assertReadable();
+		acquire(OperationClass.BulkRead, keys.length);
 		return master.getBulk(keys);
 	}
 
 	public Map<String, Object> getBulk(List<String> keys)
 			throws KeyValueStoreException, IOException {
 		assertReadable();
+		acquire(OperationClass.BulkRead, keys.size());
 		return master.getBulk(keys);
 	}
 
 	public Map<String, Object> getBulk(List<String> keys, Transcoder transcoder)
 			throws KeyValueStoreException, IOException {
 		assertReadable();
+		acquire(OperationClass.BulkRead, keys.size());
 		return master.getBulk(keys, transcoder);
 	}
 
 	public void set(String key, Object value) throws KeyValueStoreException,
 			IOException {
 		assertWriteable();
+		acquire(OperationClass.Write, 1);
 		master.set(key, value);
 	}
 
 	public void set(String key, Object value, Transcoder transcoder)
 			throws KeyValueStoreException, IOException {
 		assertWriteable();
+		acquire(OperationClass.Write, 1);
 		master.set(key, value, transcoder);
 	}
 
 	public void delete(String key) throws KeyValueStoreException, IOException {
 		assertWriteable();
+		acquire(OperationClass.Delete, 1);
 		master.delete(key);
 	}
 
-	protected void assertWriteable() throws KeyValueStoreUnavailable {
-		if (writeLimiter != null) {
-			if (writeLimiter.allowNextEvent())
-				writeLimiter.nextEvent();
-			else
-				throw new KeyValueStoreUnavailable();
+	public void setBulk(Map<String, Object> values)
+			throws KeyValueStoreException, IOException {
+		assertWriteable();
+		acquire(OperationClass.Write, values.size());
+		master.setBulk(values);
+	}
+
+	public void setBulk(Map<String, Object> values, Transcoder transcoder)
+			throws KeyValueStoreException, IOException {
+		assertWriteable();
+		acquire(OperationClass.Write, values.size());
+		master.setBulk(values, transcoder);
+	}
+
+	public void deleteBulk(Collection<String> keys)
+			throws KeyValueStoreException, IOException {
+		assertWriteable();
+		acquire(OperationClass.Delete, keys.size());
+		master.deleteBulk(keys);
+	}
+
+	protected RateLimiter getLimiter(OperationClass operationClass) {
+		switch (operationClass) {
+		case PointRead:
+			return readLimiter;
+		case BulkRead:
+			return (bulkReadLimiter == null) ? readLimiter : bulkReadLimiter;
+		case Write:
+			return writeLimiter;
+		default:
+			return (deleteLimiter == null) ? writeLimiter : deleteLimiter;
 		}
-		super.assertWriteable();
 	}
 
-	protected void assertReadable() throws KeyValueStoreUnavailable {
-		if (readLimiter != null) {
-			if (readLimiter.allowNextEvent())
-				readLimiter.nextEvent();
-			else
-				throw new KeyValueStoreUnavailable();
+	/**
+	 * Take permits for an operation, waiting up to maxWait for them.
+	 */
+	protected void acquire(OperationClass operationClass, int permits)
+			throws KeyValueStoreUnavailable {
+		RateLimiter limiter = getLimiter(operationClass);
+		if ((limiter == null) || (permits == 0))
+			return;
+		if (limiter.tryAcquire(permits))
+			return;
+		if (maxWait > 0) {
+			long start = System.nanoTime();
+			boolean acquired;
+			try {
+				acquired = limiter.tryAcquire(permits, maxWait,
+						TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new KeyValueStoreUnavailable(e);
+			}
+			if (acquired) {
+				long waited = System.nanoTime() - start;
+				permitWaits.incrementAndGet();
+				permitWaitNanos.addAndGet(operationClass.ordinal(), waited);
+				permitWaitLatencies.record(waited);
+				return;
+			}
 		}
-		super.assertReadable();
+		rejected.incrementAndGet(operationClass.ordinal());
+		throw new RateLimitExceededException("Rate limit exceeded for "
+				+ operationClass + " (" + permits + " permits)");
 	}
 
 }
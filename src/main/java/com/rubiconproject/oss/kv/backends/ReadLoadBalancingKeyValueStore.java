@@ -2,24 +2,114 @@ package com.rubiconproject.oss.kv.backends;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 
 import com.rubiconproject.oss.kv.BaseManagedKeyValueStore;
 import com.rubiconproject.oss.kv.KeyValueStore;
 import com.rubiconproject.oss.kv.KeyValueStoreException;
+import com.rubiconproject.oss.kv.KeyValueStoreStatus;
+import com.rubiconproject.oss.kv.annotations.Configurable;
+import com.rubiconproject.oss.kv.annotations.Configurable.Type;
+import com.rubiconproject.oss.kv.mgmt.JMXMbeanServerFactory;
+import com.rubiconproject.oss.kv.mgmt.ReadLoadBalancingImplMXBean;
 import com.rubiconproject.oss.kv.transcoder.Transcoder;
+import com.rubiconproject.oss.kv.util.ExecutorUtils;
+import com.rubiconproject.oss.kv.util.LatencyReservoir;
 
+/**
+ * Sends writes to master and spreads reads over a set of readers, falling
+ * back to master when a reader fails or none is available. Readers are
+ * chosen by a ReplicaSelectionStrategy (power-of-two-choices by default).
+ * A reader with errorThreshold consecutive errors, or whose average latency
+ * exceeds latencyThreshold, is ejected for ejectionTime milliseconds and then
+ * probed with a single read before it is used again. Only the probe can
+ * reinstate it; reads that were already in flight when it was ejected just
+ * update its stats.
+ *
+ * If hedgePercentile is set, a read that has not completed within that
+ * percentile of recent reader latency is sent again to another reader (or
+ * master) and the first successful response wins. Hedges are limited to
+ * hedgeBudget of reads.
+ *
+ * If bulkPartitionSize is set, larger bulk reads are split into partitions
+ * of that many keys that run concurrently on different readers. A failed
+ * partition is retried on another reader and then on master.
+ */
 public class ReadLoadBalancingKeyValueStore extends BaseManagedKeyValueStore
 		implements KeyValueStore {
 	public static final String IDENTIFIER = "readloadbalancing";
 
+	private Log log = LogFactory.getLog(ReadLoadBalancingKeyValueStore.class);
+
 	protected KeyValueStore master;
 
 	protected List<KeyValueStore> readers;
 
-	protected Random random = new Random();
+	protected List<ReplicaStats> replicas = new CopyOnWriteArrayList<ReplicaStats>();
+
+	protected ReplicaSelectionStrategy selectionStrategy = new PowerOfTwoChoicesStrategy();
+
+	private int errorThreshold = 5;
+
+	private long latencyThreshold = 0;
+
+	private long ejectionTime = 10000l;
+
+	private static final long HEDGE_TOKEN = 1000l;
+
+	private static final long MAX_HEDGE_TOKENS = 10 * HEDGE_TOKEN;
+
+	private double hedgePercentile = 0.0;
+
+	private long minHedgeDelay = 1l;
+
+	private double hedgeBudget = 0.05;
+
+	private int hedgeThreadPoolSize = 8;
+
+	private ExecutorService hedgeExecutor;
+
+	private final LatencyReservoir latencies = new LatencyReservoir(1000);
+
+	private volatile double hedgeDelay = 0.0;
+
+	private volatile long hedgeDelayRecomputeAt = 0;
+
+	private final AtomicLong hedgeTokens = new AtomicLong();
+
+	private final AtomicLong hedges = new AtomicLong();
+
+	private final AtomicLong hedgeWins = new AtomicLong();
+
+	private int bulkPartitionSize = 0;
+
+	private int bulkParallelism = 4;
+
+	private ExecutorService bulkExecutor;
+
+	private final AtomicLong bulkPartitions = new AtomicLong();
+
+	private final AtomicLong partitionRetries = new AtomicLong();
 
 	public ReadLoadBalancingKeyValueStore() {
 		this.readers = new ArrayList<KeyValueStore>();
@@ -34,6 +124,8 @@ public class ReadLoadBalancingKeyValueStore extends BaseManagedKeyValueStore
 			List<KeyValueStore> readers) {
 		this.master = master;
 		this.readers = readers;
+		for (KeyValueStore reader : readers)
+			replicas.add(new ReplicaStats(reader));
 	}
 
 	public String getIdentifier() {
@@ -46,81 +138,225 @@ public class ReadLoadBalancingKeyValueStore extends BaseManagedKeyValueStore
 
 	public void addReader(KeyValueStore reader) {
 		readers.add(reader);
+		ReplicaStats replica = new ReplicaStats(reader);
+		replicas.add(replica);
+		if (status != KeyValueStoreStatus.Offline)
+			registerReplicaMXBean(replica);
 	}
 
 	public void removeReader(KeyValueStore reader) {
 		readers.remove(reader);
+		for (ReplicaStats replica : replicas) {
+			if (replica.getStore() == reader) {
+				replicas.remove(replica);
+				unregisterReplicaMXBean(replica);
+			}
+		}
+	}
+
+	public void setSelectionStrategy(ReplicaSelectionStrategy selectionStrategy) {
+		this.selectionStrategy = selectionStrategy;
+	}
+
+	/**
+	 * Select the strategy by name: "p2c" (the default) or "random".
+	 */
+	@Configurable(name = "selectionStrategy", accepts = Type.StringType)
+	public void setSelectionStrategyName(String name) {
+		if (RandomReplicaSelectionStrategy.IDENTIFIER.equals(name))
+			this.selectionStrategy = new RandomReplicaSelectionStrategy();
+		else if (PowerOfTwoChoicesStrategy.IDENTIFIER.equals(name))
+			this.selectionStrategy = new PowerOfTwoChoicesStrategy();
+		else
+			throw new IllegalArgumentException(
+					"Unknown selection strategy " + name);
+	}
+
+	/**
+	 * Consecutive errors after which a reader is ejected. 0 disables.
+	 */
+	@Configurable(name = "errorThreshold", accepts = Type.IntType)
+	public void setErrorThreshold(int errorThreshold) {
+		this.errorThreshold = errorThreshold;
+	}
+
+	/**
+	 * Average latency in milliseconds above which a reader is ejected. 0 (the
+	 * default) disables.
+	 */
+	@Configurable(name = "latencyThreshold", accepts = Type.LongType)
+	public void setLatencyThreshold(long latencyThreshold) {
+		this.latencyThreshold = latencyThreshold;
+	}
+
+	/**
+	 * Milliseconds an ejected reader waits before being probed.
+	 */
+	@Configurable(name = "ejectionTime", accepts = Type.LongType)
+	public void setEjectionTime(long ejectionTime) {
+		this.ejectionTime = ejectionTime;
+	}
+
+	/**
+	 * Percentile (0-100) of recent reader latency after which a read is
+	 * hedged. 0 (the default) disables hedging.
+	 */
+	@Configurable(name = "hedgePercentile", accepts = Type.DoubleType)
+	public void setHedgePercentile(double hedgePercentile) {
+		this.hedgePercentile = hedgePercentile;
+	}
+
+	/**
+	 * Lower bound in milliseconds on the hedge delay.
+	 */
+	@Configurable(name = "minHedgeDelay", accepts = Type.LongType)
+	public void setMinHedgeDelay(long minHedgeDelay) {
+		this.minHedgeDelay = minHedgeDelay;
+	}
+
+	/**
+	 * Maximum hedged reads as a fraction of all reads, e.g. 0.05 for 5%
+	 * extra load.
+	 */
+	@Configurable(name = "hedgeBudget", accepts = Type.DoubleType)
+	public void setHedgeBudget(double hedgeBudget) {
+		this.hedgeBudget = hedgeBudget;
+	}
+
+	/**
+	 * Threads kept for hedged reads. More are started whenever all are busy,
+	 * so reads never wait in a queue.
+	 */
+	@Configurable(name = "hedgeThreadPoolSize", accepts = Type.IntType)
+	public void setHedgeThreadPoolSize(int hedgeThreadPoolSize) {
+		this.hedgeThreadPoolSize = hedgeThreadPoolSize;
+	}
+
+	/**
+	 * Maximum keys per partition of a bulk read. 0 (the default) sends each
+	 * bulk read to a single reader.
+	 */
+	@Configurable(name = "bulkPartitionSize", accepts = Type.IntType)
+	public void setBulkPartitionSize(int bulkPartitionSize) {
+		this.bulkPartitionSize = bulkPartitionSize;
+	}
+
+	/**
+	 * Maximum partitions of bulk reads in flight at once, across all callers.
+	 */
+	@Configurable(name = "bulkParallelism", accepts = Type.IntType)
+	public void setBulkParallelism(int bulkParallelism) {
+		this.bulkParallelism = bulkParallelism;
+	}
+
+	public long getBulkPartitionCount() {
+		return bulkPartitions.get();
+	}
+
+	public long getPartitionRetryCount() {
+		return partitionRetries.get();
+	}
+
+	public long getHedgeCount() {
+		return hedges.get();
 	}
 
-	public boolean exists(String key) throws KeyValueStoreException,
+	public long getHedgeWinCount() {
+		return hedgeWins.get();
+	}
+
+	/**
+	 * Current hedge delay in milliseconds.
+	 */
+	public double getHedgeDelay() {
+		return Math.max(minHedgeDelay, hedgeDelay);
+	}
+
+	public List<ReplicaStats> getReplicaStats() {
+		return new ArrayList<ReplicaStats>(replicas);
+	}
+
+	public void start() throws IOException {
+		if ((hedgeExecutor == null) && (hedgePercentile > 0))
+			hedgeExecutor = ExecutorUtils
+					.newUnboundedDaemonThreadPool(hedgeThreadPoolSize);
+		if ((bulkExecutor == null) && (bulkPartitionSize > 0))
+			bulkExecutor = ExecutorUtils
+					.newFixedSizeDaemonThreadPool(bulkParallelism);
+		for (ReplicaStats replica : replicas)
+			registerReplicaMXBean(replica);
+		super.start();
+	}
+
+	public void stop() {
+		if (hedgeExecutor != null) {
+			ExecutorUtils.shutdown(hedgeExecutor, TimeUnit.SECONDS, 2l,
+					TimeUnit.SECONDS, 2);
+			hedgeExecutor = null;
+		}
+		if (bulkExecutor != null) {
+			ExecutorUtils.shutdown(bulkExecutor, TimeUnit.SECONDS, 2l,
+					TimeUnit.SECONDS, 2);
+			bulkExecutor = null;
+		}
+		for (ReplicaStats replica : replicas)
+			unregisterReplicaMXBean(replica);
+		super.stop();
+	}
+
+	public Object getMXBean() {
+		return new ReadLoadBalancingImplMXBean(this);
+	}
+
+	public boolean exists(final String key) throws KeyValueStoreException,
 			IOException {
 		assertReadable();
-		boolean exists = false;
-		try {
-			exists = getReader().exists(key);
-		} catch (Exception e) {
-			exists = master.exists(key);
-		}
-		return exists;
+		return read(new ReadOperation<Boolean>() {
+			public Boolean read(KeyValueStore store)
+					throws KeyValueStoreException, IOException {
+				return store.exists(key);
+			}
+		});
 	}
 
-	public Object get(String key) throws KeyValueStoreException, IOException {
+	public Object get(final String key) throws KeyValueStoreException,
+			IOException {
 		assertReadable();
-		Object obj = null;
-		try {
-			obj = getReader().get(key);
-		} catch (Exception e) {
-			obj = master.get(key);
-		}
-		return obj;
+		return read(new ReadOperation<Object>() {
+			public Object read(KeyValueStore store)
+					throws KeyValueStoreException, IOException {
+				return store.get(key);
+			}
+		});
 	}
 
-	public Object get(String key, Transcoder transcoder)
+	public Object get(final String key, final Transcoder transcoder)
 			throws KeyValueStoreException, IOException {
 		assertReadable();
-		Object obj = null;
-		try {
-			obj = getReader().get(key, transcoder);
-		} catch (Exception e) {
-			obj = master.get(key, transcoder);
-		}
-		return obj;
+		return read(new ReadOperation<Object>() {
+			public Object read(KeyValueStore store)
+					throws KeyValueStoreException, IOException {
+				return store.get(key, transcoder);
+			}
+		});
 	}
 
 	public Map<String, Object> getBulk(String... keys)
 			throws KeyValueStoreException, IOException {
 		assertReadable();
-		Map<String, Object> results = null;
-		try {
-			results = getReader().getBulk(keys);
-		} catch (Exception e) {
-			results = master.getBulk(keys);
-		}
-		return results;
+		return readBulk(Arrays.asList(keys), null);
 	}
 
 	public Map<String, Object> getBulk(List<String> keys)
 			throws KeyValueStoreException, IOException {
 		assertReadable();
-		Map<String, Object> results = null;
-		try {
-			results = getReader().getBulk(keys);
-		} catch (Exception e) {
-			results = master.getBulk(keys);
-		}
-		return results;
+		return readBulk(keys, null);
 	}
 
-	public Map<String, Object> getBulk(List<String> keys, Transcoder transcoder)
-			throws KeyValueStoreException, IOException {
+	public Map<String, Object> getBulk(List<String> keys,
+			Transcoder transcoder) throws KeyValueStoreException, IOException {
 		assertReadable();
-		Map<String, Object> results = null;
-		try {
-			results = getReader().getBulk(keys, transcoder);
-		} catch (Exception e) {
-			results = master.getBulk(keys, transcoder);
-		}
-		return results;
+		return readBulk(keys, transcoder);
 	}
 
 	public void set(String key, Object value) throws KeyValueStoreException,
@@ -140,15 +376,362 @@ public class ReadLoadBalancingKeyValueStore extends BaseManagedKeyValueStore
 		master.delete(key);
 	}
 
-	protected KeyValueStore getReader() {
-		if (readers == null)
-			return master;
-		int size = readers.size();
-		if (size == 0)
-			return master;
-		else {
-			int index = random.nextInt(size);
-			return readers.get(index);
+	public void setBulk(Map<String, Object> values)
+			throws KeyValueStoreException, IOException {
+		assertWriteable();
+		master.setBulk(values);
+	}
+
+	public void setBulk(Map<String, Object> values, Transcoder transcoder)
+			throws KeyValueStoreException, IOException {
+		assertWriteable();
+		master.setBulk(values, transcoder);
+	}
+
+	public void deleteBulk(Collection<String> keys)
+			throws KeyValueStoreException, IOException {
+		assertWriteable();
+		master.deleteBulk(keys);
+	}
+
+	private Map<String, Object> readBulk(List<String> keys,
+			Transcoder transcoder) throws KeyValueStoreException, IOException {
+		ExecutorService executor = bulkExecutor;
+		if ((executor == null) || (keys.size() <= bulkPartitionSize))
+			return read(new BulkReadOperation(keys, transcoder));
+
+		List<Future<Map<String, Object>>> futures = new ArrayList<Future<Map<String, Object>>>();
+		try {
+			for (int i = 0; i < keys.size(); i += bulkPartitionSize) {
+				final BulkReadOperation op = new BulkReadOperation(keys
+						.subList(i, Math.min(keys.size(), i + bulkPartitionSize)),
+						transcoder);
+				futures.add(executor.submit(new Callable<Map<String, Object>>() {
+					public Map<String, Object> call() throws Exception {
+						return readPartition(op);
+					}
+				}));
+				bulkPartitions.incrementAndGet();
+			}
+			Map<String, Object> results = new HashMap<String, Object>();
+			for (Future<Map<String, Object>> future : futures)
+				results.putAll(future.get());
+			return results;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new KeyValueStoreException(e);
+		} catch (ExecutionException e) {
+			throw unwrap(e);
+		} finally {
+			for (Future<Map<String, Object>> future : futures)
+				future.cancel(false);
+		}
+	}
+
+	/**
+	 * Read one partition of a bulk read, retrying once on a different reader
+	 * and then on master.
+	 */
+	private Map<String, Object> readPartition(BulkReadOperation op)
+			throws KeyValueStoreException, IOException {
+		Choice choice = selectReplica();
+		if (choice == null)
+			return op.read(master);
+		try {
+			return readReplica(choice, op);
+		} catch (Exception e) {
+			partitionRetries.incrementAndGet();
+		}
+		Choice other = selectOtherReplica(choice.replica);
+		if (other != null) {
+			try {
+				return readReplica(other, op);
+			} catch (Exception e) {
+				// fall through to master
+			}
+		}
+		return op.read(master);
+	}
+
+	/**
+	 * Run a read against a selected reader, recording its outcome, and
+	 * retry against master if it fails.
+	 */
+	protected <V> V read(ReadOperation<V> op) throws KeyValueStoreException,
+			IOException {
+		Choice choice = selectReplica();
+		if (choice == null)
+			return op.read(master);
+		ExecutorService executor = hedgeExecutor;
+		if (executor != null)
+			return readHedged(executor, choice, op);
+		try {
+			return readReplica(choice, op);
+		} catch (Exception e) {
+			return op.read(master);
+		}
+	}
+
+	private <V> V readReplica(Choice choice, ReadOperation<V> op)
+			throws KeyValueStoreException, IOException {
+		ReplicaStats replica = choice.replica;
+		long start = replica.begin();
+		V result;
+		try {
+			result = op.read(replica.getStore());
+		} catch (KeyValueStoreException e) {
+			replica.failed(start);
+			afterFailure(replica, choice.probe);
+			throw e;
+		} catch (IOException e) {
+			replica.failed(start);
+			afterFailure(replica, choice.probe);
+			throw e;
+		} catch (RuntimeException e) {
+			replica.failed(start);
+			afterFailure(replica, choice.probe);
+			throw e;
+		}
+		long elapsed = System.nanoTime() - start;
+		afterSuccess(replica, replica.succeeded(start), choice.probe);
+		latencies.record(elapsed);
+		return result;
+	}
+
+	/**
+	 * Read from the primary replica, sending the same read to a second replica
+	 * (or master) if the primary has not answered within the hedge delay.
+	 */
+	private <V> V readHedged(ExecutorService executor,
+			final Choice primary, final ReadOperation<V> op)
+			throws KeyValueStoreException, IOException {
+		addHedgeTokens();
+		CompletionService<V> completion = new ExecutorCompletionService<V>(
+				executor);
+		List<Future<V>> futures = new ArrayList<Future<V>>(2);
+		boolean hedgedToMaster = false;
+		ExecutionException masterError = null;
+		try {
+			final CountDownLatch started = new CountDownLatch(1);
+			Future<V> first = completion.submit(new Callable<V>() {
+				public V call() throws Exception {
+					started.countDown();
+					return readReplica(primary, op);
+				}
+			});
+			futures.add(first);
+			// the delay runs from when the primary read begins
+			started.await();
+			Future<V> done = completion.poll((long) (getHedgeDelay() * 1000),
+					TimeUnit.MICROSECONDS);
+			if ((done == null) && (tryAcquireHedge())) {
+				final Choice second = selectOtherReplica(primary.replica);
+				hedgedToMaster = (second == null);
+				futures.add(completion.submit(new Callable<V>() {
+					public V call() throws Exception {
+						return (second == null) ? op.read(master)
+								: readReplica(second, op);
+					}
+				}));
+				hedges.incrementAndGet();
+			}
+			int outstanding = futures.size();
+			while (outstanding > 0) {
+				if (done == null)
+					done = completion.take();
+				--outstanding;
+				try {
+					V result = done.get();
+					if (done != first)
+						hedgeWins.incrementAndGet();
+					return result;
+				} catch (ExecutionException e) {
+					if ((hedgedToMaster) && (done != first))
+						masterError = e;
+				}
+				done = null;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new KeyValueStoreException(e);
+		} finally {
+			for (Future<V> future : futures)
+				future.cancel(false);
+		}
+		if (masterError != null)
+			throw unwrap(masterError);
+		return op.read(master);
+	}
+
+	private Choice selectOtherReplica(ReplicaStats primary) {
+		List<ReplicaStats> available = new ArrayList<ReplicaStats>(replicas
+				.size());
+		for (ReplicaStats replica : replicas) {
+			if ((replica != primary) && (!replica.isEjected()))
+				available.add(replica);
+		}
+		if (available.isEmpty())
+			return null;
+		return new Choice(selectionStrategy.select(available), false);
+	}
+
+	private void addHedgeTokens() {
+		long add = (long) (hedgeBudget * HEDGE_TOKEN);
+		long current;
+		do {
+			current = hedgeTokens.get();
+			if (current >= MAX_HEDGE_TOKENS)
+				break;
+		} while (!hedgeTokens.compareAndSet(current, Math.min(
+				MAX_HEDGE_TOKENS, current + add)));
+
+		long count = latencies.getCount();
+		if (count >= hedgeDelayRecomputeAt) {
+			hedgeDelayRecomputeAt = count + 100;
+			hedgeDelay = latencies.getPercentile(hedgePercentile);
+		}
+	}
+
+	private boolean tryAcquireHedge() {
+		long current;
+		do {
+			current = hedgeTokens.get();
+			if (current < HEDGE_TOKEN)
+				return false;
+		} while (!hedgeTokens.compareAndSet(current, current - HEDGE_TOKEN));
+		return true;
+	}
+
+	private static KeyValueStoreException unwrap(ExecutionException e)
+			throws IOException {
+		Throwable cause = e.getCause();
+		if (cause instanceof KeyValueStoreException)
+			return (KeyValueStoreException) cause;
+		if (cause instanceof IOException)
+			throw (IOException) cause;
+		if (cause instanceof RuntimeException)
+			throw (RuntimeException) cause;
+		return new KeyValueStoreException(cause);
+	}
+
+	/**
+	 * Choose a reader, or return null to read from master. An ejected reader
+	 * due for a probe is chosen ahead of the strategy.
+	 */
+	protected Choice selectReplica() {
+		List<ReplicaStats> all = replicas;
+		if (all.isEmpty())
+			return null;
+		long now = System.currentTimeMillis();
+		List<ReplicaStats> available = new ArrayList<ReplicaStats>(all.size());
+		for (ReplicaStats replica : all) {
+			if (!replica.isEjected())
+				available.add(replica);
+			else if (replica.tryProbe(now))
+				return new Choice(replica, true);
+		}
+		if (available.isEmpty())
+			return null;
+		return new Choice(selectionStrategy.select(available), false);
+	}
+
+	protected void afterSuccess(ReplicaStats replica, double latency,
+			boolean probe) {
+		if (probe) {
+			if ((latencyThreshold <= 0) || (latency <= latencyThreshold)) {
+				replica.reinstate(latency);
+				log.info("Reinstating reader " + replica.getIdentifier());
+			} else
+				replica.eject(ejectionTime);
+		} else if (replica.isEjected()) {
+			// a read sent before the ejection; only the probe reinstates
+		} else if ((latencyThreshold > 0)
+				&& (replica.getLatencyEwma() > latencyThreshold))
+			eject(replica, "average latency " + replica.getLatencyEwma()
+					+ "ms");
+	}
+
+	protected void afterFailure(ReplicaStats replica, boolean probe) {
+		if (probe)
+			replica.eject(ejectionTime);
+		else if (replica.isEjected())
+			return;
+		else if ((errorThreshold > 0)
+				&& (replica.getConsecutiveErrorCount() >= errorThreshold))
+			eject(replica, replica.getConsecutiveErrorCount()
+					+ " consecutive errors");
+	}
+
+	private void eject(ReplicaStats replica, String reason) {
+		log.warn("Ejecting reader " + replica.getIdentifier() + " for "
+				+ ejectionTime + "ms: " + reason);
+		replica.eject(ejectionTime);
+	}
+
+	private String getReplicaMXBeanObjectName(ReplicaStats replica) {
+		return getMXBeanObjectName() + ",replica="
+				+ System.identityHashCode(replica.getStore());
+	}
+
+	private void registerReplicaMXBean(ReplicaStats replica) {
+		MBeanServer mbeanServer = JMXMbeanServerFactory.getMBeanServer();
+		try {
+			ObjectName objectName = new ObjectName(
+					getReplicaMXBeanObjectName(replica));
+			if (mbeanServer.isRegistered(objectName))
+				mbeanServer.unregisterMBean(objectName);
+			mbeanServer.registerMBean(replica, objectName);
+		} catch (Exception e) {
+			log.warn("Unable to register replica MXBean", e);
+		}
+	}
+
+	private void unregisterReplicaMXBean(ReplicaStats replica) {
+		MBeanServer mbeanServer = JMXMbeanServerFactory.getMBeanServer();
+		try {
+			ObjectName objectName = new ObjectName(
+					getReplicaMXBeanObjectName(replica));
+			if (mbeanServer.isRegistered(objectName))
+				mbeanServer.unregisterMBean(objectName);
+		} catch (Exception e) {
+			log.warn("Unable to unregister replica MXBean", e);
+		}
+	}
+
+	/**
+	 * A reader chosen for a read, and whether the read is its probe.
+	 */
+	protected static class Choice {
+		protected final ReplicaStats replica;
+
+		protected final boolean probe;
+
+		Choice(ReplicaStats replica, boolean probe) {
+			this.replica = replica;
+			this.probe = probe;
+		}
+	}
+
+	protected static abstract class ReadOperation<V> {
+		public abstract V read(KeyValueStore store)
+				throws KeyValueStoreException, IOException;
+	}
+
+	private static class BulkReadOperation extends
+			ReadOperation<Map<String, Object>> {
+		private List<String> keys;
+
+		private Transcoder transcoder;
+
+		BulkReadOperation(List<String> keys, Transcoder transcoder) {
+			this.keys = keys;
+			this.transcoder = transcoder;
+		}
+
+		public Map<String, Object> read(KeyValueStore store)
+				throws KeyValueStoreException, IOException {
+			return (transcoder == null) ? store.getBulk(keys) : store.getBulk(
+					keys, transcoder);
 		}
 	}
 
@@ -0,0 +1,17 @@
+package com.rubiconproject.oss.kv.backends;
+
+import java.util.List;
+
+/**
+ * Chooses the replica that serves a read in a
+ * ReadLoadBalancingKeyValueStore.
+ */
+public interface ReplicaSelectionStrategy {
+
+	/**
+	 * @param replicas
+	 *            replicas currently accepting reads; never empty
+	 * @return the replica to read from
+	 */
+	public ReplicaStats select(List<ReplicaStats> replicas);
+}
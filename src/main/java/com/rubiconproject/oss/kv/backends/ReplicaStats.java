@@ -0,0 +1,137 @@
+package com.rubiconproject.oss.kv.backends;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.rubiconproject.oss.kv.KeyValueStore;
+import com.rubiconproject.oss.kv.mgmt.ReplicaMXBean;
+
+/**
+ * Latency, load and health of one replica of a
+ * ReadLoadBalancingKeyValueStore. An ejected replica receives no reads until
+ * its ejection time has passed and a single probe read succeeds.
+ */
+public class ReplicaStats implements ReplicaMXBean {
+	private static final double LATENCY_WEIGHT = 0.1;
+
+	private final KeyValueStore store;
+
+	private final AtomicInteger inflight = new AtomicInteger();
+
+	private final AtomicLong requests = new AtomicLong();
+
+	private final AtomicLong errors = new AtomicLong();
+
+	private final AtomicLong ejections = new AtomicLong();
+
+	private final AtomicInteger consecutiveErrors = new AtomicInteger();
+
+	private final AtomicBoolean probing = new AtomicBoolean();
+
+	private volatile double latencyEwma = 0.0;
+
+	private volatile long ejectedUntil = 0;
+
+	public ReplicaStats(KeyValueStore store) {
+		this.store = store;
+	}
+
+	public KeyValueStore getStore() {
+		return store;
+	}
+
+	public String getIdentifier() {
+		return store.getIdentifier();
+	}
+
+	/**
+	 * Moving average of read latency in milliseconds.
+	 */
+	public double getLatencyEwma() {
+		return latencyEwma;
+	}
+
+	public int getInflightCount() {
+		return inflight.get();
+	}
+
+	public long getRequestCount() {
+		return requests.get();
+	}
+
+	public long getErrorCount() {
+		return errors.get();
+	}
+
+	public int getConsecutiveErrorCount() {
+		return consecutiveErrors.get();
+	}
+
+	public long getEjectionCount() {
+		return ejections.get();
+	}
+
+	public boolean isEjected() {
+		return ejectedUntil != 0;
+	}
+
+	/**
+	 * Returns true if this replica is ejected, its ejection time has passed
+	 * and the caller has won the right to send the single probe read.
+	 */
+	public boolean tryProbe(long now) {
+		long until = ejectedUntil;
+		return (until != 0) && (now >= until)
+				&& (probing.compareAndSet(false, true));
+	}
+
+	/**
+	 * Record the start of a read, returning the start time to pass to
+	 * succeeded() or failed().
+	 */
+	public long begin() {
+		inflight.incrementAndGet();
+		requests.incrementAndGet();
+		return System.nanoTime();
+	}
+
+	/**
+	 * Record a successful read and return its latency in milliseconds.
+	 */
+	public double succeeded(long start) {
+		double latency = (System.nanoTime() - start) / 1000000.0;
+		inflight.decrementAndGet();
+		consecutiveErrors.set(0);
+		synchronized (this) {
+			latencyEwma = (latencyEwma == 0.0) ? latency : latencyEwma
+					+ LATENCY_WEIGHT * (latency - latencyEwma);
+		}
+		return latency;
+	}
+
+	public void failed(long start) {
+		inflight.decrementAndGet();
+		errors.incrementAndGet();
+		consecutiveErrors.incrementAndGet();
+	}
+
+	public void eject(long duration) {
+		ejectedUntil = System.currentTimeMillis() + duration;
+		ejections.incrementAndGet();
+		probing.set(false);
+	}
+
+	/**
+	 * Return an ejected replica to service after a successful probe, taking
+	 * the probe's latency as its new average.
+	 */
+	public void reinstate(double latency) {
+		synchronized (this) {
+			latencyEwma = latency;
+		}
+		consecutiveErrors.set(0);
+		ejectedUntil = 0;
+		probing.set(false);
+	}
+}
@@ -1,31 +1,70 @@
 package com.rubiconproject.oss.kv.backends;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import com.rubiconproject.oss.kv.CoalescingAsyncFlushQueue.OverflowPolicy;
 import com.rubiconproject.oss.kv.KeyValueStore;
 import com.rubiconproject.oss.kv.KeyValueStoreException;
+import com.rubiconproject.oss.kv.KeyValueStoreFuture;
+import com.rubiconproject.oss.kv.KeyValueStoreFutureListener;
+import com.rubiconproject.oss.kv.KeyValueStoreUnavailable;
+import com.rubiconproject.oss.kv.annotations.Configurable;
+import com.rubiconproject.oss.kv.annotations.Configurable.Type;
+import com.rubiconproject.oss.kv.backends.ReplicationQueue.ReplicationAck;
 import com.rubiconproject.oss.kv.transcoder.Transcoder;
-import com.rubiconproject.oss.kv.util.DaemonThreadFactory;
-import com.rubiconproject.oss.kv.util.ExecutorUtils;
 
+/**
+ * Writes to master and replicates each write to every replica through a
+ * ReplicationQueue of its own, so a slow or failing replica only backs up
+ * its own queue. Queued writes are applied in batches with setBulk() and
+ * deleteBulk(), and failed writes are retried. Each queue's depth and
+ * oldest pending write age are exposed over JMX.
+ *
+ * writeConsistency sets how many replicas must apply a write before it
+ * returns: "master" (the default) returns once master has it, a number N
+ * waits for N replicas and "all" waits for every replica. When replica acks
+ * are required the write is queued to replicas before it is sent to master,
+ * so the replicas apply it in parallel with master; if the master write then
+ * fails the replicas may still apply it. A replica that fails or does not
+ * answer within writeTimeout milliseconds does not count towards the write.
+ */
 public class ReplicatingKeyValueStore extends ReadLoadBalancingKeyValueStore {
 
 	public static final String IDENTIFIER = "replicating";
 
-	private Log log = LogFactory.getLog(getClass());
+	private Log log = LogFactory.getLog(ReplicatingKeyValueStore.class);
 
-	private ExecutorService executor;
+	private final ConcurrentMap<KeyValueStore, ReplicationQueue> queues = new ConcurrentHashMap<KeyValueStore, ReplicationQueue>();
 
-	private int threadPoolSize = 1;
+	private volatile boolean started = false;
 
-	private boolean iOwnThreadPool = true;
+	private int replicationBatchSize = 100;
+
+	private long replicationFlushInterval = 0l;
+
+	private int replicationQueueSize = 10000;
+
+	private OverflowPolicy replicationOverflowPolicy = OverflowPolicy.DropOldest;
+
+	private long replicationRetryInterval = 100l;
+
+	private long replicationMaxRetryInterval = 5000l;
+
+	private static final int ALL_REPLICAS = -1;
+
+	private int requiredAcks = 0;
+
+	private long writeTimeout = 1000l;
 
 	public ReplicatingKeyValueStore() {
 		super();
@@ -38,138 +77,348 @@ public class ReplicatingKeyValueStore extends ReadLoadBalancingKeyValueStore {
 	public ReplicatingKeyValueStore(KeyValueStore master,
 			List<KeyValueStore> replicas) {
 		super(master, replicas);
-		this.threadPoolSize = replicas.size();
+		for (KeyValueStore replica : replicas)
+			addQueue(replica);
 	}
 
+	/**
+	 * @deprecated each replica now has its own replication thread
+	 */
+	@Deprecated
 	public ReplicatingKeyValueStore(KeyValueStore master,
 			List<KeyValueStore> replicas, int threadPoolSize) {
-		super(master, replicas);
-		this.threadPoolSize = threadPoolSize;
+		this(master, replicas);
 	}
 
+	/**
+	 * @deprecated each replica now has its own replication thread
+	 */
+	@Deprecated
 	public ReplicatingKeyValueStore(KeyValueStore master,
 			List<KeyValueStore> replicas, ExecutorService executor) {
-		super(master, replicas);
-		this.executor = executor;
+		this(master, replicas);
 	}
 
+	/**
+	 * @deprecated each replica now has its own replication thread
+	 */
+	@Deprecated
 	public void setExecutorService(ExecutorService executor) {
-		this.executor = executor;
 	}
 
 	public String getIdentifier() {
 		return IDENTIFIER;
 	}
 
+	/**
+	 * Maximum writes applied to a replica in one batch.
+	 */
+	@Configurable(name = "replicationBatchSize", accepts = Type.IntType)
+	public void setReplicationBatchSize(int replicationBatchSize) {
+		this.replicationBatchSize = replicationBatchSize;
+	}
+
+	/**
+	 * Milliseconds a write may wait for a fuller batch. 0 (the default)
+	 * applies writes as soon as the replica is free.
+	 */
+	@Configurable(name = "replicationFlushInterval", accepts = Type.LongType)
+	public void setReplicationFlushInterval(long replicationFlushInterval) {
+		this.replicationFlushInterval = replicationFlushInterval;
+	}
+
+	/**
+	 * Maximum distinct keys queued per replica.
+	 */
+	@Configurable(name = "replicationQueueSize", accepts = Type.IntType)
+	public void setReplicationQueueSize(int replicationQueueSize) {
+		this.replicationQueueSize = replicationQueueSize;
+	}
+
+	/**
+	 * What to do when a replica's queue is full: Block, DropOldest (the
+	 * default) or Fail. DropOldest lets replicas diverge from master; each
+	 * write it drops is logged and fails its ack. Block stalls every write,
+	 * including master-only ones, while any replica's queue is full.
+	 */
+	@Configurable(name = "replicationOverflowPolicy", accepts = Type.StringType)
+	public void setReplicationOverflowPolicy(String replicationOverflowPolicy) {
+		this.replicationOverflowPolicy = OverflowPolicy
+				.valueOf(replicationOverflowPolicy);
+	}
+
+	@Configurable(name = "replicationRetryInterval", accepts = Type.LongType)
+	public void setReplicationRetryInterval(long replicationRetryInterval) {
+		this.replicationRetryInterval = replicationRetryInterval;
+	}
+
+	@Configurable(name = "replicationMaxRetryInterval", accepts = Type.LongType)
+	public void setReplicationMaxRetryInterval(long replicationMaxRetryInterval) {
+		this.replicationMaxRetryInterval = replicationMaxRetryInterval;
+	}
+
+	/**
+	 * "master", "all" or the number of replicas that must apply each write.
+	 */
+	@Configurable(name = "writeConsistency", accepts = Type.StringType)
+	public void setWriteConsistency(String writeConsistency) {
+		if ("master".equals(writeConsistency))
+			requiredAcks = 0;
+		else if ("all".equals(writeConsistency))
+			requiredAcks = ALL_REPLICAS;
+		else
+			requiredAcks = Integer.parseInt(writeConsistency);
+	}
+
+	/**
+	 * Milliseconds to wait for replica acks.
+	 */
+	@Configurable(name = "writeTimeout", accepts = Type.LongType)
+	public void setWriteTimeout(long writeTimeout) {
+		this.writeTimeout = writeTimeout;
+	}
+
+	public ReplicationQueue getReplicationQueue(KeyValueStore replica) {
+		return queues.get(replica);
+	}
+
 	public void addReplica(KeyValueStore store) {
-		super.addReader(store);
+		addReader(store);
 	}
 
 	public void removeReplica(KeyValueStore store) {
-		super.removeReader(store);
+		removeReader(store);
+	}
+
+	public void addReader(KeyValueStore reader) {
+		super.addReader(reader);
+		ReplicationQueue queue = addQueue(reader);
+		if (started)
+			queue.start();
+	}
+
+	/**
+	 * Remove a replica, first applying any writes still queued for it.
+	 */
+	public void removeReader(KeyValueStore reader) {
+		super.removeReader(reader);
+		ReplicationQueue queue = queues.remove(reader);
+		if ((queue != null) && (started))
+			queue.stop();
 	}
 
 	public void start() throws IOException {
-		if (executor == null) {
-			executor = ExecutorUtils.newFixedSizeDaemonThreadPool(threadPoolSize);
-			iOwnThreadPool = true;
-		} else
-			iOwnThreadPool = false;
+		for (ReplicationQueue queue : queues.values()) {
+			configure(queue);
+			queue.start();
+		}
+		started = true;
 		super.start();
 	}
 
+	/**
+	 * Stop, applying queued writes to replicas before returning.
+	 */
 	public void stop() {
-		if (iOwnThreadPool) {
-			ExecutorUtils.shutdown(executor, TimeUnit.SECONDS, 2l, TimeUnit.SECONDS, 2);
-			executor = null;
-		}
+		started = false;
+		for (ReplicationQueue queue : queues.values())
+			queue.stop();
 		super.stop();
 	}
 
-	public void set(String key, Object value)
+	public void set(final String key, final Object value)
 			throws KeyValueStoreException, IOException {
-		super.set(key, value);
-		replicateWrite(key, value, null);
+		replicate(new ReplicatedWrite(1) {
+			void master() throws KeyValueStoreException, IOException {
+				ReplicatingKeyValueStore.super.set(key, value);
+			}
+
+			void replica(ReplicationQueue queue, ReplicationAck ack)
+					throws KeyValueStoreException {
+				queue.set(key, value, null, ack);
+			}
+		});
 	}
 
-	public void set(String key, Object value, Transcoder transcoder)
+	public void set(final String key, final Object value,
+			final Transcoder transcoder) throws KeyValueStoreException,
+			IOException {
+		replicate(new ReplicatedWrite(1) {
+			void master() throws KeyValueStoreException, IOException {
+				ReplicatingKeyValueStore.super.set(key, value, transcoder);
+			}
+
+			void replica(ReplicationQueue queue, ReplicationAck ack)
+					throws KeyValueStoreException {
+				queue.set(key, value, transcoder, ack);
+			}
+		});
+	}
+
+	public void delete(final String key) throws KeyValueStoreException,
+			IOException {
+		replicate(new ReplicatedWrite(1) {
+			void master() throws KeyValueStoreException, IOException {
+				ReplicatingKeyValueStore.super.delete(key);
+			}
+
+			void replica(ReplicationQueue queue, ReplicationAck ack)
+					throws KeyValueStoreException {
+				queue.delete(key, ack);
+			}
+		});
+	}
+
+	public void setBulk(final Map<String, Object> values)
 			throws KeyValueStoreException, IOException {
-		super.set(key, value, transcoder);
-		replicateWrite(key, value, transcoder);
+		setBulk(values, null);
 	}
 
-	public void delete(String key) throws KeyValueStoreException, IOException {
-		super.delete(key);
-		replicateDelete(key);
+	public void setBulk(final Map<String, Object> values,
+			final Transcoder transcoder) throws KeyValueStoreException,
+			IOException {
+		replicate(new ReplicatedWrite(values.size()) {
+			void master() throws KeyValueStoreException, IOException {
+				if (transcoder == null)
+					ReplicatingKeyValueStore.super.setBulk(values);
+				else
+					ReplicatingKeyValueStore.super.setBulk(values, transcoder);
+			}
+
+			void replica(ReplicationQueue queue, ReplicationAck ack)
+					throws KeyValueStoreException {
+				for (Map.Entry<String, Object> entry : values.entrySet())
+					queue.set(entry.getKey(), entry.getValue(), transcoder,
+							ack);
+			}
+		});
+	}
+
+	public void deleteBulk(final Collection<String> keys)
+			throws KeyValueStoreException, IOException {
+		replicate(new ReplicatedWrite(keys.size()) {
+			void master() throws KeyValueStoreException, IOException {
+				ReplicatingKeyValueStore.super.deleteBulk(keys);
+			}
+
+			void replica(ReplicationQueue queue, ReplicationAck ack)
+					throws KeyValueStoreException {
+				for (String key : keys)
+					queue.delete(key, ack);
+			}
+		});
 	}
 
-	private void replicateWrite(String key, Object value,
-			Transcoder transcoder) {
-		for (KeyValueStore replica : readers) {
-			WriteReplicaRunnable runner = new WriteReplicaRunnable(replica,
-					key, value, transcoder);
-			executor.execute(runner);
+	private void replicate(ReplicatedWrite write)
+			throws KeyValueStoreException, IOException {
+		List<ReplicationQueue> targets = new ArrayList<ReplicationQueue>(
+				queues.values());
+		int required = (requiredAcks == ALL_REPLICAS) ? targets.size()
+				: requiredAcks;
+		if ((required == 0) || (write.writes == 0)) {
+			write.master();
+			for (ReplicationQueue queue : targets)
+				replicate(write, queue, null);
+			return;
+		}
+		if (targets.size() < required)
+			throw new KeyValueStoreUnavailable("Write requires " + required
+					+ " replicas but only " + targets.size() + " are present");
+
+		assertWriteable();
+		AckCollector collector = new AckCollector();
+		for (ReplicationQueue queue : targets) {
+			ReplicationAck ack = new ReplicationAck(write.writes);
+			ack.addListener(collector);
+			replicate(write, queue, ack);
 		}
+		write.master();
+		collector.await(required, targets.size(), writeTimeout);
 	}
 
-	private void replicateDelete(String key) {
-		for (KeyValueStore replica : readers) {
-			DeleteReplicaRunnable runner = new DeleteReplicaRunnable(replica,
-					key);
-			executor.execute(runner);
+	/**
+	 * Queue the write to one replica. A queue stopped meanwhile, by
+	 * removeReplica() or stop(), fails the ack instead of the write.
+	 */
+	private void replicate(ReplicatedWrite write, ReplicationQueue queue,
+			ReplicationAck ack) throws KeyValueStoreException {
+		try {
+			write.replica(queue, ack);
+		} catch (KeyValueStoreUnavailable e) {
+			log.warn("Not replicating to stopped replica "
+					+ queue.getReplica().getIdentifier());
+			if (ack != null)
+				ack.fail(e);
 		}
 	}
 
-	private static class WriteReplicaRunnable implements Runnable {
-		protected static Log log = LogFactory
-				.getLog(WriteReplicaRunnable.class);
+	private ReplicationQueue addQueue(KeyValueStore replica) {
+		ReplicationQueue queue = new ReplicationQueue(replica,
+				getMXBeanObjectName() + ",replication="
+						+ System.identityHashCode(replica));
+		configure(queue);
+		queues.put(replica, queue);
+		return queue;
+	}
 
-		protected KeyValueStore store;
+	private void configure(ReplicationQueue queue) {
+		queue.setBatchSize(replicationBatchSize);
+		queue.setFlushInterval(replicationFlushInterval);
+		queue.setMaxPending(replicationQueueSize);
+		queue.setOverflowPolicy(replicationOverflowPolicy);
+		queue.setRetryInterval(replicationRetryInterval);
+		queue.setMaxRetryInterval(replicationMaxRetryInterval);
+	}
 
-		protected String key;
+	private abstract static class ReplicatedWrite {
+		final int writes;
 
-		protected Object value;
+		ReplicatedWrite(int writes) {
+			this.writes = writes;
+		}
 
-		protected Transcoder transcoder;
+		abstract void master() throws KeyValueStoreException, IOException;
 
-		public WriteReplicaRunnable(KeyValueStore store, String key,
-				Object value, Transcoder transcoder) {
-			this.store = store;
-			this.key = key;
-			this.value = value;
-			this.transcoder = transcoder;
-		}
+		abstract void replica(ReplicationQueue queue, ReplicationAck ack)
+				throws KeyValueStoreException;
+	}
+
+	private static class AckCollector implements
+			KeyValueStoreFutureListener<Boolean> {
+		private int acks = 0;
+
+		private int failures = 0;
 
-		public void run() {
+		public synchronized void completed(KeyValueStoreFuture<Boolean> future) {
 			try {
-				if (transcoder == null)
-					store.set(key, value);
-				else
-					store.set(key, value, transcoder);
-			} catch (KeyValueStoreException e) {
-				log.error("Cannot write to replica thread", e);
-			} catch (IOException e) {
-				log.error("Cannot write to replica thread", e);
-			} finally {
+				future.get();
+				++acks;
+			} catch (Exception e) {
+				++failures;
 			}
-		}
-	}
-
-	private static class DeleteReplicaRunnable extends WriteReplicaRunnable {
-		public DeleteReplicaRunnable(KeyValueStore store, String key) {
-			super(store, key, null, null);
+			notifyAll();
 		}
 
-		public void run() {
+		synchronized void await(int required, int total, long timeout)
+				throws KeyValueStoreException {
+			long deadline = System.currentTimeMillis() + timeout;
 			try {
-				store.delete(key);
-			} catch (KeyValueStoreException e) {
-				log.error("Cannot write to replica thread", e);
-			} catch (IOException e) {
-				log.error("Cannot write to replica thread", e);
-			} finally {
+				while ((acks < required) && (failures <= total - required)) {
+					long remaining = deadline - System.currentTimeMillis();
+					if (remaining <= 0)
+						throw new KeyValueStoreUnavailable("Timed out after "
+								+ timeout + "ms with " + acks + " of "
+								+ required + " replica acks");
+					wait(remaining);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new KeyValueStoreException(e);
 			}
+			if (acks < required)
+				throw new KeyValueStoreUnavailable(failures
+						+ " replica writes failed; " + acks + " of "
+						+ required + " replica acks");
 		}
-
 	}
 }
@@ -0,0 +1,175 @@
+package com.rubiconproject.oss.kv.backends;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.rubiconproject.oss.kv.CoalescingAsyncFlushQueue;
+import com.rubiconproject.oss.kv.DefaultKeyValueStoreFuture;
+import com.rubiconproject.oss.kv.KeyValueStore;
+import com.rubiconproject.oss.kv.KeyValueStoreException;
+import com.rubiconproject.oss.kv.transcoder.Transcoder;
+
+/**
+ * Bounded, batching write pipeline from a ReplicatingKeyValueStore to one of
+ * its replicas. Writes that fail are kept as hints and retried, backing off
+ * from retryInterval up to maxRetryInterval while the replica keeps failing.
+ * Hints still failing when the queue is stopped are dropped and logged.
+ *
+ * A write may carry a ReplicationAck, completed once the write (or a later
+ * write to the same key that replaced it) has been applied, and failed the
+ * first time applying it fails or when the overflow policy drops it.
+ */
+public class ReplicationQueue extends CoalescingAsyncFlushQueue {
+	private String objectName;
+
+	private long retryInterval = 100l;
+
+	private long maxRetryInterval = 5000l;
+
+	private long backoff = 0;
+
+	public ReplicationQueue(KeyValueStore replica, String objectName) {
+		super(replica);
+		this.objectName = objectName;
+	}
+
+	public KeyValueStore getReplica() {
+		return store;
+	}
+
+	public void setRetryInterval(long retryInterval) {
+		this.retryInterval = retryInterval;
+	}
+
+	public void setMaxRetryInterval(long maxRetryInterval) {
+		this.maxRetryInterval = maxRetryInterval;
+	}
+
+	public void set(String key, Object value) throws KeyValueStoreException {
+		set(key, value, null, null);
+	}
+
+	public void set(String key, Object value, Transcoder transcoder)
+			throws KeyValueStoreException {
+		set(key, value, transcoder, null);
+	}
+
+	public void delete(String key) throws KeyValueStoreException {
+		delete(key, null);
+	}
+
+	public void set(String key, Object value, Transcoder transcoder,
+			ReplicationAck ack) throws KeyValueStoreException {
+		enqueue(key, new ReplicationWrite(value, transcoder, false, ack));
+	}
+
+	public void delete(String key, ReplicationAck ack)
+			throws KeyValueStoreException {
+		enqueue(key, new ReplicationWrite(null, null, true, ack));
+	}
+
+	protected void accept(String key, PendingWrite write)
+			throws KeyValueStoreException {
+		PendingWrite existing = pending.get(key);
+		if (existing != null)
+			((ReplicationWrite) write).inherit((ReplicationWrite) existing);
+	}
+
+	protected void flushed(Map<String, PendingWrite> batch,
+			Map<String, PendingWrite> failed) {
+		for (Map.Entry<String, PendingWrite> entry : batch.entrySet()) {
+			ReplicationWrite write = (ReplicationWrite) entry.getValue();
+			if (failed.containsKey(entry.getKey()))
+				write.failAcks(store, "failed");
+			else
+				write.completeAcks();
+		}
+		if (failed.isEmpty()) {
+			backoff = 0;
+			return;
+		}
+		if (!isRunning()) {
+			log.warn("Dropping " + failed.size() + " writes to replica "
+					+ store.getIdentifier() + " on shutdown");
+			return;
+		}
+		for (Map.Entry<String, PendingWrite> entry : failed.entrySet())
+			requeue(entry.getKey(), entry.getValue());
+		backoff = (backoff == 0) ? retryInterval : Math.min(maxRetryInterval,
+				backoff * 2);
+		try {
+			Thread.sleep(backoff);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	protected void dropped(String key, PendingWrite write) {
+		log.warn("Queue for replica " + store.getIdentifier()
+				+ " is full, dropped write to " + key);
+		((ReplicationWrite) write).failAcks(store, "dropped");
+		super.dropped(key, write);
+	}
+
+	protected String getMXBeanObjectName() {
+		return objectName;
+	}
+
+	/**
+	 * Completes once each of the writes it was attached to has been applied
+	 * to the replica.
+	 */
+	public static class ReplicationAck extends
+			DefaultKeyValueStoreFuture<Boolean> {
+		private final AtomicInteger remaining;
+
+		public ReplicationAck(int writes) {
+			this.remaining = new AtomicInteger(writes);
+		}
+
+		void applied() {
+			if (remaining.decrementAndGet() == 0)
+				complete(Boolean.TRUE);
+		}
+	}
+
+	private static class ReplicationWrite extends PendingWrite {
+		private List<ReplicationAck> acks;
+
+		ReplicationWrite(Object value, Transcoder transcoder, boolean delete,
+				ReplicationAck ack) {
+			super(value, transcoder, delete);
+			if (ack != null) {
+				acks = new ArrayList<ReplicationAck>(1);
+				acks.add(ack);
+			}
+		}
+
+		void inherit(ReplicationWrite replaced) {
+			if (replaced.acks == null)
+				return;
+			if (acks == null)
+				acks = new ArrayList<ReplicationAck>(replaced.acks.size());
+			acks.addAll(replaced.acks);
+		}
+
+		void completeAcks() {
+			if (acks == null)
+				return;
+			for (ReplicationAck ack : acks)
+				ack.applied();
+			acks = null;
+		}
+
+		void failAcks(KeyValueStore replica, String reason) {
+			if (acks == null)
+				return;
+			for (ReplicationAck ack : acks)
+				ack.fail(new KeyValueStoreException("Write to replica "
+						+ replica.getIdentifier() + " " + reason));
+			acks = null;
+		}
+	}
+}
@@ -0,0 +1,378 @@
+package com.rubiconproject.oss.kv.backends;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.rubiconproject.oss.kv.util.BloomFilter;
+import com.rubiconproject.oss.kv.util.PositionalReader;
+import com.rubiconproject.oss.kv.util.RateLimiter;
+
+/**
+ * An immutable sorted table of keys and values on disk, as written by
+ * LsmKeyValueStore. Entries are packed into blocks of about blockSize bytes
+ * in key order, followed by an index of the first key of each block, a bloom
+ * filter of every key and a fixed size footer. The index and bloom filter
+ * are held in memory, so a lookup reads at most one block.
+ *
+ * Tables are reference counted: the store holds one reference while the
+ * table is current and readers take another while they use it. A table made
+ * obsolete by compaction is closed and deleted once the last reference is
+ * released.
+ */
+public class SSTable {
+	/**
+	 * Returned by get() for a key deleted in this table.
+	 */
+	public static final byte[] DELETED = new byte[0];
+
+	private static final int MAGIC = 0x4c534d31;
+
+	private static final int FOOTER_SIZE = 40;
+
+	private final File file;
+
+	private final PositionalReader reader;
+
+	private final long minSequence;
+
+	private final long sequence;
+
+	private final int entryCount;
+
+	private final String[] firstKeys;
+
+	private final long[] offsets;
+
+	private final int[] lengths;
+
+	private final BloomFilter bloom;
+
+	private final AtomicInteger references = new AtomicInteger(1);
+
+	private volatile boolean obsolete = false;
+
+	private SSTable(File file, PositionalReader reader, long minSequence,
+			long sequence, int entryCount, String[] firstKeys, long[] offsets,
+			int[] lengths, BloomFilter bloom) {
+		this.file = file;
+		this.reader = reader;
+		this.minSequence = minSequence;
+		this.sequence = sequence;
+		this.entryCount = entryCount;
+		this.firstKeys = firstKeys;
+		this.offsets = offsets;
+		this.lengths = lengths;
+		this.bloom = bloom;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Position of the table in time: a table with a higher sequence holds
+	 * newer entries. A table merged from others covers the range of their
+	 * sequences.
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	public long getMinSequence() {
+		return minSequence;
+	}
+
+	public int getEntryCount() {
+		return entryCount;
+	}
+
+	public long getSize() {
+		return file.length();
+	}
+
+	/**
+	 * The value of the key, DELETED if this table holds its tombstone, or
+	 * null if this table does not hold it.
+	 */
+	public byte[] get(String key, byte[] keyBytes) throws IOException {
+		if (!bloom.mightContain(keyBytes))
+			return null;
+		int block = Arrays.binarySearch(firstKeys, key);
+		if (block < 0)
+			block = -block - 2;
+		if (block < 0)
+			return null;
+		DataInputStream in = readBlock(block);
+		while (in.available() > 0) {
+			int keyLength = in.readInt();
+			byte[] candidate = new byte[keyLength];
+			in.readFully(candidate);
+			int valueLength = in.readInt();
+			int comparison = new String(candidate, "UTF-8").compareTo(key);
+			if (comparison == 0) {
+				if (valueLength < 0)
+					return DELETED;
+				byte[] value = new byte[valueLength];
+				in.readFully(value);
+				return value;
+			}
+			if (comparison > 0)
+				return null;
+			if (valueLength > 0)
+				in.skipBytes(valueLength);
+		}
+		return null;
+	}
+
+	/**
+	 * All entries in key order, tombstones included.
+	 */
+	public Iterator<Entry> scan() {
+		return new Iterator<Entry>() {
+			private int block = 0;
+
+			private DataInputStream in;
+
+			private Entry next = advance();
+
+			public boolean hasNext() {
+				return next != null;
+			}
+
+			public Entry next() {
+				if (next == null)
+					throw new NoSuchElementException();
+				Entry entry = next;
+				next = advance();
+				return entry;
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+
+			private Entry advance() {
+				try {
+					while ((in == null) || (in.available() == 0)) {
+						if (block >= firstKeys.length)
+							return null;
+						in = readBlock(block++);
+					}
+					byte[] key = new byte[in.readInt()];
+					in.readFully(key);
+					int valueLength = in.readInt();
+					byte[] value = null;
+					if (valueLength >= 0) {
+						value = new byte[valueLength];
+						in.readFully(value);
+					}
+					return new Entry(new String(key, "UTF-8"), value);
+				} catch (IOException e) {
+					throw new IllegalStateException("Unable to read " + file, e);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Take a reference, returning false if the table has already been
+	 * closed.
+	 */
+	public boolean acquire() {
+		while (true) {
+			int current = references.get();
+			if (current == 0)
+				return false;
+			if (references.compareAndSet(current, current + 1))
+				return true;
+		}
+	}
+
+	public void release() {
+		if (references.decrementAndGet() == 0) {
+			reader.close();
+			if (obsolete)
+				file.delete();
+		}
+	}
+
+	/**
+	 * Drop the store's reference, deleting the file once no reader holds
+	 * one.
+	 */
+	public void retire() {
+		obsolete = true;
+		release();
+	}
+
+	private DataInputStream readBlock(int block) throws IOException {
+		byte[] bytes = new byte[lengths[block]];
+		reader.readFully(ByteBuffer.wrap(bytes), offsets[block]);
+		return new DataInputStream(new ByteArrayInputStream(bytes));
+	}
+
+	public static SSTable open(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			long length = raf.length();
+			if (length < FOOTER_SIZE)
+				throw new IOException("Not a table: " + file);
+			raf.seek(length - FOOTER_SIZE);
+			long indexOffset = raf.readLong();
+			long bloomOffset = raf.readLong();
+			long minSequence = raf.readLong();
+			long sequence = raf.readLong();
+			int entryCount = raf.readInt();
+			if (raf.readInt() != MAGIC)
+				throw new IOException("Not a table: " + file);
+
+			byte[] meta = new byte[(int) (length - FOOTER_SIZE - indexOffset)];
+			raf.seek(indexOffset);
+			raf.readFully(meta);
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+					meta));
+			int blocks = in.readInt();
+			String[] firstKeys = new String[blocks];
+			long[] offsets = new long[blocks];
+			int[] lengths = new int[blocks];
+			for (int i = 0; i < blocks; ++i) {
+				byte[] key = new byte[in.readInt()];
+				in.readFully(key);
+				firstKeys[i] = new String(key, "UTF-8");
+				offsets[i] = in.readLong();
+				lengths[i] = in.readInt();
+			}
+			in.skipBytes((int) (bloomOffset - indexOffset - (meta.length - in
+					.available())));
+			BloomFilter bloom = BloomFilter.readFrom(in);
+			return new SSTable(file, new PositionalReader(file), minSequence,
+					sequence, entryCount, firstKeys, offsets, lengths, bloom);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Write entries, which must be in key order, to a new table. The file
+	 * appears under its name only once complete. If throttle is given, one
+	 * permit is taken per KB written.
+	 */
+	public static void write(File file, long minSequence, long sequence,
+			Iterator<Entry> entries, int expectedKeys, int blockSize,
+			int bloomBitsPerKey, RateLimiter throttle) throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		FileOutputStream fos = new FileOutputStream(temp);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				fos, 64 * 1024));
+		BloomFilter bloom = new BloomFilter(Math.max(1, expectedKeys),
+				bloomBitsPerKey);
+		ByteArrayOutputStream index = new ByteArrayOutputStream();
+		DataOutputStream indexOut = new DataOutputStream(index);
+		ByteArrayOutputStream block = new ByteArrayOutputStream(blockSize * 2);
+		DataOutputStream blockOut = new DataOutputStream(block);
+		long offset = 0;
+		int blocks = 0;
+		int count = 0;
+		byte[] firstKey = null;
+		try {
+			while (entries.hasNext()) {
+				Entry entry = entries.next();
+				byte[] key = entry.key.getBytes("UTF-8");
+				if (firstKey == null)
+					firstKey = key;
+				blockOut.writeInt(key.length);
+				blockOut.write(key);
+				if (entry.value == null)
+					blockOut.writeInt(-1);
+				else {
+					blockOut.writeInt(entry.value.length);
+					blockOut.write(entry.value);
+				}
+				bloom.add(key);
+				++count;
+				if (block.size() >= blockSize) {
+					writeIndexEntry(indexOut, firstKey, offset, block.size());
+					offset += writeBlock(out, block, throttle);
+					++blocks;
+					firstKey = null;
+				}
+			}
+			if (block.size() > 0) {
+				writeIndexEntry(indexOut, firstKey, offset, block.size());
+				offset += writeBlock(out, block, throttle);
+				++blocks;
+			}
+			long indexOffset = offset;
+			out.writeInt(blocks);
+			out.write(index.toByteArray());
+			long bloomOffset = indexOffset + 4 + index.size();
+			bloom.writeTo(out);
+			out.writeLong(indexOffset);
+			out.writeLong(bloomOffset);
+			out.writeLong(minSequence);
+			out.writeLong(sequence);
+			out.writeInt(count);
+			out.writeInt(MAGIC);
+			out.flush();
+			fos.getFD().sync();
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(file))
+			throw new IOException("Unable to rename " + temp + " to " + file);
+	}
+
+	private static void writeIndexEntry(DataOutputStream index, byte[] key,
+			long offset, int length) throws IOException {
+		index.writeInt(key.length);
+		index.write(key);
+		index.writeLong(offset);
+		index.writeInt(length);
+	}
+
+	private static int writeBlock(DataOutputStream out,
+			ByteArrayOutputStream block, RateLimiter throttle)
+			throws IOException {
+		int length = block.size();
+		if (throttle != null) {
+			try {
+				throttle.tryAcquire(length / 1024 + 1, Long.MAX_VALUE,
+						TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted writing table");
+			}
+		}
+		block.writeTo(out);
+		block.reset();
+		return length;
+	}
+
+	/**
+	 * A key and its value, or null for a tombstone.
+	 */
+	public static class Entry {
+		public final String key;
+
+		public final byte[] value;
+
+		public Entry(String key, byte[] value) {
+			this.key = key;
+			this.value = value;
+		}
+	}
+}
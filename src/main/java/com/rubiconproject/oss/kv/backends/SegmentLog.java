@@ -0,0 +1,852 @@
+package com.rubiconproject.oss.kv.backends;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.rubiconproject.oss.kv.util.PositionalReader;
+
+/**
+ * An append-only log of keyed records in numbered segment files, with an
+ * in-memory index mapping each live key to its record. Each record is
+ * [crc][key length][value length, -1 for a delete][key][value]. Segments are
+ * either memory mapped, as by BitcaskKeyValueStore, or read and written
+ * through channels, as for the packs of FileSystemKeyValueStore.
+ *
+ * Once a segment reaches segmentSize it is sealed: forced, trimmed to its
+ * length and given a hint file listing the records it holds, and a new
+ * segment is started. open() rebuilds the index from the hint files,
+ * reading data files only for a segment that has none (the one being
+ * written when the process stopped), where it stops at the first record
+ * that is cut short or fails its checksum.
+ *
+ * compact() appends the live records of every sealed segment that is at
+ * least compactionThreshold dead to the current segment and removes it.
+ * Deletes are carried forward by compaction until no older segment remains.
+ */
+public class SegmentLog {
+	private static Log log = LogFactory.getLog(SegmentLog.class);
+
+	// crc, key length, value length
+	private static final int HEADER_SIZE = 12;
+
+	// bulk reads merge records this close together into one read
+	private static final int READ_GAP = 4096;
+
+	private static final int MAX_READ = 256 * 1024;
+
+	private final File dir;
+
+	private final String dataSuffix;
+
+	private final String hintSuffix;
+
+	private final int segmentSize;
+
+	private final double compactionThreshold;
+
+	private final boolean mapped;
+
+	private final ConcurrentMap<String, Location> index = new ConcurrentHashMap<String, Location>();
+
+	private final ConcurrentMap<Integer, Segment> segments = new ConcurrentHashMap<Integer, Segment>();
+
+	private final Object writeLock = new Object();
+
+	// guarded by writeLock
+	private Segment active;
+
+	private volatile long compactions = 0;
+
+	private volatile long reclaimedBytes = 0;
+
+	/**
+	 * A log of the data files in dir ending with dataSuffix, each with a
+	 * hint file ending with hintSuffix once sealed.
+	 */
+	public SegmentLog(File dir, String dataSuffix, String hintSuffix,
+			int segmentSize, double compactionThreshold, boolean mapped) {
+		this.dir = dir;
+		this.dataSuffix = dataSuffix;
+		this.hintSuffix = hintSuffix;
+		this.segmentSize = segmentSize;
+		this.compactionThreshold = compactionThreshold;
+		this.mapped = mapped;
+	}
+
+	public void open() throws IOException {
+		if (!dir.exists())
+			dir.mkdirs();
+		synchronized (writeLock) {
+			load();
+			active = createSegment(nextSegmentId(), segmentSize);
+		}
+	}
+
+	/**
+	 * Seal the current segment and forget the index.
+	 */
+	public void close() {
+		synchronized (writeLock) {
+			try {
+				if (active != null)
+					seal(active);
+			} catch (IOException e) {
+				log.error("IOException sealing segment " + active.id + " of "
+						+ dir, e);
+			}
+			active = null;
+			for (Segment segment : segments.values())
+				segment.close();
+			segments.clear();
+			index.clear();
+		}
+	}
+
+	public boolean isOpen() {
+		synchronized (writeLock) {
+			return active != null;
+		}
+	}
+
+	public int getSize() {
+		return index.size();
+	}
+
+	public int getSegmentCount() {
+		return segments.size();
+	}
+
+	/**
+	 * Bytes of records that have been overwritten or deleted and not yet
+	 * compacted.
+	 */
+	public long getDeadBytes() {
+		long total = 0;
+		for (Segment segment : segments.values())
+			total += segment.dead;
+		return total;
+	}
+
+	public long getCompactionCount() {
+		return compactions;
+	}
+
+	public long getReclaimedBytes() {
+		return reclaimedBytes;
+	}
+
+	public boolean contains(String key) {
+		return index.containsKey(key);
+	}
+
+	public Set<String> keys() {
+		return Collections.unmodifiableSet(index.keySet());
+	}
+
+	public byte[] get(String key) throws IOException {
+		while (true) {
+			Location location = index.get(key);
+			if (location == null)
+				return null;
+			Segment segment = segments.get(location.segment);
+			if (segment != null) {
+				try {
+					byte[] value = new byte[location.length];
+					segment.read(ByteBuffer.wrap(value), location.valueOffset());
+					return value;
+				} catch (ClosedChannelException e) {
+					// closed once compaction moved its records
+					if (segments.get(location.segment) == segment)
+						throw e;
+				}
+			}
+			if (location.equals(index.get(key)))
+				return null;
+		}
+	}
+
+	/**
+	 * Read the keys among those given that are in the log, in segment and
+	 * offset order, with nearby records fetched in a single read.
+	 */
+	public Map<String, byte[]> getAll(List<String> keys) throws IOException {
+		List<Map.Entry<String, Location>> found = new ArrayList<Map.Entry<String, Location>>();
+		for (String key : keys) {
+			Location location = index.get(key);
+			if (location != null)
+				found.add(new AbstractMap.SimpleEntry<String, Location>(key,
+						location));
+		}
+		Collections.sort(found, new Comparator<Map.Entry<String, Location>>() {
+			public int compare(Map.Entry<String, Location> a,
+					Map.Entry<String, Location> b) {
+				return a.getValue().compareTo(b.getValue());
+			}
+		});
+		Map<String, byte[]> results = new HashMap<String, byte[]>();
+		int start = 0;
+		while (start < found.size()) {
+			Location first = found.get(start).getValue();
+			long end = first.valueOffset() + first.length;
+			int last = start + 1;
+			while (last < found.size()) {
+				Location next = found.get(last).getValue();
+				if ((next.segment != first.segment)
+						|| (next.offset - end > READ_GAP)
+						|| (next.valueOffset() + next.length - first.offset > MAX_READ))
+					break;
+				end = Math.max(end, next.valueOffset() + next.length);
+				++last;
+			}
+			byte[] span = null;
+			Segment segment = segments.get(first.segment);
+			if (segment != null) {
+				span = new byte[(int) (end - first.offset)];
+				try {
+					segment.read(ByteBuffer.wrap(span), first.offset);
+				} catch (ClosedChannelException e) {
+					// moved by compaction: look each key up again
+					if (segments.get(first.segment) == segment)
+						throw e;
+					span = null;
+				}
+			}
+			for (int i = start; i < last; ++i) {
+				String key = found.get(i).getKey();
+				Location location = found.get(i).getValue();
+				byte[] value;
+				if (span == null)
+					value = get(key);
+				else {
+					value = new byte[location.length];
+					System.arraycopy(span,
+							(int) (location.valueOffset() - first.offset),
+							value, 0, value.length);
+				}
+				if (value != null)
+					results.put(key, value);
+			}
+			start = last;
+		}
+		return results;
+	}
+
+	/**
+	 * Append a value, returning the channel written for the caller to force
+	 * as its fsync policy requires, or null if the log is mapped.
+	 */
+	public FileChannel put(String key, byte[] value) throws IOException {
+		byte[] keyBytes = key.getBytes("UTF-8");
+		synchronized (writeLock) {
+			assertOpen();
+			Location location = append(keyBytes, value);
+			kill(index.put(key, location));
+			return active.channel;
+		}
+	}
+
+	/**
+	 * Append a delete, returning the channel written, or null if the key was
+	 * not in the log or the log is mapped.
+	 */
+	public FileChannel remove(String key) throws IOException {
+		byte[] keyBytes = key.getBytes("UTF-8");
+		synchronized (writeLock) {
+			assertOpen();
+			if (!index.containsKey(key))
+				return null;
+			Location tombstone = append(keyBytes, null);
+			kill(index.remove(key));
+			kill(tombstone);
+			return active.channel;
+		}
+	}
+
+	/**
+	 * Force the current segment to disk.
+	 */
+	public void sync() throws IOException {
+		synchronized (writeLock) {
+			if (active != null)
+				active.force();
+		}
+	}
+
+	/**
+	 * Compact every sealed segment that is at least compactionThreshold dead.
+	 */
+	public void compact() throws IOException {
+		List<Segment> candidates = new ArrayList<Segment>();
+		synchronized (writeLock) {
+			for (Segment segment : segments.values()) {
+				if ((segment != active)
+						&& (segment.dead >= segment.size * compactionThreshold))
+					candidates.add(segment);
+			}
+		}
+		Collections.sort(candidates);
+		for (Segment segment : candidates) {
+			if (!isOpen())
+				return;
+			compact(segment);
+		}
+	}
+
+	/**
+	 * Move the segment's live records to the current segment and remove it.
+	 */
+	private void compact(final Segment segment) throws IOException {
+		final boolean oldest = isOldest(segment);
+		scan(segment, segment.size, false, new RecordVisitor() {
+			public void visit(String key, long offset, int keyLength,
+					int valueLength) throws IOException {
+				synchronized (writeLock) {
+					if (active == null)
+						throw new IOException("Log closed during compaction");
+					if (valueLength < 0) {
+						// an older segment may still hold a value for the key
+						if ((!oldest) && (!index.containsKey(key)))
+							kill(append(key.getBytes("UTF-8"), null));
+						return;
+					}
+					Location location = new Location(segment.id, offset,
+							keyLength, valueLength);
+					if (!location.equals(index.get(key)))
+						return;
+					byte[] value = new byte[valueLength];
+					segment.read(ByteBuffer.wrap(value), location.valueOffset());
+					index.put(key, append(key.getBytes("UTF-8"), value));
+				}
+			}
+		});
+		synchronized (writeLock) {
+			if (active == null)
+				return;
+			// the moved records must be on disk before the originals go
+			active.force();
+			segments.remove(segment.id);
+		}
+		segment.close();
+		segment.hintFile().delete();
+		segment.dataFile().delete();
+		++compactions;
+		reclaimedBytes += segment.size;
+		log.info("Compacted segment " + segment.id + " of " + dir + ", "
+				+ segment.dead + " of " + segment.size + " bytes dead");
+	}
+
+	private boolean isOldest(Segment segment) {
+		for (Integer id : segments.keySet()) {
+			if (id < segment.id)
+				return false;
+		}
+		return true;
+	}
+
+	private void assertOpen() throws IOException {
+		if (active == null)
+			throw new IOException("Log " + dir + " is closed");
+	}
+
+	/**
+	 * Append a record, or a delete if value is null, starting a new segment
+	 * if it does not fit. Called with writeLock held.
+	 */
+	private Location append(byte[] key, byte[] value) throws IOException {
+		int valueLength = (value == null) ? -1 : value.length;
+		int length = HEADER_SIZE + key.length + Math.max(0, valueLength);
+		if (!active.fits(length)) {
+			seal(active);
+			active = createSegment(nextSegmentId(), Math.max(segmentSize,
+					length));
+		}
+		ByteBuffer record = ByteBuffer.allocate(length);
+		record.putInt(0);
+		record.putInt(key.length);
+		record.putInt(valueLength);
+		record.put(key);
+		if (value != null)
+			record.put(value);
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), 4, length - 4);
+		record.putInt(0, (int) crc.getValue());
+		record.flip();
+
+		long offset = active.size;
+		active.write(record, offset);
+		active.size = offset + length;
+		return new Location(active.id, offset, key.length, valueLength);
+	}
+
+	/**
+	 * Count the record as dead in its segment. Called with writeLock held,
+	 * or while loading.
+	 */
+	private void kill(Location location) {
+		if (location == null)
+			return;
+		Segment segment = segments.get(location.segment);
+		if (segment != null)
+			segment.dead += location.recordLength();
+	}
+
+	/**
+	 * Rebuild the index from the segments on disk, oldest first.
+	 */
+	private void load() throws IOException {
+		File[] files = dir.listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.endsWith(dataSuffix) || name.endsWith(".tmp");
+			}
+		});
+		List<Segment> loaded = new ArrayList<Segment>();
+		for (File file : files) {
+			String name = file.getName();
+			if (name.endsWith(".tmp")) {
+				// a hint file that was never finished
+				file.delete();
+				continue;
+			}
+			loaded.add(newSegment(Integer.parseInt(name.substring(0, name
+					.length()
+					- dataSuffix.length()))));
+		}
+		Collections.sort(loaded);
+		for (Segment segment : loaded) {
+			long length = segment.dataFile().length();
+			if (segment.hintFile().exists()) {
+				segment.open(length, true);
+				segments.put(segment.id, segment);
+				segment.size = length;
+				loadHints(segment);
+			} else {
+				// written when the process stopped: recover what is intact
+				segment.open(length, false);
+				segments.put(segment.id, segment);
+				segment.size = scan(segment, length, true,
+						new IndexingVisitor(segment));
+				log.info("Recovered " + segment.size + " of " + length
+						+ " bytes of segment " + segment.id + " of " + dir);
+				seal(segment);
+			}
+		}
+	}
+
+	private void loadHints(Segment segment) throws IOException {
+		IndexingVisitor visitor = new IndexingVisitor(segment);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(segment.hintFile())));
+		try {
+			for (int keyLength = in.readInt(); keyLength >= 0; keyLength = in
+					.readInt()) {
+				byte[] key = new byte[keyLength];
+				in.readFully(key);
+				long offset = in.readLong();
+				int valueLength = in.readInt();
+				visitor.visit(new String(key, "UTF-8"), offset, keyLength,
+						valueLength);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Read the records of a segment up to end, or with verify, up to the
+	 * first record that is cut short or fails its checksum. Returns the
+	 * offset reached.
+	 */
+	private long scan(Segment segment, long end, boolean verify,
+			RecordVisitor visitor) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new SegmentInputStream(segment, end), 64 * 1024));
+		long offset = 0;
+		try {
+			while (offset + HEADER_SIZE <= end) {
+				int crc = in.readInt();
+				int keyLength = in.readInt();
+				int valueLength = in.readInt();
+				long length = ((long) HEADER_SIZE) + keyLength
+						+ Math.max(0, valueLength);
+				if ((keyLength < 0) || (valueLength < -1)
+						|| (offset + length > end))
+					break;
+				byte[] key = new byte[keyLength];
+				in.readFully(key);
+				if (verify) {
+					byte[] value = new byte[Math.max(0, valueLength)];
+					in.readFully(value);
+					CRC32 checksum = new CRC32();
+					checksum.update(ByteBuffer.allocate(8).putInt(keyLength)
+							.putInt(valueLength).array());
+					checksum.update(key);
+					checksum.update(value);
+					if ((int) checksum.getValue() != crc)
+						break;
+				} else if (valueLength > 0)
+					in.skipBytes(valueLength);
+				visitor.visit(new String(key, "UTF-8"), offset, keyLength,
+						valueLength);
+				offset += length;
+			}
+		} catch (EOFException e) {
+			// a torn last record
+		} finally {
+			in.close();
+		}
+		return offset;
+	}
+
+	/**
+	 * Force the segment, trim its file to its length and write its hint
+	 * file, or remove it if it is empty.
+	 */
+	private void seal(Segment segment) throws IOException {
+		if (segment.size == 0) {
+			segments.remove(segment.id);
+			segment.close();
+			segment.dataFile().delete();
+			return;
+		}
+		segment.trim();
+		File temp = new File(dir, segment.name() + hintSuffix + ".tmp");
+		final DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(temp)));
+		try {
+			scan(segment, segment.size, false, new RecordVisitor() {
+				public void visit(String key, long offset, int keyLength,
+						int valueLength) throws IOException {
+					byte[] bytes = key.getBytes("UTF-8");
+					out.writeInt(bytes.length);
+					out.write(bytes);
+					out.writeLong(offset);
+					out.writeInt(valueLength);
+				}
+			});
+			out.writeInt(-1);
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(segment.hintFile()))
+			throw new IOException("Unable to write " + segment.hintFile());
+	}
+
+	private int nextSegmentId() {
+		int id = 0;
+		for (Integer existing : segments.keySet())
+			id = Math.max(id, existing + 1);
+		return id;
+	}
+
+	private Segment createSegment(int id, int capacity) throws IOException {
+		Segment segment = newSegment(id);
+		segment.open(capacity, false);
+		segments.put(id, segment);
+		return segment;
+	}
+
+	private Segment newSegment(int id) {
+		return mapped ? new MappedSegment(id) : new ChannelSegment(id);
+	}
+
+	private interface RecordVisitor {
+		void visit(String key, long offset, int keyLength, int valueLength)
+				throws IOException;
+	}
+
+	private class IndexingVisitor implements RecordVisitor {
+		private final Segment segment;
+
+		IndexingVisitor(Segment segment) {
+			this.segment = segment;
+		}
+
+		public void visit(String key, long offset, int keyLength,
+				int valueLength) {
+			Location location = new Location(segment.id, offset, keyLength,
+					valueLength);
+			if (valueLength < 0) {
+				kill(index.remove(key));
+				kill(location);
+			} else
+				kill(index.put(key, location));
+		}
+	}
+
+	private static class Location implements Comparable<Location> {
+		final int segment;
+
+		final long offset;
+
+		final int keyLength;
+
+		// -1 for a delete
+		final int length;
+
+		Location(int segment, long offset, int keyLength, int length) {
+			this.segment = segment;
+			this.offset = offset;
+			this.keyLength = keyLength;
+			this.length = length;
+		}
+
+		long valueOffset() {
+			return offset + HEADER_SIZE + keyLength;
+		}
+
+		int recordLength() {
+			return HEADER_SIZE + keyLength + Math.max(0, length);
+		}
+
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Location))
+				return false;
+			Location other = (Location) obj;
+			return (segment == other.segment) && (offset == other.offset);
+		}
+
+		public int hashCode() {
+			return segment * 31 + (int) (offset ^ (offset >>> 32));
+		}
+
+		public int compareTo(Location other) {
+			if (segment != other.segment)
+				return (segment < other.segment) ? -1 : 1;
+			return (offset < other.offset) ? -1 : ((offset == other.offset) ? 0
+					: 1);
+		}
+	}
+
+	/**
+	 * Reads a segment from the start up to end.
+	 */
+	private static class SegmentInputStream extends InputStream {
+		private final Segment segment;
+
+		private final long end;
+
+		private long position = 0;
+
+		SegmentInputStream(Segment segment, long end) {
+			this.segment = segment;
+			this.end = end;
+		}
+
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xff);
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (position >= end)
+				return -1;
+			int n = (int) Math.min(len, end - position);
+			segment.read(ByteBuffer.wrap(b, off, n), position);
+			position += n;
+			return n;
+		}
+	}
+
+	private abstract class Segment implements Comparable<Segment> {
+		final int id;
+
+		// the channel appended to, null if mapped
+		volatile FileChannel channel;
+
+		// bytes of records written; guarded by writeLock once loaded
+		volatile long size = 0;
+
+		// bytes of records overwritten, deleted or tombstones
+		volatile long dead = 0;
+
+		Segment(int id) {
+			this.id = id;
+		}
+
+		/**
+		 * Open the data file, creating it with room for capacity bytes of
+		 * records if it is new.
+		 */
+		abstract void open(long capacity, boolean readOnly) throws IOException;
+
+		abstract boolean fits(int length);
+
+		abstract void read(ByteBuffer buffer, long position) throws IOException;
+
+		abstract void write(ByteBuffer buffer, long position)
+				throws IOException;
+
+		abstract void force() throws IOException;
+
+		/**
+		 * Force the segment and cut its file to size.
+		 */
+		abstract void trim() throws IOException;
+
+		abstract void close();
+
+		String name() {
+			return String.format("%1$010d", id);
+		}
+
+		File dataFile() {
+			return new File(dir, name() + dataSuffix);
+		}
+
+		File hintFile() {
+			return new File(dir, name() + hintSuffix);
+		}
+
+		public int compareTo(Segment other) {
+			return (id < other.id) ? -1 : ((id == other.id) ? 0 : 1);
+		}
+	}
+
+	/**
+	 * A segment mapped at a fixed capacity, so a read is a copy out of the
+	 * mapping.
+	 */
+	private class MappedSegment extends Segment {
+		MappedByteBuffer buffer;
+
+		MappedSegment(int id) {
+			super(id);
+		}
+
+		void open(long capacity, boolean readOnly) throws IOException {
+			RandomAccessFile file = new RandomAccessFile(dataFile(),
+					readOnly ? "r" : "rw");
+			try {
+				buffer = file.getChannel().map(
+						readOnly ? FileChannel.MapMode.READ_ONLY
+								: FileChannel.MapMode.READ_WRITE, 0, capacity);
+			} finally {
+				file.close();
+			}
+		}
+
+		boolean fits(int length) {
+			return buffer.capacity() - size >= length;
+		}
+
+		void read(ByteBuffer dst, long position) {
+			ByteBuffer src = buffer.duplicate();
+			src.position((int) position);
+			src.limit((int) position + dst.remaining());
+			dst.put(src);
+		}
+
+		void write(ByteBuffer src, long position) {
+			ByteBuffer dst = buffer.duplicate();
+			dst.position((int) position);
+			dst.put(src);
+		}
+
+		void force() {
+			buffer.force();
+		}
+
+		void trim() throws IOException {
+			buffer.force();
+			RandomAccessFile file = new RandomAccessFile(dataFile(), "rw");
+			try {
+				file.setLength(size);
+			} finally {
+				file.close();
+			}
+		}
+
+		void close() {
+			// the mapping goes when the buffer is collected
+		}
+	}
+
+	/**
+	 * A segment appended to through one channel and read through another, so
+	 * interrupting a reader cannot close it for writers.
+	 */
+	private class ChannelSegment extends Segment {
+		RandomAccessFile file;
+
+		PositionalReader reader;
+
+		ChannelSegment(int id) {
+			super(id);
+		}
+
+		void open(long capacity, boolean readOnly) throws IOException {
+			file = new RandomAccessFile(dataFile(), "rw");
+			channel = file.getChannel();
+			reader = new PositionalReader(dataFile());
+		}
+
+		boolean fits(int length) {
+			return (size == 0) || (size + length <= segmentSize);
+		}
+
+		void read(ByteBuffer buffer, long position) throws IOException {
+			reader.readFully(buffer, position);
+		}
+
+		void write(ByteBuffer buffer, long position) throws IOException {
+			int start = buffer.position();
+			try {
+				while (buffer.hasRemaining())
+					channel.write(buffer, position + buffer.position() - start);
+			} catch (ClosedByInterruptException e) {
+				// the record is left torn past size, to be overwritten
+				file = new RandomAccessFile(dataFile(), "rw");
+				channel = file.getChannel();
+				throw new InterruptedIOException("Interrupted writing "
+						+ dataFile());
+			}
+		}
+
+		void force() throws IOException {
+			channel.force(false);
+		}
+
+		void trim() throws IOException {
+			channel.truncate(size);
+			channel.force(false);
+		}
+
+		void close() {
+			reader.close();
+			try {
+				file.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+}
@@ -0,0 +1,246 @@
+package com.rubiconproject.oss.kv.backends;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A read-only view of a file written by StaticFileWriter, mapped into memory.
+ *
+ * The file is a header, a data region of records ([key length][value
+ * length][UTF-8 key][value]) and an index of one 16 byte entry per key
+ * ([String.hashCode() of the key][key length in chars][record offset])
+ * sorted by hash. A lookup binary searches the index and compares the key
+ * against the mapped bytes in place, so it allocates nothing but the value
+ * it returns.
+ *
+ * Files larger than one mapping are mapped in chunks of chunkSize bytes; the
+ * writer never lets a record or index entry cross a chunk boundary.
+ */
+public class StaticFile {
+	static final int MAGIC = 0x53544b56;
+
+	static final int VERSION = 1;
+
+	static final int HEADER_SIZE = 64;
+
+	static final int INDEX_ENTRY_SIZE = 16;
+
+	static final int DEFAULT_CHUNK_SIZE = 1 << 30;
+
+	private final File file;
+
+	private final long lastModified;
+
+	private final long length;
+
+	private final int entryCount;
+
+	private final long indexOffset;
+
+	private final int chunkShift;
+
+	private final long chunkMask;
+
+	private final MappedByteBuffer[] chunks;
+
+	private StaticFile(File file, long lastModified, long length,
+			int entryCount, long indexOffset, int chunkShift,
+			MappedByteBuffer[] chunks) {
+		this.file = file;
+		this.lastModified = lastModified;
+		this.length = length;
+		this.entryCount = entryCount;
+		this.indexOffset = indexOffset;
+		this.chunkShift = chunkShift;
+		this.chunkMask = (1l << chunkShift) - 1;
+		this.chunks = chunks;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	public long getLength() {
+		return length;
+	}
+
+	public int getEntryCount() {
+		return entryCount;
+	}
+
+	/**
+	 * Touch every page so the first reads after a swap do not fault.
+	 */
+	public void load() {
+		for (MappedByteBuffer chunk : chunks)
+			chunk.load();
+	}
+
+	public byte[] get(String key) {
+		int hash = key.hashCode();
+		int low = 0;
+		int high = entryCount - 1;
+		// first entry with the hash
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			if (getInt(indexEntry(middle)) < hash)
+				low = middle + 1;
+			else
+				high = middle - 1;
+		}
+		for (int i = low; i < entryCount; ++i) {
+			long entry = indexEntry(i);
+			if (getInt(entry) != hash)
+				break;
+			if (getInt(entry + 4) != key.length())
+				continue;
+			long record = getLong(entry + 8);
+			int keyLength = getInt(record);
+			if (keyEquals(record + 8, keyLength, key))
+				return read(record + 8 + keyLength, getInt(record + 4));
+		}
+		return null;
+	}
+
+	/**
+	 * Keys in index order, which is not sorted.
+	 */
+	public Iterator<String> keys() {
+		return new Iterator<String>() {
+			private int next = 0;
+
+			public boolean hasNext() {
+				return next < entryCount;
+			}
+
+			public String next() {
+				if (next >= entryCount)
+					throw new NoSuchElementException();
+				long record = getLong(indexEntry(next++) + 8);
+				byte[] key = read(record + 8, getInt(record));
+				try {
+					return new String(key, "UTF-8");
+				} catch (IOException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	private long indexEntry(int i) {
+		return indexOffset + ((long) i) * INDEX_ENTRY_SIZE;
+	}
+
+	private int getInt(long offset) {
+		return chunks[(int) (offset >>> chunkShift)]
+				.getInt((int) (offset & chunkMask));
+	}
+
+	private long getLong(long offset) {
+		return chunks[(int) (offset >>> chunkShift)]
+				.getLong((int) (offset & chunkMask));
+	}
+
+	private byte[] read(long offset, int length) {
+		MappedByteBuffer chunk = chunks[(int) (offset >>> chunkShift)];
+		int position = (int) (offset & chunkMask);
+		byte[] bytes = new byte[length];
+		// absolute gets leave the shared buffer's position alone
+		for (int i = 0; i < length; ++i)
+			bytes[i] = chunk.get(position + i);
+		return bytes;
+	}
+
+	/**
+	 * Compare UTF-8 bytes in the mapping with the chars of a key without
+	 * decoding them to a String.
+	 */
+	private boolean keyEquals(long offset, int length, String key) {
+		MappedByteBuffer chunk = chunks[(int) (offset >>> chunkShift)];
+		int position = (int) (offset & chunkMask);
+		int end = position + length;
+		int c = 0;
+		int chars = key.length();
+		while (position < end) {
+			int b = chunk.get(position++) & 0xff;
+			int codePoint;
+			if (b < 0x80)
+				codePoint = b;
+			else if (b < 0xe0) {
+				if (position + 1 > end)
+					return false;
+				codePoint = ((b & 0x1f) << 6) | (chunk.get(position++) & 0x3f);
+			} else if (b < 0xf0) {
+				if (position + 2 > end)
+					return false;
+				codePoint = ((b & 0x0f) << 12)
+						| ((chunk.get(position++) & 0x3f) << 6)
+						| (chunk.get(position++) & 0x3f);
+			} else {
+				if (position + 3 > end)
+					return false;
+				codePoint = ((b & 0x07) << 18)
+						| ((chunk.get(position++) & 0x3f) << 12)
+						| ((chunk.get(position++) & 0x3f) << 6)
+						| (chunk.get(position++) & 0x3f);
+			}
+			if (codePoint < 0x10000) {
+				if ((c >= chars) || (key.charAt(c++) != codePoint))
+					return false;
+			} else {
+				if ((c + 1 >= chars)
+						|| (key.charAt(c++) != Character
+								.highSurrogate(codePoint))
+						|| (key.charAt(c++) != Character
+								.lowSurrogate(codePoint)))
+					return false;
+			}
+		}
+		return c == chars;
+	}
+
+	public static StaticFile open(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			long lastModified = file.lastModified();
+			long length = raf.length();
+			if (length < HEADER_SIZE)
+				throw new IOException("Not a static file: " + file);
+			if ((raf.readInt() != MAGIC) || (raf.readInt() != VERSION))
+				throw new IOException("Not a static file: " + file);
+			int entryCount = raf.readInt();
+			int chunkShift = raf.readInt();
+			long indexOffset = raf.readLong();
+			if ((indexOffset + ((long) entryCount) * INDEX_ENTRY_SIZE) != length)
+				throw new IOException("Truncated static file: " + file);
+
+			long chunkSize = 1l << chunkShift;
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer[] chunks = new MappedByteBuffer[(int) ((length
+					+ chunkSize - 1) / chunkSize)];
+			for (int i = 0; i < chunks.length; ++i) {
+				long start = i * chunkSize;
+				chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+						Math.min(chunkSize, length - start));
+			}
+			return new StaticFile(file, lastModified, length, entryCount,
+					indexOffset, chunkShift, chunks);
+		} finally {
+			// the mappings stay valid once the file is closed
+			raf.close();
+		}
+	}
+}
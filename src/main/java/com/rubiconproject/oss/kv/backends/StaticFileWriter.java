@@ -0,0 +1,190 @@
+package com.rubiconproject.oss.kv.backends;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.rubiconproject.oss.kv.KeyValueStoreException;
+import com.rubiconproject.oss.kv.transcoder.ByteArrayTranscoder;
+import com.rubiconproject.oss.kv.transcoder.Transcoder;
+
+/**
+ * Builds a file for StaticKeyValueStore. Records are streamed to disk as
+ * they are added; only 16 bytes of index per key are held in memory until
+ * close(), which sorts and appends the index. The file is written under a
+ * temporary name and renamed into place, so a store polling the path never
+ * sees it half written.
+ *
+ * Keys must be unique.
+ */
+public class StaticFileWriter {
+	private final File file;
+
+	private final File temp;
+
+	private final DataOutputStream out;
+
+	private final int chunkShift;
+
+	private final long chunkSize;
+
+	private long position = StaticFile.HEADER_SIZE;
+
+	private int count = 0;
+
+	// hash << 32 | entry number, sorted at close()
+	private long[] order = new long[1024];
+
+	private int[] lengths = new int[1024];
+
+	private long[] offsets = new long[1024];
+
+	private boolean closed = false;
+
+	public StaticFileWriter(File file) throws IOException {
+		this(file, StaticFile.DEFAULT_CHUNK_SIZE);
+	}
+
+	/**
+	 * @param chunkSize
+	 *            size of each mapping the file is read through, a power of
+	 *            two no smaller than the largest record
+	 */
+	public StaticFileWriter(File file, int chunkSize) throws IOException {
+		if ((Integer.bitCount(chunkSize) != 1)
+				|| (chunkSize < StaticFile.HEADER_SIZE))
+			throw new IllegalArgumentException(
+					"chunkSize must be a power of two of at least "
+							+ StaticFile.HEADER_SIZE);
+		this.file = file;
+		this.temp = new File(file.getPath() + ".tmp");
+		this.chunkShift = Integer.numberOfTrailingZeros(chunkSize);
+		this.chunkSize = chunkSize;
+		this.out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(temp), 64 * 1024));
+		// filled in by close()
+		out.write(new byte[StaticFile.HEADER_SIZE]);
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	public void add(String key, byte[] value) throws IOException {
+		byte[] keyBytes = key.getBytes("UTF-8");
+		long length = 8l + keyBytes.length + value.length;
+		if (length > chunkSize)
+			throw new IOException("Record for " + key + " is larger than "
+					+ chunkSize + " bytes");
+		// start the next chunk rather than cross into it
+		long remaining = chunkSize - (position & (chunkSize - 1));
+		if (length > remaining)
+			pad(remaining);
+
+		if (count == order.length) {
+			order = Arrays.copyOf(order, count * 2);
+			lengths = Arrays.copyOf(lengths, count * 2);
+			offsets = Arrays.copyOf(offsets, count * 2);
+		}
+		order[count] = (((long) key.hashCode()) << 32) | count;
+		lengths[count] = key.length();
+		offsets[count] = position;
+		++count;
+
+		out.writeInt(keyBytes.length);
+		out.writeInt(value.length);
+		out.write(keyBytes);
+		out.write(value);
+		position += length;
+	}
+
+	/**
+	 * Add every key of a store, read in batches through a
+	 * ByteArrayTranscoder so values are copied as stored.
+	 */
+	public void addAll(IterableKeyValueStore source, int batchSize)
+			throws KeyValueStoreException, IOException {
+		Transcoder transcoder = new ByteArrayTranscoder();
+		KeyValueStoreIterator keys = source.iterkeys();
+		try {
+			List<String> batch = new ArrayList<String>(batchSize);
+			for (Iterator<String> iter = keys.iterator(); iter.hasNext();) {
+				batch.add(iter.next());
+				if ((batch.size() < batchSize) && iter.hasNext())
+					continue;
+				Map<String, Object> values = source.getBulk(batch, transcoder);
+				for (Map.Entry<String, Object> entry : values.entrySet())
+					add(entry.getKey(), (byte[]) entry.getValue());
+				batch.clear();
+			}
+		} finally {
+			keys.close();
+		}
+	}
+
+	/**
+	 * Write the index and header and move the file into place.
+	 */
+	public void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		try {
+			// keep index entries inside a chunk
+			long misaligned = position % StaticFile.INDEX_ENTRY_SIZE;
+			if (misaligned != 0)
+				pad(StaticFile.INDEX_ENTRY_SIZE - misaligned);
+			long indexOffset = position;
+			long[] sorted = Arrays.copyOf(order, count);
+			Arrays.sort(sorted);
+			for (long key : sorted) {
+				int n = (int) key;
+				out.writeInt((int) (key >> 32));
+				out.writeInt(lengths[n]);
+				out.writeLong(offsets[n]);
+			}
+			out.flush();
+			RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+			try {
+				raf.writeInt(StaticFile.MAGIC);
+				raf.writeInt(StaticFile.VERSION);
+				raf.writeInt(count);
+				raf.writeInt(chunkShift);
+				raf.writeLong(indexOffset);
+				raf.getFD().sync();
+			} finally {
+				raf.close();
+			}
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(file))
+			throw new IOException("Unable to rename " + temp + " to " + file);
+	}
+
+	/**
+	 * Abandon the file.
+	 */
+	public void abort() {
+		closed = true;
+		try {
+			out.close();
+		} catch (IOException e) {
+		}
+		temp.delete();
+	}
+
+	private void pad(long bytes) throws IOException {
+		for (long i = 0; i < bytes; ++i)
+			out.write(0);
+		position += bytes;
+	}
+}
@@ -0,0 +1,232 @@
+package com.rubiconproject.oss.kv.backends;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.rubiconproject.oss.kv.BaseManagedKeyValueStore;
+import com.rubiconproject.oss.kv.KeyValueStoreException;
+import com.rubiconproject.oss.kv.KeyValueStoreStatus;
+import com.rubiconproject.oss.kv.annotations.Configurable;
+import com.rubiconproject.oss.kv.annotations.Configurable.Type;
+import com.rubiconproject.oss.kv.transcoder.SerializableTranscoder;
+import com.rubiconproject.oss.kv.transcoder.Transcoder;
+import com.rubiconproject.oss.kv.util.DaemonThreadFactory;
+
+/**
+ * A read-only store served from an immutable, memory mapped file built
+ * offline by StaticFileWriter (see tools.StaticFileBuilder). The store is
+ * ReadOnly once started; set() and delete() fail.
+ *
+ * The file can be replaced while serving: swap() maps a new file, touches
+ * all of its pages and only then makes it current, so reads never go to a
+ * cold file. With checkInterval set, the store also polls its path and swaps
+ * whenever a new file has been renamed into place there. Readers still
+ * using the old file finish against its mapping, which is released once
+ * unreferenced.
+ */
+public class StaticKeyValueStore extends BaseManagedKeyValueStore implements
+		IterableKeyValueStore {
+	public static final String IDENTIFIER = "static";
+
+	private static Log log = LogFactory.getLog(StaticKeyValueStore.class);
+
+	private Transcoder defaultTranscoder = new SerializableTranscoder();
+
+	private String file;
+
+	private long checkInterval = 0;
+
+	private boolean preload = true;
+
+	private volatile StaticFile current;
+
+	private ScheduledExecutorService checker;
+
+	private volatile long swaps = 0;
+
+	public StaticKeyValueStore() {
+	}
+
+	public StaticKeyValueStore(String file) {
+		this.file = file;
+	}
+
+	public String getIdentifier() {
+		return IDENTIFIER;
+	}
+
+	@Configurable(name = "file", accepts = Type.StringType)
+	public void setFile(String file) {
+		this.file = file;
+	}
+
+	/**
+	 * Milliseconds between checks for a new file at the path, 0 to swap only
+	 * on swap().
+	 */
+	@Configurable(name = "checkInterval", accepts = Type.LongType)
+	public void setCheckInterval(long checkInterval) {
+		this.checkInterval = checkInterval;
+	}
+
+	/**
+	 * Whether to touch every page of a file before serving from it.
+	 */
+	@Configurable(name = "preload", accepts = Type.BooleanType)
+	public void setPreload(boolean preload) {
+		this.preload = preload;
+	}
+
+	public void start() throws IOException {
+		current = open(new File(file));
+		if (checkInterval > 0) {
+			checker = Executors
+					.newSingleThreadScheduledExecutor(new DaemonThreadFactory());
+			checker.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					try {
+						checkForUpdate();
+					} catch (Exception e) {
+						log.error("Exception checking " + file, e);
+					}
+				}
+			}, checkInterval, checkInterval, TimeUnit.MILLISECONDS);
+		}
+		super.start();
+		setStatus(KeyValueStoreStatus.ReadOnly);
+	}
+
+	public void stop() {
+		super.stop();
+		if (checker != null) {
+			checker.shutdownNow();
+			checker = null;
+		}
+		current = null;
+	}
+
+	public int getSize() {
+		StaticFile serving = current;
+		return (serving == null) ? 0 : serving.getEntryCount();
+	}
+
+	public long getSwapCount() {
+		return swaps;
+	}
+
+	/**
+	 * Start serving from the file at the given path, which becomes the path
+	 * checked for updates.
+	 */
+	public synchronized void swap(String path) throws IOException {
+		StaticFile replacement = open(new File(path));
+		file = path;
+		current = replacement;
+		++swaps;
+		log.info("Serving " + replacement.getEntryCount() + " keys from "
+				+ path);
+	}
+
+	/**
+	 * Swap if the file at the path is not the one being served.
+	 */
+	public synchronized void checkForUpdate() throws IOException {
+		StaticFile serving = current;
+		if (serving == null)
+			return;
+		File candidate = new File(file);
+		if (candidate.exists()
+				&& ((candidate.lastModified() != serving.getLastModified()) || (candidate
+						.length() != serving.getLength())))
+			swap(file);
+	}
+
+	public boolean exists(String key) throws KeyValueStoreException,
+			IOException {
+		assertReadable();
+		return current.get(key) != null;
+	}
+
+	public Object get(String key) throws KeyValueStoreException, IOException {
+		assertReadable();
+		return get(key, defaultTranscoder);
+	}
+
+	public Object get(String key, Transcoder transcoder)
+			throws KeyValueStoreException, IOException {
+		assertReadable();
+		byte[] bytes = current.get(key);
+		return (bytes == null) ? null : transcoder.decode(bytes);
+	}
+
+	public Map<String, Object> getBulk(String... keys)
+			throws KeyValueStoreException, IOException {
+		return getBulk(Arrays.asList(keys));
+	}
+
+	public Map<String, Object> getBulk(List<String> keys)
+			throws KeyValueStoreException, IOException {
+		return getBulk(keys, defaultTranscoder);
+	}
+
+	public Map<String, Object> getBulk(List<String> keys, Transcoder transcoder)
+			throws KeyValueStoreException, IOException {
+		assertReadable();
+		// one file for the whole batch, even across a swap
+		StaticFile serving = current;
+		Map<String, Object> results = new HashMap<String, Object>();
+		for (String key : keys) {
+			byte[] bytes = serving.get(key);
+			if (bytes != null)
+				results.put(key, transcoder.decode(bytes));
+		}
+		return results;
+	}
+
+	public void set(String key, Object value) throws KeyValueStoreException,
+			IOException {
+		set(key, value, defaultTranscoder);
+	}
+
+	public void set(String key, Object value, Transcoder transcoder)
+			throws KeyValueStoreException, IOException {
+		assertWriteable();
+		throw new KeyValueStoreException("Static store is read only");
+	}
+
+	public void delete(String key) throws KeyValueStoreException, IOException {
+		assertWriteable();
+		throw new KeyValueStoreException("Static store is read only");
+	}
+
+	public KeyValueStoreIterator iterkeys() throws KeyValueStoreException {
+		assertReadable();
+		final StaticFile serving = current;
+		return new KeyValueStoreIterator() {
+			public Iterator<String> iterator() {
+				return serving.keys();
+			}
+
+			public void close() {
+			}
+		};
+	}
+
+	private StaticFile open(File path) throws IOException {
+		StaticFile opened = StaticFile.open(path);
+		if (preload)
+			opened.load();
+		return opened;
+	}
+}
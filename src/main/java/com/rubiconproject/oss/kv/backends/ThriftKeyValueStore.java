@@ -2,7 +2,9 @@ package com.rubiconproject.oss.kv.backends;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -12,15 +14,21 @@ import org.apache.commons.logging.LogFactory;
 import org.apache.commons.pool.BasePoolableObjectFactory;
 import org.apache.commons.pool.impl.GenericObjectPool;
 import org.apache.thrift.TException;
+import org.apache.thrift.async.AsyncMethodCallback;
+import org.apache.thrift.async.TAsyncClientManager;
 import org.apache.thrift.protocol.TBinaryProtocol;
 import org.apache.thrift.protocol.TProtocol;
 import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TNonblockingSocket;
 import org.apache.thrift.transport.TSocket;
 import org.apache.thrift.transport.TTransport;
 import org.apache.thrift.transport.TTransportException;
 
+import com.rubiconproject.oss.kv.AsyncKeyValueStore;
 import com.rubiconproject.oss.kv.BaseManagedKeyValueStore;
+import com.rubiconproject.oss.kv.DefaultKeyValueStoreFuture;
 import com.rubiconproject.oss.kv.KeyValueStoreException;
+import com.rubiconproject.oss.kv.KeyValueStoreFuture;
 import com.rubiconproject.oss.kv.ManagedKeyValueStore;
 import com.rubiconproject.oss.kv.annotations.Configurable;
 import com.rubiconproject.oss.kv.annotations.Configurable.Type;
@@ -32,13 +40,17 @@ import com.rubiconproject.oss.kv.transcoder.SerializableTranscoder;
 import com.rubiconproject.oss.kv.transcoder.Transcoder;
 
 public class ThriftKeyValueStore extends BaseManagedKeyValueStore implements
-		ManagedKeyValueStore {
+		ManagedKeyValueStore, AsyncKeyValueStore {
 	public static final String IDENTIFIER = "thrift";
 
 	private Log log = LogFactory.getLog(getClass());
 
 	private GenericObjectPool connectionPool;
 
+	private TAsyncClientManager asyncClientManager;
+
+	private GenericObjectPool asyncConnectionPool;
+
 	private Transcoder defaultTranscoder = new SerializableTranscoder();
 
 	private String host = "localhost";
@@ -118,6 +130,25 @@ public class ThriftKeyValueStore extends BaseManagedKeyValueStore implements
 		super.start();
 	}
 
+	public void stop() {
+		log.trace("stop()");
+		super.stop();
+		synchronized (this) {
+			if (asyncConnectionPool != null) {
+				try {
+					asyncConnectionPool.close();
+				} catch (Exception e) {
+					log.warn("Exception closing async connection pool", e);
+				}
+				asyncConnectionPool = null;
+			}
+			if (asyncClientManager != null) {
+				asyncClientManager.stop();
+				asyncClientManager = null;
+			}
+		}
+	}
+
 	public boolean exists(String key) throws KeyValueStoreException,
 			IOException {
 		log.trace("exists()");
@@ -300,6 +331,301 @@ public class ThriftKeyValueStore extends BaseManagedKeyValueStore implements
 		}
 	}
 
+	public void setBulk(Map<String, Object> values)
+			throws KeyValueStoreException, IOException {
+		setBulk(values, defaultTranscoder);
+	}
+
+	public void setBulk(Map<String, Object> values, Transcoder transcoder)
+			throws KeyValueStoreException, IOException {
+		log.trace("setBulk()");
+		assertWriteable();
+		TConnection tconn = null;
+		try {
+			Map<String, ByteBuffer> buffs = new HashMap<String, ByteBuffer>(
+					values.size());
+			for (Map.Entry<String, Object> entry : values.entrySet()) {
+				byte[] data = transcoder.encode(entry.getValue());
+				buffs.put(entry.getKey(), ByteBuffer.wrap(data));
+			}
+			tconn = getTConnection();
+			tconn.kv.setBulk(buffs);
+		} catch (TTransportException e) {
+			log.error("TTransportException inside setBulk()", e);
+			throw new IOException(e);
+		} catch (KeyValueStoreIOException e) {
+			log.error("KeyValueStoreIOException inside setBulk()", e);
+			throw new IOException(e);
+		} catch (com.rubiconproject.oss.kv.gen.KeyValueStoreException e) {
+			log.error("KeyValueStoreException inside setBulk()", e);
+			throw new KeyValueStoreException(e);
+		} catch (TException e) {
+			log.error("TException inside setBulk()", e);
+			throw new IOException(e);
+		} catch (Exception e) {
+			log.error("Exception inside setBulk()", e);
+			throw new IOException(e);
+		} finally {
+			closeTConnection(tconn);
+		}
+	}
+
+	public void deleteBulk(Collection<String> keys)
+			throws KeyValueStoreException, IOException {
+		log.trace("deleteBulk()");
+		assertWriteable();
+		TConnection tconn = null;
+		try {
+			tconn = getTConnection();
+			tconn.kv.deleteBulk(new ArrayList<String>(keys));
+		} catch (TTransportException e) {
+			log.error("TTransportException inside deleteBulk()", e);
+			throw new IOException(e);
+		} catch (KeyValueStoreIOException e) {
+			log.error("KeyValueStoreIOException inside deleteBulk()", e);
+			throw new IOException(e);
+		} catch (com.rubiconproject.oss.kv.gen.KeyValueStoreException e) {
+			log.error("KeyValueStoreException inside deleteBulk()", e);
+			throw new KeyValueStoreException(e);
+		} catch (TException e) {
+			log.error("TException inside deleteBulk()", e);
+			throw new IOException(e);
+		} catch (Exception e) {
+			log.error("Exception inside deleteBulk()", e);
+			throw new IOException(e);
+		} finally {
+			closeTConnection(tconn);
+		}
+	}
+
+	/*
+	 * Native AsyncKeyValueStore implementation using the generated thrift
+	 * AsyncClient. Calls are multiplexed over non-blocking sockets by a single
+	 * selector thread; each in-flight call holds one pooled async connection
+	 * until its callback fires.
+	 */
+
+	public KeyValueStoreFuture<Object> getAsync(String key) {
+		return getAsync(key, defaultTranscoder);
+	}
+
+	public KeyValueStoreFuture<Object> getAsync(String key,
+			final Transcoder transcoder) {
+		log.trace("getAsync()");
+		DefaultKeyValueStoreFuture<Object> future = new DefaultKeyValueStoreFuture<Object>();
+		KeyValueService.AsyncClient client = null;
+		try {
+			assertReadable();
+			client = getAsyncClient();
+			client.getValue(key,
+					new AsyncCallback<KeyValueService.AsyncClient.getValue_call, Object>(
+							client, future) {
+						protected Object getResult(
+								KeyValueService.AsyncClient.getValue_call call)
+								throws Exception {
+							GetResult result = call.getResult();
+							if (!result.isExists())
+								return null;
+							return transcoder.decode(result.getData());
+						}
+					});
+		} catch (Exception e) {
+			log.error("Exception inside getAsync()", e);
+			invalidateAsyncClient(client);
+			future.fail(translateException(e));
+		}
+		return future;
+	}
+
+	public KeyValueStoreFuture<Map<String, Object>> getBulkAsync(
+			List<String> keys) {
+		return getBulkAsync(keys, defaultTranscoder);
+	}
+
+	public KeyValueStoreFuture<Map<String, Object>> getBulkAsync(
+			List<String> keys, final Transcoder transcoder) {
+		log.trace("getBulkAsync()");
+		DefaultKeyValueStoreFuture<Map<String, Object>> future = new DefaultKeyValueStoreFuture<Map<String, Object>>();
+		KeyValueService.AsyncClient client = null;
+		try {
+			assertReadable();
+			client = getAsyncClient();
+			client.getBulk(keys,
+					new AsyncCallback<KeyValueService.AsyncClient.getBulk_call, Map<String, Object>>(
+							client, future) {
+						protected Map<String, Object> getResult(
+								KeyValueService.AsyncClient.getBulk_call call)
+								throws Exception {
+							Map<String, GetResult> results = call.getResult();
+							Map<String, Object> retval = new HashMap<String, Object>(
+									results.size());
+							for (Map.Entry<String, GetResult> entry : results
+									.entrySet()) {
+								byte[] data = entry.getValue().getData();
+								retval.put(entry.getKey(), transcoder
+										.decode(data));
+							}
+							return retval;
+						}
+					});
+		} catch (Exception e) {
+			log.error("Exception inside getBulkAsync()", e);
+			invalidateAsyncClient(client);
+			future.fail(translateException(e));
+		}
+		return future;
+	}
+
+	public KeyValueStoreFuture<Void> setAsync(String key, Object value) {
+		return setAsync(key, value, defaultTranscoder);
+	}
+
+	public KeyValueStoreFuture<Void> setAsync(String key, Object value,
+			Transcoder transcoder) {
+		log.trace("setAsync()");
+		DefaultKeyValueStoreFuture<Void> future = new DefaultKeyValueStoreFuture<Void>();
+		KeyValueService.AsyncClient client = null;
+		try {
+			assertWriteable();
+			byte[] data = transcoder.encode(value);
+			client = getAsyncClient();
+			client.setValue(key, ByteBuffer.wrap(data),
+					new AsyncCallback<KeyValueService.AsyncClient.setValue_call, Void>(
+							client, future) {
+						protected Void getResult(
+								KeyValueService.AsyncClient.setValue_call call)
+								throws Exception {
+							call.getResult();
+							return null;
+						}
+					});
+		} catch (Exception e) {
+			log.error("Exception inside setAsync()", e);
+			invalidateAsyncClient(client);
+			future.fail(translateException(e));
+		}
+		return future;
+	}
+
+	public KeyValueStoreFuture<Void> deleteAsync(String key) {
+		log.trace("deleteAsync()");
+		DefaultKeyValueStoreFuture<Void> future = new DefaultKeyValueStoreFuture<Void>();
+		KeyValueService.AsyncClient client = null;
+		try {
+			assertWriteable();
+			client = getAsyncClient();
+			client.deleteValue(key,
+					new AsyncCallback<KeyValueService.AsyncClient.deleteValue_call, Void>(
+							client, future) {
+						protected Void getResult(
+								KeyValueService.AsyncClient.deleteValue_call call)
+								throws Exception {
+							call.getResult();
+							return null;
+						}
+					});
+		} catch (Exception e) {
+			log.error("Exception inside deleteAsync()", e);
+			invalidateAsyncClient(client);
+			future.fail(translateException(e));
+		}
+		return future;
+	}
+
+	private KeyValueService.AsyncClient getAsyncClient() throws Exception {
+		GenericObjectPool pool;
+		synchronized (this) {
+			if (asyncConnectionPool == null) {
+				asyncClientManager = new TAsyncClientManager();
+				asyncConnectionPool = new GenericObjectPool(
+						new TAsyncConnectionFactory(host, port,
+								asyncClientManager), maxActive,
+						GenericObjectPool.WHEN_EXHAUSTED_FAIL, maxWait, maxIdle);
+				asyncConnectionPool.setLifo(lifo);
+			}
+			pool = asyncConnectionPool;
+		}
+		return (KeyValueService.AsyncClient) pool.borrowObject();
+	}
+
+	private void releaseAsyncClient(KeyValueService.AsyncClient client) {
+		GenericObjectPool pool = asyncConnectionPool;
+		if (pool == null)
+			return;
+		try {
+			if (client.hasError())
+				pool.invalidateObject(client);
+			else
+				pool.returnObject(client);
+		} catch (Exception e) {
+			log.warn("Exception returning async client to pool", e);
+		}
+	}
+
+	private void invalidateAsyncClient(KeyValueService.AsyncClient client) {
+		GenericObjectPool pool = asyncConnectionPool;
+		if ((client == null) || (pool == null))
+			return;
+		try {
+			pool.invalidateObject(client);
+		} catch (Exception e) {
+			log.warn("Exception invalidating async client", e);
+		}
+	}
+
+	private Exception translateException(Exception e) {
+		if (e instanceof KeyValueStoreException)
+			return e;
+		else if (e instanceof com.rubiconproject.oss.kv.gen.KeyValueStoreException)
+			return new KeyValueStoreException(e);
+		else if (e instanceof IOException)
+			return e;
+		else
+			return new IOException(e);
+	}
+
+	/**
+	 * Completes a DefaultKeyValueStoreFuture from a thrift async callback and
+	 * hands the connection back to the pool.
+	 */
+	private abstract class AsyncCallback<C, V> implements
+			AsyncMethodCallback<C> {
+		private KeyValueService.AsyncClient client;
+
+		private DefaultKeyValueStoreFuture<V> future;
+
+		public AsyncCallback(KeyValueService.AsyncClient client,
+				DefaultKeyValueStoreFuture<V> future) {
+			this.client = client;
+			this.future = future;
+		}
+
+		protected abstract V getResult(C call) throws Exception;
+
+		public void onComplete(C call) {
+			V value = null;
+			Exception error = null;
+			try {
+				value = getResult(call);
+			} catch (Exception e) {
+				error = e;
+			}
+			releaseAsyncClient(client);
+			if (error == null)
+				future.complete(value);
+			else {
+				log.error("Exception inside async call", error);
+				future.fail(translateException(error));
+			}
+		}
+
+		public void onError(Exception e) {
+			log.error("Exception inside async call", e);
+			invalidateAsyncClient(client);
+			future.fail(translateException(e));
+		}
+	}
+
 	private TConnection getTConnection() throws Exception {
 		log.trace("connect()");
 		TConnection tc = (TConnection) connectionPool.borrowObject();
@@ -348,6 +674,32 @@ public class ThriftKeyValueStore extends BaseManagedKeyValueStore implements
 
 	}
 
+	private static class TAsyncConnectionFactory extends
+			BasePoolableObjectFactory {
+		private String server;
+
+		private int port;
+
+		private TAsyncClientManager clientManager;
+
+		public TAsyncConnectionFactory(String server, int port,
+				TAsyncClientManager clientManager) {
+			this.server = server;
+			this.port = port;
+			this.clientManager = clientManager;
+		}
+
+		public Object makeObject() throws Exception {
+			TNonblockingSocket socket = new TNonblockingSocket(server, port);
+			return new KeyValueService.AsyncClient(
+					new TBinaryProtocol.Factory(), clientManager, socket);
+		}
+
+		public boolean validateObject(Object obj) {
+			return !((KeyValueService.AsyncClient) obj).hasError();
+		}
+	}
+
 	private static class TConnection {
 		public TTransport transport;
 
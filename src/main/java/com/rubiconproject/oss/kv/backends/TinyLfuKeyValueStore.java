@@ -0,0 +1,480 @@
+package com.rubiconproject.oss.kv.backends;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.rubiconproject.oss.kv.BaseManagedKeyValueStore;
+import com.rubiconproject.oss.kv.KeyValueStore;
+import com.rubiconproject.oss.kv.KeyValueStoreException;
+import com.rubiconproject.oss.kv.annotations.Configurable;
+import com.rubiconproject.oss.kv.annotations.Configurable.Type;
+import com.rubiconproject.oss.kv.mgmt.TinyLfuImplMXBean;
+import com.rubiconproject.oss.kv.transcoder.Transcoder;
+import com.rubiconproject.oss.kv.util.FrequencySketch;
+
+/**
+ * A bounded, thread-safe in-memory cache using W-TinyLFU eviction. Keys are
+ * spread over independently locked stripes, each an LRU admission window
+ * (1% of its weight) in front of a segmented LRU main area split into
+ * probation and protected (80%) segments. An entry leaving the window
+ * enters the main area only if a frequency sketch says it has been used
+ * more often than the entry it would evict.
+ *
+ * Capacity is maxWeight as measured by the weigher: entry count by default,
+ * or approximate bytes with weigher=bytes. Values are stored as given, so
+ * transcoders are ignored.
+ */
+public class TinyLfuKeyValueStore extends BaseManagedKeyValueStore implements
+		KeyValueStore {
+	public static final String IDENTIFIER = "tinylfu";
+
+	private long maxWeight = 10000l;
+
+	private int stripeCount = 16;
+
+	private Weigher weigher = new EntryCountWeigher();
+
+	private volatile Stripe[] stripes;
+
+	public TinyLfuKeyValueStore() {
+	}
+
+	public TinyLfuKeyValueStore(long maxWeight) {
+		this.maxWeight = maxWeight;
+	}
+
+	public String getIdentifier() {
+		return IDENTIFIER;
+	}
+
+	@Configurable(name = "maxWeight", accepts = Type.LongType)
+	public void setMaxWeight(long maxWeight) {
+		this.maxWeight = maxWeight;
+	}
+
+	/**
+	 * Number of independently locked stripes, rounded up to a power of two.
+	 */
+	@Configurable(name = "stripes", accepts = Type.IntType)
+	public void setStripes(int stripes) {
+		int count = 1;
+		while (count < stripes)
+			count <<= 1;
+		this.stripeCount = count;
+	}
+
+	public void setWeigher(Weigher weigher) {
+		this.weigher = weigher;
+	}
+
+	/**
+	 * "entries" (the default) or "bytes".
+	 */
+	@Configurable(name = "weigher", accepts = Type.StringType)
+	public void setWeigherName(String name) {
+		if ("entries".equals(name))
+			this.weigher = new EntryCountWeigher();
+		else if ("bytes".equals(name))
+			this.weigher = new ApproximateSizeWeigher();
+		else
+			throw new IllegalArgumentException("Unknown weigher " + name);
+	}
+
+	public void start() throws IOException {
+		Stripe[] stripes = new Stripe[stripeCount];
+		for (int i = 0; i < stripes.length; ++i)
+			stripes[i] = new Stripe(Math.max(1, maxWeight / stripeCount));
+		this.stripes = stripes;
+		super.start();
+	}
+
+	public void stop() {
+		super.stop();
+	}
+
+	public Object getMXBean() {
+		return new TinyLfuImplMXBean(this);
+	}
+
+	public long getMaxWeight() {
+		return maxWeight;
+	}
+
+	public long getHitCount() {
+		long total = 0;
+		for (Stripe stripe : stripes())
+			total += stripe.hits;
+		return total;
+	}
+
+	public long getMissCount() {
+		long total = 0;
+		for (Stripe stripe : stripes())
+			total += stripe.misses;
+		return total;
+	}
+
+	public double getHitRate() {
+		long hits = getHitCount();
+		long total = hits + getMissCount();
+		return (total == 0) ? 0.0 : ((double) hits) / total;
+	}
+
+	public long getEvictionCount() {
+		long total = 0;
+		for (Stripe stripe : stripes())
+			total += stripe.evictions;
+		return total;
+	}
+
+	public long getEvictedWeight() {
+		long total = 0;
+		for (Stripe stripe : stripes())
+			total += stripe.evictedWeight;
+		return total;
+	}
+
+	public long getSize() {
+		long total = 0;
+		for (Stripe stripe : stripes())
+			total += stripe.size();
+		return total;
+	}
+
+	public long getWeightedSize() {
+		long total = 0;
+		for (Stripe stripe : stripes())
+			total += stripe.weight();
+		return total;
+	}
+
+	public boolean exists(String key) throws KeyValueStoreException,
+			IOException {
+		assertReadable();
+		return stripe(key).contains(key);
+	}
+
+	public Object get(String key) throws KeyValueStoreException, IOException {
+		assertReadable();
+		return stripe(key).get(key);
+	}
+
+	public Object get(String key, Transcoder transcoder)
+			throws KeyValueStoreException, IOException {
+		return get(key);
+	}
+
+	public Map<String, Object> getBulk(String... keys)
+			throws KeyValueStoreException, IOException {
+		return getBulk(Arrays.asList(keys));
+	}
+
+	public Map<String, Object> getBulk(List<String> keys)
+			throws KeyValueStoreException, IOException {
+		assertReadable();
+		Map<String, Object> results = new HashMap<String, Object>();
+		for (String key : keys) {
+			Object value = stripe(key).get(key);
+			if (value != null)
+				results.put(key, value);
+		}
+		return results;
+	}
+
+	public Map<String, Object> getBulk(List<String> keys, Transcoder transcoder)
+			throws KeyValueStoreException, IOException {
+		return getBulk(keys);
+	}
+
+	public void set(String key, Object value) throws KeyValueStoreException,
+			IOException {
+		assertWriteable();
+		stripe(key).put(key, value, Math.max(1, weigher.weigh(key, value)));
+	}
+
+	public void set(String key, Object value, Transcoder transcoder)
+			throws KeyValueStoreException, IOException {
+		set(key, value);
+	}
+
+	public void delete(String key) throws KeyValueStoreException, IOException {
+		assertWriteable();
+		stripe(key).remove(key);
+	}
+
+	private Stripe[] stripes() {
+		Stripe[] stripes = this.stripes;
+		return (stripes == null) ? new Stripe[0] : stripes;
+	}
+
+	private Stripe stripe(String key) {
+		Stripe[] stripes = this.stripes;
+		return stripes[spread(key.hashCode()) & (stripes.length - 1)];
+	}
+
+	private static int spread(int h) {
+		h ^= (h >>> 20) ^ (h >>> 12);
+		return h ^ (h >>> 7) ^ (h >>> 4);
+	}
+
+	private static final int WINDOW = 0;
+
+	private static final int PROBATION = 1;
+
+	private static final int PROTECTED = 2;
+
+	private static class Node {
+		final String key;
+
+		final int hash;
+
+		Object value;
+
+		int weight;
+
+		int queue;
+
+		Node prev;
+
+		Node next;
+
+		Node(String key, int hash) {
+			this.key = key;
+			this.hash = hash;
+		}
+	}
+
+	/**
+	 * Circular doubly linked list in LRU order, tracking total weight.
+	 */
+	private static class AccessQueue {
+		final Node head = new Node(null, 0);
+
+		long weight = 0;
+
+		AccessQueue() {
+			head.prev = head;
+			head.next = head;
+		}
+
+		Node first() {
+			return (head.next == head) ? null : head.next;
+		}
+
+		void addLast(Node node) {
+			node.prev = head.prev;
+			node.next = head;
+			head.prev.next = node;
+			head.prev = node;
+			weight += node.weight;
+		}
+
+		void remove(Node node) {
+			node.prev.next = node.next;
+			node.next.prev = node.prev;
+			node.prev = null;
+			node.next = null;
+			weight -= node.weight;
+		}
+
+		void moveToLast(Node node) {
+			remove(node);
+			addLast(node);
+		}
+	}
+
+	private static class Stripe {
+		final ReentrantLock lock = new ReentrantLock();
+
+		final Map<String, Node> map = new HashMap<String, Node>();
+
+		final AccessQueue[] queues = { new AccessQueue(), new AccessQueue(),
+				new AccessQueue() };
+
+		final FrequencySketch sketch;
+
+		final long maxWeight;
+
+		final long windowMax;
+
+		final long protectedMax;
+
+		// guarded by lock; read without it for statistics
+		volatile long hits, misses, evictions, evictedWeight;
+
+		Stripe(long maxWeight) {
+			this.maxWeight = maxWeight;
+			this.windowMax = Math.max(1, maxWeight / 100);
+			this.protectedMax = (maxWeight - windowMax) * 8 / 10;
+			this.sketch = new FrequencySketch((int) Math.min(1 << 20,
+					maxWeight));
+		}
+
+		int size() {
+			lock.lock();
+			try {
+				return map.size();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		long weight() {
+			lock.lock();
+			try {
+				return queues[WINDOW].weight + mainWeight();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		boolean contains(String key) {
+			lock.lock();
+			try {
+				return map.containsKey(key);
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		Object get(String key) {
+			int hash = spread(key.hashCode());
+			lock.lock();
+			try {
+				sketch.increment(hash);
+				Node node = map.get(key);
+				if (node == null) {
+					++misses;
+					return null;
+				}
+				++hits;
+				onAccess(node);
+				return node.value;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		void put(String key, Object value, int weight) {
+			int hash = spread(key.hashCode());
+			lock.lock();
+			try {
+				sketch.increment(hash);
+				Node node = map.get(key);
+				if (node != null) {
+					AccessQueue queue = queues[node.queue];
+					queue.weight += weight - node.weight;
+					node.weight = weight;
+					node.value = value;
+					onAccess(node);
+				} else {
+					if (weight > maxWeight)
+						return;
+					node = new Node(key, hash);
+					node.value = value;
+					node.weight = weight;
+					node.queue = WINDOW;
+					queues[WINDOW].addLast(node);
+					map.put(key, node);
+				}
+				evict();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		void remove(String key) {
+			lock.lock();
+			try {
+				Node node = map.remove(key);
+				if (node != null)
+					queues[node.queue].remove(node);
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		private void onAccess(Node node) {
+			switch (node.queue) {
+			case PROBATION:
+				queues[PROBATION].remove(node);
+				node.queue = PROTECTED;
+				queues[PROTECTED].addLast(node);
+				demoteProtected();
+				break;
+			default:
+				queues[node.queue].moveToLast(node);
+			}
+		}
+
+		private void demoteProtected() {
+			AccessQueue protectedQueue = queues[PROTECTED];
+			while (protectedQueue.weight > protectedMax) {
+				Node node = protectedQueue.first();
+				protectedQueue.remove(node);
+				node.queue = PROBATION;
+				queues[PROBATION].addLast(node);
+			}
+		}
+
+		private long mainWeight() {
+			return queues[PROBATION].weight + queues[PROTECTED].weight;
+		}
+
+		private long mainMax() {
+			return maxWeight - windowMax;
+		}
+
+		/**
+		 * Move entries that have fallen out of the window into the main area
+		 * if they win admission, then trim the main area to size.
+		 */
+		private void evict() {
+			AccessQueue window = queues[WINDOW];
+			while (window.weight > windowMax) {
+				Node candidate = window.first();
+				window.remove(candidate);
+				while ((candidate != null)
+						&& (mainWeight() + candidate.weight > mainMax())) {
+					Node victim = victim();
+					if (victim == null)
+						break;
+					if (sketch.frequency(candidate.hash) > sketch
+							.frequency(victim.hash))
+						evict(victim);
+					else {
+						evict(candidate);
+						candidate = null;
+					}
+				}
+				if (candidate != null) {
+					if (mainWeight() + candidate.weight <= mainMax()) {
+						candidate.queue = PROBATION;
+						queues[PROBATION].addLast(candidate);
+					} else
+						evict(candidate);
+				}
+			}
+			// values may have grown in place
+			while (mainWeight() > mainMax())
+				evict(victim());
+		}
+
+		private Node victim() {
+			Node victim = queues[PROBATION].first();
+			return (victim != null) ? victim : queues[PROTECTED].first();
+		}
+
+		private void evict(Node node) {
+			if (node.prev != null)
+				queues[node.queue].remove(node);
+			map.remove(node.key);
+			++evictions;
+			evictedWeight += node.weight;
+		}
+	}
+}
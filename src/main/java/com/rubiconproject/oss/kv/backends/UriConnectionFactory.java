@@ -76,12 +76,22 @@ public class UriConnectionFactory extends AbstractConnectionFactory implements
 			store = new FileSystemKeyValueStore();
 		else if ("krati".equals(type))
 			store = new KratiKeyValueStore();
+		else if ("bitcask".equals(type))
+			store = new BitcaskKeyValueStore();
+		else if ("lsm".equals(type))
+			store = new LsmKeyValueStore();
+		else if ("static".equals(type))
+			store = new StaticKeyValueStore();
 		else if ("memcached".equals(type))
 			store = new MemcachedKeyValueStore();
 		else if ("thrift".equals(type))
 			store = new ThriftKeyValueStore();
 		else if ("sql".equals(type))
 			store = new JdbcKeyValueStore();
+		else if ("tinylfu".equals(type))
+			store = new TinyLfuKeyValueStore();
+		else if ("offheap".equals(type))
+			store = new OffHeapKeyValueStore();
 		return store;
 	}
 }
@@ -0,0 +1,12 @@
+package com.rubiconproject.oss.kv.backends;
+
+/**
+ * Calculates the weight of a cache entry, used to bound a cache by something
+ * other than its number of entries.
+ */
+public interface Weigher {
+	/**
+	 * Returns the weight of the entry, at least 1.
+	 */
+	public int weigh(String key, Object value);
+}
@@ -5,7 +5,9 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 import com.rubiconproject.oss.kv.transcoder.Transcoder;
 
@@ -26,9 +28,24 @@ public interface JdbcDAO {
 			Object value, Transcoder transcoder) throws SQLException,
 			IOException;
 
+	/**
+	 * Return an insert statement with one batch entry added per mapping, to
+	 * be run with executeBatch().
+	 */
+	public PreparedStatement prepareBulkInsert(Connection conn,
+			Map<String, Object> values, Transcoder transcoder)
+			throws SQLException, IOException;
+
 	public PreparedStatement prepareDelete(Connection conn, String key)
 			throws SQLException, IOException;
 
+	/**
+	 * Return a delete statement with one batch entry added per key, to be run
+	 * with executeBatch().
+	 */
+	public PreparedStatement prepareBulkDelete(Connection conn,
+			Collection<String> keys) throws SQLException, IOException;
+
 	public PreparedStatement prepareCount(Connection conn) throws SQLException;
 
 	public PreparedStatement prepareIterator(Connection conn)
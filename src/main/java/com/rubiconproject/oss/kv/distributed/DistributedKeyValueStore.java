@@ -3,6 +3,7 @@ package com.rubiconproject.oss.kv.distributed;
 import java.util.List;
 
 import com.rubiconproject.oss.kv.KeyValueStoreException;
+import com.rubiconproject.oss.kv.KeyValueStoreFuture;
 
 public interface DistributedKeyValueStore {
 
@@ -24,4 +25,10 @@ public interface DistributedKeyValueStore {
 			throws KeyValueStoreException;
 
 	public void delete(String key) throws KeyValueStoreException;
+
+	public KeyValueStoreFuture<Context<byte[]>> getAsync(String key);
+
+	public KeyValueStoreFuture<Void> setAsync(String key, byte[] bytes);
+
+	public KeyValueStoreFuture<Void> deleteAsync(String key);
 }
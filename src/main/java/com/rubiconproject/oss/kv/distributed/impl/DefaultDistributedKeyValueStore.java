@@ -2,10 +2,15 @@ package com.rubiconproject.oss.kv.distributed.impl;
 
 import java.util.*;
 
+import java.util.concurrent.ExecutionException;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import com.rubiconproject.oss.kv.DefaultKeyValueStoreFuture;
 import com.rubiconproject.oss.kv.KeyValueStoreException;
+import com.rubiconproject.oss.kv.KeyValueStoreFuture;
+import com.rubiconproject.oss.kv.KeyValueStoreFutureListener;
 import com.rubiconproject.oss.kv.distributed.BulkContext;
 import com.rubiconproject.oss.kv.distributed.BulkOperationResult;
 import com.rubiconproject.oss.kv.distributed.Configuration;
@@ -287,4 +292,96 @@ public class DefaultDistributedKeyValueStore implements
 						.getRequiredWrites(),
 						config.getWriteOperationTimeout(), true, true);
 	}
+
+	public KeyValueStoreFuture<Context<byte[]>> getAsync(final String key) {
+		if (log.isTraceEnabled())
+			log.trace(String.format("getAsync(%1$s)", key));
+
+		// same semantics as get(): null responses count as success and the
+		// sliding window is disabled, so only the top r nodes are asked
+		List<Node> nodeList = nodeLocator.getFullPreferenceList(hash, key);
+		nodeList = nodeList.subList(0, Math.min(config.getReadReplicas(),
+				nodeList.size()));
+
+		Operation<byte[]> op = new GetOperation<byte[]>(transcoder, key);
+		final DefaultKeyValueStoreFuture<Context<byte[]>> future = new DefaultKeyValueStoreFuture<Context<byte[]>>();
+		operationHelper.callAsync(syncOperationQueue, op, nodeList, 0,
+				config.getRequiredReads(), config.getReadOperationTimeout(),
+				true, false).addListener(
+				new KeyValueStoreFutureListener<ResultsCollecter<OperationResult<byte[]>>>() {
+					public void completed(
+							KeyValueStoreFuture<ResultsCollecter<OperationResult<byte[]>>> f) {
+						try {
+							List<Context<byte[]>> contexts = new ArrayList<Context<byte[]>>();
+							for (OperationResult<byte[]> result : f.get())
+								contexts.add(contextSerializer
+										.extractContext(result));
+							ContextFilterResult<byte[]> filtered = contextFilter
+									.filter(contexts);
+							List<Operation<byte[]>> additionalOperations = filtered
+									.getAdditionalOperations();
+							if (additionalOperations != null) {
+								for (Operation<byte[]> backfillOperation : additionalOperations) {
+									asyncOperationQueue
+											.submit(backfillOperation);
+								}
+							}
+							future.complete(filtered.getContext());
+						} catch (ExecutionException e) {
+							future.fail(e.getCause());
+						} catch (Exception e) {
+							future.fail(e);
+						}
+					}
+				});
+		return future;
+	}
+
+	public KeyValueStoreFuture<Void> setAsync(String key, byte[] object) {
+		if (log.isTraceEnabled())
+			log.trace(String.format("setAsync(%1$s, %2$s)", key, object));
+
+		List<Node> nodeList = nodeLocator.getPreferenceList(hash, key, config
+				.getWriteReplicas());
+
+		byte[] serializedData = contextSerializer.addContext(object);
+		Operation<byte[]> op = new SetOperation<byte[]>(transcoder, key,
+				serializedData);
+		return completion(operationHelper.callAsync(syncOperationQueue, op,
+				nodeList, 0, config.getRequiredWrites(), config
+						.getWriteOperationTimeout(), true, true));
+	}
+
+	public KeyValueStoreFuture<Void> deleteAsync(String key) {
+		if (log.isTraceEnabled())
+			log.trace(String.format("deleteAsync(%1$s)", key));
+
+		List<Node> nodeList = nodeLocator.getPreferenceList(hash, key, config
+				.getWriteReplicas());
+
+		Operation<byte[]> op = new DeleteOperation<byte[]>(key);
+		return completion(operationHelper.callAsync(syncOperationQueue, op,
+				nodeList, 0, config.getRequiredWrites(), config
+						.getWriteOperationTimeout(), true, true));
+	}
+
+	private KeyValueStoreFuture<Void> completion(
+			KeyValueStoreFuture<ResultsCollecter<OperationResult<byte[]>>> results) {
+		final DefaultKeyValueStoreFuture<Void> future = new DefaultKeyValueStoreFuture<Void>();
+		results
+				.addListener(new KeyValueStoreFutureListener<ResultsCollecter<OperationResult<byte[]>>>() {
+					public void completed(
+							KeyValueStoreFuture<ResultsCollecter<OperationResult<byte[]>>> f) {
+						try {
+							f.get();
+							future.complete(null);
+						} catch (ExecutionException e) {
+							future.fail(e.getCause());
+						} catch (Exception e) {
+							future.fail(e);
+						}
+					}
+				});
+		return future;
+	}
 }
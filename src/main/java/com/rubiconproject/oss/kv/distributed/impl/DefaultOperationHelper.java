@@ -5,7 +5,10 @@ import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -13,6 +16,9 @@ import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import com.rubiconproject.oss.kv.DefaultKeyValueStoreFuture;
+import com.rubiconproject.oss.kv.KeyValueStoreFuture;
+import com.rubiconproject.oss.kv.KeyValueStoreFutureListener;
 import com.rubiconproject.oss.kv.distributed.InsufficientResponsesException;
 import com.rubiconproject.oss.kv.distributed.Node;
 import com.rubiconproject.oss.kv.distributed.Operation;
@@ -20,9 +26,13 @@ import com.rubiconproject.oss.kv.distributed.OperationCallback;
 import com.rubiconproject.oss.kv.distributed.OperationQueue;
 import com.rubiconproject.oss.kv.distributed.OperationResult;
 import com.rubiconproject.oss.kv.distributed.OperationStatus;
+import com.rubiconproject.oss.kv.util.DaemonThreadFactory;
 
 public class DefaultOperationHelper {
 
+	private static final ScheduledExecutorService timeoutScheduler = Executors
+			.newSingleThreadScheduledExecutor(new DaemonThreadFactory());
+
 	private OperationLog operationLog = OperationLog.getInstance();
 
 	private Log log = LogFactory.getLog(getClass());
@@ -123,4 +133,80 @@ public class DefaultOperationHelper {
 		}
 		return resultCollecter;
 	}
+
+	/**
+	 * Non-blocking variant of call(). The returned future completes as soon as
+	 * requiredResponses successes have been received, every node has
+	 * responded, or operationTimeout has elapsed, whichever comes first.
+	 */
+	public <V> KeyValueStoreFuture<ResultsCollecter<OperationResult<V>>> callAsync(
+			OperationQueue operationQueue, Operation<V> operation,
+			List<Node> nodeList, int nodeRankOffset,
+			final int requiredResponses, long operationTimeout,
+			final boolean considerNullAsSuccess,
+			final boolean throwInsufficientResponsesException) {
+		operationLog.logPreferenceList(operation.getKey(), nodeList);
+
+		final int nodeCount = nodeList.size();
+		final DefaultKeyValueStoreFuture<ResultsCollecter<OperationResult<V>>> future = new DefaultKeyValueStoreFuture<ResultsCollecter<OperationResult<V>>>();
+		final AtomicInteger successCounter = new AtomicInteger(0);
+		final AtomicInteger responseCounter = new AtomicInteger(0);
+		final ResultsCollecter<OperationResult<V>> resultCollecter = new ResultsCollecter<OperationResult<V>>(
+				nodeCount);
+
+		final Runnable finish = new Runnable() {
+			public void run() {
+				synchronized (resultCollecter) {
+					resultCollecter.stop();
+				}
+				if ((successCounter.get() < requiredResponses)
+						&& (throwInsufficientResponsesException)) {
+					future.fail(new InsufficientResponsesException(
+							requiredResponses, successCounter.get()));
+				} else {
+					future.complete(resultCollecter);
+				}
+			}
+		};
+		if ((nodeCount == 0) || (requiredResponses <= 0)) {
+			finish.run();
+			return future;
+		}
+
+		final ScheduledFuture<?> timeout = timeoutScheduler.schedule(finish,
+				operationTimeout, TimeUnit.MILLISECONDS);
+		future
+				.addListener(new KeyValueStoreFutureListener<ResultsCollecter<OperationResult<V>>>() {
+					public void completed(
+							KeyValueStoreFuture<ResultsCollecter<OperationResult<V>>> f) {
+						timeout.cancel(false);
+					}
+				});
+
+		OperationCallback<V> callback = new OperationCallback<V>() {
+			public void completed(OperationResult<V> result) {
+				synchronized (resultCollecter) {
+					resultCollecter.add(result);
+				}
+				int successes = successCounter.get();
+				if ((result.getStatus().equals(OperationStatus.Success))
+						|| ((result.getStatus()
+								.equals(OperationStatus.NullValue)) && (considerNullAsSuccess))) {
+					successes = successCounter.incrementAndGet();
+				}
+				int responses = responseCounter.incrementAndGet();
+				if ((successes >= requiredResponses)
+						|| (responses >= nodeCount))
+					finish.run();
+			}
+		};
+		for (int i = 0; i < nodeCount; ++i) {
+			Operation<V> op = operation.copy();
+			op.setCallback(callback);
+			op.setNode(nodeList.get(i));
+			op.setNodeRank(i + nodeRankOffset);
+			operationQueue.submit(op);
+		}
+		return future;
+	}
 }
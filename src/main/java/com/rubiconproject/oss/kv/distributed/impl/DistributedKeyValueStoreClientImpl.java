@@ -5,11 +5,15 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
 
 import com.rubiconproject.oss.kv.BaseManagedKeyValueStore;
+import com.rubiconproject.oss.kv.DefaultKeyValueStoreFuture;
 import com.rubiconproject.oss.kv.DistributedKeyValueStoreClient;
 import com.rubiconproject.oss.kv.KeyValueStore;
 import com.rubiconproject.oss.kv.KeyValueStoreException;
+import com.rubiconproject.oss.kv.KeyValueStoreFuture;
+import com.rubiconproject.oss.kv.KeyValueStoreFutureListener;
 import com.rubiconproject.oss.kv.backends.ConnectionFactory;
 import com.rubiconproject.oss.kv.distributed.BulkContext;
 import com.rubiconproject.oss.kv.distributed.Configuration;
@@ -286,6 +290,94 @@ public class DistributedKeyValueStoreClientImpl extends
 		}
 	}
 
+	@Override
+	public KeyValueStoreFuture<Object> getAsync(String key) {
+		return getAsync(key, defaultTranscoder);
+	}
+
+	@Override
+	public KeyValueStoreFuture<Object> getAsync(final String key,
+			final Transcoder transcoder) {
+		final long start = System.currentTimeMillis();
+		final DefaultKeyValueStoreFuture<Object> future = new DefaultKeyValueStoreFuture<Object>();
+		try {
+			assertReadable();
+		} catch (KeyValueStoreException e) {
+			log(key, "getAsync", System.currentTimeMillis() - start, false);
+			future.fail(e);
+			return future;
+		}
+		store.getAsync(key).addListener(
+				new KeyValueStoreFutureListener<Context<byte[]>>() {
+					public void completed(KeyValueStoreFuture<Context<byte[]>> f) {
+						boolean success = false;
+						try {
+							byte[] bytes = f.get().getValue();
+							Object obj = null;
+							if (bytes != null)
+								obj = transcoder.decode(bytes);
+							success = true;
+							future.complete(obj);
+						} catch (ExecutionException e) {
+							future.fail(e.getCause());
+						} catch (Exception e) {
+							future.fail(e);
+						} finally {
+							log(key, "getAsync", System.currentTimeMillis()
+									- start, success);
+						}
+					}
+				});
+		return future;
+	}
+
+	@Override
+	public KeyValueStoreFuture<Void> setAsync(String key, Object value) {
+		return setAsync(key, value, defaultTranscoder);
+	}
+
+	@Override
+	public KeyValueStoreFuture<Void> setAsync(String key, Object value,
+			Transcoder transcoder) {
+		long start = System.currentTimeMillis();
+		try {
+			assertWriteable();
+			byte[] bytes = transcoder.encode(value);
+			return logged(key, "setAsync", start, store.setAsync(key, bytes));
+		} catch (Exception e) {
+			log(key, "setAsync", System.currentTimeMillis() - start, false);
+			return DefaultKeyValueStoreFuture.failed(e);
+		}
+	}
+
+	@Override
+	public KeyValueStoreFuture<Void> deleteAsync(String key) {
+		long start = System.currentTimeMillis();
+		try {
+			assertWriteable();
+			return logged(key, "deleteAsync", start, store.deleteAsync(key));
+		} catch (Exception e) {
+			log(key, "deleteAsync", System.currentTimeMillis() - start, false);
+			return DefaultKeyValueStoreFuture.failed(e);
+		}
+	}
+
+	private KeyValueStoreFuture<Void> logged(final String key,
+			final String op, final long start, KeyValueStoreFuture<Void> future) {
+		future.addListener(new KeyValueStoreFutureListener<Void>() {
+			public void completed(KeyValueStoreFuture<Void> f) {
+				boolean success = true;
+				try {
+					f.get();
+				} catch (Exception e) {
+					success = false;
+				}
+				log(key, op, System.currentTimeMillis() - start, success);
+			}
+		});
+		return future;
+	}
+
 	public Configuration getConfiguration() {
 		return config;
 	}
@@ -42,6 +42,10 @@ public class KeyValueService {
 
     public void deleteValue(String key) throws KeyValueStoreIOException, KeyValueStoreException, org.apache.thrift.TException;
 
+    public void setBulk(Map<String,ByteBuffer> values) throws KeyValueStoreIOException, KeyValueStoreException, org.apache.thrift.TException;
+
+    public void deleteBulk(List<String> keys) throws KeyValueStoreIOException, KeyValueStoreException, org.apache.thrift.TException;
+
   }
 
   public interface AsyncIface {
@@ -56,6 +60,10 @@ public class KeyValueService {
 
     public void deleteValue(String key, org.apache.thrift.async.AsyncMethodCallback<AsyncClient.deleteValue_call> resultHandler) throws org.apache.thrift.TException;
 
+    public void setBulk(Map<String,ByteBuffer> values, org.apache.thrift.async.AsyncMethodCallback<AsyncClient.setBulk_call> resultHandler) throws org.apache.thrift.TException;
+
+    public void deleteBulk(List<String> keys, org.apache.thrift.async.AsyncMethodCallback<AsyncClient.deleteBulk_call> resultHandler) throws org.apache.thrift.TException;
+
   }
 
   public static class Client extends org.apache.thrift.TServiceClient implements Iface {
@@ -218,6 +226,58 @@ public class KeyValueService {
       return;
     }
 
+    public void setBulk(Map<String,ByteBuffer> values) throws KeyValueStoreIOException, KeyValueStoreException, org.apache.thrift.TException
+    {
+      send_setBulk(values);
+      recv_setBulk();
+    }
+
+    public void send_setBulk(Map<String,ByteBuffer> values) throws org.apache.thrift.TException
+    {
+      setBulk_args args = new setBulk_args();
+      args.setValues(values);
+      sendBase("setBulk", args);
+    }
+
+    public void recv_setBulk() throws KeyValueStoreIOException, KeyValueStoreException, org.apache.thrift.TException
+    {
+      setBulk_result result = new setBulk_result();
+      receiveBase(result, "setBulk");
+      if (result.ioException != null) {
+        throw result.ioException;
+      }
+      if (result.keyValueStoreException != null) {
+        throw result.keyValueStoreException;
+      }
+      return;
+    }
+
+    public void deleteBulk(List<String> keys) throws KeyValueStoreIOException, KeyValueStoreException, org.apache.thrift.TException
+    {
+      send_deleteBulk(keys);
+      recv_deleteBulk();
+    }
+
+    public void send_deleteBulk(List<String> keys) throws org.apache.thrift.TException
+    {
+      deleteBulk_args args = new deleteBulk_args();
+      args.setKeys(keys);
+      sendBase("deleteBulk", args);
+    }
+
+    public void recv_deleteBulk() throws KeyValueStoreIOException, KeyValueStoreException, org.apache.thrift.TException
+    {
+      deleteBulk_result result = new deleteBulk_result();
+      receiveBase(result, "deleteBulk");
+      if (result.ioException != null) {
+        throw result.ioException;
+      }
+      if (result.keyValueStoreException != null) {
+        throw result.keyValueStoreException;
+      }
+      return;
+    }
+
   }
   public static class AsyncClient extends org.apache.thrift.async.TAsyncClient implements AsyncIface {
     public static class Factory implements org.apache.thrift.async.TAsyncClientFactory<AsyncClient> {
@@ -399,6 +459,70 @@ public class KeyValueService {
       }
     }
 
+    public void setBulk(Map<String,ByteBuffer> values, org.apache.thrift.async.AsyncMethodCallback<setBulk_call> resultHandler) throws org.apache.thrift.TException {
+      checkReady();
+      setBulk_call method_call = new setBulk_call(values, resultHandler, this, ___protocolFactory, ___transport);
+      this.___currentMethod = method_call;
+      ___manager.call(method_call);
+    }
+
+    public static class setBulk_call extends org.apache.thrift.async.TAsyncMethodCall {
+      private Map<String,ByteBuffer> values;
+      public setBulk_call(Map<String,ByteBuffer> values, org.apache.thrift.async.AsyncMethodCallback<setBulk_call> resultHandler, org.apache.thrift.async.TAsyncClient client, org.apache.thrift.protocol.TProtocolFactory protocolFactory, org.apache.thrift.transport.TNonblockingTransport transport) throws org.apache.thrift.TException {
+        super(client, protocolFactory, transport, resultHandler, false);
+        this.values = values;
+      }
+
+      public void write_args(org.apache.thrift.protocol.TProtocol prot) throws org.apache.thrift.TException {
+        prot.writeMessageBegin(new org.apache.thrift.protocol.TMessage("setBulk", org.apache.thrift.protocol.TMessageType.CALL, 0));
+        setBulk_args args = new setBulk_args();
+        args.setValues(values);
+        args.write(prot);
+        prot.writeMessageEnd();
+      }
+
+      public void getResult() throws KeyValueStoreIOException, KeyValueStoreException, org.apache.thrift.TException {
+        if (getState() != org.apache.thrift.async.TAsyncMethodCall.State.RESPONSE_READ) {
+          throw new IllegalStateException("Method call not finished!");
+        }
+        org.apache.thrift.transport.TMemoryInputTransport memoryTransport = new org.apache.thrift.transport.TMemoryInputTransport(getFrameBuffer().array());
+        org.apache.thrift.protocol.TProtocol prot = client.getProtocolFactory().getProtocol(memoryTransport);
+        (new Client(prot)).recv_setBulk();
+      }
+    }
+
+    public void deleteBulk(List<String> keys, org.apache.thrift.async.AsyncMethodCallback<deleteBulk_call> resultHandler) throws org.apache.thrift.TException {
+      checkReady();
+      deleteBulk_call method_call = new deleteBulk_call(keys, resultHandler, this, ___protocolFactory, ___transport);
+      this.___currentMethod = method_call;
+      ___manager.call(method_call);
+    }
+
+    public static class deleteBulk_call extends org.apache.thrift.async.TAsyncMethodCall {
+      private List<String> keys;
+      public deleteBulk_call(List<String> keys, org.apache.thrift.async.AsyncMethodCallback<deleteBulk_call> resultHandler, org.apache.thrift.async.TAsyncClient client, org.apache.thrift.protocol.TProtocolFactory protocolFactory, org.apache.thrift.transport.TNonblockingTransport transport) throws org.apache.thrift.TException {
+        super(client, protocolFactory, transport, resultHandler, false);
+        this.keys = keys;
+      }
+
+      public void write_args(org.apache.thrift.protocol.TProtocol prot) throws org.apache.thrift.TException {
+        prot.writeMessageBegin(new org.apache.thrift.protocol.TMessage("deleteBulk", org.apache.thrift.protocol.TMessageType.CALL, 0));
+        deleteBulk_args args = new deleteBulk_args();
+        args.setKeys(keys);
+        args.write(prot);
+        prot.writeMessageEnd();
+      }
+
+      public void getResult() throws KeyValueStoreIOException, KeyValueStoreException, org.apache.thrift.TException {
+        if (getState() != org.apache.thrift.async.TAsyncMethodCall.State.RESPONSE_READ) {
+          throw new IllegalStateException("Method call not finished!");
+        }
+        org.apache.thrift.transport.TMemoryInputTransport memoryTransport = new org.apache.thrift.transport.TMemoryInputTransport(getFrameBuffer().array());
+        org.apache.thrift.protocol.TProtocol prot = client.getProtocolFactory().getProtocol(memoryTransport);
+        (new Client(prot)).recv_deleteBulk();
+      }
+    }
+
   }
 
   public static class Processor<I extends Iface> extends org.apache.thrift.TBaseProcessor<I> implements org.apache.thrift.TProcessor {
@@ -417,6 +541,8 @@ public class KeyValueService {
       processMap.put("getBulk", new getBulk());
       processMap.put("setValue", new setValue());
       processMap.put("deleteValue", new deleteValue());
+      processMap.put("setBulk", new setBulk());
+      processMap.put("deleteBulk", new deleteBulk());
       return processMap;
     }
 
@@ -531,6 +657,50 @@ public class KeyValueService {
       }
     }
 
+    private static class setBulk<I extends Iface> extends org.apache.thrift.ProcessFunction<I, setBulk_args> {
+      public setBulk() {
+        super("setBulk");
+      }
+
+      protected setBulk_args getEmptyArgsInstance() {
+        return new setBulk_args();
+      }
+
+      protected setBulk_result getResult(I iface, setBulk_args args) throws org.apache.thrift.TException {
+        setBulk_result result = new setBulk_result();
+        try {
+          iface.setBulk(args.values);
+        } catch (KeyValueStoreIOException ioException) {
+          result.ioException = ioException;
+        } catch (KeyValueStoreException keyValueStoreException) {
+          result.keyValueStoreException = keyValueStoreException;
+        }
+        return result;
+      }
+    }
+
+    private static class deleteBulk<I extends Iface> extends org.apache.thrift.ProcessFunction<I, deleteBulk_args> {
+      public deleteBulk() {
+        super("deleteBulk");
+      }
+
+      protected deleteBulk_args getEmptyArgsInstance() {
+        return new deleteBulk_args();
+      }
+
+      protected deleteBulk_result getResult(I iface, deleteBulk_args args) throws org.apache.thrift.TException {
+        deleteBulk_result result = new deleteBulk_result();
+        try {
+          iface.deleteBulk(args.keys);
+        } catch (KeyValueStoreIOException ioException) {
+          result.ioException = ioException;
+        } catch (KeyValueStoreException keyValueStoreException) {
+          result.keyValueStoreException = keyValueStoreException;
+        }
+        return result;
+      }
+    }
+
   }
 
   public static class exists_args implements org.apache.thrift.TBase<exists_args, exists_args._Fields>, java.io.Serializable, Cloneable   {
@@ -5187,4 +5357,1766 @@ public class KeyValueService {
 
   }
 
+  public static class setBulk_args implements org.apache.thrift.TBase<setBulk_args, setBulk_args._Fields>, java.io.Serializable, Cloneable   {
+    private static final org.apache.thrift.protocol.TStruct STRUCT_DESC = new org.apache.thrift.protocol.TStruct("setBulk_args");
+
+    private static final org.apache.thrift.protocol.TField VALUES_FIELD_DESC = new org.apache.thrift.protocol.TField("values", org.apache.thrift.protocol.TType.MAP, (short)1);
+
+    private static final Map<Class<? extends IScheme>, SchemeFactory> schemes = new HashMap<Class<? extends IScheme>, SchemeFactory>();
+    static {
+      schemes.put(StandardScheme.class, new setBulk_argsStandardSchemeFactory());
+      schemes.put(TupleScheme.class, new setBulk_argsTupleSchemeFactory());
+    }
+
+    private Map<String,ByteBuffer> values; // required
+
+    /** The set of fields this struct contains, along with convenience methods for finding and manipulating them. */
+    public enum _Fields implements org.apache.thrift.TFieldIdEnum {
+      VALUES((short)1, "values");
+
+      private static final Map<String, _Fields> byName = new HashMap<String, _Fields>();
+
+      static {
+        for (_Fields field : EnumSet.allOf(_Fields.class)) {
+          byName.put(field.getFieldName(), field);
+        }
+      }
+
+      /**
+       * Find the _Fields constant that matches fieldId, or null if its not found.
+       */
+      public static _Fields findByThriftId(int fieldId) {
+        switch(fieldId) {
+          case 1: // VALUES
+            return VALUES;
+          default:
+            return null;
+        }
+      }
+
+      /**
+       * Find the _Fields constant that matches fieldId, throwing an exception
+       * if it is not found.
+       */
+      public static _Fields findByThriftIdOrThrow(int fieldId) {
+        _Fields fields = findByThriftId(fieldId);
+        if (fields == null) throw new IllegalArgumentException("Field " + fieldId + " doesn't exist!");
+        return fields;
+      }
+
+      /**
+       * Find the _Fields constant that matches name, or null if its not found.
+       */
+      public static _Fields findByName(String name) {
+        return byName.get(name);
+      }
+
+      private final short _thriftId;
+      private final String _fieldName;
+
+      _Fields(short thriftId, String fieldName) {
+        _thriftId = thriftId;
+        _fieldName = fieldName;
+      }
+
+      public short getThriftFieldId() {
+        return _thriftId;
+      }
+
+      public String getFieldName() {
+        return _fieldName;
+      }
+    }
+
+    // isset id assignments
+    public static final Map<_Fields, org.apache.thrift.meta_data.FieldMetaData> metaDataMap;
+    static {
+      Map<_Fields, org.apache.thrift.meta_data.FieldMetaData> tmpMap = new EnumMap<_Fields, org.apache.thrift.meta_data.FieldMetaData>(_Fields.class);
+      tmpMap.put(_Fields.VALUES, new org.apache.thrift.meta_data.FieldMetaData("values", org.apache.thrift.TFieldRequirementType.DEFAULT, 
+          new org.apache.thrift.meta_data.MapMetaData(org.apache.thrift.protocol.TType.MAP, 
+              new org.apache.thrift.meta_data.FieldValueMetaData(org.apache.thrift.protocol.TType.STRING), 
+              new org.apache.thrift.meta_data.FieldValueMetaData(org.apache.thrift.protocol.TType.STRING              , true))));
+      metaDataMap = Collections.unmodifiableMap(tmpMap);
+      org.apache.thrift.meta_data.FieldMetaData.addStructMetaDataMap(setBulk_args.class, metaDataMap);
+    }
+
+    public setBulk_args() {
+    }
+
+    public setBulk_args(
+      Map<String,ByteBuffer> values)
+    {
+      this();
+      this.values = values;
+    }
+
+    /**
+     * Performs a deep copy on <i>other</i>.
+     */
+    public setBulk_args(setBulk_args other) {
+      if (other.isSetValues()) {
+        Map<String,ByteBuffer> __this__values = new HashMap<String,ByteBuffer>();
+        for (Map.Entry<String, ByteBuffer> other_element : other.values.entrySet()) {
+
+          String other_element_key = other_element.getKey();
+          ByteBuffer other_element_value = other_element.getValue();
+
+          String __this__values_copy_key = other_element_key;
+
+          ByteBuffer __this__values_copy_value = org.apache.thrift.TBaseHelper.copyBinary(other_element_value);
+
+          __this__values.put(__this__values_copy_key, __this__values_copy_value);
+        }
+        this.values = __this__values;
+      }
+    }
+
+    public setBulk_args deepCopy() {
+      return new setBulk_args(this);
+    }
+
+    @Override
+    public void clear() {
+      this.values = null;
+    }
+
+    public int getValuesSize() {
+      return (this.values == null) ? 0 : this.values.size();
+    }
+
+    public void putToValues(String key, ByteBuffer val) {
+      if (this.values == null) {
+        this.values = new HashMap<String,ByteBuffer>();
+      }
+      this.values.put(key, val);
+    }
+
+    public Map<String,ByteBuffer> getValues() {
+      return this.values;
+    }
+
+    public void setValues(Map<String,ByteBuffer> values) {
+      this.values = values;
+    }
+
+    public void unsetValues() {
+      this.values = null;
+    }
+
+    /** Returns true if field values is set (has been assigned a value) and false otherwise */
+    public boolean isSetValues() {
+      return this.values != null;
+    }
+
+    public void setValuesIsSet(boolean value) {
+      if (!value) {
+        this.values = null;
+      }
+    }
+
+    public void setFieldValue(_Fields field, Object value) {
+      switch (field) {
+      case VALUES:
+        if (value == null) {
+          unsetValues();
+        } else {
+          setValues((Map<String,ByteBuffer>)value);
+        }
+        break;
+
+      }
+    }
+
+    public Object getFieldValue(_Fields field) {
+      switch (field) {
+      case VALUES:
+        return getValues();
+
+      }
+      throw new IllegalStateException();
+    }
+
+    /** Returns true if field corresponding to fieldID is set (has been assigned a value) and false otherwise */
+    public boolean isSet(_Fields field) {
+      if (field == null) {
+        throw new IllegalArgumentException();
+      }
+
+      switch (field) {
+      case VALUES:
+        return isSetValues();
+      }
+      throw new IllegalStateException();
+    }
+
+    @Override
+    public boolean equals(Object that) {
+      if (that == null)
+        return false;
+      if (that instanceof setBulk_args)
+        return this.equals((setBulk_args)that);
+      return false;
+    }
+
+    public boolean equals(setBulk_args that) {
+      if (that == null)
+        return false;
+
+      boolean this_present_values = true && this.isSetValues();
+      boolean that_present_values = true && that.isSetValues();
+      if (this_present_values || that_present_values) {
+        if (!(this_present_values && that_present_values))
+          return false;
+        if (!this.values.equals(that.values))
+          return false;
+      }
+
+      return true;
+    }
+
+    @Override
+    public int hashCode() {
+      HashCodeBuilder builder = new HashCodeBuilder();
+
+      boolean present_values = true && (isSetValues());
+      builder.append(present_values);
+      if (present_values)
+        builder.append(values);
+
+      return builder.toHashCode();
+    }
+
+    public int compareTo(setBulk_args other) {
+      if (!getClass().equals(other.getClass())) {
+        return getClass().getName().compareTo(other.getClass().getName());
+      }
+
+      int lastComparison = 0;
+      setBulk_args typedOther = (setBulk_args)other;
+
+      lastComparison = Boolean.valueOf(isSetValues()).compareTo(typedOther.isSetValues());
+      if (lastComparison != 0) {
+        return lastComparison;
+      }
+      if (isSetValues()) {
+        lastComparison = org.apache.thrift.TBaseHelper.compareTo(this.values, typedOther.values);
+        if (lastComparison != 0) {
+          return lastComparison;
+        }
+      }
+      return 0;
+    }
+
+    public _Fields fieldForId(int fieldId) {
+      return _Fields.findByThriftId(fieldId);
+    }
+
+    public void read(org.apache.thrift.protocol.TProtocol iprot) throws org.apache.thrift.TException {
+      schemes.get(iprot.getScheme()).getScheme().read(iprot, this);
+    }
+
+    public void write(org.apache.thrift.protocol.TProtocol oprot) throws org.apache.thrift.TException {
+      schemes.get(oprot.getScheme()).getScheme().write(oprot, this);
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder sb = new StringBuilder("setBulk_args(");
+      boolean first = true;
+
+      sb.append("values:");
+      if (this.values == null) {
+        sb.append("null");
+      } else {
+        sb.append(this.values);
+      }
+      first = false;
+      sb.append(")");
+      return sb.toString();
+    }
+
+    public void validate() throws org.apache.thrift.TException {
+      // check for required fields
+    }
+
+    private void writeObject(java.io.ObjectOutputStream out) throws java.io.IOException {
+      try {
+        write(new org.apache.thrift.protocol.TCompactProtocol(new org.apache.thrift.transport.TIOStreamTransport(out)));
+      } catch (org.apache.thrift.TException te) {
+        throw new java.io.IOException(te);
+      }
+    }
+
+    private void readObject(java.io.ObjectInputStream in) throws java.io.IOException, ClassNotFoundException {
+      try {
+        read(new org.apache.thrift.protocol.TCompactProtocol(new org.apache.thrift.transport.TIOStreamTransport(in)));
+      } catch (org.apache.thrift.TException te) {
+        throw new java.io.IOException(te);
+      }
+    }
+
+    private static class setBulk_argsStandardSchemeFactory implements SchemeFactory {
+      public setBulk_argsStandardScheme getScheme() {
+        return new setBulk_argsStandardScheme();
+      }
+    }
+
+    private static class setBulk_argsStandardScheme extends StandardScheme<setBulk_args> {
+
+      public void read(org.apache.thrift.protocol.TProtocol iprot, setBulk_args struct) throws org.apache.thrift.TException {
+        org.apache.thrift.protocol.TField schemeField;
+        iprot.readStructBegin();
+        while (true)
+        {
+          schemeField = iprot.readFieldBegin();
+          if (schemeField.type == org.apache.thrift.protocol.TType.STOP) { 
+            break;
+          }
+          switch (schemeField.id) {
+            case 1: // VALUES
+              if (schemeField.type == org.apache.thrift.protocol.TType.MAP) {
+                {
+                  org.apache.thrift.protocol.TMap _map18 = iprot.readMapBegin();
+                  struct.values = new HashMap<String,ByteBuffer>(2*_map18.size);
+                  for (int _i19 = 0; _i19 < _map18.size; ++_i19)
+                  {
+                    String _key20; // required
+                    ByteBuffer _val21; // optional
+                    _key20 = iprot.readString();
+                    _val21 = iprot.readBinary();
+                    struct.values.put(_key20, _val21);
+                  }
+                  iprot.readMapEnd();
+                }
+                struct.setValuesIsSet(true);
+              } else { 
+                org.apache.thrift.protocol.TProtocolUtil.skip(iprot, schemeField.type);
+              }
+              break;
+            default:
+              org.apache.thrift.protocol.TProtocolUtil.skip(iprot, schemeField.type);
+          }
+          iprot.readFieldEnd();
+        }
+        iprot.readStructEnd();
+        struct.validate();
+      }
+
+      public void write(org.apache.thrift.protocol.TProtocol oprot, setBulk_args struct) throws org.apache.thrift.TException {
+        struct.validate();
+
+        oprot.writeStructBegin(STRUCT_DESC);
+        if (struct.values != null) {
+          oprot.writeFieldBegin(VALUES_FIELD_DESC);
+          {
+            oprot.writeMapBegin(new org.apache.thrift.protocol.TMap(org.apache.thrift.protocol.TType.STRING, org.apache.thrift.protocol.TType.STRING, struct.values.size()));
+            for (Map.Entry<String, ByteBuffer> _iter22 : struct.values.entrySet())
+            {
+              oprot.writeString(_iter22.getKey());
+              oprot.writeBinary(_iter22.getValue());
+            }
+            oprot.writeMapEnd();
+          }
+          oprot.writeFieldEnd();
+        }
+        oprot.writeFieldStop();
+        oprot.writeStructEnd();
+      }
+
+    }
+
+    private static class setBulk_argsTupleSchemeFactory implements SchemeFactory {
+      public setBulk_argsTupleScheme getScheme() {
+        return new setBulk_argsTupleScheme();
+      }
+    }
+
+    private static class setBulk_argsTupleScheme extends TupleScheme<setBulk_args> {
+
+      @Override
+      public void write(org.apache.thrift.protocol.TProtocol prot, setBulk_args struct) throws org.apache.thrift.TException {
+        TTupleProtocol oprot = (TTupleProtocol) prot;
+        BitSet optionals = new BitSet();
+        if (struct.isSetValues()) {
+          optionals.set(0);
+        }
+        oprot.writeBitSet(optionals, 1);
+        if (struct.isSetValues()) {
+          {
+            oprot.writeI32(struct.values.size());
+            for (Map.Entry<String, ByteBuffer> _iter23 : struct.values.entrySet())
+            {
+              oprot.writeString(_iter23.getKey());
+              oprot.writeBinary(_iter23.getValue());
+            }
+          }
+        }
+      }
+
+      @Override
+      public void read(org.apache.thrift.protocol.TProtocol prot, setBulk_args struct) throws org.apache.thrift.TException {
+        TTupleProtocol iprot = (TTupleProtocol) prot;
+        BitSet incoming = iprot.readBitSet(1);
+        if (incoming.get(0)) {
+          {
+            org.apache.thrift.protocol.TMap _map24 = new org.apache.thrift.protocol.TMap(org.apache.thrift.protocol.TType.STRING, org.apache.thrift.protocol.TType.STRING, iprot.readI32());
+            struct.values = new HashMap<String,ByteBuffer>(2*_map24.size);
+            for (int _i25 = 0; _i25 < _map24.size; ++_i25)
+            {
+              String _key26; // required
+              ByteBuffer _val27; // optional
+              _key26 = iprot.readString();
+              _val27 = iprot.readBinary();
+              struct.values.put(_key26, _val27);
+            }
+          }
+          struct.setValuesIsSet(true);
+        }
+      }
+    }
+
+  }
+
+  public static class setBulk_result implements org.apache.thrift.TBase<setBulk_result, setBulk_result._Fields>, java.io.Serializable, Cloneable   {
+    private static final org.apache.thrift.protocol.TStruct STRUCT_DESC = new org.apache.thrift.protocol.TStruct("setBulk_result");
+
+    private static final org.apache.thrift.protocol.TField IO_EXCEPTION_FIELD_DESC = new org.apache.thrift.protocol.TField("ioException", org.apache.thrift.protocol.TType.STRUCT, (short)1);
+    private static final org.apache.thrift.protocol.TField KEY_VALUE_STORE_EXCEPTION_FIELD_DESC = new org.apache.thrift.protocol.TField("keyValueStoreException", org.apache.thrift.protocol.TType.STRUCT, (short)2);
+
+    private static final Map<Class<? extends IScheme>, SchemeFactory> schemes = new HashMap<Class<? extends IScheme>, SchemeFactory>();
+    static {
+      schemes.put(StandardScheme.class, new setBulk_resultStandardSchemeFactory());
+      schemes.put(TupleScheme.class, new setBulk_resultTupleSchemeFactory());
+    }
+
+    private KeyValueStoreIOException ioException; // required
+    private KeyValueStoreException keyValueStoreException; // required
+
+    /** The set of fields this struct contains, along with convenience methods for finding and manipulating them. */
+    public enum _Fields implements org.apache.thrift.TFieldIdEnum {
+      IO_EXCEPTION((short)1, "ioException"),
+      KEY_VALUE_STORE_EXCEPTION((short)2, "keyValueStoreException");
+
+      private static final Map<String, _Fields> byName = new HashMap<String, _Fields>();
+
+      static {
+        for (_Fields field : EnumSet.allOf(_Fields.class)) {
+          byName.put(field.getFieldName(), field);
+        }
+      }
+
+      /**
+       * Find the _Fields constant that matches fieldId, or null if its not found.
+       */
+      public static _Fields findByThriftId(int fieldId) {
+        switch(fieldId) {
+          case 1: // IO_EXCEPTION
+            return IO_EXCEPTION;
+          case 2: // KEY_VALUE_STORE_EXCEPTION
+            return KEY_VALUE_STORE_EXCEPTION;
+          default:
+            return null;
+        }
+      }
+
+      /**
+       * Find the _Fields constant that matches fieldId, throwing an exception
+       * if it is not found.
+       */
+      public static _Fields findByThriftIdOrThrow(int fieldId) {
+        _Fields fields = findByThriftId(fieldId);
+        if (fields == null) throw new IllegalArgumentException("Field " + fieldId + " doesn't exist!");
+        return fields;
+      }
+
+      /**
+       * Find the _Fields constant that matches name, or null if its not found.
+       */
+      public static _Fields findByName(String name) {
+        return byName.get(name);
+      }
+
+      private final short _thriftId;
+      private final String _fieldName;
+
+      _Fields(short thriftId, String fieldName) {
+        _thriftId = thriftId;
+        _fieldName = fieldName;
+      }
+
+      public short getThriftFieldId() {
+        return _thriftId;
+      }
+
+      public String getFieldName() {
+        return _fieldName;
+      }
+    }
+
+    // isset id assignments
+    public static final Map<_Fields, org.apache.thrift.meta_data.FieldMetaData> metaDataMap;
+    static {
+      Map<_Fields, org.apache.thrift.meta_data.FieldMetaData> tmpMap = new EnumMap<_Fields, org.apache.thrift.meta_data.FieldMetaData>(_Fields.class);
+      tmpMap.put(_Fields.IO_EXCEPTION, new org.apache.thrift.meta_data.FieldMetaData("ioException", org.apache.thrift.TFieldRequirementType.DEFAULT, 
+          new org.apache.thrift.meta_data.FieldValueMetaData(org.apache.thrift.protocol.TType.STRUCT)));
+      tmpMap.put(_Fields.KEY_VALUE_STORE_EXCEPTION, new org.apache.thrift.meta_data.FieldMetaData("keyValueStoreException", org.apache.thrift.TFieldRequirementType.DEFAULT, 
+          new org.apache.thrift.meta_data.FieldValueMetaData(org.apache.thrift.protocol.TType.STRUCT)));
+      metaDataMap = Collections.unmodifiableMap(tmpMap);
+      org.apache.thrift.meta_data.FieldMetaData.addStructMetaDataMap(setBulk_result.class, metaDataMap);
+    }
+
+    public setBulk_result() {
+    }
+
+    public setBulk_result(
+      KeyValueStoreIOException ioException,
+      KeyValueStoreException keyValueStoreException)
+    {
+      this();
+      this.ioException = ioException;
+      this.keyValueStoreException = keyValueStoreException;
+    }
+
+    /**
+     * Performs a deep copy on <i>other</i>.
+     */
+    public setBulk_result(setBulk_result other) {
+      if (other.isSetIoException()) {
+        this.ioException = new KeyValueStoreIOException(other.ioException);
+      }
+      if (other.isSetKeyValueStoreException()) {
+        this.keyValueStoreException = new KeyValueStoreException(other.keyValueStoreException);
+      }
+    }
+
+    public setBulk_result deepCopy() {
+      return new setBulk_result(this);
+    }
+
+    @Override
+    public void clear() {
+      this.ioException = null;
+      this.keyValueStoreException = null;
+    }
+
+    public KeyValueStoreIOException getIoException() {
+      return this.ioException;
+    }
+
+    public void setIoException(KeyValueStoreIOException ioException) {
+      this.ioException = ioException;
+    }
+
+    public void unsetIoException() {
+      this.ioException = null;
+    }
+
+    /** Returns true if field ioException is set (has been assigned a value) and false otherwise */
+    public boolean isSetIoException() {
+      return this.ioException != null;
+    }
+
+    public void setIoExceptionIsSet(boolean value) {
+      if (!value) {
+        this.ioException = null;
+      }
+    }
+
+    public KeyValueStoreException getKeyValueStoreException() {
+      return this.keyValueStoreException;
+    }
+
+    public void setKeyValueStoreException(KeyValueStoreException keyValueStoreException) {
+      this.keyValueStoreException = keyValueStoreException;
+    }
+
+    public void unsetKeyValueStoreException() {
+      this.keyValueStoreException = null;
+    }
+
+    /** Returns true if field keyValueStoreException is set (has been assigned a value) and false otherwise */
+    public boolean isSetKeyValueStoreException() {
+      return this.keyValueStoreException != null;
+    }
+
+    public void setKeyValueStoreExceptionIsSet(boolean value) {
+      if (!value) {
+        this.keyValueStoreException = null;
+      }
+    }
+
+    public void setFieldValue(_Fields field, Object value) {
+      switch (field) {
+      case IO_EXCEPTION:
+        if (value == null) {
+          unsetIoException();
+        } else {
+          setIoException((KeyValueStoreIOException)value);
+        }
+        break;
+
+      case KEY_VALUE_STORE_EXCEPTION:
+        if (value == null) {
+          unsetKeyValueStoreException();
+        } else {
+          setKeyValueStoreException((KeyValueStoreException)value);
+        }
+        break;
+
+      }
+    }
+
+    public Object getFieldValue(_Fields field) {
+      switch (field) {
+      case IO_EXCEPTION:
+        return getIoException();
+
+      case KEY_VALUE_STORE_EXCEPTION:
+        return getKeyValueStoreException();
+
+      }
+      throw new IllegalStateException();
+    }
+
+    /** Returns true if field corresponding to fieldID is set (has been assigned a value) and false otherwise */
+    public boolean isSet(_Fields field) {
+      if (field == null) {
+        throw new IllegalArgumentException();
+      }
+
+      switch (field) {
+      case IO_EXCEPTION:
+        return isSetIoException();
+      case KEY_VALUE_STORE_EXCEPTION:
+        return isSetKeyValueStoreException();
+      }
+      throw new IllegalStateException();
+    }
+
+    @Override
+    public boolean equals(Object that) {
+      if (that == null)
+        return false;
+      if (that instanceof setBulk_result)
+        return this.equals((setBulk_result)that);
+      return false;
+    }
+
+    public boolean equals(setBulk_result that) {
+      if (that == null)
+        return false;
+
+      boolean this_present_ioException = true && this.isSetIoException();
+      boolean that_present_ioException = true && that.isSetIoException();
+      if (this_present_ioException || that_present_ioException) {
+        if (!(this_present_ioException && that_present_ioException))
+          return false;
+        if (!this.ioException.equals(that.ioException))
+          return false;
+      }
+
+      boolean this_present_keyValueStoreException = true && this.isSetKeyValueStoreException();
+      boolean that_present_keyValueStoreException = true && that.isSetKeyValueStoreException();
+      if (this_present_keyValueStoreException || that_present_keyValueStoreException) {
+        if (!(this_present_keyValueStoreException && that_present_keyValueStoreException))
+          return false;
+        if (!this.keyValueStoreException.equals(that.keyValueStoreException))
+          return false;
+      }
+
+      return true;
+    }
+
+    @Override
+    public int hashCode() {
+      HashCodeBuilder builder = new HashCodeBuilder();
+
+      boolean present_ioException = true && (isSetIoException());
+      builder.append(present_ioException);
+      if (present_ioException)
+        builder.append(ioException);
+
+      boolean present_keyValueStoreException = true && (isSetKeyValueStoreException());
+      builder.append(present_keyValueStoreException);
+      if (present_keyValueStoreException)
+        builder.append(keyValueStoreException);
+
+      return builder.toHashCode();
+    }
+
+    public int compareTo(setBulk_result other) {
+      if (!getClass().equals(other.getClass())) {
+        return getClass().getName().compareTo(other.getClass().getName());
+      }
+
+      int lastComparison = 0;
+      setBulk_result typedOther = (setBulk_result)other;
+
+      lastComparison = Boolean.valueOf(isSetIoException()).compareTo(typedOther.isSetIoException());
+      if (lastComparison != 0) {
+        return lastComparison;
+      }
+      if (isSetIoException()) {
+        lastComparison = org.apache.thrift.TBaseHelper.compareTo(this.ioException, typedOther.ioException);
+        if (lastComparison != 0) {
+          return lastComparison;
+        }
+      }
+      lastComparison = Boolean.valueOf(isSetKeyValueStoreException()).compareTo(typedOther.isSetKeyValueStoreException());
+      if (lastComparison != 0) {
+        return lastComparison;
+      }
+      if (isSetKeyValueStoreException()) {
+        lastComparison = org.apache.thrift.TBaseHelper.compareTo(this.keyValueStoreException, typedOther.keyValueStoreException);
+        if (lastComparison != 0) {
+          return lastComparison;
+        }
+      }
+      return 0;
+    }
+
+    public _Fields fieldForId(int fieldId) {
+      return _Fields.findByThriftId(fieldId);
+    }
+
+    public void read(org.apache.thrift.protocol.TProtocol iprot) throws org.apache.thrift.TException {
+      schemes.get(iprot.getScheme()).getScheme().read(iprot, this);
+    }
+
+    public void write(org.apache.thrift.protocol.TProtocol oprot) throws org.apache.thrift.TException {
+      schemes.get(oprot.getScheme()).getScheme().write(oprot, this);
+      }
+
+    @Override
+    public String toString() {
+      StringBuilder sb = new StringBuilder("setBulk_result(");
+      boolean first = true;
+
+      sb.append("ioException:");
+      if (this.ioException == null) {
+        sb.append("null");
+      } else {
+        sb.append(this.ioException);
+      }
+      first = false;
+      if (!first) sb.append(", ");
+      sb.append("keyValueStoreException:");
+      if (this.keyValueStoreException == null) {
+        sb.append("null");
+      } else {
+        sb.append(this.keyValueStoreException);
+      }
+      first = false;
+      sb.append(")");
+      return sb.toString();
+    }
+
+    public void validate() throws org.apache.thrift.TException {
+      // check for required fields
+    }
+
+    private void writeObject(java.io.ObjectOutputStream out) throws java.io.IOException {
+      try {
+        write(new org.apache.thrift.protocol.TCompactProtocol(new org.apache.thrift.transport.TIOStreamTransport(out)));
+      } catch (org.apache.thrift.TException te) {
+        throw new java.io.IOException(te);
+      }
+    }
+
+    private void readObject(java.io.ObjectInputStream in) throws java.io.IOException, ClassNotFoundException {
+      try {
+        read(new org.apache.thrift.protocol.TCompactProtocol(new org.apache.thrift.transport.TIOStreamTransport(in)));
+      } catch (org.apache.thrift.TException te) {
+        throw new java.io.IOException(te);
+      }
+    }
+
+    private static class setBulk_resultStandardSchemeFactory implements SchemeFactory {
+      public setBulk_resultStandardScheme getScheme() {
+        return new setBulk_resultStandardScheme();
+      }
+    }
+
+    private static class setBulk_resultStandardScheme extends StandardScheme<setBulk_result> {
+
+      public void read(org.apache.thrift.protocol.TProtocol iprot, setBulk_result struct) throws org.apache.thrift.TException {
+        org.apache.thrift.protocol.TField schemeField;
+        iprot.readStructBegin();
+        while (true)
+        {
+          schemeField = iprot.readFieldBegin();
+          if (schemeField.type == org.apache.thrift.protocol.TType.STOP) { 
+            break;
+          }
+          switch (schemeField.id) {
+            case 1: // IO_EXCEPTION
+              if (schemeField.type == org.apache.thrift.protocol.TType.STRUCT) {
+                struct.ioException = new KeyValueStoreIOException();
+                struct.ioException.read(iprot);
+                struct.setIoExceptionIsSet(true);
+              } else { 
+                org.apache.thrift.protocol.TProtocolUtil.skip(iprot, schemeField.type);
+              }
+              break;
+            case 2: // KEY_VALUE_STORE_EXCEPTION
+              if (schemeField.type == org.apache.thrift.protocol.TType.STRUCT) {
+                struct.keyValueStoreException = new KeyValueStoreException();
+                struct.keyValueStoreException.read(iprot);
+                struct.setKeyValueStoreExceptionIsSet(true);
+              } else { 
+                org.apache.thrift.protocol.TProtocolUtil.skip(iprot, schemeField.type);
+              }
+              break;
+            default:
+              org.apache.thrift.protocol.TProtocolUtil.skip(iprot, schemeField.type);
+          }
+          iprot.readFieldEnd();
+        }
+        iprot.readStructEnd();
+        struct.validate();
+      }
+
+      public void write(org.apache.thrift.protocol.TProtocol oprot, setBulk_result struct) throws org.apache.thrift.TException {
+        struct.validate();
+
+        oprot.writeStructBegin(STRUCT_DESC);
+        if (struct.ioException != null) {
+          oprot.writeFieldBegin(IO_EXCEPTION_FIELD_DESC);
+          struct.ioException.write(oprot);
+          oprot.writeFieldEnd();
+        }
+        if (struct.keyValueStoreException != null) {
+          oprot.writeFieldBegin(KEY_VALUE_STORE_EXCEPTION_FIELD_DESC);
+          struct.keyValueStoreException.write(oprot);
+          oprot.writeFieldEnd();
+        }
+        oprot.writeFieldStop();
+        oprot.writeStructEnd();
+      }
+
+    }
+
+    private static class setBulk_resultTupleSchemeFactory implements SchemeFactory {
+      public setBulk_resultTupleScheme getScheme() {
+        return new setBulk_resultTupleScheme();
+      }
+    }
+
+    private static class setBulk_resultTupleScheme extends TupleScheme<setBulk_result> {
+
+      @Override
+      public void write(org.apache.thrift.protocol.TProtocol prot, setBulk_result struct) throws org.apache.thrift.TException {
+        TTupleProtocol oprot = (TTupleProtocol) prot;
+        BitSet optionals = new BitSet();
+        if (struct.isSetIoException()) {
+          optionals.set(0);
+        }
+        if (struct.isSetKeyValueStoreException()) {
+          optionals.set(1);
+        }
+        oprot.writeBitSet(optionals, 2);
+        if (struct.isSetIoException()) {
+          struct.ioException.write(oprot);
+        }
+        if (struct.isSetKeyValueStoreException()) {
+          struct.keyValueStoreException.write(oprot);
+        }
+      }
+
+      @Override
+      public void read(org.apache.thrift.protocol.TProtocol prot, setBulk_result struct) throws org.apache.thrift.TException {
+        TTupleProtocol iprot = (TTupleProtocol) prot;
+        BitSet incoming = iprot.readBitSet(2);
+        if (incoming.get(0)) {
+          struct.ioException = new KeyValueStoreIOException();
+          struct.ioException.read(iprot);
+          struct.setIoExceptionIsSet(true);
+        }
+        if (incoming.get(1)) {
+          struct.keyValueStoreException = new KeyValueStoreException();
+          struct.keyValueStoreException.read(iprot);
+          struct.setKeyValueStoreExceptionIsSet(true);
+        }
+      }
+    }
+
+  }
+
+
+  public static class deleteBulk_args implements org.apache.thrift.TBase<deleteBulk_args, deleteBulk_args._Fields>, java.io.Serializable, Cloneable   {
+    private static final org.apache.thrift.protocol.TStruct STRUCT_DESC = new org.apache.thrift.protocol.TStruct("deleteBulk_args");
+
+    private static final org.apache.thrift.protocol.TField KEYS_FIELD_DESC = new org.apache.thrift.protocol.TField("keys", org.apache.thrift.protocol.TType.LIST, (short)1);
+
+    private static final Map<Class<? extends IScheme>, SchemeFactory> schemes = new HashMap<Class<? extends IScheme>, SchemeFactory>();
+    static {
+      schemes.put(StandardScheme.class, new deleteBulk_argsStandardSchemeFactory());
+      schemes.put(TupleScheme.class, new deleteBulk_argsTupleSchemeFactory());
+    }
+
+    private List<String> keys; // required
+
+    /** The set of fields this struct contains, along with convenience methods for finding and manipulating them. */
+    public enum _Fields implements org.apache.thrift.TFieldIdEnum {
+      KEYS((short)1, "keys");
+
+      private static final Map<String, _Fields> byName = new HashMap<String, _Fields>();
+
+      static {
+        for (_Fields field : EnumSet.allOf(_Fields.class)) {
+          byName.put(field.getFieldName(), field);
+        }
+      }
+
+      /**
+       * Find the _Fields constant that matches fieldId, or null if its not found.
+       */
+      public static _Fields findByThriftId(int fieldId) {
+        switch(fieldId) {
+          case 1: // KEYS
+            return KEYS;
+          default:
+            return null;
+        }
+      }
+
+      /**
+       * Find the _Fields constant that matches fieldId, throwing an exception
+       * if it is not found.
+       */
+      public static _Fields findByThriftIdOrThrow(int fieldId) {
+        _Fields fields = findByThriftId(fieldId);
+        if (fields == null) throw new IllegalArgumentException("Field " + fieldId + " doesn't exist!");
+        return fields;
+      }
+
+      /**
+       * Find the _Fields constant that matches name, or null if its not found.
+       */
+      public static _Fields findByName(String name) {
+        return byName.get(name);
+      }
+
+      private final short _thriftId;
+      private final String _fieldName;
+
+      _Fields(short thriftId, String fieldName) {
+        _thriftId = thriftId;
+        _fieldName = fieldName;
+      }
+
+      public short getThriftFieldId() {
+        return _thriftId;
+      }
+
+      public String getFieldName() {
+        return _fieldName;
+      }
+    }
+
+    // isset id assignments
+    public static final Map<_Fields, org.apache.thrift.meta_data.FieldMetaData> metaDataMap;
+    static {
+      Map<_Fields, org.apache.thrift.meta_data.FieldMetaData> tmpMap = new EnumMap<_Fields, org.apache.thrift.meta_data.FieldMetaData>(_Fields.class);
+      tmpMap.put(_Fields.KEYS, new org.apache.thrift.meta_data.FieldMetaData("keys", org.apache.thrift.TFieldRequirementType.DEFAULT, 
+          new org.apache.thrift.meta_data.ListMetaData(org.apache.thrift.protocol.TType.LIST, 
+              new org.apache.thrift.meta_data.FieldValueMetaData(org.apache.thrift.protocol.TType.STRING))));
+      metaDataMap = Collections.unmodifiableMap(tmpMap);
+      org.apache.thrift.meta_data.FieldMetaData.addStructMetaDataMap(deleteBulk_args.class, metaDataMap);
+    }
+
+    public deleteBulk_args() {
+    }
+
+    public deleteBulk_args(
+      List<String> keys)
+    {
+      this();
+      this.keys = keys;
+    }
+
+    /**
+     * Performs a deep copy on <i>other</i>.
+     */
+    public deleteBulk_args(deleteBulk_args other) {
+      if (other.isSetKeys()) {
+        List<String> __this__keys = new ArrayList<String>();
+        for (String other_element : other.keys) {
+          __this__keys.add(other_element);
+        }
+        this.keys = __this__keys;
+      }
+    }
+
+    public deleteBulk_args deepCopy() {
+      return new deleteBulk_args(this);
+    }
+
+    @Override
+    public void clear() {
+      this.keys = null;
+    }
+
+    public int getKeysSize() {
+      return (this.keys == null) ? 0 : this.keys.size();
+    }
+
+    public java.util.Iterator<String> getKeysIterator() {
+      return (this.keys == null) ? null : this.keys.iterator();
+    }
+
+    public void addToKeys(String elem) {
+      if (this.keys == null) {
+        this.keys = new ArrayList<String>();
+      }
+      this.keys.add(elem);
+    }
+
+    public List<String> getKeys() {
+      return this.keys;
+    }
+
+    public void setKeys(List<String> keys) {
+      this.keys = keys;
+    }
+
+    public void unsetKeys() {
+      this.keys = null;
+    }
+
+    /** Returns true if field keys is set (has been assigned a value) and false otherwise */
+    public boolean isSetKeys() {
+      return this.keys != null;
+    }
+
+    public void setKeysIsSet(boolean value) {
+      if (!value) {
+        this.keys = null;
+      }
+    }
+
+    public void setFieldValue(_Fields field, Object value) {
+      switch (field) {
+      case KEYS:
+        if (value == null) {
+          unsetKeys();
+        } else {
+          setKeys((List<String>)value);
+        }
+        break;
+
+      }
+    }
+
+    public Object getFieldValue(_Fields field) {
+      switch (field) {
+      case KEYS:
+        return getKeys();
+
+      }
+      throw new IllegalStateException();
+    }
+
+    /** Returns true if field corresponding to fieldID is set (has been assigned a value) and false otherwise */
+    public boolean isSet(_Fields field) {
+      if (field == null) {
+        throw new IllegalArgumentException();
+      }
+
+      switch (field) {
+      case KEYS:
+        return isSetKeys();
+      }
+      throw new IllegalStateException();
+    }
+
+    @Override
+    public boolean equals(Object that) {
+      if (that == null)
+        return false;
+      if (that instanceof deleteBulk_args)
+        return this.equals((deleteBulk_args)that);
+      return false;
+    }
+
+    public boolean equals(deleteBulk_args that) {
+      if (that == null)
+        return false;
+
+      boolean this_present_keys = true && this.isSetKeys();
+      boolean that_present_keys = true && that.isSetKeys();
+      if (this_present_keys || that_present_keys) {
+        if (!(this_present_keys && that_present_keys))
+          return false;
+        if (!this.keys.equals(that.keys))
+          return false;
+      }
+
+      return true;
+    }
+
+    @Override
+    public int hashCode() {
+      HashCodeBuilder builder = new HashCodeBuilder();
+
+      boolean present_keys = true && (isSetKeys());
+      builder.append(present_keys);
+      if (present_keys)
+        builder.append(keys);
+
+      return builder.toHashCode();
+    }
+
+    public int compareTo(deleteBulk_args other) {
+      if (!getClass().equals(other.getClass())) {
+        return getClass().getName().compareTo(other.getClass().getName());
+      }
+
+      int lastComparison = 0;
+      deleteBulk_args typedOther = (deleteBulk_args)other;
+
+      lastComparison = Boolean.valueOf(isSetKeys()).compareTo(typedOther.isSetKeys());
+      if (lastComparison != 0) {
+        return lastComparison;
+      }
+      if (isSetKeys()) {
+        lastComparison = org.apache.thrift.TBaseHelper.compareTo(this.keys, typedOther.keys);
+        if (lastComparison != 0) {
+          return lastComparison;
+        }
+      }
+      return 0;
+    }
+
+    public _Fields fieldForId(int fieldId) {
+      return _Fields.findByThriftId(fieldId);
+    }
+
+    public void read(org.apache.thrift.protocol.TProtocol iprot) throws org.apache.thrift.TException {
+      schemes.get(iprot.getScheme()).getScheme().read(iprot, this);
+    }
+
+    public void write(org.apache.thrift.protocol.TProtocol oprot) throws org.apache.thrift.TException {
+      schemes.get(oprot.getScheme()).getScheme().write(oprot, this);
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder sb = new StringBuilder("deleteBulk_args(");
+      boolean first = true;
+
+      sb.append("keys:");
+      if (this.keys == null) {
+        sb.append("null");
+      } else {
+        sb.append(this.keys);
+      }
+      first = false;
+      sb.append(")");
+      return sb.toString();
+    }
+
+    public void validate() throws org.apache.thrift.TException {
+      // check for required fields
+    }
+
+    private void writeObject(java.io.ObjectOutputStream out) throws java.io.IOException {
+      try {
+        write(new org.apache.thrift.protocol.TCompactProtocol(new org.apache.thrift.transport.TIOStreamTransport(out)));
+      } catch (org.apache.thrift.TException te) {
+        throw new java.io.IOException(te);
+      }
+    }
+
+    private void readObject(java.io.ObjectInputStream in) throws java.io.IOException, ClassNotFoundException {
+      try {
+        read(new org.apache.thrift.protocol.TCompactProtocol(new org.apache.thrift.transport.TIOStreamTransport(in)));
+      } catch (org.apache.thrift.TException te) {
+        throw new java.io.IOException(te);
+      }
+    }
+
+    private static class deleteBulk_argsStandardSchemeFactory implements SchemeFactory {
+      public deleteBulk_argsStandardScheme getScheme() {
+        return new deleteBulk_argsStandardScheme();
+      }
+    }
+
+    private static class deleteBulk_argsStandardScheme extends StandardScheme<deleteBulk_args> {
+
+      public void read(org.apache.thrift.protocol.TProtocol iprot, deleteBulk_args struct) throws org.apache.thrift.TException {
+        org.apache.thrift.protocol.TField schemeField;
+        iprot.readStructBegin();
+        while (true)
+        {
+          schemeField = iprot.readFieldBegin();
+          if (schemeField.type == org.apache.thrift.protocol.TType.STOP) { 
+            break;
+          }
+          switch (schemeField.id) {
+            case 1: // KEYS
+              if (schemeField.type == org.apache.thrift.protocol.TType.LIST) {
+                {
+                  org.apache.thrift.protocol.TList _list0 = iprot.readListBegin();
+                  struct.keys = new ArrayList<String>(_list0.size);
+                  for (int _i1 = 0; _i1 < _list0.size; ++_i1)
+                  {
+                    String _elem2; // required
+                    _elem2 = iprot.readString();
+                    struct.keys.add(_elem2);
+                  }
+                  iprot.readListEnd();
+                }
+                struct.setKeysIsSet(true);
+              } else { 
+                org.apache.thrift.protocol.TProtocolUtil.skip(iprot, schemeField.type);
+              }
+              break;
+            default:
+              org.apache.thrift.protocol.TProtocolUtil.skip(iprot, schemeField.type);
+          }
+          iprot.readFieldEnd();
+        }
+        iprot.readStructEnd();
+        struct.validate();
+      }
+
+      public void write(org.apache.thrift.protocol.TProtocol oprot, deleteBulk_args struct) throws org.apache.thrift.TException {
+        struct.validate();
+
+        oprot.writeStructBegin(STRUCT_DESC);
+        if (struct.keys != null) {
+          oprot.writeFieldBegin(KEYS_FIELD_DESC);
+          {
+            oprot.writeListBegin(new org.apache.thrift.protocol.TList(org.apache.thrift.protocol.TType.STRING, struct.keys.size()));
+            for (String _iter3 : struct.keys)
+            {
+              oprot.writeString(_iter3);
+            }
+            oprot.writeListEnd();
+          }
+          oprot.writeFieldEnd();
+        }
+        oprot.writeFieldStop();
+        oprot.writeStructEnd();
+      }
+
+    }
+
+    private static class deleteBulk_argsTupleSchemeFactory implements SchemeFactory {
+      public deleteBulk_argsTupleScheme getScheme() {
+        return new deleteBulk_argsTupleScheme();
+      }
+    }
+
+    private static class deleteBulk_argsTupleScheme extends TupleScheme<deleteBulk_args> {
+
+      @Override
+      public void write(org.apache.thrift.protocol.TProtocol prot, deleteBulk_args struct) throws org.apache.thrift.TException {
+        TTupleProtocol oprot = (TTupleProtocol) prot;
+        BitSet optionals = new BitSet();
+        if (struct.isSetKeys()) {
+          optionals.set(0);
+        }
+        oprot.writeBitSet(optionals, 1);
+        if (struct.isSetKeys()) {
+          {
+            oprot.writeI32(struct.keys.size());
+            for (String _iter4 : struct.keys)
+            {
+              oprot.writeString(_iter4);
+            }
+          }
+        }
+      }
+
+      @Override
+      public void read(org.apache.thrift.protocol.TProtocol prot, deleteBulk_args struct) throws org.apache.thrift.TException {
+        TTupleProtocol iprot = (TTupleProtocol) prot;
+        BitSet incoming = iprot.readBitSet(1);
+        if (incoming.get(0)) {
+          {
+            org.apache.thrift.protocol.TList _list5 = new org.apache.thrift.protocol.TList(org.apache.thrift.protocol.TType.STRING, iprot.readI32());
+            struct.keys = new ArrayList<String>(_list5.size);
+            for (int _i6 = 0; _i6 < _list5.size; ++_i6)
+            {
+              String _elem7; // required
+              _elem7 = iprot.readString();
+              struct.keys.add(_elem7);
+            }
+          }
+          struct.setKeysIsSet(true);
+        }
+      }
+    }
+
+  }
+
+
+  public static class deleteBulk_result implements org.apache.thrift.TBase<deleteBulk_result, deleteBulk_result._Fields>, java.io.Serializable, Cloneable   {
+    private static final org.apache.thrift.protocol.TStruct STRUCT_DESC = new org.apache.thrift.protocol.TStruct("deleteBulk_result");
+
+    private static final org.apache.thrift.protocol.TField IO_EXCEPTION_FIELD_DESC = new org.apache.thrift.protocol.TField("ioException", org.apache.thrift.protocol.TType.STRUCT, (short)1);
+    private static final org.apache.thrift.protocol.TField KEY_VALUE_STORE_EXCEPTION_FIELD_DESC = new org.apache.thrift.protocol.TField("keyValueStoreException", org.apache.thrift.protocol.TType.STRUCT, (short)2);
+
+    private static final Map<Class<? extends IScheme>, SchemeFactory> schemes = new HashMap<Class<? extends IScheme>, SchemeFactory>();
+    static {
+      schemes.put(StandardScheme.class, new deleteBulk_resultStandardSchemeFactory());
+      schemes.put(TupleScheme.class, new deleteBulk_resultTupleSchemeFactory());
+    }
+
+    private KeyValueStoreIOException ioException; // required
+    private KeyValueStoreException keyValueStoreException; // required
+
+    /** The set of fields this struct contains, along with convenience methods for finding and manipulating them. */
+    public enum _Fields implements org.apache.thrift.TFieldIdEnum {
+      IO_EXCEPTION((short)1, "ioException"),
+      KEY_VALUE_STORE_EXCEPTION((short)2, "keyValueStoreException");
+
+      private static final Map<String, _Fields> byName = new HashMap<String, _Fields>();
+
+      static {
+        for (_Fields field : EnumSet.allOf(_Fields.class)) {
+          byName.put(field.getFieldName(), field);
+        }
+      }
+
+      /**
+       * Find the _Fields constant that matches fieldId, or null if its not found.
+       */
+      public static _Fields findByThriftId(int fieldId) {
+        switch(fieldId) {
+          case 1: // IO_EXCEPTION
+            return IO_EXCEPTION;
+          case 2: // KEY_VALUE_STORE_EXCEPTION
+            return KEY_VALUE_STORE_EXCEPTION;
+          default:
+            return null;
+        }
+      }
+
+      /**
+       * Find the _Fields constant that matches fieldId, throwing an exception
+       * if it is not found.
+       */
+      public static _Fields findByThriftIdOrThrow(int fieldId) {
+        _Fields fields = findByThriftId(fieldId);
+        if (fields == null) throw new IllegalArgumentException("Field " + fieldId + " doesn't exist!");
+        return fields;
+      }
+
+      /**
+       * Find the _Fields constant that matches name, or null if its not found.
+       */
+      public static _Fields findByName(String name) {
+        return byName.get(name);
+      }
+
+      private final short _thriftId;
+      private final String _fieldName;
+
+      _Fields(short thriftId, String fieldName) {
+        _thriftId = thriftId;
+        _fieldName = fieldName;
+      }
+
+      public short getThriftFieldId() {
+        return _thriftId;
+      }
+
+      public String getFieldName() {
+        return _fieldName;
+      }
+    }
+
+    // isset id assignments
+    public static final Map<_Fields, org.apache.thrift.meta_data.FieldMetaData> metaDataMap;
+    static {
+      Map<_Fields, org.apache.thrift.meta_data.FieldMetaData> tmpMap = new EnumMap<_Fields, org.apache.thrift.meta_data.FieldMetaData>(_Fields.class);
+      tmpMap.put(_Fields.IO_EXCEPTION, new org.apache.thrift.meta_data.FieldMetaData("ioException", org.apache.thrift.TFieldRequirementType.DEFAULT, 
+          new org.apache.thrift.meta_data.FieldValueMetaData(org.apache.thrift.protocol.TType.STRUCT)));
+      tmpMap.put(_Fields.KEY_VALUE_STORE_EXCEPTION, new org.apache.thrift.meta_data.FieldMetaData("keyValueStoreException", org.apache.thrift.TFieldRequirementType.DEFAULT, 
+          new org.apache.thrift.meta_data.FieldValueMetaData(org.apache.thrift.protocol.TType.STRUCT)));
+      metaDataMap = Collections.unmodifiableMap(tmpMap);
+      org.apache.thrift.meta_data.FieldMetaData.addStructMetaDataMap(deleteBulk_result.class, metaDataMap);
+    }
+
+    public deleteBulk_result() {
+    }
+
+    public deleteBulk_result(
+      KeyValueStoreIOException ioException,
+      KeyValueStoreException keyValueStoreException)
+    {
+      this();
+      this.ioException = ioException;
+      this.keyValueStoreException = keyValueStoreException;
+    }
+
+    /**
+     * Performs a deep copy on <i>other</i>.
+     */
+    public deleteBulk_result(deleteBulk_result other) {
+      if (other.isSetIoException()) {
+        this.ioException = new KeyValueStoreIOException(other.ioException);
+      }
+      if (other.isSetKeyValueStoreException()) {
+        this.keyValueStoreException = new KeyValueStoreException(other.keyValueStoreException);
+      }
+    }
+
+    public deleteBulk_result deepCopy() {
+      return new deleteBulk_result(this);
+    }
+
+    @Override
+    public void clear() {
+      this.ioException = null;
+      this.keyValueStoreException = null;
+    }
+
+    public KeyValueStoreIOException getIoException() {
+      return this.ioException;
+    }
+
+    public void setIoException(KeyValueStoreIOException ioException) {
+      this.ioException = ioException;
+    }
+
+    public void unsetIoException() {
+      this.ioException = null;
+    }
+
+    /** Returns true if field ioException is set (has been assigned a value) and false otherwise */
+    public boolean isSetIoException() {
+      return this.ioException != null;
+    }
+
+    public void setIoExceptionIsSet(boolean value) {
+      if (!value) {
+        this.ioException = null;
+      }
+    }
+
+    public KeyValueStoreException getKeyValueStoreException() {
+      return this.keyValueStoreException;
+    }
+
+    public void setKeyValueStoreException(KeyValueStoreException keyValueStoreException) {
+      this.keyValueStoreException = keyValueStoreException;
+    }
+
+    public void unsetKeyValueStoreException() {
+      this.keyValueStoreException = null;
+    }
+
+    /** Returns true if field keyValueStoreException is set (has been assigned a value) and false otherwise */
+    public boolean isSetKeyValueStoreException() {
+      return this.keyValueStoreException != null;
+    }
+
+    public void setKeyValueStoreExceptionIsSet(boolean value) {
+      if (!value) {
+        this.keyValueStoreException = null;
+      }
+    }
+
+    public void setFieldValue(_Fields field, Object value) {
+      switch (field) {
+      case IO_EXCEPTION:
+        if (value == null) {
+          unsetIoException();
+        } else {
+          setIoException((KeyValueStoreIOException)value);
+        }
+        break;
+
+      case KEY_VALUE_STORE_EXCEPTION:
+        if (value == null) {
+          unsetKeyValueStoreException();
+        } else {
+          setKeyValueStoreException((KeyValueStoreException)value);
+        }
+        break;
+
+      }
+    }
+
+    public Object getFieldValue(_Fields field) {
+      switch (field) {
+      case IO_EXCEPTION:
+        return getIoException();
+
+      case KEY_VALUE_STORE_EXCEPTION:
+        return getKeyValueStoreException();
+
+      }
+      throw new IllegalStateException();
+    }
+
+    /** Returns true if field corresponding to fieldID is set (has been assigned a value) and false otherwise */
+    public boolean isSet(_Fields field) {
+      if (field == null) {
+        throw new IllegalArgumentException();
+      }
+
+      switch (field) {
+      case IO_EXCEPTION:
+        return isSetIoException();
+      case KEY_VALUE_STORE_EXCEPTION:
+        return isSetKeyValueStoreException();
+      }
+      throw new IllegalStateException();
+    }
+
+    @Override
+    public boolean equals(Object that) {
+      if (that == null)
+        return false;
+      if (that instanceof deleteBulk_result)
+        return this.equals((deleteBulk_result)that);
+      return false;
+    }
+
+    public boolean equals(deleteBulk_result that) {
+      if (that == null)
+        return false;
+
+      boolean this_present_ioException = true && this.isSetIoException();
+      boolean that_present_ioException = true && that.isSetIoException();
+      if (this_present_ioException || that_present_ioException) {
+        if (!(this_present_ioException && that_present_ioException))
+          return false;
+        if (!this.ioException.equals(that.ioException))
+          return false;
+      }
+
+      boolean this_present_keyValueStoreException = true && this.isSetKeyValueStoreException();
+      boolean that_present_keyValueStoreException = true && that.isSetKeyValueStoreException();
+      if (this_present_keyValueStoreException || that_present_keyValueStoreException) {
+        if (!(this_present_keyValueStoreException && that_present_keyValueStoreException))
+          return false;
+        if (!this.keyValueStoreException.equals(that.keyValueStoreException))
+          return false;
+      }
+
+      return true;
+    }
+
+    @Override
+    public int hashCode() {
+      HashCodeBuilder builder = new HashCodeBuilder();
+
+      boolean present_ioException = true && (isSetIoException());
+      builder.append(present_ioException);
+      if (present_ioException)
+        builder.append(ioException);
+
+      boolean present_keyValueStoreException = true && (isSetKeyValueStoreException());
+      builder.append(present_keyValueStoreException);
+      if (present_keyValueStoreException)
+        builder.append(keyValueStoreException);
+
+      return builder.toHashCode();
+    }
+
+    public int compareTo(deleteBulk_result other) {
+      if (!getClass().equals(other.getClass())) {
+        return getClass().getName().compareTo(other.getClass().getName());
+      }
+
+      int lastComparison = 0;
+      deleteBulk_result typedOther = (deleteBulk_result)other;
+
+      lastComparison = Boolean.valueOf(isSetIoException()).compareTo(typedOther.isSetIoException());
+      if (lastComparison != 0) {
+        return lastComparison;
+      }
+      if (isSetIoException()) {
+        lastComparison = org.apache.thrift.TBaseHelper.compareTo(this.ioException, typedOther.ioException);
+        if (lastComparison != 0) {
+          return lastComparison;
+        }
+      }
+      lastComparison = Boolean.valueOf(isSetKeyValueStoreException()).compareTo(typedOther.isSetKeyValueStoreException());
+      if (lastComparison != 0) {
+        return lastComparison;
+      }
+      if (isSetKeyValueStoreException()) {
+        lastComparison = org.apache.thrift.TBaseHelper.compareTo(this.keyValueStoreException, typedOther.keyValueStoreException);
+        if (lastComparison != 0) {
+          return lastComparison;
+        }
+      }
+      return 0;
+    }
+
+    public _Fields fieldForId(int fieldId) {
+      return _Fields.findByThriftId(fieldId);
+    }
+
+    public void read(org.apache.thrift.protocol.TProtocol iprot) throws org.apache.thrift.TException {
+      schemes.get(iprot.getScheme()).getScheme().read(iprot, this);
+    }
+
+    public void write(org.apache.thrift.protocol.TProtocol oprot) throws org.apache.thrift.TException {
+      schemes.get(oprot.getScheme()).getScheme().write(oprot, this);
+      }
+
+    @Override
+    public String toString() {
+      StringBuilder sb = new StringBuilder("deleteBulk_result(");
+      boolean first = true;
+
+      sb.append("ioException:");
+      if (this.ioException == null) {
+        sb.append("null");
+      } else {
+        sb.append(this.ioException);
+      }
+      first = false;
+      if (!first) sb.append(", ");
+      sb.append("keyValueStoreException:");
+      if (this.keyValueStoreException == null) {
+        sb.append("null");
+      } else {
+        sb.append(this.keyValueStoreException);
+      }
+      first = false;
+      sb.append(")");
+      return sb.toString();
+    }
+
+    public void validate() throws org.apache.thrift.TException {
+      // check for required fields
+    }
+
+    private void writeObject(java.io.ObjectOutputStream out) throws java.io.IOException {
+      try {
+        write(new org.apache.thrift.protocol.TCompactProtocol(new org.apache.thrift.transport.TIOStreamTransport(out)));
+      } catch (org.apache.thrift.TException te) {
+        throw new java.io.IOException(te);
+      }
+    }
+
+    private void readObject(java.io.ObjectInputStream in) throws java.io.IOException, ClassNotFoundException {
+      try {
+        read(new org.apache.thrift.protocol.TCompactProtocol(new org.apache.thrift.transport.TIOStreamTransport(in)));
+      } catch (org.apache.thrift.TException te) {
+        throw new java.io.IOException(te);
+      }
+    }
+
+    private static class deleteBulk_resultStandardSchemeFactory implements SchemeFactory {
+      public deleteBulk_resultStandardScheme getScheme() {
+        return new deleteBulk_resultStandardScheme();
+      }
+    }
+
+    private static class deleteBulk_resultStandardScheme extends StandardScheme<deleteBulk_result> {
+
+      public void read(org.apache.thrift.protocol.TProtocol iprot, deleteBulk_result struct) throws org.apache.thrift.TException {
+        org.apache.thrift.protocol.TField schemeField;
+        iprot.readStructBegin();
+        while (true)
+        {
+          schemeField = iprot.readFieldBegin();
+          if (schemeField.type == org.apache.thrift.protocol.TType.STOP) { 
+            break;
+          }
+          switch (schemeField.id) {
+            case 1: // IO_EXCEPTION
+              if (schemeField.type == org.apache.thrift.protocol.TType.STRUCT) {
+                struct.ioException = new KeyValueStoreIOException();
+                struct.ioException.read(iprot);
+                struct.setIoExceptionIsSet(true);
+              } else { 
+                org.apache.thrift.protocol.TProtocolUtil.skip(iprot, schemeField.type);
+              }
+              break;
+            case 2: // KEY_VALUE_STORE_EXCEPTION
+              if (schemeField.type == org.apache.thrift.protocol.TType.STRUCT) {
+                struct.keyValueStoreException = new KeyValueStoreException();
+                struct.keyValueStoreException.read(iprot);
+                struct.setKeyValueStoreExceptionIsSet(true);
+              } else { 
+                org.apache.thrift.protocol.TProtocolUtil.skip(iprot, schemeField.type);
+              }
+              break;
+            default:
+              org.apache.thrift.protocol.TProtocolUtil.skip(iprot, schemeField.type);
+          }
+          iprot.readFieldEnd();
+        }
+        iprot.readStructEnd();
+        struct.validate();
+      }
+
+      public void write(org.apache.thrift.protocol.TProtocol oprot, deleteBulk_result struct) throws org.apache.thrift.TException {
+        struct.validate();
+
+        oprot.writeStructBegin(STRUCT_DESC);
+        if (struct.ioException != null) {
+          oprot.writeFieldBegin(IO_EXCEPTION_FIELD_DESC);
+          struct.ioException.write(oprot);
+          oprot.writeFieldEnd();
+        }
+        if (struct.keyValueStoreException != null) {
+          oprot.writeFieldBegin(KEY_VALUE_STORE_EXCEPTION_FIELD_DESC);
+          struct.keyValueStoreException.write(oprot);
+          oprot.writeFieldEnd();
+        }
+        oprot.writeFieldStop();
+        oprot.writeStructEnd();
+      }
+
+    }
+
+    private static class deleteBulk_resultTupleSchemeFactory implements SchemeFactory {
+      public deleteBulk_resultTupleScheme getScheme() {
+        return new deleteBulk_resultTupleScheme();
+      }
+    }
+
+    private static class deleteBulk_resultTupleScheme extends TupleScheme<deleteBulk_result> {
+
+      @Override
+      public void write(org.apache.thrift.protocol.TProtocol prot, deleteBulk_result struct) throws org.apache.thrift.TException {
+        TTupleProtocol oprot = (TTupleProtocol) prot;
+        BitSet optionals = new BitSet();
+        if (struct.isSetIoException()) {
+          optionals.set(0);
+        }
+        if (struct.isSetKeyValueStoreException()) {
+          optionals.set(1);
+        }
+        oprot.writeBitSet(optionals, 2);
+        if (struct.isSetIoException()) {
+          struct.ioException.write(oprot);
+        }
+        if (struct.isSetKeyValueStoreException()) {
+          struct.keyValueStoreException.write(oprot);
+        }
+      }
+
+      @Override
+      public void read(org.apache.thrift.protocol.TProtocol prot, deleteBulk_result struct) throws org.apache.thrift.TException {
+        TTupleProtocol iprot = (TTupleProtocol) prot;
+        BitSet incoming = iprot.readBitSet(2);
+        if (incoming.get(0)) {
+          struct.ioException = new KeyValueStoreIOException();
+          struct.ioException.read(iprot);
+          struct.setIoExceptionIsSet(true);
+        }
+        if (incoming.get(1)) {
+          struct.keyValueStoreException = new KeyValueStoreException();
+          struct.keyValueStoreException.read(iprot);
+          struct.setKeyValueStoreExceptionIsSet(true);
+        }
+      }
+    }
+
+  }
+
+
 }
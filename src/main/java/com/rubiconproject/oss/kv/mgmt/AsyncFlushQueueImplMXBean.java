@@ -0,0 +1,55 @@
+package com.rubiconproject.oss.kv.mgmt;
+
+import com.rubiconproject.oss.kv.CoalescingAsyncFlushQueue;
+
+public class AsyncFlushQueueImplMXBean implements AsyncFlushQueueMXBean {
+	private CoalescingAsyncFlushQueue queue;
+
+	public AsyncFlushQueueImplMXBean(CoalescingAsyncFlushQueue queue) {
+		this.queue = queue;
+	}
+
+	public int getPendingCount() {
+		return queue.getPendingCount();
+	}
+
+	public long getOldestPendingAge() {
+		return queue.getOldestPendingAge();
+	}
+
+	public long getEnqueuedCount() {
+		return queue.getEnqueuedCount();
+	}
+
+	public long getCoalescedCount() {
+		return queue.getCoalescedCount();
+	}
+
+	public double getCoalesceRatio() {
+		return queue.getCoalesceRatio();
+	}
+
+	public long getDroppedCount() {
+		return queue.getDroppedCount();
+	}
+
+	public long getFlushCount() {
+		return queue.getFlushCount();
+	}
+
+	public long getFlushedWriteCount() {
+		return queue.getFlushedWriteCount();
+	}
+
+	public long getFailedWriteCount() {
+		return queue.getFailedWriteCount();
+	}
+
+	public double getAverageFlushLatency() {
+		return queue.getAverageFlushLatency();
+	}
+
+	public double getLastFlushLatency() {
+		return queue.getLastFlushLatency();
+	}
+}
@@ -0,0 +1,25 @@
+package com.rubiconproject.oss.kv.mgmt;
+
+public interface AsyncFlushQueueMXBean {
+	public int getPendingCount();
+
+	public long getOldestPendingAge();
+
+	public long getEnqueuedCount();
+
+	public long getCoalescedCount();
+
+	public double getCoalesceRatio();
+
+	public long getDroppedCount();
+
+	public long getFlushCount();
+
+	public long getFlushedWriteCount();
+
+	public long getFailedWriteCount();
+
+	public double getAverageFlushLatency();
+
+	public double getLastFlushLatency();
+}
@@ -0,0 +1,73 @@
+package com.rubiconproject.oss.kv.mgmt;
+
+import java.io.IOException;
+
+import com.rubiconproject.oss.kv.KeyValueStore;
+import com.rubiconproject.oss.kv.backends.CachingKeyValueStore;
+
+public class CachingImplMXBean implements CachingMXBean {
+	private CachingKeyValueStore store;
+
+	private BaseKeyValueStoreImplMXBean delegate;
+
+	public CachingImplMXBean(KeyValueStore store) {
+		this.store = (CachingKeyValueStore) store;
+		delegate = new BaseKeyValueStoreImplMXBean(store);
+	}
+
+	public void start() throws IOException {
+		delegate.start();
+	}
+
+	public void stop() {
+		delegate.stop();
+	}
+
+	public String getStatus() {
+		return delegate.getStatus();
+	}
+
+	public void offline() {
+		delegate.offline();
+	}
+
+	public void readOnly() {
+		delegate.readOnly();
+	}
+
+	public void online() {
+		delegate.online();
+	}
+
+	public long getIssuedLoadCount() {
+		return store.getIssuedLoadCount();
+	}
+
+	public long getCoalescedLoadCount() {
+		return store.getCoalescedLoadCount();
+	}
+
+	public long getParallelBulkGetCount() {
+		return store.getParallelBulkGetCount();
+	}
+
+	public double getBulkHitRatio() {
+		return store.getBulkHitRatio();
+	}
+
+	public long getStaleHitCount() {
+		return store.getStaleHitCount();
+	}
+
+	public long getRefreshCount() {
+		return store.getRefreshCount();
+	}
+
+	public long getRejectedRefreshCount() {
+		return store.getRejectedRefreshCount();
+	}
+
+	public long getNegativeHitCount() {
+		return store.getNegativeHitCount();
+	}
+}
@@ -0,0 +1,33 @@
+package com.rubiconproject.oss.kv.mgmt;
+
+import java.io.IOException;
+
+public interface CachingMXBean {
+	public void start() throws IOException;
+
+	public void stop();
+
+	public String getStatus();
+
+	public void offline();
+
+	public void readOnly();
+
+	public void online();
+
+	public long getIssuedLoadCount();
+
+	public long getCoalescedLoadCount();
+
+	public long getParallelBulkGetCount();
+
+	public double getBulkHitRatio();
+
+	public long getStaleHitCount();
+
+	public long getRefreshCount();
+
+	public long getRejectedRefreshCount();
+
+	public long getNegativeHitCount();
+}
@@ -0,0 +1,77 @@
+package com.rubiconproject.oss.kv.mgmt;
+
+import java.io.IOException;
+
+import com.rubiconproject.oss.kv.KeyValueStore;
+import com.rubiconproject.oss.kv.backends.OffHeapKeyValueStore;
+
+public class OffHeapImplMXBean implements OffHeapMXBean {
+	private OffHeapKeyValueStore store;
+
+	private BaseKeyValueStoreImplMXBean delegate;
+
+	public OffHeapImplMXBean(KeyValueStore store) {
+		this.store = (OffHeapKeyValueStore) store;
+		delegate = new BaseKeyValueStoreImplMXBean(store);
+	}
+
+	public void start() throws IOException {
+		delegate.start();
+	}
+
+	public void stop() {
+		delegate.stop();
+	}
+
+	public String getStatus() {
+		return delegate.getStatus();
+	}
+
+	public void offline() {
+		delegate.offline();
+	}
+
+	public void readOnly() {
+		delegate.readOnly();
+	}
+
+	public void online() {
+		delegate.online();
+	}
+
+	public long getHitCount() {
+		return store.getHitCount();
+	}
+
+	public long getMissCount() {
+		return store.getMissCount();
+	}
+
+	public double getHitRate() {
+		return store.getHitRate();
+	}
+
+	public long getEvictionCount() {
+		return store.getEvictionCount();
+	}
+
+	public long getRejectedCount() {
+		return store.getRejectedCount();
+	}
+
+	public long getSize() {
+		return store.getSize();
+	}
+
+	public long getUsedBytes() {
+		return store.getUsedBytes();
+	}
+
+	public long getAllocatedBytes() {
+		return store.getAllocatedBytes();
+	}
+
+	public long getCapacity() {
+		return store.getCapacity();
+	}
+}
@@ -0,0 +1,35 @@
+package com.rubiconproject.oss.kv.mgmt;
+
+import java.io.IOException;
+
+public interface OffHeapMXBean {
+	public void start() throws IOException;
+
+	public void stop();
+
+	public String getStatus();
+
+	public void offline();
+
+	public void readOnly();
+
+	public void online();
+
+	public long getHitCount();
+
+	public long getMissCount();
+
+	public double getHitRate();
+
+	public long getEvictionCount();
+
+	public long getRejectedCount();
+
+	public long getSize();
+
+	public long getUsedBytes();
+
+	public long getAllocatedBytes();
+
+	public long getCapacity();
+}
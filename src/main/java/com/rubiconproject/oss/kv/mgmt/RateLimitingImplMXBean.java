@@ -0,0 +1,90 @@
+package com.rubiconproject.oss.kv.mgmt;
+
+import java.io.IOException;
+
+import com.rubiconproject.oss.kv.KeyValueStore;
+import com.rubiconproject.oss.kv.backends.RateLimitingKeyValueStore;
+import com.rubiconproject.oss.kv.backends.RateLimitingKeyValueStore.OperationClass;
+
+public class RateLimitingImplMXBean implements RateLimitingMXBean {
+	private RateLimitingKeyValueStore store;
+
+	private BaseKeyValueStoreImplMXBean delegate;
+
+	public RateLimitingImplMXBean(KeyValueStore store) {
+		this.store = (RateLimitingKeyValueStore) store;
+		delegate = new BaseKeyValueStoreImplMXBean(store);
+	}
+
+	public void start() throws IOException {
+		delegate.start();
+	}
+
+	public void stop() {
+		delegate.stop();
+	}
+
+	public String getStatus() {
+		return delegate.getStatus();
+	}
+
+	public void offline() {
+		delegate.offline();
+	}
+
+	public void readOnly() {
+		delegate.readOnly();
+	}
+
+	public void online() {
+		delegate.online();
+	}
+
+	public long getRejectedCount() {
+		return store.getRejectedCount();
+	}
+
+	public long getRejectedPointReadCount() {
+		return store.getRejectedCount(OperationClass.PointRead);
+	}
+
+	public long getRejectedBulkReadCount() {
+		return store.getRejectedCount(OperationClass.BulkRead);
+	}
+
+	public long getRejectedWriteCount() {
+		return store.getRejectedCount(OperationClass.Write);
+	}
+
+	public long getRejectedDeleteCount() {
+		return store.getRejectedCount(OperationClass.Delete);
+	}
+
+	public double getPointReadThrottleDelay() {
+		return store.getThrottleDelay(OperationClass.PointRead);
+	}
+
+	public double getBulkReadThrottleDelay() {
+		return store.getThrottleDelay(OperationClass.BulkRead);
+	}
+
+	public double getWriteThrottleDelay() {
+		return store.getThrottleDelay(OperationClass.Write);
+	}
+
+	public double getDeleteThrottleDelay() {
+		return store.getThrottleDelay(OperationClass.Delete);
+	}
+
+	public long getPermitWaitCount() {
+		return store.getPermitWaitCount();
+	}
+
+	public double getAveragePermitWait() {
+		return store.getAveragePermitWait();
+	}
+
+	public double getPermitWait99thPercentile() {
+		return store.getPermitWaitPercentile(99.0);
+	}
+}
@@ -0,0 +1,41 @@
+package com.rubiconproject.oss.kv.mgmt;
+
+import java.io.IOException;
+
+public interface RateLimitingMXBean {
+	public void start() throws IOException;
+
+	public void stop();
+
+	public String getStatus();
+
+	public void offline();
+
+	public void readOnly();
+
+	public void online();
+
+	public long getRejectedCount();
+
+	public long getRejectedPointReadCount();
+
+	public long getRejectedBulkReadCount();
+
+	public long getRejectedWriteCount();
+
+	public long getRejectedDeleteCount();
+
+	public double getPointReadThrottleDelay();
+
+	public double getBulkReadThrottleDelay();
+
+	public double getWriteThrottleDelay();
+
+	public double getDeleteThrottleDelay();
+
+	public long getPermitWaitCount();
+
+	public double getAveragePermitWait();
+
+	public double getPermitWait99thPercentile();
+}
@@ -0,0 +1,61 @@
+package com.rubiconproject.oss.kv.mgmt;
+
+import java.io.IOException;
+
+import com.rubiconproject.oss.kv.KeyValueStore;
+import com.rubiconproject.oss.kv.backends.ReadLoadBalancingKeyValueStore;
+
+public class ReadLoadBalancingImplMXBean implements ReadLoadBalancingMXBean {
+	private ReadLoadBalancingKeyValueStore store;
+
+	private BaseKeyValueStoreImplMXBean delegate;
+
+	public ReadLoadBalancingImplMXBean(KeyValueStore store) {
+		this.store = (ReadLoadBalancingKeyValueStore) store;
+		delegate = new BaseKeyValueStoreImplMXBean(store);
+	}
+
+	public void start() throws IOException {
+		delegate.start();
+	}
+
+	public void stop() {
+		delegate.stop();
+	}
+
+	public String getStatus() {
+		return delegate.getStatus();
+	}
+
+	public void offline() {
+		delegate.offline();
+	}
+
+	public void readOnly() {
+		delegate.readOnly();
+	}
+
+	public void online() {
+		delegate.online();
+	}
+
+	public long getHedgeCount() {
+		return store.getHedgeCount();
+	}
+
+	public long getHedgeWinCount() {
+		return store.getHedgeWinCount();
+	}
+
+	public double getHedgeDelay() {
+		return store.getHedgeDelay();
+	}
+
+	public long getBulkPartitionCount() {
+		return store.getBulkPartitionCount();
+	}
+
+	public long getPartitionRetryCount() {
+		return store.getPartitionRetryCount();
+	}
+}
@@ -0,0 +1,27 @@
+package com.rubiconproject.oss.kv.mgmt;
+
+import java.io.IOException;
+
+public interface ReadLoadBalancingMXBean {
+	public void start() throws IOException;
+
+	public void stop();
+
+	public String getStatus();
+
+	public void offline();
+
+	public void readOnly();
+
+	public void online();
+
+	public long getHedgeCount();
+
+	public long getHedgeWinCount();
+
+	public double getHedgeDelay();
+
+	public long getBulkPartitionCount();
+
+	public long getPartitionRetryCount();
+}
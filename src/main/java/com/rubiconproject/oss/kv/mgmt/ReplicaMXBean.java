@@ -0,0 +1,17 @@
+package com.rubiconproject.oss.kv.mgmt;
+
+public interface ReplicaMXBean {
+	public String getIdentifier();
+
+	public double getLatencyEwma();
+
+	public int getInflightCount();
+
+	public long getRequestCount();
+
+	public long getErrorCount();
+
+	public long getEjectionCount();
+
+	public boolean isEjected();
+}
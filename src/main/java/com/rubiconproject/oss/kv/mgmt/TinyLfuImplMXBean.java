@@ -0,0 +1,73 @@
+package com.rubiconproject.oss.kv.mgmt;
+
+import java.io.IOException;
+
+import com.rubiconproject.oss.kv.KeyValueStore;
+import com.rubiconproject.oss.kv.backends.TinyLfuKeyValueStore;
+
+public class TinyLfuImplMXBean implements TinyLfuMXBean {
+	private TinyLfuKeyValueStore store;
+
+	private BaseKeyValueStoreImplMXBean delegate;
+
+	public TinyLfuImplMXBean(KeyValueStore store) {
+		this.store = (TinyLfuKeyValueStore) store;
+		delegate = new BaseKeyValueStoreImplMXBean(store);
+	}
+
+	public void start() throws IOException {
+		delegate.start();
+	}
+
+	public void stop() {
+		delegate.stop();
+	}
+
+	public String getStatus() {
+		return delegate.getStatus();
+	}
+
+	public void offline() {
+		delegate.offline();
+	}
+
+	public void readOnly() {
+		delegate.readOnly();
+	}
+
+	public void online() {
+		delegate.online();
+	}
+
+	public long getHitCount() {
+		return store.getHitCount();
+	}
+
+	public long getMissCount() {
+		return store.getMissCount();
+	}
+
+	public double getHitRate() {
+		return store.getHitRate();
+	}
+
+	public long getEvictionCount() {
+		return store.getEvictionCount();
+	}
+
+	public long getEvictedWeight() {
+		return store.getEvictedWeight();
+	}
+
+	public long getSize() {
+		return store.getSize();
+	}
+
+	public long getWeightedSize() {
+		return store.getWeightedSize();
+	}
+
+	public long getMaxWeight() {
+		return store.getMaxWeight();
+	}
+}
@@ -0,0 +1,33 @@
+package com.rubiconproject.oss.kv.mgmt;
+
+import java.io.IOException;
+
+public interface TinyLfuMXBean {
+	public void start() throws IOException;
+
+	public void stop();
+
+	public String getStatus();
+
+	public void offline();
+
+	public void readOnly();
+
+	public void online();
+
+	public long getHitCount();
+
+	public long getMissCount();
+
+	public double getHitRate();
+
+	public long getEvictionCount();
+
+	public long getEvictedWeight();
+
+	public long getSize();
+
+	public long getWeightedSize();
+
+	public long getMaxWeight();
+}
@@ -252,5 +252,61 @@ public class ThriftKeyValueServer {
 				}
 			}
 		}
+
+		public void setBulk(Map<String, ByteBuffer> values)
+				throws KeyValueStoreIOException, KeyValueStoreException,
+				TException {
+			log.trace("setBulk()");
+			long start = System.currentTimeMillis();
+			long byteCount = 0;
+			boolean success = false;
+			try {
+				Map<String, Object> backendValues = new HashMap<String, Object>(
+						values.size());
+				for (Map.Entry<String, ByteBuffer> entry : values.entrySet()) {
+					byte[] bytes = entry.getValue().array();
+					byteCount += bytes.length;
+					backendValues.put(entry.getKey(), bytes);
+				}
+				backend.setBulk(backendValues, transcoder);
+				success = true;
+			} catch (com.rubiconproject.oss.kv.KeyValueStoreException e) {
+				log.error("KeyValueStoreException inside setBulk()", e);
+				throw new KeyValueStoreException();
+			} catch (IOException e) {
+				log.error("IOException inside setBulk()", e);
+				throw new KeyValueStoreIOException();
+			} finally {
+				if (accessLog.isInfoEnabled()) {
+					long time = System.currentTimeMillis() - start;
+					accessLog.info(String.format("setbulk %1$s %2$d %3$d %4$s",
+							"_", time, byteCount, success));
+				}
+			}
+		}
+
+		public void deleteBulk(List<String> keys)
+				throws KeyValueStoreIOException, KeyValueStoreException,
+				TException {
+			log.trace("deleteBulk()");
+			long start = System.currentTimeMillis();
+			boolean success = false;
+			try {
+				backend.deleteBulk(keys);
+				success = true;
+			} catch (com.rubiconproject.oss.kv.KeyValueStoreException e) {
+				log.error("KeyValueStoreException inside deleteBulk()", e);
+				throw new KeyValueStoreException();
+			} catch (IOException e) {
+				log.error("IOException inside deleteBulk()", e);
+				throw new KeyValueStoreIOException();
+			} finally {
+				if (accessLog.isInfoEnabled()) {
+					long time = System.currentTimeMillis() - start;
+					accessLog.info(String.format("deletebulk %1$s %2$d 0 %3$s",
+							"_", time, success));
+				}
+			}
+		}
 	}
 }
@@ -1,8 +1,10 @@
 package com.rubiconproject.oss.kv.tools;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
 
@@ -40,9 +42,12 @@ public class NodeCopy implements Runnable, Callable<Map<String, Long>> {
 	@Option(name = "--dest", usage = "Destination uri (default: none)", required = true)
 	private String dest;
 
-	@Option(name = "--sleep", usage = "Sleep time between keys (millis) (default: disabled)")
+	@Option(name = "--sleep", usage = "Sleep time between batches (millis) (default: disabled)")
 	private long sleep = 0;
 
+	@Option(name = "--batch", usage = "Keys copied per bulk get/set (default: 100)")
+	private int batchSize = 100;
+
 	@Option(name = "--skip", usage = "Skip this many records first (default: 0)")
 	private int skip = 0;
 
@@ -83,6 +88,7 @@ public class NodeCopy implements Runnable, Callable<Map<String, Long>> {
 		KeyValueStoreIterator keyIterator = src.iterkeys();
 		try {
 			Iterator<String> iter = keyIterator.iterator();
+			List<String> batch = new ArrayList<String>(batchSize);
 			while (iter.hasNext()) {
 				String key = iter.next();
 				++examined;
@@ -92,36 +98,44 @@ public class NodeCopy implements Runnable, Callable<Map<String, Long>> {
 					continue;
 				}
 
-				byte[] bytes = null;
+				batch.add(key);
+				boolean last = (!iter.hasNext())
+						|| ((max > 0) && (examined >= max));
+				if ((batch.size() < batchSize) && !last)
+					continue;
+
+				Map<String, Object> values = null;
 				try {
-					bytes = (byte[]) src.get(key, byteTranscoder);
+					values = src.getBulk(batch, byteTranscoder);
 				} catch (Exception e) {
 					e.printStackTrace();
-					++getFailures;
+					getFailures += batch.size();
 				}
 				boolean successfulMove = false;
 				try {
-					if (bytes != null) {
-						kv.set(key, bytes, byteTranscoder);
+					if ((values != null) && (values.size() > 0)) {
+						kv.setBulk(values, byteTranscoder);
 						successfulMove = true;
-						++moved;
-					} else
-						++notMoved;
+						moved += values.size();
+					}
+					if (values != null)
+						notMoved += batch.size() - values.size();
 				} catch (Exception e) {
 					e.printStackTrace();
-					++setFailures;
+					setFailures += values.size();
 				}
 
 				try {
 					if (successfulMove && delete) {
-						src.delete(key);
+						src.deleteBulk(values.keySet());
 					}
 				} catch (Exception e) {
 					e.printStackTrace();
-					++deleteFailures;
+					deleteFailures += values.size();
 				}
 
-				if (examined % 1000 == 0) {
+				// report each time we pass another 1000 keys
+				if ((examined / 1000) != ((examined - batch.size()) / 1000)) {
 					System.out.println("Status");
 					System.out.println("examined: " + examined);
 					System.out.println("moved: " + moved);
@@ -129,7 +143,8 @@ public class NodeCopy implements Runnable, Callable<Map<String, Long>> {
 					System.out.println("setFailures: " + setFailures);
 					System.out.println("deleteFailures: " + deleteFailures);
 				}
-				if ((max > 0) && (examined >= max))
+				batch.clear();
+				if (last)
 					break;
 
 				if (sleep > 0)
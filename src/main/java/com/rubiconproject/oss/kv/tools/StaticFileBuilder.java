@@ -0,0 +1,122 @@
+package com.rubiconproject.oss.kv.tools;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+import com.rubiconproject.oss.kv.KeyValueStore;
+import com.rubiconproject.oss.kv.backends.IterableKeyValueStore;
+import com.rubiconproject.oss.kv.backends.StaticFileWriter;
+import com.rubiconproject.oss.kv.backends.UriConnectionFactory;
+import com.rubiconproject.oss.kv.transcoder.SerializableTranscoder;
+import com.rubiconproject.oss.kv.transcoder.Transcoder;
+
+/**
+ * Build a file for StaticKeyValueStore.
+ *
+ * Reads either every key of an iterable store (by uri), copying values as
+ * stored, or a sorted text file of tab separated key and value lines, whose
+ * values are stored as Strings. In a sorted file the last of several lines
+ * for the same key wins. The output is renamed into place when complete, so
+ * it can be written straight to the path a running store checks.
+ *
+ * Usage:
+ *
+ * - Run it: java -classpath oo-kv-storage.jar:...
+ * com.rubiconproject.oss.kv.tools.StaticFileBuilder --source
+ * "bitcask://localhost?dir=/data/kv" --output /data/static/kv.dat
+ *
+ */
+public class StaticFileBuilder implements Callable<Map<String, Long>> {
+
+	@Option(name = "--source", usage = "Source uri of an iterable store (default: none)")
+	private String source;
+
+	@Option(name = "--input", usage = "Sorted input file of key<tab>value lines (default: none)")
+	private String input;
+
+	@Option(name = "--output", usage = "Output file (default: none)", required = true)
+	private String output;
+
+	@Option(name = "--batch", usage = "Keys read per bulk get (default: 100)")
+	private int batchSize = 100;
+
+	private Transcoder transcoder = new SerializableTranscoder();
+
+	public static void main(String[] args) throws Exception {
+		StaticFileBuilder builder = new StaticFileBuilder();
+		CmdLineParser parser = new CmdLineParser(builder);
+		parser.parseArgument(args);
+		Map<String, Long> stats = builder.call();
+		for (Map.Entry<String, Long> entry : stats.entrySet()) {
+			System.out.println(String.format("%1$s\t%2$d", entry.getKey(),
+					entry.getValue()));
+		}
+		System.out.println("Completed successfully. Exiting.");
+		System.exit(0);
+	}
+
+	public Map<String, Long> call() throws Exception {
+		if ((source == null) == (input == null))
+			throw new IllegalArgumentException(
+					"Exactly one of --source and --input is required");
+		long start = System.currentTimeMillis();
+		StaticFileWriter writer = new StaticFileWriter(new File(output));
+		try {
+			if (source != null)
+				copyStore(writer);
+			else
+				copyFile(writer);
+			writer.close();
+		} catch (Exception e) {
+			writer.abort();
+			throw e;
+		}
+		Map<String, Long> results = new HashMap<String, Long>();
+		results.put("keys", (long) writer.getCount());
+		results.put("bytes", new File(output).length());
+		results.put("millis", System.currentTimeMillis() - start);
+		return results;
+	}
+
+	private void copyStore(StaticFileWriter writer) throws Exception {
+		KeyValueStore kv = new UriConnectionFactory().getStore(null, source);
+		try {
+			writer.addAll((IterableKeyValueStore) kv, batchSize);
+		} finally {
+			kv.stop();
+		}
+	}
+
+	private void copyFile(StaticFileWriter writer) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(input), "UTF-8"));
+		try {
+			String pendingKey = null;
+			String pendingValue = null;
+			String line;
+			while ((line = reader.readLine()) != null) {
+				int tab = line.indexOf('\t');
+				if (tab < 0)
+					continue;
+				String key = line.substring(0, tab);
+				if ((pendingKey != null) && (!pendingKey.equals(key)))
+					writer.add(pendingKey, transcoder.encode(pendingValue));
+				pendingKey = key;
+				pendingValue = line.substring(tab + 1);
+			}
+			if (pendingKey != null)
+				writer.add(pendingKey, transcoder.encode(pendingValue));
+		} finally {
+			reader.close();
+		}
+	}
+}
@@ -0,0 +1,44 @@
+package com.rubiconproject.oss.kv.transcoder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.rubiconproject.oss.kv.backends.CachedValue;
+
+/**
+ * Encodes a CachedValue as its soft and hard expiry times followed by the
+ * value encoded with the delegate transcoder.
+ */
+public class CachedValueTranscoder implements Transcoder {
+	private static final int HEADER_LENGTH = 16;
+
+	private Transcoder delegate;
+
+	public CachedValueTranscoder(Transcoder delegate) {
+		this.delegate = delegate;
+	}
+
+	public Object decode(byte[] bytes) throws IOException {
+		if (bytes.length < HEADER_LENGTH)
+			throw new IOException("Cached value too short: " + bytes.length);
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		long softExpiry = buffer.getLong();
+		long hardExpiry = buffer.getLong();
+		byte[] encoded = new byte[bytes.length - HEADER_LENGTH];
+		buffer.get(encoded);
+		return new CachedValue(delegate.decode(encoded), softExpiry,
+				hardExpiry);
+	}
+
+	public byte[] encode(Object value) throws IOException {
+		CachedValue cv = (CachedValue) value;
+		byte[] encoded = delegate.encode(cv.getValue());
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH
+				+ encoded.length);
+		buffer.putLong(cv.getSoftExpiry());
+		buffer.putLong(cv.getHardExpiry());
+		buffer.put(encoded);
+		return buffer.array();
+	}
+
+}
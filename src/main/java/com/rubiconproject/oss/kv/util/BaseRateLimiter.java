@@ -0,0 +1,31 @@
+package com.rubiconproject.oss.kv.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Implements the timed tryAcquire() by polling the untimed one, for rate
+ * limiters that cannot tell when permits will next be available.
+ */
+public abstract class BaseRateLimiter implements RateLimiter {
+	private long pollInterval = 10l;
+
+	/**
+	 * Milliseconds between attempts while waiting for permits.
+	 */
+	public void setPollInterval(long pollInterval) {
+		this.pollInterval = pollInterval;
+	}
+
+	public boolean tryAcquire(int permits, long timeout, TimeUnit unit)
+			throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (!tryAcquire(permits)) {
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0)
+				return false;
+			TimeUnit.NANOSECONDS.sleep(Math.min(remaining, TimeUnit.MILLISECONDS
+					.toNanos(pollInterval)));
+		}
+		return true;
+	}
+}
@@ -0,0 +1,89 @@
+package com.rubiconproject.oss.kv.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * A bloom filter over byte[] keys, sized from the expected number of keys
+ * and bits per key. Probes are derived from two halves of one 64-bit hash
+ * by double hashing. Not thread-safe while being built; safe to share once
+ * complete.
+ */
+public class BloomFilter {
+	private final long[] bits;
+
+	private final int hashes;
+
+	public BloomFilter(int expectedKeys, int bitsPerKey) {
+		long bitCount = Math.max(64l, ((long) expectedKeys) * bitsPerKey);
+		this.bits = new long[(int) ((bitCount + 63) / 64)];
+		// k = ln(2) * m / n minimizes the false positive rate
+		this.hashes = Math.max(1, Math.min(30,
+				(int) Math.round(bitsPerKey * 0.69)));
+	}
+
+	private BloomFilter(long[] bits, int hashes) {
+		this.bits = bits;
+		this.hashes = hashes;
+	}
+
+	public void add(byte[] key) {
+		long hash = hash(key);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		long bitCount = bits.length * 64l;
+		for (int i = 0; i < hashes; ++i) {
+			long bit = ((h1 + i * h2) & 0x7fffffffl) % bitCount;
+			bits[(int) (bit >>> 6)] |= 1l << bit;
+		}
+	}
+
+	/**
+	 * False if the key was certainly never added.
+	 */
+	public boolean mightContain(byte[] key) {
+		long hash = hash(key);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		long bitCount = bits.length * 64l;
+		for (int i = 0; i < hashes; ++i) {
+			long bit = ((h1 + i * h2) & 0x7fffffffl) % bitCount;
+			if ((bits[(int) (bit >>> 6)] & (1l << bit)) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	public void writeTo(DataOutput out) throws IOException {
+		out.writeInt(hashes);
+		out.writeInt(bits.length);
+		for (long word : bits)
+			out.writeLong(word);
+	}
+
+	public static BloomFilter readFrom(DataInput in) throws IOException {
+		int hashes = in.readInt();
+		long[] bits = new long[in.readInt()];
+		for (int i = 0; i < bits.length; ++i)
+			bits[i] = in.readLong();
+		return new BloomFilter(bits, hashes);
+	}
+
+	/**
+	 * 64-bit FNV-1a followed by a murmur style finalizer.
+	 */
+	private static long hash(byte[] key) {
+		long h = 0xcbf29ce484222325l;
+		for (byte b : key) {
+			h ^= b & 0xff;
+			h *= 0x100000001b3l;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdl;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53l;
+		h ^= h >>> 33;
+		return h;
+	}
+}
@@ -2,6 +2,8 @@ package com.rubiconproject.oss.kv.util;
 
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
@@ -18,6 +20,16 @@ public class ExecutorUtils {
 				new DaemonThreadFactory());
 	}
 
+	/**
+	 * A pool that keeps coreSize threads and starts another whenever all are
+	 * busy, rather than queueing tasks.
+	 */
+	public static ExecutorService newUnboundedDaemonThreadPool(int coreSize) {
+		return new ThreadPoolExecutor(coreSize, Integer.MAX_VALUE, 60l,
+				TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+				new DaemonThreadFactory());
+	}
+
 	public static void shutdown(ExecutorService executor,
 			TimeUnit softTimeoutUnits, long softTimeout,
 			TimeUnit hardStopUnits, long hardStopTimeout) {
@@ -0,0 +1,69 @@
+package com.rubiconproject.oss.kv.util;
+
+/**
+ * A count-min sketch estimating how often keys have been seen recently, with
+ * four rows of 4-bit counters. Once the number of increments reaches ten
+ * times the width, every counter is halved so that old popularity fades.
+ * Not thread-safe; callers synchronize.
+ */
+public class FrequencySketch {
+	private static final int[] SEEDS = { 0x97cb3127, 0x2f0d9d63, 0x8b1c5c3b,
+			0x5d2e8e49 };
+
+	private static final int MAX_COUNT = 15;
+
+	private final byte[][] rows;
+
+	private final int mask;
+
+	private final int sampleSize;
+
+	private int additions = 0;
+
+	/**
+	 * Rows are four times as wide as the expected number of distinct
+	 * entries, up to 256K counters each.
+	 */
+	public FrequencySketch(int expectedEntries) {
+		int width = 16;
+		while ((width < 4l * expectedEntries) && (width < (1 << 18)))
+			width <<= 1;
+		this.rows = new byte[SEEDS.length][width];
+		this.mask = width - 1;
+		this.sampleSize = 10 * width;
+	}
+
+	public int frequency(int hash) {
+		int frequency = MAX_COUNT;
+		for (int i = 0; i < rows.length; ++i)
+			frequency = Math.min(frequency, rows[i][index(hash, i)]);
+		return frequency;
+	}
+
+	public void increment(int hash) {
+		boolean added = false;
+		for (int i = 0; i < rows.length; ++i) {
+			int index = index(hash, i);
+			if (rows[i][index] < MAX_COUNT) {
+				++rows[i][index];
+				added = true;
+			}
+		}
+		if ((added) && (++additions >= sampleSize))
+			reset();
+	}
+
+	private void reset() {
+		for (byte[] row : rows) {
+			for (int i = 0; i < row.length; ++i)
+				row[i] >>= 1;
+		}
+		additions /= 2;
+	}
+
+	private int index(int hash, int row) {
+		int h = hash * SEEDS[row];
+		h ^= h >>> 17;
+		return h & mask;
+	}
+}
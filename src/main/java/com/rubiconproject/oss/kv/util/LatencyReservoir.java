@@ -0,0 +1,49 @@
+package com.rubiconproject.oss.kv.util;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size ring of the most recent latency samples, used to estimate
+ * latency percentiles. Recording is lock-free; computing a percentile copies
+ * and sorts the ring, so callers should cache the result.
+ */
+public class LatencyReservoir {
+	private final AtomicLongArray samples;
+
+	private final AtomicLong count = new AtomicLong();
+
+	public LatencyReservoir(int size) {
+		this.samples = new AtomicLongArray(size);
+	}
+
+	public void record(long nanos) {
+		long index = count.getAndIncrement();
+		samples.set((int) (index % samples.length()), nanos);
+	}
+
+	/**
+	 * Total number of samples recorded, including those since overwritten.
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * Returns the given percentile (0-100) of the retained samples in
+	 * milliseconds, or 0 if nothing has been recorded.
+	 */
+	public double getPercentile(double percentile) {
+		int size = (int) Math.min(count.get(), samples.length());
+		if (size == 0)
+			return 0.0;
+		long[] sorted = new long[size];
+		for (int i = 0; i < size; ++i)
+			sorted[i] = samples.get(i);
+		Arrays.sort(sorted);
+		int index = (int) Math.ceil(percentile / 100.0 * size) - 1;
+		index = Math.max(0, Math.min(size - 1, index));
+		return sorted[index] / 1000000.0;
+	}
+}
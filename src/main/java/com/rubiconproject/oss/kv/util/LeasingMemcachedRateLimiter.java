@@ -0,0 +1,224 @@
+package com.rubiconproject.oss.kv.util;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.rubiconproject.oss.kv.backends.MemcachedKeyValueStore;
+
+/**
+ * A rate limiter shared between jvms through memcached counters, without a
+ * network call per event. Permits are leased from the shared counter in
+ * blocks of leaseSize and handed out locally until the lease runs out.
+ *
+ * Each window has its own counter. The count for the current window is
+ * estimated as the count of the previous window weighted by how much of it
+ * still overlaps a sliding window ending now, plus the count of the current
+ * window, which avoids letting twice the limit through at window edges. A
+ * lease that would push the estimate over the limit is cut short and the
+ * excess returned to the counter, and memcached is not asked again until
+ * the estimate has had time to fall by a lease.
+ *
+ * If memcached fails, the limiter falls back to a local token bucket of
+ * fallbackMaxEvents per window for retryInterval milliseconds before trying
+ * memcached again.
+ */
+public class LeasingMemcachedRateLimiter extends BaseRateLimiter {
+	private static Log log = LogFactory
+			.getLog(LeasingMemcachedRateLimiter.class);
+
+	private MemcachedKeyValueStore mcc;
+
+	private String counterKey;
+
+	private long window;
+
+	private long maxEvents;
+
+	private int leaseSize = 0;
+
+	private long fallbackMaxEvents = 0;
+
+	private long retryInterval = 1000l;
+
+	private TokenBucketRateLimiter fallback = new TokenBucketRateLimiter();
+
+	private volatile long unavailableUntil = 0;
+
+	private final AtomicLong leased = new AtomicLong();
+
+	private volatile long leaseWindow = -1;
+
+	private volatile long exhaustedUntil = 0;
+
+	private long previousCount = 0;
+
+	private volatile long estimate = 0;
+
+	public LeasingMemcachedRateLimiter() {
+		Random r = new Random();
+		this.counterKey = "rate-limit-" + r.nextInt(Integer.MAX_VALUE);
+	}
+
+	public LeasingMemcachedRateLimiter(MemcachedKeyValueStore mcc,
+			String counterKey) {
+		this.mcc = mcc;
+		this.counterKey = counterKey;
+	}
+
+	public void setMemcached(MemcachedKeyValueStore mcc) {
+		this.mcc = mcc;
+	}
+
+	/**
+	 * Permits taken from memcached at a time. Defaults to 1% of the limit.
+	 */
+	public void setLeaseSize(int leaseSize) {
+		this.leaseSize = leaseSize;
+	}
+
+	/**
+	 * Limit per window while memcached is unavailable. Defaults to the
+	 * shared limit.
+	 */
+	public void setFallbackMaxEvents(long fallbackMaxEvents) {
+		this.fallbackMaxEvents = fallbackMaxEvents;
+		if (window > 0)
+			fallback.setLimit(TimeUnit.MILLISECONDS, window, fallbackMaxEvents);
+	}
+
+	public void setRetryInterval(long retryInterval) {
+		this.retryInterval = retryInterval;
+	}
+
+	public void setLimit(TimeUnit timeUnit, long count, long maxEvents) {
+		this.window = timeUnit.toMillis(count);
+		this.maxEvents = maxEvents;
+		fallback.setLimit(timeUnit, count,
+				(fallbackMaxEvents > 0) ? fallbackMaxEvents : maxEvents);
+	}
+
+	public boolean allowNextEvent() {
+		long now = System.currentTimeMillis();
+		if (now < unavailableUntil)
+			return fallback.allowNextEvent();
+		synchronized (this) {
+			return ((leaseWindow == now / window) && (leased.get() > 0))
+					|| (lease(1));
+		}
+	}
+
+	public void nextEvent() {
+		tryAcquire(1);
+	}
+
+	/**
+	 * Estimated events in the sliding window as of the last lease.
+	 */
+	public long getCounter() {
+		if (System.currentTimeMillis() < unavailableUntil)
+			return fallback.getCounter();
+		return estimate;
+	}
+
+	public boolean tryAcquire(int permits) {
+		while (true) {
+			long now = System.currentTimeMillis();
+			if (now < unavailableUntil)
+				return fallback.tryAcquire(permits);
+			if (leaseWindow == now / window) {
+				long available = leased.get();
+				if (available >= permits) {
+					if (leased.compareAndSet(available, available - permits))
+						return true;
+					continue;
+				}
+			}
+			synchronized (this) {
+				if ((leaseWindow == now / window) && (leased.get() >= permits))
+					continue;
+				// on failure the next pass uses the local fallback
+				if ((!lease(permits))
+						&& (System.currentTimeMillis() >= unavailableUntil))
+					return false;
+			}
+		}
+	}
+
+	/**
+	 * Lease enough permits from memcached to cover the request. Returns
+	 * false if none could be leased. Called with the lock held.
+	 */
+	private boolean lease(int permits) {
+		long now = System.currentTimeMillis();
+		if (now < exhaustedUntil)
+			return false;
+		long currentWindow = now / window;
+		int exp = (int) (2 * window / 1000) + 1;
+		try {
+			if (leaseWindow != currentWindow) {
+				// unused permits were counted against the old window
+				leased.set(0);
+				previousCount = getCount(key(currentWindow - 1));
+				leaseWindow = currentWindow;
+			}
+			int amount = (int) Math.max(getLeaseSize(), permits - leased.get());
+			long count = mcc.incr(key(currentWindow), amount, amount, exp);
+			if (count < 0)
+				throw new IllegalStateException("Unable to increment "
+						+ key(currentWindow));
+			double overlap = 1.0 - ((double) (now % window)) / window;
+			long total = (long) Math.ceil(previousCount * overlap) + count;
+			long granted = amount - Math.max(0, total - maxEvents);
+			if (granted < amount)
+				mcc.decr(key(currentWindow), (int) (amount - Math.max(0,
+						granted)), 0, exp);
+			estimate = Math.min(total, maxEvents);
+			if (granted <= 0) {
+				exhaustedUntil = now + retryDelay(now);
+				return false;
+			}
+			leased.addAndGet(granted);
+			return true;
+		} catch (Exception e) {
+			log.warn("Unable to lease permits from memcached, using local limit for "
+					+ retryInterval + "ms", e);
+			unavailableUntil = now + retryInterval;
+			leaseWindow = -1;
+			leased.set(0);
+			return false;
+		}
+	}
+
+	/**
+	 * Milliseconds until the previous window's weight has fallen by a lease,
+	 * or until the next window starts if that is sooner.
+	 */
+	private long retryDelay(long now) {
+		long untilNextWindow = window - (now % window);
+		if (previousCount == 0)
+			return untilNextWindow;
+		long decay = getLeaseSize() * window / previousCount;
+		return Math.max(1, Math.min(decay, untilNextWindow));
+	}
+
+	private long getLeaseSize() {
+		return (leaseSize > 0) ? leaseSize : Math.max(1, maxEvents / 100);
+	}
+
+	private String key(long window) {
+		return counterKey + "-" + window;
+	}
+
+	private long getCount(String key) throws Exception {
+		Object value = mcc.get(key);
+		if (value == null)
+			return 0;
+		if (value instanceof Number)
+			return ((Number) value).longValue();
+		return Long.parseLong(value.toString().trim());
+	}
+}
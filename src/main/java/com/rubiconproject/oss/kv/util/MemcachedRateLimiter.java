@@ -7,7 +7,7 @@ import java.util.concurrent.TimeUnit;
 import com.rubiconproject.oss.kv.KeyValueStoreException;
 import com.rubiconproject.oss.kv.backends.MemcachedKeyValueStore;
 
-public class MemcachedRateLimiter implements RateLimiter {
+public class MemcachedRateLimiter extends BaseRateLimiter {
 
 	private MemcachedKeyValueStore mcc;
 
@@ -59,6 +59,22 @@ public class MemcachedRateLimiter implements RateLimiter {
 		}
 	}
 
+	/**
+	 * Checks the shared counter and then increments it, so concurrent clients
+	 * may together overshoot the limit slightly.
+	 */
+	public boolean tryAcquire(int permits) {
+		if (getCounter() + permits > maxEvents)
+			return false;
+		try {
+			mcc.incr(counterKey, permits, permits, (int) exp);
+		} catch (KeyValueStoreException e) {
+			if (throwExceptionOnErrors)
+				throw new RuntimeException(e);
+		}
+		return true;
+	}
+
 	public long getCounter() {
 		long count = 0;
 		try {
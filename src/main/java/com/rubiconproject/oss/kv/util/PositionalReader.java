@@ -0,0 +1,78 @@
+package com.rubiconproject.oss.kv.util;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Positional reads of a file shared by many threads. Interrupting a thread
+ * blocked in a FileChannel closes the channel for every thread using it, so
+ * here the channel is reopened instead: the interrupted read fails with an
+ * InterruptedIOException and reads that were cut short by it are retried.
+ * Once close() is called reads fail with ClosedChannelException.
+ */
+public class PositionalReader {
+	private final File file;
+
+	private volatile FileChannel channel;
+
+	private volatile boolean closed = false;
+
+	public PositionalReader(File file) throws IOException {
+		this.file = file;
+		this.channel = new RandomAccessFile(file, "r").getChannel();
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Fill the buffer from the file, starting at position.
+	 */
+	public void readFully(ByteBuffer buffer, long position) throws IOException {
+		int start = buffer.position();
+		while (true) {
+			FileChannel current = channel;
+			try {
+				while (buffer.hasRemaining()) {
+					if (current.read(buffer, position + buffer.position()
+							- start) < 0)
+						throw new EOFException("Unexpected end of " + file);
+				}
+				return;
+			} catch (ClosedByInterruptException e) {
+				reopen(current);
+				throw new InterruptedIOException("Interrupted reading " + file);
+			} catch (ClosedChannelException e) {
+				// closed under us by another reader's interrupt
+				if (closed)
+					throw e;
+				reopen(current);
+			}
+		}
+	}
+
+	public void close() {
+		synchronized (this) {
+			closed = true;
+			try {
+				channel.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	private synchronized void reopen(FileChannel failed) throws IOException {
+		if (closed)
+			throw new ClosedChannelException();
+		if (channel == failed)
+			channel = new RandomAccessFile(file, "r").getChannel();
+	}
+}
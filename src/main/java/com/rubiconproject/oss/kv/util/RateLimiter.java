@@ -17,4 +17,17 @@ public interface RateLimiter {
 	public void nextEvent();
 
 	public long getCounter();
+
+	/**
+	 * Take the given number of permits if they are available now.
+	 */
+	public boolean tryAcquire(int permits);
+
+	/**
+	 * Take the given number of permits, waiting up to the timeout for them
+	 * to become available. Returns false without taking any if they will not
+	 * be available in time.
+	 */
+	public boolean tryAcquire(int permits, long timeout, TimeUnit unit)
+			throws InterruptedException;
 }
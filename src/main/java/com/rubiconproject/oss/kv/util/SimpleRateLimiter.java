@@ -8,7 +8,7 @@ import java.util.concurrent.TimeUnit;
  * @author sam
  * 
  */
-public class SimpleRateLimiter implements RateLimiter {
+public class SimpleRateLimiter extends BaseRateLimiter {
 	private long lastTimerReset = System.currentTimeMillis();
 
 	private long max = 0;
@@ -25,27 +25,36 @@ public class SimpleRateLimiter implements RateLimiter {
 		this.max = maxEvents;
 	}
 
-	public void setLimit(TimeUnit timeUnit, long count, long maxEvents) {
+	public synchronized void setLimit(TimeUnit timeUnit, long count,
+			long maxEvents) {
 		this.period = timeUnit.toMillis(count);
 		this.max = maxEvents;
 	}
 
-	public boolean allowNextEvent() {
+	public synchronized boolean allowNextEvent() {
 		resetTimer();
 		boolean allow = (counter + 1 <= max);
 		return allow;
 	}
 
-	public void nextEvent() {
+	public synchronized void nextEvent() {
 		resetTimer();
 		++counter;
 	}
 
-	public long getCounter() {
+	public synchronized long getCounter() {
 		resetTimer();
 		return counter;
 	}
 
+	public synchronized boolean tryAcquire(int permits) {
+		resetTimer();
+		if (counter + permits > max)
+			return false;
+		counter += permits;
+		return true;
+	}
+
 	private void resetTimer() {
 		long now = System.currentTimeMillis();
 		if ((now - lastTimerReset) > period) {
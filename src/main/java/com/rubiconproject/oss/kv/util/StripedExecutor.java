@@ -0,0 +1,111 @@
+package com.rubiconproject.oss.kv.util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Runs tasks on a fixed number of single-threaded lanes. Tasks submitted with
+ * the same stripe key always run on the same lane, in submission order, while
+ * tasks for different keys may run in parallel. Each lane has a bounded queue;
+ * submitting to a full lane blocks until there is room.
+ */
+public class StripedExecutor {
+	private static Log log = LogFactory.getLog(StripedExecutor.class);
+
+	private ThreadPoolExecutor[] lanes;
+
+	public StripedExecutor(int laneCount, int laneCapacity) {
+		lanes = new ThreadPoolExecutor[laneCount];
+		RejectedExecutionHandler blockWhenFull = new BlockWhenFullPolicy();
+		for (int i = 0; i < laneCount; ++i) {
+			lanes[i] = new ThreadPoolExecutor(1, 1, 0l, TimeUnit.MILLISECONDS,
+					new ArrayBlockingQueue<Runnable>(laneCapacity),
+					new DaemonThreadFactory(), blockWhenFull);
+		}
+	}
+
+	/**
+	 * Run a task on the lane for the given key.
+	 * 
+	 * @throws RejectedExecutionException
+	 *             if the executor has been shut down
+	 */
+	public void execute(Object stripe, Runnable task) {
+		lanes[laneFor(stripe)].execute(task);
+	}
+
+	/**
+	 * Number of tasks waiting across all lanes.
+	 */
+	public int getQueuedCount() {
+		int count = 0;
+		for (ThreadPoolExecutor lane : lanes)
+			count += lane.getQueue().size();
+		return count;
+	}
+
+	/**
+	 * Stop accepting tasks and wait up to the given timeout for queued tasks
+	 * to finish. Tasks still queued after the timeout are discarded and the
+	 * running ones interrupted.
+	 * 
+	 * @return the number of tasks discarded
+	 */
+	public int shutdown(long timeout, TimeUnit unit) {
+		for (ThreadPoolExecutor lane : lanes)
+			lane.shutdown();
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		int discarded = 0;
+		try {
+			for (ThreadPoolExecutor lane : lanes) {
+				long remaining = deadline - System.nanoTime();
+				if (!lane.awaitTermination(Math.max(remaining, 0l),
+						TimeUnit.NANOSECONDS))
+					discarded += lane.shutdownNow().size();
+			}
+		} catch (InterruptedException e) {
+			for (ThreadPoolExecutor lane : lanes)
+				discarded += lane.shutdownNow().size();
+			Thread.currentThread().interrupt();
+		}
+		if (discarded > 0)
+			log.error("Discarded " + discarded
+					+ " tasks not completed within shutdown timeout");
+		return discarded;
+	}
+
+	private int laneFor(Object stripe) {
+		int h = stripe.hashCode();
+		h ^= (h >>> 20) ^ (h >>> 12);
+		h ^= (h >>> 7) ^ (h >>> 4);
+		return (h & Integer.MAX_VALUE) % lanes.length;
+	}
+
+	/**
+	 * Blocks the submitting thread until the lane has room. Running the task
+	 * in the caller instead would break per-lane ordering.
+	 */
+	private static class BlockWhenFullPolicy implements
+			RejectedExecutionHandler {
+		public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+			if (executor.isShutdown())
+				throw new RejectedExecutionException("Executor is shut down");
+			try {
+				executor.getQueue().put(r);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RejectedExecutionException(e);
+			}
+			// a shutdown meanwhile may have let the lane's thread exit, leaving
+			// the task queued forever; if it is still queued, take it back
+			if (executor.isShutdown() && executor.getQueue().remove(r))
+				throw new RejectedExecutionException("Executor is shut down");
+		}
+	}
+}
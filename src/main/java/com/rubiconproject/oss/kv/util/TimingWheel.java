@@ -0,0 +1,185 @@
+package com.rubiconproject.oss.kv.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A hierarchical timing wheel: four wheels of 64 slots, each slot of a wheel
+ * spanning a full turn of the wheel below it. A timeout is placed in the
+ * finest wheel that can hold its deadline and moved down a wheel as the
+ * current tick approaches it, so scheduling and cancelling are O(1) and
+ * each timeout is moved at most three times before it expires. Deadlines
+ * beyond the range of the coarsest wheel are parked in its last slot and
+ * placed again when that slot comes round.
+ *
+ * Deadlines are rounded up to the next tick, so a timeout expires no earlier
+ * than its deadline and at most one tick after advance() reaches it.
+ */
+public class TimingWheel<T> {
+	private static final int WHEEL_BITS = 6;
+
+	private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+
+	private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+
+	private static final int LEVELS = 4;
+
+	private static final long MAX_DELTA = (1l << (WHEEL_BITS * LEVELS)) - 1;
+
+	private final long tickDuration;
+
+	private final Timeout<T>[][] wheels;
+
+	// next tick to be processed
+	private long tick;
+
+	private int size = 0;
+
+	@SuppressWarnings("unchecked")
+	public TimingWheel(long tickDuration, long now) {
+		if (tickDuration <= 0)
+			throw new IllegalArgumentException("tickDuration must be positive");
+		this.tickDuration = tickDuration;
+		this.tick = now / tickDuration;
+		this.wheels = new Timeout[LEVELS][WHEEL_SIZE];
+		for (int level = 0; level < LEVELS; ++level) {
+			for (int slot = 0; slot < WHEEL_SIZE; ++slot) {
+				Timeout<T> head = new Timeout<T>(null, 0);
+				head.prev = head;
+				head.next = head;
+				wheels[level][slot] = head;
+			}
+		}
+	}
+
+	public long getTickDuration() {
+		return tickDuration;
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Schedule the value to expire at deadline, in the same units as now.
+	 */
+	public synchronized Timeout<T> schedule(T value, long deadline) {
+		long expiry = (deadline + tickDuration - 1) / tickDuration;
+		Timeout<T> timeout = new Timeout<T>(value, expiry);
+		place(timeout);
+		++size;
+		return timeout;
+	}
+
+	/**
+	 * Remove a timeout that has not yet expired. Returns false if it already
+	 * expired or was cancelled.
+	 */
+	public synchronized boolean cancel(Timeout<T> timeout) {
+		if ((timeout == null) || (timeout.prev == null))
+			return false;
+		timeout.unlink();
+		--size;
+		return true;
+	}
+
+	/**
+	 * Process every tick up to now, returning the values whose deadlines
+	 * have passed.
+	 */
+	public synchronized List<T> advance(long now) {
+		List<T> expired = new ArrayList<T>();
+		long target = now / tickDuration;
+		while (tick <= target) {
+			int slot = (int) (tick & WHEEL_MASK);
+			if (slot == 0)
+				cascade(1);
+			Timeout<T> head = wheels[0][slot];
+			for (Timeout<T> timeout = head.next; timeout != head;) {
+				Timeout<T> next = timeout.next;
+				timeout.unlink();
+				if (timeout.expiry <= tick) {
+					--size;
+					expired.add(timeout.value);
+				} else
+					place(timeout);
+				timeout = next;
+			}
+			++tick;
+		}
+		return expired;
+	}
+
+	/**
+	 * Move the current slot of the given wheel down, and the current slot of
+	 * the next wheel up if this wheel has come full turn.
+	 */
+	private void cascade(int level) {
+		if (level >= LEVELS)
+			return;
+		int slot = (int) ((tick >>> (WHEEL_BITS * level)) & WHEEL_MASK);
+		Timeout<T> head = wheels[level][slot];
+		Timeout<T> first = head.next;
+		if (first != head) {
+			// detach the slot first, since a parked timeout may land in it again
+			Timeout<T> last = head.prev;
+			head.next = head;
+			head.prev = head;
+			last.next = null;
+			for (Timeout<T> timeout = first; timeout != null;) {
+				Timeout<T> next = timeout.next;
+				timeout.prev = null;
+				timeout.next = null;
+				place(timeout);
+				timeout = next;
+			}
+		}
+		if (slot == 0)
+			cascade(level + 1);
+	}
+
+	private void place(Timeout<T> timeout) {
+		long expiry = Math.max(timeout.expiry, tick);
+		long delta = Math.min(expiry - tick, MAX_DELTA);
+		expiry = tick + delta;
+		int level = 0;
+		while (delta >= (1l << (WHEEL_BITS * (level + 1))))
+			++level;
+		int slot = (int) ((expiry >>> (WHEEL_BITS * level)) & WHEEL_MASK);
+		timeout.linkBefore(wheels[level][slot]);
+	}
+
+	public static class Timeout<T> {
+		private final T value;
+
+		// deadline in ticks
+		private final long expiry;
+
+		private Timeout<T> prev;
+
+		private Timeout<T> next;
+
+		Timeout(T value, long expiry) {
+			this.value = value;
+			this.expiry = expiry;
+		}
+
+		public T getValue() {
+			return value;
+		}
+
+		private void linkBefore(Timeout<T> head) {
+			prev = head.prev;
+			next = head;
+			head.prev.next = this;
+			head.prev = this;
+		}
+
+		private void unlink() {
+			prev.next = next;
+			next.prev = prev;
+			prev = null;
+			next = null;
+		}
+	}
+}
@@ -0,0 +1,113 @@
+package com.rubiconproject.oss.kv.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free, in jvm token bucket rate limiter implemented as a generic cell
+ * rate algorithm (GCRA). The only state is the theoretical arrival time of
+ * the next permit, in System.nanoTime() units, updated with compare-and-set.
+ * Permits refill continuously at maxEvents per period, and up to maxEvents
+ * may be taken in a burst once the bucket is full.
+ *
+ * A request for more permits than the bucket holds is allowed once the
+ * bucket is full and leaves the limiter in debt, so later requests wait for
+ * it to be repaid.
+ */
+public class TokenBucketRateLimiter implements RateLimiter {
+	private final AtomicLong theoreticalArrival = new AtomicLong(System
+			.nanoTime());
+
+	// nanoseconds per permit
+	private volatile long interval = 0;
+
+	// nanoseconds of credit a full bucket holds
+	private volatile long capacity = 0;
+
+	public TokenBucketRateLimiter() {
+	}
+
+	public TokenBucketRateLimiter(TimeUnit timeUnit, long count, long maxEvents) {
+		setLimit(timeUnit, count, maxEvents);
+	}
+
+	public void setLimit(TimeUnit timeUnit, long count, long maxEvents) {
+		long period = timeUnit.toNanos(count);
+		this.interval = Math.max(1, period / maxEvents);
+		this.capacity = interval * maxEvents;
+	}
+
+	public boolean allowNextEvent() {
+		long now = System.nanoTime();
+		return delay(theoreticalArrival.get(), now, 1) == 0;
+	}
+
+	public void nextEvent() {
+		long now = System.nanoTime();
+		long current;
+		do {
+			current = theoreticalArrival.get();
+		} while (!theoreticalArrival.compareAndSet(current, Math.max(current,
+				now)
+				+ interval));
+	}
+
+	/**
+	 * Number of permits taken that have not yet been refilled.
+	 */
+	public long getCounter() {
+		long owed = theoreticalArrival.get() - System.nanoTime();
+		return (owed <= 0) ? 0 : (owed + interval - 1) / interval;
+	}
+
+	public boolean tryAcquire(int permits) {
+		long now = System.nanoTime();
+		while (true) {
+			long current = theoreticalArrival.get();
+			if (delay(current, now, permits) > 0)
+				return false;
+			if (theoreticalArrival.compareAndSet(current, Math.max(current,
+					now)
+					+ interval * permits))
+				return true;
+		}
+	}
+
+	/**
+	 * Reserve the permits if they will be available within the timeout, then
+	 * sleep until they are.
+	 */
+	public boolean tryAcquire(int permits, long timeout, TimeUnit unit)
+			throws InterruptedException {
+		long timeoutNanos = unit.toNanos(timeout);
+		long now = System.nanoTime();
+		long wait;
+		while (true) {
+			long current = theoreticalArrival.get();
+			wait = delay(current, now, permits);
+			if (wait > timeoutNanos)
+				return false;
+			if (theoreticalArrival.compareAndSet(current, Math.max(current,
+					now)
+					+ interval * permits))
+				break;
+		}
+		if (wait > 0)
+			TimeUnit.NANOSECONDS.sleep(wait);
+		return true;
+	}
+
+	/**
+	 * Nanoseconds from now until the given permits may be taken.
+	 */
+	private long delay(long current, long now, int permits) {
+		long start = Math.max(current, now);
+		long wait = start + interval * permits - capacity - now;
+		if (wait <= 0)
+			return 0;
+		// more than a full bucket: allowed once the bucket is full
+		if (interval * permits > capacity)
+			return start - now;
+		return wait;
+	}
+}
@@ -28,6 +28,12 @@ service KeyValueService {
     throws (1:KeyValueStoreIOException ioException, 2:KeyValueStoreException keyValueStoreException),
 
   void deleteValue(1:string key)
+    throws (1:KeyValueStoreIOException ioException, 2:KeyValueStoreException keyValueStoreException),
+
+  void setBulk(1:map<string, binary> values)
+    throws (1:KeyValueStoreIOException ioException, 2:KeyValueStoreException keyValueStoreException),
+
+  void deleteBulk(1:list<string> keys)
     throws (1:KeyValueStoreIOException ioException, 2:KeyValueStoreException keyValueStoreException)
 }
 
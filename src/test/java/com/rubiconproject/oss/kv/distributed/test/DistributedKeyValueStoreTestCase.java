@@ -4,6 +4,7 @@ import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.TimeUnit;
 
 import com.rubiconproject.oss.kv.backends.ConnectionFactory;
 import com.rubiconproject.oss.kv.backends.UriConnectionFactory;
@@ -108,6 +109,14 @@ public class DistributedKeyValueStoreTestCase extends TestCase {
 		assertTrue(values.size() >= 2);
 		context = values.get(0);
 		assertNull(context.getValue());
+
+		// same round trip using the async methods
+		store.setAsync(key, value.getBytes()).get(2, TimeUnit.SECONDS);
+		context = store.getAsync(key).get(2, TimeUnit.SECONDS);
+		assertEquals(new String(context.getValue()), value);
+		store.deleteAsync(key).get(2, TimeUnit.SECONDS);
+		context = store.getAsync(key).get(2, TimeUnit.SECONDS);
+		assertNull(context.getValue());
 	}
 
 	private void testIncrementalScalability(NodeStore nodeStore,
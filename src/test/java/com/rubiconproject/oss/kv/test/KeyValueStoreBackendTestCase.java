@@ -3,8 +3,11 @@ package com.rubiconproject.oss.kv.test;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import javax.management.MBeanInfo;
 import javax.management.MBeanServer;
@@ -13,7 +16,10 @@ import javax.management.ObjectName;
 
 import junit.framework.TestCase;
 
+import com.rubiconproject.oss.kv.AsyncKeyValueStore;
 import com.rubiconproject.oss.kv.KeyValueStore;
+import com.rubiconproject.oss.kv.KeyValueStoreFuture;
+import com.rubiconproject.oss.kv.KeyValueStoreFutureListener;
 import com.rubiconproject.oss.kv.KeyValueStoreStatus;
 import com.rubiconproject.oss.kv.KeyValueStoreUnavailable;
 import com.rubiconproject.oss.kv.ManagedKeyValueStore;
@@ -95,10 +101,29 @@ public abstract class KeyValueStoreBackendTestCase extends TestCase {
 				new ByteArrayTranscoder());
 		assertEquals(map.size(), 1);
 
+		// test setBulk() and deleteBulk()
+		Map<String, Object> bulk = new HashMap<String, Object>();
+		bulk.put("bulk.key.1", "bulk value 1");
+		bulk.put("bulk.key.2", "bulk value 2");
+		bulk.put("bulk.key.3", "bulk value 3");
+		store.setBulk(bulk);
+		map = store.getBulk(Arrays.asList(new String[] { "bulk.key.1",
+				"bulk.key.2", "bulk.key.3", "bulk.key.4" }));
+		assertEquals(map.size(), 3);
+		assertEquals(map.get("bulk.key.2"), "bulk value 2");
+		store.deleteBulk(bulk.keySet());
+		Thread.sleep(100l);
+		assertNull(store.get("bulk.key.1"));
+		assertFalse(store.exists("bulk.key.3"));
+
 		// test iterator if applicable
 		if (store instanceof IterableKeyValueStore)
 			doTestIterator((IterableKeyValueStore) store);
 
+		// test async operations if applicable
+		if (store instanceof AsyncKeyValueStore)
+			doTestAsync((AsyncKeyValueStore) store);
+
 		// set status to read only
 		store.setStatus(KeyValueStoreStatus.ReadOnly);
 		SampleV v3 = (SampleV) store.get(objectKey, serializer);
@@ -138,6 +163,29 @@ public abstract class KeyValueStoreBackendTestCase extends TestCase {
 		storeIterator.close();
 	}
 
+	private void doTestAsync(AsyncKeyValueStore store) throws Exception {
+		String key = "some.async.key";
+		store.setAsync(key, "hello async").get(5, TimeUnit.SECONDS);
+		assertEquals(store.getAsync(key).get(5, TimeUnit.SECONDS),
+				"hello async");
+
+		Map<String, Object> map = store.getBulkAsync(
+				Arrays.asList(new String[] { key, "xyz123" })).get(5,
+				TimeUnit.SECONDS);
+		assertEquals(map.size(), 1);
+		assertEquals(map.get(key), "hello async");
+
+		final CountDownLatch latch = new CountDownLatch(1);
+		store.deleteAsync(key).addListener(
+				new KeyValueStoreFutureListener<Void>() {
+					public void completed(KeyValueStoreFuture<Void> future) {
+						latch.countDown();
+					}
+				});
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+		assertNull(store.getAsync(key).get(5, TimeUnit.SECONDS));
+	}
+
 	private void doTestTransactions(TransactionalKeyValueStore store)
 			throws Exception {
 		String key = "test.tx.key";
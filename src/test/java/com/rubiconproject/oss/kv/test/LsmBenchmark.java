@@ -0,0 +1,92 @@
+package com.rubiconproject.oss.kv.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import com.rubiconproject.oss.kv.KeyValueStore;
+import com.rubiconproject.oss.kv.backends.KratiKeyValueStore;
+import com.rubiconproject.oss.kv.backends.LsmKeyValueStore;
+import com.rubiconproject.oss.kv.transcoder.ByteArrayTranscoder;
+import com.rubiconproject.oss.kv.transcoder.Transcoder;
+
+/**
+ * Compares write, overwrite, read and delete throughput of the LSM store
+ * with Krati. Prints identifier,phase,operations,millis for each phase.
+ */
+public class LsmBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int keys = (args.length > 0) ? Integer.parseInt(args[0]) : 200000;
+		int valueSize = (args.length > 1) ? Integer.parseInt(args[1]) : 256;
+		LsmBenchmark bm = new LsmBenchmark();
+		bm.testBenchmark(keys, valueSize);
+	}
+
+	public void testBenchmark(int keys, int valueSize) throws Exception {
+		KeyValueStore[] backends = new KeyValueStore[] {
+				new LsmKeyValueStore("tmp/lsm-benchmark"),
+				new KratiKeyValueStore() };
+		((KratiKeyValueStore) backends[1]).setDir("tmp/krati-benchmark");
+		for (KeyValueStore kv : backends) {
+			kv.start();
+			doTestStorageBackend(kv, keys, valueSize);
+			kv.stop();
+		}
+	}
+
+	private void doTestStorageBackend(KeyValueStore store, int keys,
+			int valueSize) throws Exception {
+		Transcoder transcoder = new ByteArrayTranscoder();
+		Random random = new Random(1);
+		byte[] value = new byte[valueSize];
+		random.nextBytes(value);
+		List<String> order = new ArrayList<String>(keys);
+		for (int i = 0; i < keys; ++i)
+			order.add(String.format("/some.key.%1$010d", i));
+		Collections.shuffle(order, random);
+
+		long start = System.currentTimeMillis();
+		for (String key : order)
+			store.set(key, value, transcoder);
+		report(store, "write", keys, start);
+
+		start = System.currentTimeMillis();
+		for (int i = 0; i < keys / 2; ++i)
+			store.set(order.get(i), value, transcoder);
+		report(store, "overwrite", keys / 2, start);
+
+		Collections.shuffle(order, random);
+		int misses = 0;
+		start = System.currentTimeMillis();
+		for (String key : order) {
+			if (store.get(key, transcoder) == null)
+				++misses;
+		}
+		report(store, "read", keys, start);
+
+		start = System.currentTimeMillis();
+		for (int i = 0; i < keys; ++i) {
+			if (store.get("/absent.key." + i, transcoder) != null)
+				++misses;
+		}
+		report(store, "read-absent", keys, start);
+
+		start = System.currentTimeMillis();
+		for (int i = 0; i < keys / 10; ++i)
+			store.delete(order.get(i));
+		report(store, "delete", keys / 10, start);
+
+		if (misses > 0)
+			System.out.println(String.format("%1$s,errors,%2$d", store
+					.getIdentifier(), misses));
+	}
+
+	private void report(KeyValueStore store, String phase, int operations,
+			long start) {
+		System.out.println(String.format("%1$s,%2$s,%3$d,%4$d", store
+				.getIdentifier(), phase, operations, System.currentTimeMillis()
+				- start));
+	}
+}
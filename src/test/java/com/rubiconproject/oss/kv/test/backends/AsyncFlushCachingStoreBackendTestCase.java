@@ -1,11 +1,17 @@
 package com.rubiconproject.oss.kv.test.backends;
 
+import java.io.File;
+
+import com.rubiconproject.oss.kv.CoalescingAsyncFlushQueue;
+import com.rubiconproject.oss.kv.JournaledAsyncFlushQueue;
 import com.rubiconproject.oss.kv.KeyValueStore;
+import com.rubiconproject.oss.kv.KeyValueStoreUnavailable;
 import com.rubiconproject.oss.kv.ThreadPoolAsyncFlushQueue;
 import com.rubiconproject.oss.kv.backends.AsyncFlushCachingKeyValueStore;
 import com.rubiconproject.oss.kv.backends.ConcurrentHashMapKeyValueStore;
 import com.rubiconproject.oss.kv.backends.MemcachedKeyValueStore;
 import com.rubiconproject.oss.kv.test.KeyValueStoreBackendTestCase;
+import com.rubiconproject.oss.kv.transcoder.StringTranscoder;
 
 public class AsyncFlushCachingStoreBackendTestCase extends
 		KeyValueStoreBackendTestCase {
@@ -37,4 +43,182 @@ public class AsyncFlushCachingStoreBackendTestCase extends
 		Thread.sleep(100l);
 	}
 
+	public void testCoalescingQueue() throws Exception {
+		ConcurrentHashMapKeyValueStore master = new ConcurrentHashMapKeyValueStore();
+		master.start();
+
+		KeyValueStore cache = new ConcurrentHashMapKeyValueStore();
+		cache.start();
+
+		CoalescingAsyncFlushQueue queue = new CoalescingAsyncFlushQueue(master);
+		queue.setFlushInterval(200l);
+		queue.start();
+		AsyncFlushCachingKeyValueStore store = new AsyncFlushCachingKeyValueStore(
+				master, cache, queue);
+		store.start();
+
+		// repeated writes to one key coalesce into a single pending write
+		for (int i = 0; i < 50; ++i)
+			store.set("hot.key", new Integer(i));
+		store.set("deleted.key", "value");
+		store.delete("deleted.key");
+		assertEquals(queue.getPendingCount(), 2);
+		assertEquals(queue.getCoalescedCount(), 50);
+		assertNull(master.get("hot.key"));
+		assertEquals(store.get("hot.key"), new Integer(49));
+
+		Thread.sleep(400l);
+		assertEquals(master.get("hot.key"), new Integer(49));
+		assertFalse(master.exists("deleted.key"));
+		assertEquals(queue.getPendingCount(), 0);
+		assertEquals(queue.getFlushCount(), 1);
+		assertEquals(queue.getFlushedWriteCount(), 2);
+
+		// a full buffer fails writes for new keys
+		queue.setMaxPending(2);
+		queue.setOverflowPolicy(CoalescingAsyncFlushQueue.OverflowPolicy.Fail);
+		store.set("k1", "v1");
+		store.set("k2", "v2");
+		store.set("k2", "v2.1");
+		try {
+			store.set("k3", "v3");
+			fail("Flush queue full. Should have failed!");
+		} catch (KeyValueStoreUnavailable expected) {
+		}
+		// a rejected write is not cached
+		assertNull(store.get("k3"));
+
+		// drop oldest makes room by discarding the oldest pending key
+		queue.setOverflowPolicy(CoalescingAsyncFlushQueue.OverflowPolicy.DropOldest);
+		store.set("k3", "v3");
+		assertEquals(queue.getDroppedCount(), 2);
+		// nor is a dropped one
+		assertNull(store.get("k1"));
+		assertEquals(store.get("k3"), "v3");
+
+		// stop() flushes everything still pending
+		queue.stop();
+		assertNull(master.get("k1"));
+		assertEquals(master.get("k2"), "v2.1");
+		assertEquals(master.get("k3"), "v3");
+	}
+
+	public void testStoppedQueue() throws Exception {
+		ConcurrentHashMapKeyValueStore master = new ConcurrentHashMapKeyValueStore();
+		master.start();
+		final CoalescingAsyncFlushQueue queue = new CoalescingAsyncFlushQueue(
+				master);
+		queue.setMaxPending(1);
+		queue.setFlushInterval(60000l);
+		queue.setOverflowPolicy(CoalescingAsyncFlushQueue.OverflowPolicy.Block);
+		queue.start();
+		queue.set("first", "value");
+
+		// a writer blocked on the full buffer fails once the queue stops
+		final Exception[] error = new Exception[1];
+		Thread writer = new Thread() {
+			public void run() {
+				try {
+					queue.set("second", "value");
+				} catch (Exception e) {
+					error[0] = e;
+				}
+			}
+		};
+		writer.start();
+		while (writer.getState() != Thread.State.WAITING)
+			Thread.sleep(1l);
+		queue.stop();
+		writer.join(5000l);
+		assertFalse(writer.isAlive());
+		assertTrue(error[0] instanceof KeyValueStoreUnavailable);
+		assertEquals(master.get("first"), "value");
+		assertNull(master.get("second"));
+
+		// writes after stop() are rejected rather than never flushed
+		try {
+			queue.set("third", "value");
+			fail("Queue stopped. Should have failed!");
+		} catch (KeyValueStoreUnavailable expected) {
+		}
+		try {
+			queue.delete("first");
+			fail("Queue stopped. Should have failed!");
+		} catch (KeyValueStoreUnavailable expected) {
+		}
+		assertEquals(queue.getPendingCount(), 0);
+	}
+
+	public void testJournaledQueue() throws Exception {
+		File dir = new File(System.getProperty("java.io.tmpdir"),
+				"journaled-flush-queue-" + System.currentTimeMillis());
+		StringTranscoder transcoder = new StringTranscoder();
+
+		// writes accepted before a crash are not flushed
+		ConcurrentHashMapKeyValueStore lost = new ConcurrentHashMapKeyValueStore();
+		lost.start();
+		JournaledAsyncFlushQueue queue = new JournaledAsyncFlushQueue(lost, dir);
+		queue.setSegmentSize(4096);
+		queue.setFlushInterval(60000l);
+		queue.start();
+		for (int i = 0; i < 100; ++i)
+			queue.set("journal.key." + (i % 10), new Integer(i));
+		queue.set("journal.transcoded", "hello", transcoder);
+		queue.set("journal.deleted", "value");
+		queue.delete("journal.deleted");
+		assertNull(lost.get("journal.key.0"));
+		assertTrue(queue.getSegmentCount() > 1);
+
+		// a new queue on the same directory replays them
+		ConcurrentHashMapKeyValueStore master = new ConcurrentHashMapKeyValueStore();
+		master.start();
+		master.set("journal.deleted", "stale");
+		JournaledAsyncFlushQueue replay = new JournaledAsyncFlushQueue(master,
+				dir);
+		replay.setFlushInterval(50l);
+		replay.start();
+		Thread.sleep(300l);
+		for (int i = 0; i < 10; ++i)
+			assertEquals(master.get("journal.key." + i), new Integer(90 + i));
+		// transcoded values are replayed in encoded form
+		assertEquals(transcoder.decode((byte[]) master
+				.get("journal.transcoded")), "hello");
+		assertFalse(master.exists("journal.deleted"));
+
+		// acknowledged segments are removed
+		assertEquals(replay.getSegmentCount(), 0);
+		replay.set("journal.key.0", "after replay");
+		assertEquals(replay.getSegmentCount(), 1);
+		replay.stop();
+		assertEquals(master.get("journal.key.0"), "after replay");
+		assertEquals(dir.listFiles().length, 0);
+		dir.delete();
+	}
+
+	public void testOrderedThreadPoolQueue() throws Exception {
+		ConcurrentHashMapKeyValueStore master = new ConcurrentHashMapKeyValueStore();
+		master.start();
+
+		ThreadPoolAsyncFlushQueue queue = new ThreadPoolAsyncFlushQueue(master,
+				4, 100);
+		for (int i = 0; i < 1000; ++i) {
+			String key = "ordered.key." + (i % 8);
+			queue.set(key, new Integer(i));
+			if (i % 3 == 0)
+				queue.delete(key);
+		}
+		queue.set("ordered.key.0", "last");
+		assertEquals(queue.stop(5000l), 0);
+
+		// the last write to each key wins
+		assertEquals(master.get("ordered.key.0"), "last");
+		for (int i = 1; i < 8; ++i) {
+			int last = 992 + i;
+			if (last % 3 == 0)
+				assertNull(master.get("ordered.key." + i));
+			else
+				assertEquals(master.get("ordered.key." + i), new Integer(last));
+		}
+	}
+
 }
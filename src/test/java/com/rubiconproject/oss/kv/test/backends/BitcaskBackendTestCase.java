@@ -0,0 +1,67 @@
+package com.rubiconproject.oss.kv.test.backends;
+
+import java.io.File;
+
+import com.rubiconproject.oss.kv.backends.BitcaskKeyValueStore;
+
+public class BitcaskBackendTestCase extends
+		PersistentStoreBackendTestCase<BitcaskKeyValueStore> {
+
+	public void testBackend() throws Exception {
+		BitcaskKeyValueStore store = new BitcaskKeyValueStore();
+		store.setDir(clean("tmp/bitcask"));
+		doTestBackend(store);
+		store.stop();
+	}
+
+	public void testRecoveryWithoutHints() throws Exception {
+		String dir = clean("tmp/bitcask-recovery");
+		BitcaskKeyValueStore store = new BitcaskKeyValueStore(dir);
+		store.start();
+		for (int i = 0; i < 100; ++i)
+			store.set("key." + i, new Integer(i));
+		store.stop();
+
+		// lose the hints and tear the last record, as after a crash
+		File data = null;
+		for (File file : new File(dir).listFiles()) {
+			if (file.getName().endsWith(".hint"))
+				assertTrue(file.delete());
+			else
+				data = file;
+		}
+		tear(data);
+
+		store.start();
+		assertEquals(100, store.getSize());
+		assertEquals(new Integer(42), store.get("key.42"));
+		store.set("key.100", new Integer(100));
+		store.stop();
+		store.start();
+		assertEquals(101, store.getSize());
+		assertEquals(new Integer(100), store.get("key.100"));
+		store.stop();
+	}
+
+	protected String getDirectory() {
+		return "tmp/bitcask";
+	}
+
+	protected BitcaskKeyValueStore createStore(String dir) {
+		BitcaskKeyValueStore store = new BitcaskKeyValueStore(dir);
+		store.setSegmentSize(4096);
+		store.setCompactionInterval(0);
+		return store;
+	}
+
+	protected int getFileCount(BitcaskKeyValueStore store) {
+		return store.getSegmentCount();
+	}
+
+	protected void compact(BitcaskKeyValueStore store) throws Exception {
+		long deadBefore = store.getDeadBytes();
+		store.compact();
+		assertTrue(store.getCompactionCount() > 0);
+		assertTrue(store.getDeadBytes() < deadBefore);
+	}
+}
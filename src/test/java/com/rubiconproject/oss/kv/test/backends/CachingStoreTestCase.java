@@ -1,10 +1,27 @@
 package com.rubiconproject.oss.kv.test.backends;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import com.rubiconproject.oss.kv.KeyValueStoreException;
 import com.rubiconproject.oss.kv.KeyValueStoreStatus;
 import com.rubiconproject.oss.kv.backends.CachingKeyValueStore;
 import com.rubiconproject.oss.kv.backends.ConcurrentHashMapKeyValueStore;
 import com.rubiconproject.oss.kv.backends.MemcachedKeyValueStore;
 import com.rubiconproject.oss.kv.test.KeyValueStoreBackendTestCase;
+import com.rubiconproject.oss.kv.transcoder.StringTranscoder;
+import com.rubiconproject.oss.kv.transcoder.Transcoder;
 
 public class CachingStoreTestCase extends KeyValueStoreBackendTestCase {
 
@@ -25,4 +42,287 @@ public class CachingStoreTestCase extends KeyValueStoreBackendTestCase {
 		doTestBackend(store);
 	}
 
+	public void testCoalescedMisses() throws Exception {
+		GatedStore master = new GatedStore();
+		master.start();
+		master.set("hot.key", "hot.value");
+		master.set("warm.key", "warm.value");
+
+		ConcurrentHashMapKeyValueStore cache = new ConcurrentHashMapKeyValueStore();
+		cache.start();
+
+		final CachingKeyValueStore store = new CachingKeyValueStore(master,
+				cache);
+		store.setCoalesceMisses(true);
+		store.start();
+
+		// the first miss holds its master read until the others have joined it
+		master.close();
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		List<Future<Object>> gets = new ArrayList<Future<Object>>();
+		for (int i = 0; i < 8; ++i) {
+			gets.add(executor.submit(new Callable<Object>() {
+				public Object call() throws Exception {
+					return store.get("hot.key");
+				}
+			}));
+		}
+		master.awaitEntered(1);
+		awaitCoalesced(store, 7);
+		master.open();
+		for (Future<Object> f : gets)
+			assertEquals(f.get(), "hot.value");
+		assertEquals(store.getIssuedLoadCount(), 1);
+		assertEquals(store.getCoalescedLoadCount(), 7);
+
+		// bulk misses share loads per key
+		cache.delete("hot.key");
+		master.close();
+		final List<String> keys = Arrays.asList("hot.key", "warm.key",
+				"cold.key");
+		List<Future<Map<String, Object>>> bulks = new ArrayList<Future<Map<String, Object>>>();
+		for (int i = 0; i < 4; ++i) {
+			bulks.add(executor.submit(new Callable<Map<String, Object>>() {
+				public Map<String, Object> call() throws Exception {
+					return store.getBulk(keys);
+				}
+			}));
+		}
+		master.awaitEntered(1);
+		awaitCoalesced(store, 7 + 9);
+		master.open();
+		for (Future<Map<String, Object>> f : bulks) {
+			Map<String, Object> results = f.get();
+			assertEquals(results.size(), 2);
+			assertEquals(results.get("hot.key"), "hot.value");
+			assertEquals(results.get("warm.key"), "warm.value");
+		}
+		assertEquals(store.getIssuedLoadCount(), 1 + 3);
+		assertEquals(store.getCoalescedLoadCount(), 7 + 9);
+		executor.shutdown();
+	}
+
+	public void testBulkMisses() throws Exception {
+		ConcurrentHashMapKeyValueStore master = new ConcurrentHashMapKeyValueStore();
+		master.start();
+		for (int i = 0; i < 20; ++i)
+			master.set("bulk." + i, "value." + i);
+
+		ConcurrentHashMapKeyValueStore cache = new ConcurrentHashMapKeyValueStore();
+		cache.start();
+
+		CachingKeyValueStore store = new CachingKeyValueStore(master, cache);
+		store.setParallelBulkHitRatio(0.5);
+		store.start();
+
+		// misses are written back to cache
+		Map<String, Object> results = store.getBulk("bulk.0", "bulk.1",
+				"bulk.missing");
+		assertEquals(results.size(), 2);
+		assertEquals(cache.get("bulk.0"), "value.0");
+		assertEquals(cache.get("bulk.1"), "value.1");
+		assertNull(cache.get("bulk.missing"));
+		assertEquals(store.getParallelBulkGetCount(), 0);
+
+		// repeated cold batches drop the hit ratio and switch to parallel
+		// cache and master queries
+		for (int i = 2; i < 20; i += 2) {
+			results = store.getBulk("bulk." + i, "bulk." + (i + 1));
+			assertEquals(results.size(), 2);
+			assertEquals(results.get("bulk." + i), "value." + i);
+			assertEquals(cache.get("bulk." + (i + 1)), "value." + (i + 1));
+		}
+		assertTrue(store.getBulkHitRatio() < 0.5);
+		assertTrue(store.getParallelBulkGetCount() > 0);
+
+		// warm batch
+		results = store.getBulk("bulk.0", "bulk.1", "bulk.2");
+		assertEquals(results.size(), 3);
+		store.stop();
+	}
+
+	public void testStaleWhileRevalidate() throws Exception {
+		ConcurrentHashMapKeyValueStore backend = new ConcurrentHashMapKeyValueStore();
+		backend.start();
+		ConcurrentHashMapKeyValueStore backendCache = new ConcurrentHashMapKeyValueStore();
+		backendCache.start();
+		CachingKeyValueStore backendStore = new CachingKeyValueStore(backend,
+				backendCache);
+		backendStore.setSoftTtl(50l);
+		backendStore.setHardTtl(60000l);
+		doTestBackend(backendStore);
+		backendStore.stop();
+
+		GatedStore master = new GatedStore();
+		master.start();
+
+		ConcurrentHashMapKeyValueStore cache = new ConcurrentHashMapKeyValueStore();
+		cache.start();
+
+		final CachingKeyValueStore store = new CachingKeyValueStore(master,
+				cache);
+		store.setSoftTtl(50l);
+		store.setHardTtl(60000l);
+		store.start();
+
+		final StringTranscoder transcoder = new StringTranscoder();
+		store.set("swr.key", "v1");
+		store.set("swr.transcoded", "t1", transcoder);
+		master.set("swr.key", "v2");
+		master.set("swr.transcoded", "t2", transcoder);
+		long staleHits = store.getStaleHitCount();
+		long refreshes = store.getRefreshCount();
+
+		// stale values are served while a refresh runs in the background
+		Thread.sleep(60l);
+		master.close();
+		assertEquals(store.get("swr.key"), "v1");
+		assertEquals(store.get("swr.transcoded", transcoder), "t1");
+		master.awaitEntered(2);
+		assertEquals(store.getStaleHitCount() - staleHits, 2);
+		assertEquals(store.getRefreshCount() - refreshes, 2);
+		// a refresh already running is not scheduled again
+		assertEquals(store.get("swr.key"), "v1");
+		assertEquals(store.getRefreshCount() - refreshes, 2);
+		master.open();
+		awaitValue(store, "swr.key", null, "v2");
+		awaitValue(store, "swr.transcoded", transcoder, "t2");
+		assertEquals(store.getRefreshCount() - refreshes, 2);
+
+		// past the hard expiry values are reloaded synchronously
+		store.setHardTtl(100l);
+		store.set("swr.hard", "h1");
+		master.set("swr.hard", "h2");
+		Thread.sleep(110l);
+		refreshes = store.getRefreshCount();
+		assertEquals(store.getBulk("swr.hard").get("swr.hard"), "h2");
+		assertEquals(store.getRefreshCount(), refreshes);
+		store.stop();
+	}
+
+	public void testNegativeCaching() throws Exception {
+		ConcurrentHashMapKeyValueStore master = new ConcurrentHashMapKeyValueStore();
+		master.start();
+
+		ConcurrentHashMapKeyValueStore cache = new ConcurrentHashMapKeyValueStore();
+		cache.start();
+
+		CachingKeyValueStore store = new CachingKeyValueStore(master, cache);
+		store.setCacheOnSet(false);
+		store.setNegativeTtl(60000l);
+		doTestBackend(store);
+
+		long negativeHits = store.getNegativeHitCount();
+		assertNull(store.get("absent.key"));
+		assertNull(store.get("absent.key"));
+		assertEquals(store.getBulk("absent.key", "absent.bulk").size(), 0);
+		assertEquals(store.getBulk("absent.bulk").size(), 0);
+		assertEquals(store.getNegativeHitCount() - negativeHits, 3);
+
+		// writes elsewhere are not seen until the entry expires
+		master.set("absent.key", "v1");
+		assertNull(store.get("absent.key"));
+		store.setNegativeTtl(20l);
+		assertNull(store.get("expiring.key"));
+		master.set("expiring.key", "v1");
+		Thread.sleep(30l);
+		assertEquals(store.get("expiring.key"), "v1");
+		assertNull(store.get("absent.key"));
+
+		// writes through the store invalidate the entry
+		assertNull(store.get("absent.bulk"));
+		store.set("absent.bulk", "v2");
+		assertEquals(store.get("absent.bulk"), "v2");
+		store.stop();
+	}
+
+	private static void awaitCoalesced(CachingKeyValueStore store, long count)
+			throws InterruptedException {
+		for (int i = 0; (i < 500) && (store.getCoalescedLoadCount() < count); ++i)
+			Thread.sleep(10l);
+		assertEquals(store.getCoalescedLoadCount(), count);
+	}
+
+	private static void awaitValue(CachingKeyValueStore store, String key,
+			Transcoder transcoder, Object expected) throws Exception {
+		Object value = null;
+		for (int i = 0; i < 500; ++i) {
+			value = (transcoder == null) ? store.get(key) : store.get(key,
+					transcoder);
+			if (expected.equals(value))
+				break;
+			Thread.sleep(10l);
+		}
+		assertEquals(value, expected);
+	}
+
+	/**
+	 * Master whose reads wait at a gate while it is closed, so a test can
+	 * hold loads in flight until it has seen what it needs to.
+	 */
+	private static class GatedStore extends ConcurrentHashMapKeyValueStore {
+		private final Semaphore entered = new Semaphore(0);
+
+		private volatile CountDownLatch gate = new CountDownLatch(0);
+
+		void close() {
+			entered.drainPermits();
+			gate = new CountDownLatch(1);
+		}
+
+		void open() {
+			gate.countDown();
+		}
+
+		void awaitEntered(int reads) throws InterruptedException {
+			assertTrue(entered.tryAcquire(reads, 5, TimeUnit.SECONDS));
+		}
+
+		public Object get(String key) throws KeyValueStoreException,
+				IOException {
+			pass();
+			return super.get(key);
+		}
+
+		public Object get(String key, Transcoder transcoder)
+				throws KeyValueStoreException, IOException {
+			pass();
+			return super.get(key, transcoder);
+		}
+
+		public Map<String, Object> getBulk(List<String> keys)
+				throws KeyValueStoreException, IOException {
+			pass();
+			Map<String, Object> results = new HashMap<String, Object>();
+			for (String key : keys) {
+				Object obj = super.get(key);
+				if (obj != null)
+					results.put(key, obj);
+			}
+			return results;
+		}
+
+		public Map<String, Object> getBulk(List<String> keys,
+				Transcoder transcoder) throws KeyValueStoreException,
+				IOException {
+			pass();
+			Map<String, Object> results = new HashMap<String, Object>();
+			for (String key : keys) {
+				Object obj = super.get(key, transcoder);
+				if (obj != null)
+					results.put(key, obj);
+			}
+			return results;
+		}
+
+		private void pass() throws KeyValueStoreException {
+			entered.release();
+			try {
+				gate.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new KeyValueStoreException(e);
+			}
+		}
+	}
 }
@@ -1,7 +1,11 @@
 package com.rubiconproject.oss.kv.test.backends;
 
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
 import com.rubiconproject.oss.kv.backends.ConcurrentHashMapKeyValueStore;
 import com.rubiconproject.oss.kv.test.KeyValueStoreBackendTestCase;
+import com.rubiconproject.oss.kv.util.TimingWheel;
 
 public class ConcurrentHashMapBackendTestCase extends
 		KeyValueStoreBackendTestCase {
@@ -21,4 +25,92 @@ public class ConcurrentHashMapBackendTestCase extends
 				&& ((System.currentTimeMillis() - start) <= 100));
 	}
 
+	public void testExpiry() throws Exception {
+		ConcurrentHashMapKeyValueStore store = new ConcurrentHashMapKeyValueStore();
+		store.setTickDuration(10);
+		store.start();
+		store.set("short", "a", 50, TimeUnit.MILLISECONDS);
+		store.set("long", "b", 10, TimeUnit.SECONDS);
+		store.set("forever", "c");
+		store.set("replaced", "d", 50, TimeUnit.MILLISECONDS);
+		store.set("replaced", "e");
+		assertEquals("a", store.get("short"));
+		assertEquals(4, store.getSize());
+
+		Thread.sleep(200);
+		// removed by the timing wheel without being read
+		assertEquals(3, store.getSize());
+		assertEquals(1, store.getExpirationCount());
+		assertNull(store.get("short"));
+		assertFalse(store.exists("short"));
+		assertEquals("b", store.get("long"));
+		assertEquals("c", store.get("forever"));
+		assertEquals("e", store.get("replaced"));
+
+		store.setDefaultTtl(50);
+		store.set("default", "f");
+		assertTrue(store.exists("default"));
+		Thread.sleep(60);
+		// expired on read even if the wheel has not got there yet
+		assertNull(store.get("default"));
+		store.stop();
+	}
+
+	public void testMaxEntries() throws Exception {
+		ConcurrentHashMapKeyValueStore store = new ConcurrentHashMapKeyValueStore();
+		store.setMaxEntries(200);
+		store.setEvictionSamples(10);
+		store.start();
+		for (int i = 0; i < 200; ++i)
+			store.set("hot." + i, new Integer(i));
+		for (int i = 0; i < 1000; ++i) {
+			if (i % 20 == 0) {
+				Thread.sleep(2);
+				for (int j = 0; j < 20; ++j)
+					store.get("hot." + j);
+				Thread.sleep(2);
+			}
+			store.set("cold." + i, new Integer(i));
+		}
+		assertEquals(200, store.getSize());
+		assertEquals(1000, store.getEvictionCount());
+		int survivors = 0;
+		for (int i = 0; i < 20; ++i) {
+			if (store.get("hot." + i) != null)
+				++survivors;
+		}
+		assertTrue("recently read entries were evicted: " + survivors,
+				survivors >= 15);
+		store.stop();
+	}
+
+	public void testTimingWheel() throws Exception {
+		TimingWheel<String> wheel = new TimingWheel<String>(1, 0);
+		wheel.schedule("a", 5);
+		wheel.schedule("b", 70);
+		wheel.schedule("c", 5000);
+		wheel.schedule("d", 300000);
+		wheel.schedule("e", 20000000);
+		TimingWheel.Timeout<String> cancelled = wheel.schedule("f", 100);
+		assertTrue(wheel.cancel(cancelled));
+		assertFalse(wheel.cancel(cancelled));
+		assertEquals(5, wheel.size());
+
+		assertTrue(wheel.advance(4).isEmpty());
+		assertEquals("a", single(wheel.advance(5)));
+		assertTrue(wheel.advance(69).isEmpty());
+		assertEquals("b", single(wheel.advance(70)));
+		assertTrue(wheel.advance(4999).isEmpty());
+		assertEquals("c", single(wheel.advance(5000)));
+		assertTrue(wheel.advance(299999).isEmpty());
+		assertEquals("d", single(wheel.advance(300000)));
+		assertTrue(wheel.advance(19999999).isEmpty());
+		assertEquals("e", single(wheel.advance(20000000)));
+		assertEquals(0, wheel.size());
+	}
+
+	private String single(List<String> expired) {
+		assertEquals(1, expired.size());
+		return expired.get(0);
+	}
 }
@@ -1,9 +1,22 @@
 package com.rubiconproject.oss.kv.test.backends;
 
+import java.io.File;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 import com.rubiconproject.oss.kv.KeyValueStoreException;
 import com.rubiconproject.oss.kv.backends.FileSystemKeyValueStore;
 import com.rubiconproject.oss.kv.test.KeyValueStoreBackendTestCase;
+import com.rubiconproject.oss.kv.transcoder.ByteArrayTranscoder;
 import com.rubiconproject.oss.kv.transcoder.StringTranscoder;
+import com.rubiconproject.oss.kv.transcoder.Transcoder;
 
 public class FileSystemBackendTestCase extends KeyValueStoreBackendTestCase {
 
@@ -25,4 +38,327 @@ public class FileSystemBackendTestCase extends KeyValueStoreBackendTestCase {
 		}
 	}
 
+	public void testFanOut() throws Exception {
+		FileSystemKeyValueStore store = new FileSystemKeyValueStore();
+		store.setRoot(clean("tmp/fs-fanout"));
+		store.setFanOutLevels(2);
+		store.setFsyncPolicy(FileSystemKeyValueStore.FSYNC_ALWAYS);
+		doTestBackend(store);
+
+		store.set("/some/nested/key.txt", "nested");
+		store.set("../../etc/passwd", "harmless");
+		store.set("..", "dots");
+		store.set("caf\u00e9 100%", "escaped");
+		assertEquals("nested", store.get("/some/nested/key.txt"));
+		assertEquals("harmless", store.get("../../etc/passwd"));
+		assertEquals("dots", store.get(".."));
+		assertEquals("escaped", store.get("caf\u00e9 100%"));
+		// a raw value that happens to look like a key header is kept whole
+		byte[] raw = new byte[] { 0x4b, 0x56, 0x4b, 0x31, 0, 0, 0, 1, 'x',
+				'y' };
+		Transcoder bytes = new ByteArrayTranscoder();
+		store.set("raw", raw, bytes);
+		assertTrue(Arrays.equals(raw, (byte[]) store.get("raw", bytes)));
+		assertTrue(store.exists("raw"));
+		// keys that would collide when sanitized stay apart
+		store.set("a b", "space");
+		store.set("a_b", "underscore");
+		assertEquals("space", store.get("a b"));
+		assertEquals("underscore", store.get("a_b"));
+		// keys too long to escape into a file name are hashed
+		char[] chars = new char[300];
+		Arrays.fill(chars, '%');
+		String longKey = new String(chars);
+		String otherLongKey = longKey + "x";
+		store.set(longKey, "long");
+		store.set(otherLongKey, "other");
+		assertEquals("long", store.get(longKey));
+		assertEquals("other", store.get(otherLongKey));
+		store.delete(longKey);
+		assertNull(store.get(longKey));
+		assertEquals("other", store.get(otherLongKey));
+
+		// every file sits two bucket levels below the root
+		for (File first : new File("tmp/fs-fanout").listFiles()) {
+			assertEquals(2, first.getName().length());
+			for (File second : first.listFiles()) {
+				assertEquals(2, second.getName().length());
+				for (File file : second.listFiles()) {
+					assertTrue(file.isFile());
+					assertTrue(file.getName().length() <= 255);
+				}
+			}
+		}
+		store.stop();
+	}
+
+	public void testSanitize() throws Exception {
+		FileSystemKeyValueStore store = new FileSystemKeyValueStore();
+		store.setRoot(clean("tmp/fs-sanitize"));
+		store.start();
+		String[] keys = new String[] { "plain/key.txt", "with space",
+				"caf\u00e9", "emoji\ud83d\ude00", "a:b*c?d" };
+		for (String key : keys)
+			store.set(key, key);
+		for (String key : keys) {
+			String expected = key.replaceAll("[^a-zA-Z0-9\\.\\-_\\+\\/]", "_");
+			assertTrue(expected, new File("tmp/fs-sanitize", expected).isFile());
+			assertEquals(key, store.get(key));
+		}
+		store.stop();
+	}
+
+	public void testGroupCommit() throws Exception {
+		clean("tmp/fs-group.packs");
+		final FileSystemKeyValueStore store = new FileSystemKeyValueStore();
+		store.setRoot(clean("tmp/fs-group"));
+		store.setFanOutLevels(1);
+		store.setFsyncPolicy(FileSystemKeyValueStore.FSYNC_GROUP);
+		store.setPackThreshold(1024);
+		store.setRepackInterval(0);
+		store.start();
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		Future<?>[] results = new Future<?>[8];
+		for (int t = 0; t < results.length; ++t) {
+			final int thread = t;
+			results[t] = executor.submit(new Callable<Object>() {
+				public Object call() throws Exception {
+					for (int i = 0; i < 50; ++i)
+						store.set("key." + thread + "." + i, new Integer(i));
+					return null;
+				}
+			});
+		}
+		for (Future<?> result : results)
+			result.get();
+		assertEquals(new Integer(49), store.get("key.7.49"));
+		// writers appending to the pack together shared its fsyncs
+		assertTrue(store.getFsyncCount() > 0);
+		assertTrue(store.getFsyncCount() < 400);
+
+		// standalone files are each forced
+		long before = store.getFsyncCount();
+		store.set("large", new byte[5000], new ByteArrayTranscoder());
+		assertEquals(before + 1, store.getFsyncCount());
+
+		// stopping while writers wait on the committer still seals the packs
+		results = new Future<?>[8];
+		for (int t = 0; t < results.length; ++t) {
+			final int thread = t;
+			results[t] = executor.submit(new Callable<Object>() {
+				public Object call() throws Exception {
+					for (int i = 0; i < 1000; ++i)
+						store.set("stop." + thread + "." + i, new Integer(i));
+					return null;
+				}
+			});
+		}
+		Thread.sleep(20l);
+		store.stop();
+		executor.shutdownNow();
+		boolean indexed = false;
+		for (File file : new File("tmp/fs-group.packs").listFiles())
+			indexed |= file.getName().endsWith(".idx");
+		assertTrue(indexed);
+		store.start();
+		assertEquals(new Integer(49), store.get("key.7.49"));
+		store.stop();
+	}
+
+	public void testLargeValuesAndSweep() throws Exception {
+		FileSystemKeyValueStore store = new FileSystemKeyValueStore();
+		store.setRoot(clean("tmp/fs-large"));
+		store.setMmapThreshold(1024);
+		store.setSweepInterval(0);
+		store.start();
+		byte[] large = new byte[100000];
+		large[99999] = 9;
+		store.set("deep/dir/large", large, new ByteArrayTranscoder());
+		assertTrue(Arrays.equals(large, (byte[]) store.get("deep/dir/large",
+				new ByteArrayTranscoder())));
+		store.set("deep/dir/small", new byte[] { 1 },
+				new ByteArrayTranscoder());
+		assertTrue(Arrays.equals(new byte[] { 1 }, (byte[]) store.get(
+				"deep/dir/small", new ByteArrayTranscoder())));
+		assertNull(store.get("deep/dir/missing"));
+		assertNull(store.get("deep"));
+
+		// directories are left in place on delete until swept
+		store.delete("deep/dir/large");
+		store.delete("deep/dir/small");
+		assertTrue(new File("tmp/fs-large/deep/dir").isDirectory());
+		store.sweep();
+		assertFalse(new File("tmp/fs-large/deep").exists());
+		assertTrue(new File("tmp/fs-large").isDirectory());
+		store.stop();
+	}
+
+	public void testPacked() throws Exception {
+		clean("tmp/fs-packed.packs");
+		FileSystemKeyValueStore store = new FileSystemKeyValueStore();
+		store.setRoot(clean("tmp/fs-packed"));
+		store.setFanOutLevels(1);
+		store.setPackThreshold(1024);
+		store.setRepackInterval(0);
+		doTestBackend(store);
+
+		Transcoder bytes = new ByteArrayTranscoder();
+		List<String> keys = new ArrayList<String>();
+		for (int i = 0; i < 200; ++i) {
+			keys.add("small." + i);
+			store.set("small." + i, new byte[] { (byte) i }, bytes);
+		}
+		store.set("large", new byte[5000], bytes);
+		assertEquals(1, new File("tmp/fs-packed").listFiles().length);
+		assertTrue(store.getPackedCount() >= 200);
+
+		// values move between packs and files as they change size
+		store.set("small.0", new byte[5000], bytes);
+		assertEquals(5000, ((byte[]) store.get("small.0", bytes)).length);
+		store.set("large", new byte[] { 7 }, bytes);
+		assertTrue(Arrays.equals(new byte[] { 7 }, (byte[]) store.get(
+				"large", bytes)));
+		store.delete("small.1");
+		assertFalse(store.exists("small.1"));
+		assertNull(store.get("small.1"));
+
+		keys.add("large");
+		keys.add("missing");
+		Map<String, Object> values = store.getBulk(keys, bytes);
+		assertEquals(200, values.size());
+		assertEquals(5000, ((byte[]) values.get("small.0")).length);
+		assertTrue(Arrays.equals(new byte[] { (byte) 150 }, (byte[]) values
+				.get("small.150")));
+		assertFalse(values.containsKey("small.1"));
+
+		// without index files, packs are recovered by scanning them
+		store.stop();
+		for (File file : new File("tmp/fs-packed.packs").listFiles()) {
+			if (file.getName().endsWith(".idx"))
+				assertTrue(file.delete());
+		}
+		store.start();
+		assertNull(store.get("small.1"));
+		assertEquals(5000, ((byte[]) store.get("small.0", bytes)).length);
+		assertTrue(Arrays.equals(new byte[] { 7 }, (byte[]) store.get(
+				"large", bytes)));
+		assertTrue(Arrays.equals(new byte[] { 99 }, (byte[]) store.get(
+				"small.99", bytes)));
+		store.stop();
+	}
+
+	public void testPackedMoves() throws Exception {
+		clean("tmp/fs-moves.packs");
+		final FileSystemKeyValueStore store = new FileSystemKeyValueStore();
+		store.setRoot(clean("tmp/fs-moves"));
+		store.setPackThreshold(1024);
+		store.setRepackInterval(0);
+		store.start();
+		final Transcoder bytes = new ByteArrayTranscoder();
+
+		// keys that sanitize alike do not remove each other's files
+		store.set("a b", new byte[5000], bytes);
+		store.set("a_b", new byte[] { 1 }, bytes);
+		assertEquals(5000, ((byte[]) store.get("a b", bytes)).length);
+		assertTrue(Arrays.equals(new byte[] { 1 }, (byte[]) store.get("a_b",
+				bytes)));
+		store.delete("a_b");
+		assertFalse(store.exists("a_b"));
+		assertTrue(store.exists("a b"));
+		assertEquals(5000, ((byte[]) store.get("a b", bytes)).length);
+
+		// readers never miss a key moving between its pack and its file
+		for (int i = 0; i < 10; ++i)
+			store.set("moving." + i, new byte[] { 1 }, bytes);
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		List<Future<Object>> results = new ArrayList<Future<Object>>();
+		for (int t = 0; t < 8; ++t) {
+			final boolean writer = (t % 2 == 0);
+			results.add(executor.submit(new Callable<Object>() {
+				public Object call() throws Exception {
+					for (int i = 0; i < 500; ++i) {
+						String key = "moving." + (i % 10);
+						if (writer)
+							store.set(key, new byte[(i % 3 == 0) ? 5000 : 1],
+									bytes);
+						else
+							assertNotNull(key, store.get(key, bytes));
+					}
+					return null;
+				}
+			}));
+		}
+		for (Future<Object> result : results)
+			result.get();
+		executor.shutdown();
+
+		// an interrupted reader does not close the pack for everyone else
+		store.set("packed", new byte[] { 2 }, bytes);
+		Thread.currentThread().interrupt();
+		try {
+			store.get("packed", bytes);
+			fail("Read while interrupted. Should have failed!");
+		} catch (InterruptedIOException expected) {
+		} finally {
+			Thread.interrupted();
+		}
+		assertTrue(Arrays.equals(new byte[] { 2 }, (byte[]) store.get(
+				"packed", bytes)));
+		store.stop();
+	}
+
+	public void testRepack() throws Exception {
+		clean("tmp/fs-repack.packs");
+		FileSystemKeyValueStore store = new FileSystemKeyValueStore();
+		store.setRoot(clean("tmp/fs-repack"));
+		store.setPackThreshold(1024);
+		store.setPackSize(4096);
+		store.setRepackInterval(0);
+		store.start();
+		Transcoder bytes = new ByteArrayTranscoder();
+		for (int round = 0; round < 10; ++round) {
+			for (int i = 0; i < 100; ++i)
+				store.set("key" + i, new byte[] { (byte) round, (byte) i },
+						bytes);
+		}
+		for (int i = 0; i < 50; ++i)
+			store.delete("key" + i);
+		int before = store.getPackCount();
+		long dead = store.getPackDeadBytes();
+		store.repack();
+		assertTrue(store.getRepackCount() > 0);
+		assertTrue(store.getPackCount() < before);
+		assertTrue(store.getPackDeadBytes() < dead);
+		for (int i = 0; i < 100; ++i) {
+			Object value = store.get("key" + i, bytes);
+			if (i < 50)
+				assertNull(value);
+			else
+				assertTrue(Arrays.equals(new byte[] { 9, (byte) i },
+						(byte[]) value));
+		}
+
+		// deletes carried forward by repacking still hold after a restart
+		store.stop();
+		store.start();
+		assertEquals(50, store.getPackedCount());
+		assertNull(store.get("key0"));
+		assertTrue(Arrays.equals(new byte[] { 9, 50 }, (byte[]) store.get(
+				"key50", bytes)));
+		store.stop();
+	}
+
+	private String clean(String path) {
+		delete(new File(path));
+		return path;
+	}
+
+	private void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children)
+				delete(child);
+		}
+		file.delete();
+	}
 }
@@ -0,0 +1,124 @@
+package com.rubiconproject.oss.kv.test.backends;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InterruptedIOException;
+import java.util.List;
+
+import com.rubiconproject.oss.kv.backends.LsmKeyValueStore;
+
+public class LsmBackendTestCase extends
+		PersistentStoreBackendTestCase<LsmKeyValueStore> {
+
+	public void testBackend() throws Exception {
+		LsmKeyValueStore store = new LsmKeyValueStore();
+		store.setDir(clean("tmp/lsm"));
+		doTestBackend(store);
+		store.stop();
+	}
+
+	public void testLogRecovery() throws Exception {
+		String dir = clean("tmp/lsm-recovery");
+		LsmKeyValueStore store = new LsmKeyValueStore(dir);
+		store.start();
+		for (int i = 0; i < 100; ++i)
+			store.set("key." + i, new Integer(i));
+		store.delete("key.7");
+
+		// copy the log as it stands, as if the process died here
+		File log = null;
+		for (File file : new File(dir).listFiles()) {
+			if (file.getName().endsWith(".log"))
+				log = file;
+		}
+		byte[] contents = new byte[(int) log.length()];
+		FileInputStream in = new FileInputStream(log);
+		in.read(contents);
+		in.close();
+		store.stop();
+		for (File file : new File(dir).listFiles())
+			file.delete();
+		FileOutputStream out = new FileOutputStream(log);
+		out.write(contents);
+		out.close();
+		tear(log);
+
+		store.start();
+		assertEquals(new Integer(42), store.get("key.42"));
+		assertNull(store.get("key.7"));
+		assertEquals(99, keys(store).size());
+		assertEquals(1, store.getTableCount());
+		store.stop();
+	}
+
+	public void testOrderedIteration() throws Exception {
+		String dir = clean("tmp/lsm-iteration");
+		LsmKeyValueStore store = new LsmKeyValueStore(dir);
+		store.setMemtableSize(4096);
+		store.start();
+		for (int i = 999; i >= 0; --i)
+			store.set(String.format("key.%1$04d", i), new Integer(i));
+		for (int i = 0; i < 1000; i += 3)
+			store.delete(String.format("key.%1$04d", i));
+		List<String> keys = keys(store);
+		assertEquals(666, keys.size());
+		for (int i = 1; i < keys.size(); ++i)
+			assertTrue(keys.get(i - 1).compareTo(keys.get(i)) < 0);
+		assertEquals("key.0001", keys.get(0));
+		assertEquals("key.0998", keys.get(keys.size() - 1));
+		store.stop();
+	}
+
+	public void testInterruptedRead() throws Exception {
+		String dir = clean("tmp/lsm-interrupt");
+		LsmKeyValueStore store = new LsmKeyValueStore(dir);
+		store.start();
+		store.set("key", "value");
+		store.flush();
+
+		// an interrupted reader must not close the table for everyone else
+		Thread.currentThread().interrupt();
+		try {
+			store.get("key");
+			fail("Read while interrupted. Should have failed!");
+		} catch (InterruptedIOException expected) {
+		} finally {
+			Thread.interrupted();
+		}
+		assertEquals("value", store.get("key"));
+		store.stop();
+	}
+
+	protected String getDirectory() {
+		return "tmp/lsm";
+	}
+
+	protected LsmKeyValueStore createStore(String dir) {
+		LsmKeyValueStore store = new LsmKeyValueStore(dir);
+		store.setMemtableSize(8192);
+		store.setMinMergeTables(0);
+		store.setCompactionThroughput(1024);
+		return store;
+	}
+
+	protected int getFileCount(LsmKeyValueStore store) {
+		return store.getTableCount();
+	}
+
+	protected void written(LsmKeyValueStore store) throws Exception {
+		store.flush();
+	}
+
+	protected void compact(LsmKeyValueStore store) throws Exception {
+		long bytesBefore = store.getTableBytes();
+		store.setMinMergeTables(4);
+		store.compact();
+		store.setMinMergeTables(0);
+		assertTrue(store.getCompactionCount() > 0);
+		assertTrue(store.getTableBytes() < bytesBefore);
+		// the tables and the current log
+		assertEquals(store.getTableCount() + 1, new File(getDirectory()
+				+ "-compaction").listFiles().length);
+	}
+}
@@ -0,0 +1,169 @@
+package com.rubiconproject.oss.kv.test.backends;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.rubiconproject.oss.kv.KeyValueStoreException;
+import com.rubiconproject.oss.kv.backends.CachingKeyValueStore;
+import com.rubiconproject.oss.kv.backends.ConcurrentHashMapKeyValueStore;
+import com.rubiconproject.oss.kv.backends.OffHeapKeyValueStore;
+import com.rubiconproject.oss.kv.test.KeyValueStoreBackendTestCase;
+import com.rubiconproject.oss.kv.transcoder.ByteArrayTranscoder;
+
+public class OffHeapBackendTestCase extends KeyValueStoreBackendTestCase {
+
+	public void testBackend() throws Exception {
+		OffHeapKeyValueStore store = new OffHeapKeyValueStore();
+		doTestBackend(store);
+	}
+
+	public void testAsCache() throws Exception {
+		ConcurrentHashMapKeyValueStore master = new ConcurrentHashMapKeyValueStore();
+		master.start();
+		OffHeapKeyValueStore cache = new OffHeapKeyValueStore();
+		cache.start();
+		CachingKeyValueStore store = new CachingKeyValueStore(master, cache);
+		doTestBackend(store);
+	}
+
+	public void testByteArrays() throws Exception {
+		OffHeapKeyValueStore store = new OffHeapKeyValueStore();
+		store.start();
+		byte[] value = new byte[] { 1, 2, 3, 4, 5 };
+		store.set("raw", value);
+		assertTrue(Arrays.equals(value, (byte[]) store.get("raw")));
+		assertTrue(Arrays.equals(value, (byte[]) store.get("raw",
+				new ByteArrayTranscoder())));
+		store.set("raw", new byte[] { 6 }, new ByteArrayTranscoder());
+		assertTrue(Arrays.equals(new byte[] { 6 }, (byte[]) store.get("raw")));
+
+		// moving to a larger size class
+		byte[] large = new byte[10000];
+		large[9999] = 7;
+		store.set("raw", large);
+		assertTrue(Arrays.equals(large, (byte[]) store.get("raw")));
+		assertEquals(1, store.getSize());
+
+		// larger than a slab
+		store.set("raw", new byte[2 * 1024 * 1024]);
+		assertNull(store.get("raw"));
+		assertEquals(1, store.getRejectedCount());
+		assertEquals(0, store.getSize());
+		assertEquals(0, store.getUsedBytes());
+		store.stop();
+	}
+
+	public void testSlabSizing() throws Exception {
+		// slabs are sized so every stripe has one for each size class
+		OffHeapKeyValueStore store = new OffHeapKeyValueStore();
+		store.start();
+		assertTrue(store.getSlabSize() < 1024 * 1024);
+		for (int i = 0; i < 20000; ++i)
+			store.set("sized." + i, new byte[i % 4000]);
+		assertTrue(store.getAllocatedBytes() <= store.getCapacity());
+		assertEquals(0, store.getRejectedCount());
+		try {
+			char[] key = new char[70000];
+			Arrays.fill(key, 'k');
+			store.set(new String(key), "value");
+			fail("Key too long. Should have failed!");
+		} catch (KeyValueStoreException expected) {
+		}
+		store.stop();
+
+		// less capacity than a slab per stripe is refused
+		store = new OffHeapKeyValueStore(64 * 1024);
+		store.setSlabSize(16 * 1024);
+		try {
+			store.start();
+			fail("Capacity below a slab per stripe. Should have failed!");
+		} catch (IllegalArgumentException expected) {
+		}
+	}
+
+	public void testClockEviction() throws Exception {
+		OffHeapKeyValueStore store = new OffHeapKeyValueStore(64 * 1024);
+		store.setSlabSize(16 * 1024);
+		store.setStripes(1);
+		store.start();
+		for (int i = 0; i < 10; ++i)
+			store.set("hot." + i, new byte[100]);
+		for (int i = 0; i < 5000; ++i) {
+			store.set("cold." + i, new byte[100]);
+			for (int j = 0; j < 10; ++j)
+				assertNotNull(store.get("hot." + j));
+		}
+		assertTrue(store.getEvictionCount() > 4000);
+		assertEquals(64 * 1024, store.getAllocatedBytes());
+		assertNull(store.get("cold.0"));
+		assertNotNull(store.get("cold.4999"));
+		store.stop();
+	}
+
+	public void testSlabReassignment() throws Exception {
+		OffHeapKeyValueStore store = new OffHeapKeyValueStore(64 * 1024);
+		store.setSlabSize(16 * 1024);
+		store.setStripes(1);
+		store.start();
+		// fill every slab with small entries
+		for (int i = 0; i < 2000; ++i)
+			store.set("small." + i, new byte[20]);
+		assertEquals(64 * 1024, store.getAllocatedBytes());
+		// a new size class takes a slab from the small entries
+		store.set("large", new byte[8000]);
+		assertNotNull(store.get("large"));
+		int small = 0;
+		for (int i = 0; i < 2000; ++i) {
+			if (store.get("small." + i) != null)
+				++small;
+		}
+		// only the slab given up was emptied
+		assertTrue("small entries left: " + small, small >= 700);
+		for (int i = 0; i < 100; ++i)
+			store.set("medium." + i, new byte[1000]);
+		assertNotNull(store.get("medium.99"));
+		assertTrue(store.getUsedBytes() <= store.getAllocatedBytes());
+		store.stop();
+	}
+
+	public void testConcurrentAccess() throws Exception {
+		final OffHeapKeyValueStore store = new OffHeapKeyValueStore(
+				256 * 1024);
+		store.setSlabSize(8 * 1024);
+		store.setStripes(4);
+		store.start();
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		List<Future<Object>> results = new ArrayList<Future<Object>>();
+		for (int t = 0; t < 8; ++t) {
+			final int thread = t;
+			results.add(executor.submit(new Callable<Object>() {
+				public Object call() throws Exception {
+					for (int i = 0; i < 20000; ++i) {
+						int n = (i * 31 + thread) % 5000;
+						String key = "concurrent." + n;
+						byte[] value = (byte[]) store.get(key);
+						if (value == null)
+							store.set(key, new byte[n % 500]);
+						else {
+							assertEquals(n % 500, value.length);
+							if (i % 7 == 0)
+								store.delete(key);
+						}
+					}
+					return null;
+				}
+			}));
+		}
+		for (Future<Object> result : results)
+			result.get();
+		executor.shutdown();
+		assertTrue(store.getUsedBytes() <= store.getAllocatedBytes());
+		assertTrue(store.getAllocatedBytes() <= 256 * 1024);
+		store.stop();
+	}
+}
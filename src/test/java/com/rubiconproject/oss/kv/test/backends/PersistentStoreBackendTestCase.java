@@ -0,0 +1,124 @@
+package com.rubiconproject.oss.kv.test.backends;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import com.rubiconproject.oss.kv.backends.IterableKeyValueStore;
+import com.rubiconproject.oss.kv.backends.KeyValueStoreIterator;
+import com.rubiconproject.oss.kv.test.KeyValueStoreBackendTestCase;
+
+/**
+ * Restart and compaction scenarios shared by the stores that keep their
+ * data in a directory of files.
+ */
+public abstract class PersistentStoreBackendTestCase<S extends IterableKeyValueStore>
+		extends KeyValueStoreBackendTestCase {
+
+	/**
+	 * The directory under which the tests keep their stores.
+	 */
+	protected abstract String getDirectory();
+
+	/**
+	 * A stopped store in dir, writing small files and compacting only when
+	 * asked.
+	 */
+	protected abstract S createStore(String dir) throws Exception;
+
+	/**
+	 * The number of segments or tables the store has on disk.
+	 */
+	protected abstract int getFileCount(S store);
+
+	protected abstract void compact(S store) throws Exception;
+
+	/**
+	 * Called after each round of writes, so a store can put them on disk.
+	 */
+	protected void written(S store) throws Exception {
+	}
+
+	public void testRestart() throws Exception {
+		String dir = clean(getDirectory() + "-restart");
+		S store = createStore(dir);
+		store.start();
+		for (int i = 0; i < 500; ++i)
+			store.set("key." + i, "value " + i);
+		for (int i = 0; i < 500; i += 5)
+			store.delete("key." + i);
+		store.set("key.1", "updated");
+		written(store);
+		assertTrue(getFileCount(store) > 1);
+		assertEquals("updated", store.get("key.1"));
+		assertNull(store.get("key.0"));
+		store.stop();
+
+		store.start();
+		assertEquals("updated", store.get("key.1"));
+		assertEquals("value 499", store.get("key.499"));
+		assertNull(store.get("key.0"));
+		assertFalse(store.exists("key.495"));
+		List<String> keys = keys(store);
+		assertEquals(400, keys.size());
+		assertTrue(keys.contains("key.2"));
+		store.stop();
+	}
+
+	public void testCompaction() throws Exception {
+		String dir = clean(getDirectory() + "-compaction");
+		S store = createStore(dir);
+		store.start();
+		for (int round = 0; round < 10; ++round) {
+			for (int i = 0; i < 50; ++i)
+				store.set("key." + i, "round " + round + " value " + i);
+			written(store);
+		}
+		for (int i = 40; i < 50; ++i)
+			store.delete("key." + i);
+		written(store);
+		int filesBefore = getFileCount(store);
+		compact(store);
+		assertTrue(getFileCount(store) < filesBefore);
+		for (int i = 0; i < 40; ++i)
+			assertEquals("round 9 value " + i, store.get("key." + i));
+		assertNull(store.get("key.45"));
+		store.stop();
+
+		store.start();
+		assertEquals(40, keys(store).size());
+		assertEquals("round 9 value 7", store.get("key.7"));
+		assertNull(store.get("key.45"));
+		store.stop();
+	}
+
+	/**
+	 * Append the start of a record to the file, as a crash mid-write would
+	 * leave it.
+	 */
+	protected void tear(File file) throws Exception {
+		FileOutputStream out = new FileOutputStream(file, true);
+		out.write(new byte[] { 0, 0, 0, 1, 0, 0, 0, 4, 0, 0, 0, 9, 'k' });
+		out.close();
+	}
+
+	protected List<String> keys(IterableKeyValueStore store) throws Exception {
+		List<String> keys = new ArrayList<String>();
+		KeyValueStoreIterator iterator = store.iterkeys();
+		for (Iterator<String> iter = iterator.iterator(); iter.hasNext();)
+			keys.add(iter.next());
+		iterator.close();
+		return keys;
+	}
+
+	protected String clean(String path) {
+		File dir = new File(path);
+		if (dir.exists()) {
+			for (File file : dir.listFiles())
+				file.delete();
+		}
+		return path;
+	}
+}
@@ -1,14 +1,29 @@
 package com.rubiconproject.oss.kv.test.backends;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
+import com.rubiconproject.oss.kv.KeyValueStoreException;
 import com.rubiconproject.oss.kv.KeyValueStoreUnavailable;
+import com.rubiconproject.oss.kv.RateLimitExceededException;
+import com.rubiconproject.oss.kv.backends.ConcurrentHashMapKeyValueStore;
 import com.rubiconproject.oss.kv.backends.MemcachedKeyValueStore;
 import com.rubiconproject.oss.kv.backends.RateLimitingKeyValueStore;
+import com.rubiconproject.oss.kv.backends.RateLimitingKeyValueStore.OperationClass;
 import com.rubiconproject.oss.kv.test.KeyValueStoreBackendTestCase;
+import com.rubiconproject.oss.kv.util.LeasingMemcachedRateLimiter;
 import com.rubiconproject.oss.kv.util.MemcachedRateLimiter;
 import com.rubiconproject.oss.kv.util.RateLimiter;
 import com.rubiconproject.oss.kv.util.SimpleRateLimiter;
+import com.rubiconproject.oss.kv.util.TokenBucketRateLimiter;
 
 public class RateLimitingStoreBackendTestCase extends
 		KeyValueStoreBackendTestCase {
@@ -57,4 +72,200 @@ public class RateLimitingStoreBackendTestCase extends
 		assertEquals(limiter.getCounter(), 1);
 	}
 
+	public void testTokenBucketLimiter() throws Exception {
+		ConcurrentHashMapKeyValueStore master = new ConcurrentHashMapKeyValueStore();
+		master.start();
+		RateLimitingKeyValueStore store = new RateLimitingKeyValueStore();
+		store.setMaster(master);
+		store.setWriteRateLimiter(new TokenBucketRateLimiter(
+				TimeUnit.SECONDS, 1, 10));
+		store.start();
+
+		// a full bucket allows a burst of 10
+		for (int i = 0; i < 10; ++i)
+			store.set("bucket." + i, i);
+		try {
+			store.set("bucket.10", 10);
+			fail("Rate limit exceeded. Should have failed!");
+		} catch (RateLimitExceededException e) {
+			assertEquals(1, store.getRejectedCount());
+		}
+
+		// one permit refills every 100ms
+		store.setMaxWait(500l);
+		long start = System.currentTimeMillis();
+		store.set("bucket.10", 10);
+		assertTrue(System.currentTimeMillis() - start >= 50l);
+		assertEquals(1, store.getPermitWaitCount());
+		assertTrue(store.getAveragePermitWait() > 0.0);
+		store.stop();
+	}
+
+	public void testTokenBucketConcurrency() throws Exception {
+		final RateLimiter limiter = new TokenBucketRateLimiter(
+				TimeUnit.SECONDS, 1, 100);
+		final long end = System.currentTimeMillis() + 500l;
+		ExecutorService executor = Executors.newFixedThreadPool(16);
+		List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+		for (int i = 0; i < 16; ++i) {
+			results.add(executor.submit(new Callable<Integer>() {
+				public Integer call() throws Exception {
+					int acquired = 0;
+					while (System.currentTimeMillis() < end) {
+						if (limiter.tryAcquire(1))
+							++acquired;
+					}
+					return acquired;
+				}
+			}));
+		}
+		int total = 0;
+		for (Future<Integer> result : results)
+			total += result.get();
+		executor.shutdown();
+		// burst of 100 plus 50 refilled in 500ms
+		assertTrue(total >= 140);
+		assertTrue(total <= 160);
+	}
+
+	public void testOperationBudgets() throws Exception {
+		ConcurrentHashMapKeyValueStore master = new ConcurrentHashMapKeyValueStore();
+		master.start();
+		RateLimitingKeyValueStore store = new RateLimitingKeyValueStore();
+		store.setMaster(master);
+		store.setReadsPerSecond(100);
+		store.setBulkReadKeysPerSecond(50);
+		store.setWritesPerSecond(10);
+		store.setDeletesPerSecond(5);
+		store.start();
+
+		// bulk writes are weighted by key count
+		Map<String, Object> values = new HashMap<String, Object>();
+		List<String> keys = new ArrayList<String>();
+		for (int i = 0; i < 10; ++i) {
+			values.put("budget." + i, i);
+			keys.add("budget." + i);
+		}
+		store.setBulk(values);
+		try {
+			store.set("budget.10", 10);
+			fail("Rate limit exceeded. Should have failed!");
+		} catch (RateLimitExceededException expected) {
+		}
+		assertEquals(1, store.getRejectedCount(OperationClass.Write));
+
+		// bulk reads use their own budget
+		for (int i = 0; i < 5; ++i)
+			assertEquals(10, store.getBulk(keys).size());
+		try {
+			store.getBulk(keys);
+			fail("Rate limit exceeded. Should have failed!");
+		} catch (RateLimitExceededException expected) {
+		}
+		assertEquals(1, store.getRejectedCount(OperationClass.BulkRead));
+		assertEquals(0, store.getRejectedCount(OperationClass.PointRead));
+		assertEquals(0, store.get("budget.0"));
+
+		for (int i = 0; i < 5; ++i)
+			store.delete("budget." + i);
+		try {
+			store.delete("budget.5");
+			fail("Rate limit exceeded. Should have failed!");
+		} catch (RateLimitExceededException expected) {
+		}
+		assertEquals(1, store.getRejectedCount(OperationClass.Delete));
+		assertEquals(3, store.getRejectedCount());
+
+		// waiting is accounted to the operation class
+		store.setMaxWait(500l);
+		store.delete("budget.5");
+		assertTrue(store.getThrottleDelay(OperationClass.Delete) > 0.0);
+		assertEquals(0.0, store.getThrottleDelay(OperationClass.Write));
+		store.stop();
+	}
+
+	public void testLeasingMemcachedLimiter() throws Exception {
+		CounterStore counters = new CounterStore();
+		LeasingMemcachedRateLimiter first = new LeasingMemcachedRateLimiter(
+				counters, "test-lease");
+		first.setLimit(TimeUnit.SECONDS, 10, 100);
+		first.setLeaseSize(10);
+		LeasingMemcachedRateLimiter second = new LeasingMemcachedRateLimiter(
+				counters, "test-lease");
+		second.setLimit(TimeUnit.SECONDS, 10, 100);
+		second.setLeaseSize(10);
+
+		int acquired = 0;
+		for (int i = 0; i < 150; ++i) {
+			if (first.tryAcquire(1))
+				++acquired;
+			if (second.tryAcquire(1))
+				++acquired;
+		}
+		// the limit is shared, and permits are leased in blocks
+		assertTrue(acquired >= 90);
+		assertTrue(acquired <= 100);
+		assertTrue(counters.calls < 40);
+	}
+
+	public void testLeasingMemcachedFallback() throws Exception {
+		CounterStore counters = new CounterStore();
+		counters.down = true;
+		LeasingMemcachedRateLimiter limiter = new LeasingMemcachedRateLimiter(
+				counters, "test-fallback");
+		limiter.setLimit(TimeUnit.SECONDS, 10, 100);
+		limiter.setFallbackMaxEvents(5);
+		limiter.setRetryInterval(10000l);
+
+		int acquired = 0;
+		for (int i = 0; i < 20; ++i) {
+			if (limiter.tryAcquire(1))
+				++acquired;
+		}
+		assertEquals(5, acquired);
+		// memcached is not retried until the retry interval has passed
+		assertEquals(1, counters.calls);
+	}
+
+	/**
+	 * In-memory stand-in for memcached counters.
+	 */
+	private static class CounterStore extends MemcachedKeyValueStore {
+		private Map<String, Long> counters = new HashMap<String, Long>();
+
+		private volatile boolean down = false;
+
+		private int calls = 0;
+
+		public synchronized Object get(String key)
+				throws KeyValueStoreException, IOException {
+			call();
+			Long value = counters.get(key);
+			return (value == null) ? null : value.toString();
+		}
+
+		public synchronized long incr(String key, int by, long def, int exp)
+				throws KeyValueStoreException {
+			call();
+			Long value = counters.get(key);
+			long updated = (value == null) ? def : value + by;
+			counters.put(key, updated);
+			return updated;
+		}
+
+		public synchronized long decr(String key, int by, long def, int exp)
+				throws KeyValueStoreException {
+			call();
+			Long value = counters.get(key);
+			long updated = (value == null) ? def : Math.max(0, value - by);
+			counters.put(key, updated);
+			return updated;
+		}
+
+		private void call() throws KeyValueStoreException {
+			++calls;
+			if (down)
+				throw new KeyValueStoreException("memcached is down");
+		}
+	}
 }
@@ -0,0 +1,283 @@
+package com.rubiconproject.oss.kv.test.backends;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.management.ObjectName;
+
+import com.rubiconproject.oss.kv.KeyValueStoreStatus;
+import com.rubiconproject.oss.kv.backends.ConcurrentHashMapKeyValueStore;
+import com.rubiconproject.oss.kv.backends.ReadLoadBalancingKeyValueStore;
+import com.rubiconproject.oss.kv.backends.ReplicaSelectionStrategy;
+import com.rubiconproject.oss.kv.backends.ReplicaStats;
+import com.rubiconproject.oss.kv.mgmt.JMXMbeanServerFactory;
+import com.rubiconproject.oss.kv.test.KeyValueStoreBackendTestCase;
+
+public class ReadLoadBalancingStoreBackendTestCase extends
+		KeyValueStoreBackendTestCase {
+
+	public void testBackend() throws Exception {
+		ConcurrentHashMapKeyValueStore master = new ConcurrentHashMapKeyValueStore();
+		master.start();
+
+		ReadLoadBalancingKeyValueStore store = new ReadLoadBalancingKeyValueStore(
+				master);
+		// readers share master's map so reads observe writes
+		store.addReader(master);
+		doTestBackend(store);
+	}
+
+	public void testSlowReaderAvoided() throws Exception {
+		ConcurrentHashMapKeyValueStore master = new ConcurrentHashMapKeyValueStore();
+		master.start();
+		ConcurrentHashMapKeyValueStore fast = new ConcurrentHashMapKeyValueStore();
+		fast.start();
+		fast.set("key", "value");
+		ConcurrentHashMapKeyValueStore slow = new ConcurrentHashMapKeyValueStore();
+		slow.start();
+		slow.set("key", "value");
+		slow.setReadSleepTime(20l);
+
+		ReadLoadBalancingKeyValueStore store = new ReadLoadBalancingKeyValueStore(
+				master);
+		store.addReader(fast);
+		store.addReader(slow);
+		store.start();
+
+		for (int i = 0; i < 100; ++i)
+			assertEquals("value", store.get("key"));
+
+		ReplicaStats fastStats = store.getReplicaStats().get(0);
+		ReplicaStats slowStats = store.getReplicaStats().get(1);
+		assertTrue(fastStats.getRequestCount() > slowStats.getRequestCount());
+		assertTrue(slowStats.getLatencyEwma() > fastStats.getLatencyEwma());
+		store.stop();
+	}
+
+	public void testEjectionAndProbe() throws Exception {
+		ConcurrentHashMapKeyValueStore master = new ConcurrentHashMapKeyValueStore();
+		master.start();
+		master.set("key", "value");
+		ConcurrentHashMapKeyValueStore reader = new ConcurrentHashMapKeyValueStore();
+		reader.start();
+		reader.set("key", "value");
+		reader.setStatus(KeyValueStoreStatus.Offline);
+
+		ReadLoadBalancingKeyValueStore store = new ReadLoadBalancingKeyValueStore(
+				master);
+		store.addReader(reader);
+		store.setErrorThreshold(3);
+		store.setEjectionTime(200l);
+		store.start();
+
+		// failed reads fall back to master
+		for (int i = 0; i < 10; ++i)
+			assertEquals("value", store.get("key"));
+		ReplicaStats stats = store.getReplicaStats().get(0);
+		assertTrue(stats.isEjected());
+		assertEquals(3, stats.getRequestCount());
+		assertEquals(1, stats.getEjectionCount());
+
+		// a failed probe ejects it again
+		Thread.sleep(250l);
+		assertEquals("value", store.get("key"));
+		assertEquals(4, stats.getRequestCount());
+		assertTrue(stats.isEjected());
+
+		// a successful probe reinstates it
+		reader.setStatus(KeyValueStoreStatus.Online);
+		Thread.sleep(250l);
+		assertEquals("value", store.get("key"));
+		assertFalse(stats.isEjected());
+		assertEquals("value", store.get("key"));
+		assertEquals(6, stats.getRequestCount());
+		assertEquals(1, countReplicaMXBeans(store));
+		store.stop();
+		assertEquals(0, countReplicaMXBeans(store));
+	}
+
+	public void testInflightReadDoesNotReinstate() throws Exception {
+		ConcurrentHashMapKeyValueStore master = new ConcurrentHashMapKeyValueStore();
+		master.start();
+		master.set("key", "value");
+		ConcurrentHashMapKeyValueStore reader = new ConcurrentHashMapKeyValueStore();
+		reader.start();
+		reader.set("key", "value");
+		reader.setReadSleepTime(200l);
+
+		final ReadLoadBalancingKeyValueStore store = new ReadLoadBalancingKeyValueStore(
+				master);
+		store.addReader(reader);
+		store.start();
+		Thread read = new Thread() {
+			public void run() {
+				try {
+					store.get("key");
+				} catch (Exception e) {
+				}
+			}
+		};
+		read.start();
+		Thread.sleep(50l);
+		ReplicaStats stats = store.getReplicaStats().get(0);
+		stats.eject(10000l);
+		read.join();
+
+		// the read sent before the ejection succeeded, but was not a probe
+		assertTrue(stats.isEjected());
+		assertEquals(1, stats.getRequestCount());
+		store.stop();
+	}
+
+	public void testHedgedReads() throws Exception {
+		ConcurrentHashMapKeyValueStore master = new ConcurrentHashMapKeyValueStore();
+		master.start();
+		ConcurrentHashMapKeyValueStore slow = new ConcurrentHashMapKeyValueStore();
+		slow.start();
+		slow.set("key", "value");
+		ConcurrentHashMapKeyValueStore fast = new ConcurrentHashMapKeyValueStore();
+		fast.start();
+		fast.set("key", "value");
+
+		ReadLoadBalancingKeyValueStore store = new ReadLoadBalancingKeyValueStore(
+				master);
+		store.addReader(slow);
+		store.addReader(fast);
+		// always try the first available reader, so reads start on the slow one
+		store.setSelectionStrategy(new ReplicaSelectionStrategy() {
+			public ReplicaStats select(List<ReplicaStats> replicas) {
+				return replicas.get(0);
+			}
+		});
+		store.setHedgePercentile(95);
+		store.setMinHedgeDelay(20l);
+		store.setHedgeBudget(1.0);
+		store.start();
+
+		slow.setReadSleepTime(500l);
+		long start = System.currentTimeMillis();
+		assertEquals("value", store.get("key"));
+		assertTrue(System.currentTimeMillis() - start < 400l);
+		assertEquals(1, store.getHedgeCount());
+		assertEquals(1, store.getHedgeWinCount());
+		store.stop();
+
+		// with no budget the read waits for the slow reader
+		store.setHedgeBudget(0.0);
+		store.start();
+		start = System.currentTimeMillis();
+		assertEquals("value", store.get("key"));
+		assertTrue(System.currentTimeMillis() - start >= 400l);
+		assertEquals(1, store.getHedgeCount());
+		store.stop();
+	}
+
+	public void testHedgingDoesNotLimitConcurrency() throws Exception {
+		ConcurrentHashMapKeyValueStore master = new ConcurrentHashMapKeyValueStore();
+		master.start();
+		ConcurrentHashMapKeyValueStore reader = new ConcurrentHashMapKeyValueStore();
+		reader.start();
+		reader.set("key", "value");
+		reader.setReadSleepTime(50l);
+
+		final ReadLoadBalancingKeyValueStore store = new ReadLoadBalancingKeyValueStore(
+				master);
+		store.addReader(reader);
+		store.setHedgePercentile(95);
+		store.setMinHedgeDelay(200l);
+		store.setHedgeBudget(1.0);
+		store.setHedgeThreadPoolSize(2);
+		store.start();
+
+		// more concurrent reads than pooled threads neither queue nor hedge
+		ExecutorService callers = Executors.newFixedThreadPool(16);
+		List<Future<Object>> results = new ArrayList<Future<Object>>();
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < 16; ++i) {
+			results.add(callers.submit(new Callable<Object>() {
+				public Object call() throws Exception {
+					return store.get("key");
+				}
+			}));
+		}
+		for (Future<Object> result : results)
+			assertEquals("value", result.get());
+		assertTrue(System.currentTimeMillis() - start < 200l);
+		assertEquals(0, store.getHedgeCount());
+		callers.shutdown();
+		store.stop();
+	}
+
+	public void testPartitionedBulkReads() throws Exception {
+		ConcurrentHashMapKeyValueStore master = new ConcurrentHashMapKeyValueStore();
+		master.start();
+		ConcurrentHashMapKeyValueStore offline = new ConcurrentHashMapKeyValueStore();
+		ConcurrentHashMapKeyValueStore first = new ConcurrentHashMapKeyValueStore();
+		first.start();
+		ConcurrentHashMapKeyValueStore second = new ConcurrentHashMapKeyValueStore();
+		second.start();
+		List<String> keys = new ArrayList<String>();
+		for (int i = 0; i < 100; ++i) {
+			String key = "bulk." + i;
+			keys.add(key);
+			first.set(key, i);
+			second.set(key, i);
+		}
+
+		ReadLoadBalancingKeyValueStore store = new ReadLoadBalancingKeyValueStore(
+				master);
+		store.addReader(first);
+		store.addReader(second);
+		store.setBulkPartitionSize(10);
+		store.setBulkParallelism(4);
+		store.start();
+
+		Map<String, Object> results = store.getBulk(keys);
+		assertEquals(100, results.size());
+		for (int i = 0; i < 100; ++i)
+			assertEquals(i, results.get("bulk." + i));
+		assertEquals(10, store.getBulkPartitionCount());
+		assertEquals(10, store.getReplicaStats().get(0).getRequestCount()
+				+ store.getReplicaStats().get(1).getRequestCount());
+
+		// small bulk reads are not partitioned
+		assertEquals(5, store.getBulk(keys.subList(0, 5)).size());
+		assertEquals(10, store.getBulkPartitionCount());
+		store.stop();
+
+		// partitions that fail on the offline reader are retried elsewhere
+		store.removeReader(first);
+		store.removeReader(second);
+		store.addReader(offline);
+		store.addReader(second);
+		store.setErrorThreshold(0);
+		store.setSelectionStrategy(new ReplicaSelectionStrategy() {
+			public ReplicaStats select(List<ReplicaStats> replicas) {
+				return replicas.get(0);
+			}
+		});
+		store.start();
+		results = store.getBulk(keys);
+		assertEquals(100, results.size());
+		assertEquals(10, store.getPartitionRetryCount());
+		assertEquals(10, store.getReplicaStats().get(1).getRequestCount());
+		store.stop();
+	}
+
+	private int countReplicaMXBeans(ReadLoadBalancingKeyValueStore store)
+			throws Exception {
+		int count = 0;
+		for (ObjectName name : JMXMbeanServerFactory.getMBeanServer()
+				.queryNames(new ObjectName(store.getMXBeanObjectName() + ",*"),
+						null)) {
+			if (name.getKeyProperty("replica") != null)
+				++count;
+		}
+		return count;
+	}
+}
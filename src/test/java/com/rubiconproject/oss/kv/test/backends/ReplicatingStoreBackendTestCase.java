@@ -1,10 +1,16 @@
 package com.rubiconproject.oss.kv.test.backends;
 
+import java.util.concurrent.ExecutionException;
+
+import com.rubiconproject.oss.kv.CoalescingAsyncFlushQueue;
 import com.rubiconproject.oss.kv.KeyValueStore;
 import com.rubiconproject.oss.kv.KeyValueStoreStatus;
+import com.rubiconproject.oss.kv.KeyValueStoreUnavailable;
 import com.rubiconproject.oss.kv.backends.ConcurrentHashMapKeyValueStore;
 import com.rubiconproject.oss.kv.backends.MemcachedKeyValueStore;
 import com.rubiconproject.oss.kv.backends.ReplicatingKeyValueStore;
+import com.rubiconproject.oss.kv.backends.ReplicationQueue;
+import com.rubiconproject.oss.kv.backends.ReplicationQueue.ReplicationAck;
 import com.rubiconproject.oss.kv.test.KeyValueStoreBackendTestCase;
 
 public class ReplicatingStoreBackendTestCase extends
@@ -35,4 +41,181 @@ public class ReplicatingStoreBackendTestCase extends
 		doTestBackend(store);
 	}
 
+	public void testReplicationQueues() throws Exception {
+		ConcurrentHashMapKeyValueStore master = new ConcurrentHashMapKeyValueStore();
+		master.start();
+		ConcurrentHashMapKeyValueStore healthy = new ConcurrentHashMapKeyValueStore();
+		healthy.start();
+		ConcurrentHashMapKeyValueStore failing = new ConcurrentHashMapKeyValueStore();
+		failing.start();
+		failing.setStatus(KeyValueStoreStatus.Offline);
+
+		ReplicatingKeyValueStore store = new ReplicatingKeyValueStore(master);
+		store.addReplica(healthy);
+		store.addReplica(failing);
+		store.setReplicationRetryInterval(20l);
+		store.setReplicationMaxRetryInterval(50l);
+		store.start();
+
+		for (int i = 0; i < 200; ++i)
+			store.set("replicated." + i, i);
+		store.delete("replicated.0");
+
+		ReplicationQueue healthyQueue = store.getReplicationQueue(healthy);
+		ReplicationQueue failingQueue = store.getReplicationQueue(failing);
+		waitForDrain(healthyQueue);
+		assertEquals(199, healthy.getBulk(keys(200)).size());
+		// writes were applied in batches
+		assertTrue(healthyQueue.getFlushCount() < 201);
+
+		// the failing replica keeps its writes as hints
+		Thread.sleep(100l);
+		assertEquals(200, failingQueue.getPendingCount());
+		assertTrue(failingQueue.getFailedWriteCount() > 0);
+		assertTrue(failingQueue.getOldestPendingAge() >= 100l);
+
+		failing.setStatus(KeyValueStoreStatus.Online);
+		waitForDrain(failingQueue);
+		assertEquals(199, failing.getBulk(keys(200)).size());
+		assertEquals(0, failingQueue.getOldestPendingAge());
+		store.stop();
+	}
+
+	public void testDroppedWriteFailsAck() throws Exception {
+		ConcurrentHashMapKeyValueStore replica = new ConcurrentHashMapKeyValueStore();
+		replica.start();
+		ReplicationQueue queue = new ReplicationQueue(replica,
+				"OthersOnline:entity=ReplicationQueue,test=dropped");
+		queue.setMaxPending(1);
+		// nothing is flushed before the queue is full
+		queue.setFlushInterval(60000l);
+		queue.setOverflowPolicy(CoalescingAsyncFlushQueue.OverflowPolicy.DropOldest);
+		queue.start();
+		ReplicationAck ack = new ReplicationAck(1);
+		queue.set("first", "value", null, ack);
+		assertFalse(ack.isDone());
+		queue.set("second", "value");
+		assertTrue(ack.isDone());
+		try {
+			ack.get();
+			fail("Dropped write should fail its ack");
+		} catch (ExecutionException expected) {
+		}
+		assertEquals(1, queue.getDroppedCount());
+		queue.stop();
+	}
+
+	public void testFailingReplicaDoesNotBlockMaster() throws Exception {
+		final ConcurrentHashMapKeyValueStore master = new ConcurrentHashMapKeyValueStore();
+		master.start();
+		ConcurrentHashMapKeyValueStore failing = new ConcurrentHashMapKeyValueStore();
+		failing.start();
+		failing.setStatus(KeyValueStoreStatus.Offline);
+
+		final ReplicatingKeyValueStore store = new ReplicatingKeyValueStore(
+				master);
+		store.addReplica(failing);
+		store.setReplicationQueueSize(10);
+		store.setReplicationRetryInterval(20l);
+		store.setReplicationMaxRetryInterval(50l);
+		store.setWriteConsistency("master");
+		store.start();
+
+		final Exception[] error = new Exception[1];
+		Thread writer = new Thread() {
+			public void run() {
+				try {
+					for (int i = 0; i < 200; ++i)
+						store.set("replicated." + i, i);
+				} catch (Exception e) {
+					error[0] = e;
+				}
+			}
+		};
+		writer.start();
+		writer.join(5000l);
+		assertFalse("Master writes stalled behind the failing replica",
+				writer.isAlive());
+		assertNull(error[0]);
+		assertEquals(200, master.getBulk(keys(200)).size());
+
+		ReplicationQueue failingQueue = store.getReplicationQueue(failing);
+		assertTrue(failingQueue.getPendingCount() <= 10);
+		assertTrue(failingQueue.getDroppedCount() > 0);
+		store.stop();
+	}
+
+	public void testWriteConsistency() throws Exception {
+		ConcurrentHashMapKeyValueStore master = new ConcurrentHashMapKeyValueStore();
+		master.start();
+		master.setWriteSleepTime(200l);
+		ConcurrentHashMapKeyValueStore fast = new ConcurrentHashMapKeyValueStore();
+		fast.start();
+		ConcurrentHashMapKeyValueStore slow = new ConcurrentHashMapKeyValueStore();
+		slow.start();
+		slow.setWriteSleepTime(400l);
+
+		ReplicatingKeyValueStore store = new ReplicatingKeyValueStore(master);
+		store.addReplica(fast);
+		store.addReplica(slow);
+		store.setWriteConsistency("1");
+		store.start();
+
+		// master and the fast replica are written in parallel
+		long start = System.currentTimeMillis();
+		store.set("consistency.1", "value");
+		long elapsed = System.currentTimeMillis() - start;
+		assertTrue(elapsed < 350l);
+		assertEquals("value", fast.get("consistency.1"));
+
+		store.setWriteConsistency("all");
+		start = System.currentTimeMillis();
+		store.set("consistency.all", "value");
+		elapsed = System.currentTimeMillis() - start;
+		assertTrue(elapsed >= 400l);
+		assertEquals("value", slow.get("consistency.all"));
+
+		// the slow replica cannot ack within the timeout
+		store.setWriteTimeout(100l);
+		try {
+			store.set("consistency.timeout", "value");
+			fail("Expected KeyValueStoreUnavailable");
+		} catch (KeyValueStoreUnavailable expected) {
+		}
+
+		// a failing replica fails the write without waiting for the timeout
+		slow.setWriteSleepTime(0l);
+		slow.setStatus(KeyValueStoreStatus.Offline);
+		store.setWriteTimeout(5000l);
+		start = System.currentTimeMillis();
+		try {
+			store.set("consistency.failed", "value");
+			fail("Expected KeyValueStoreUnavailable");
+		} catch (KeyValueStoreUnavailable expected) {
+		}
+		assertTrue(System.currentTimeMillis() - start < 2000l);
+
+		store.setWriteConsistency("3");
+		try {
+			store.set("consistency.3", "value");
+			fail("Expected KeyValueStoreUnavailable");
+		} catch (KeyValueStoreUnavailable expected) {
+		}
+		store.stop();
+	}
+
+	private String[] keys(int count) {
+		String[] keys = new String[count];
+		for (int i = 0; i < count; ++i)
+			keys[i] = "replicated." + i;
+		return keys;
+	}
+
+	private void waitForDrain(ReplicationQueue queue) throws Exception {
+		for (int i = 0; (i < 100) && (queue.getPendingCount() > 0); ++i)
+			Thread.sleep(20l);
+		// the last batch may still be in flight
+		Thread.sleep(50l);
+		assertEquals(0, queue.getPendingCount());
+	}
 }
@@ -0,0 +1,182 @@
+package com.rubiconproject.oss.kv.test.backends;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.rubiconproject.oss.kv.KeyValueStoreException;
+import com.rubiconproject.oss.kv.KeyValueStoreStatus;
+import com.rubiconproject.oss.kv.backends.KeyValueStoreIterator;
+import com.rubiconproject.oss.kv.backends.LsmKeyValueStore;
+import com.rubiconproject.oss.kv.backends.StaticFileWriter;
+import com.rubiconproject.oss.kv.backends.StaticKeyValueStore;
+import com.rubiconproject.oss.kv.test.KeyValueStoreBackendTestCase;
+import com.rubiconproject.oss.kv.transcoder.ByteArrayTranscoder;
+import com.rubiconproject.oss.kv.transcoder.SerializableTranscoder;
+
+public class StaticBackendTestCase extends KeyValueStoreBackendTestCase {
+
+	public void testBackend() throws Exception {
+		String dir = clean("tmp/static-source");
+		LsmKeyValueStore source = new LsmKeyValueStore(dir);
+		source.start();
+		for (int i = 0; i < 1000; ++i)
+			source.set("key." + i, "value " + i);
+		source.set("\u043a\u043b\u044e\u0447", "unicode");
+		source.set("emoji.\ud83d\ude00", new Integer(7));
+		source.delete("key.5");
+
+		File file = new File(clean("tmp/static"), "test.dat");
+		StaticFileWriter writer = new StaticFileWriter(file);
+		writer.addAll(source, 100);
+		writer.close();
+		source.stop();
+		assertEquals(1001, writer.getCount());
+
+		StaticKeyValueStore store = new StaticKeyValueStore(file.getPath());
+		store.start();
+		assertEquals(KeyValueStoreStatus.ReadOnly, store.getStatus());
+		assertEquals(1001, store.getSize());
+		assertEquals("value 42", store.get("key.42"));
+		assertEquals("unicode", store.get("\u043a\u043b\u044e\u0447"));
+		assertEquals(new Integer(7), store.get("emoji.\ud83d\ude00"));
+		assertNull(store.get("key.5"));
+		assertNull(store.get("key.1000"));
+		assertNull(store.get("emoji.\ud83d"));
+		assertTrue(store.exists("key.999"));
+		assertFalse(store.exists("\u043a\u043b\u044e\u04472"));
+
+		Map<String, Object> bulk = store.getBulk(Arrays.asList("key.1",
+				"key.2", "key.5"), new ByteArrayTranscoder());
+		assertEquals(2, bulk.size());
+		assertEquals("value 2", new SerializableTranscoder()
+				.decode((byte[]) bulk.get("key.2")));
+
+		Set<String> keys = new HashSet<String>();
+		KeyValueStoreIterator iterator = store.iterkeys();
+		for (Iterator<String> iter = iterator.iterator(); iter.hasNext();)
+			keys.add(iter.next());
+		iterator.close();
+		assertEquals(1001, keys.size());
+		assertTrue(keys.contains("\u043a\u043b\u044e\u0447"));
+
+		try {
+			store.set("key.1", "changed");
+			fail("set on a static store");
+		} catch (KeyValueStoreException expected) {
+		}
+		store.stop();
+	}
+
+	public void testChunkBoundaries() throws Exception {
+		File file = new File(clean("tmp/static"), "chunked.dat");
+		StaticFileWriter writer = new StaticFileWriter(file, 1024);
+		for (int i = 0; i < 500; ++i) {
+			byte[] value = new byte[i % 300];
+			Arrays.fill(value, (byte) i);
+			writer.add("key." + i, value);
+		}
+		try {
+			writer.add("too.large", new byte[1024]);
+			fail("record larger than a chunk");
+		} catch (java.io.IOException expected) {
+		}
+		writer.close();
+		assertTrue(file.length() > 50 * 1024);
+
+		StaticKeyValueStore store = new StaticKeyValueStore(file.getPath());
+		store.start();
+		ByteArrayTranscoder transcoder = new ByteArrayTranscoder();
+		for (int i = 0; i < 500; ++i) {
+			byte[] value = (byte[]) store.get("key." + i, transcoder);
+			assertEquals(i % 300, value.length);
+			if (value.length > 0)
+				assertEquals((byte) i, value[value.length - 1]);
+		}
+		assertNull(store.get("too.large"));
+		store.stop();
+	}
+
+	public void testHotSwap() throws Exception {
+		File dir = new File(clean("tmp/static"));
+		final File file = new File(dir, "swap.dat");
+		build(file, 0);
+		final StaticKeyValueStore store = new StaticKeyValueStore(file
+				.getPath());
+		store.setCheckInterval(20);
+		store.start();
+		assertEquals("generation 0 value 1", store.get("key.1"));
+
+		// readers never miss a key while files are swapped under them
+		final AtomicBoolean running = new AtomicBoolean(true);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		List<Future<Integer>> readers = new ArrayList<Future<Integer>>();
+		for (int t = 0; t < 4; ++t) {
+			readers.add(executor.submit(new Callable<Integer>() {
+				public Integer call() throws Exception {
+					int reads = 0;
+					while (running.get()) {
+						String value = (String) store.get("key."
+								+ (reads % 100));
+						assertNotNull(value);
+						++reads;
+					}
+					return reads;
+				}
+			}));
+		}
+		for (int generation = 1; generation <= 3; ++generation) {
+			Thread.sleep(50);
+			build(file, generation);
+			long deadline = System.currentTimeMillis() + 5000;
+			while ((store.getSwapCount() < generation)
+					&& (System.currentTimeMillis() < deadline))
+				Thread.sleep(10);
+			assertEquals("generation " + generation + " value 1", store
+					.get("key.1"));
+		}
+		running.set(false);
+		for (Future<Integer> reader : readers)
+			assertTrue(reader.get() > 0);
+		executor.shutdown();
+
+		// an explicit swap to another path
+		File other = new File(dir, "other.dat");
+		build(other, 9);
+		store.swap(other.getPath());
+		assertEquals("generation 9 value 1", store.get("key.1"));
+		store.stop();
+	}
+
+	private void build(File file, int generation) throws Exception {
+		StaticFileWriter writer = new StaticFileWriter(file);
+		SerializableTranscoder transcoder = new SerializableTranscoder();
+		for (int i = 0; i < 100; ++i)
+			writer.add("key." + i, transcoder.encode("generation "
+					+ generation + " value " + i));
+		writer.close();
+		// distinct from the previous file even within the clock resolution
+		file.setLastModified(System.currentTimeMillis() - 100000 + generation
+				* 1000);
+	}
+
+	private String clean(String path) {
+		File dir = new File(path);
+		if (dir.exists()) {
+			for (File file : dir.listFiles())
+				file.delete();
+		} else
+			dir.mkdirs();
+		return path;
+	}
+}
@@ -0,0 +1,91 @@
+package com.rubiconproject.oss.kv.test.backends;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.rubiconproject.oss.kv.backends.CachingKeyValueStore;
+import com.rubiconproject.oss.kv.backends.ConcurrentHashMapKeyValueStore;
+import com.rubiconproject.oss.kv.backends.TinyLfuKeyValueStore;
+import com.rubiconproject.oss.kv.test.KeyValueStoreBackendTestCase;
+
+public class TinyLfuBackendTestCase extends KeyValueStoreBackendTestCase {
+
+	public void testBackend() throws Exception {
+		TinyLfuKeyValueStore store = new TinyLfuKeyValueStore();
+		doTestBackend(store);
+	}
+
+	public void testAsCache() throws Exception {
+		ConcurrentHashMapKeyValueStore master = new ConcurrentHashMapKeyValueStore();
+		master.start();
+		TinyLfuKeyValueStore cache = new TinyLfuKeyValueStore();
+		cache.start();
+		CachingKeyValueStore store = new CachingKeyValueStore(master, cache);
+		doTestBackend(store);
+	}
+
+	public void testFrequentKeysSurviveScan() throws Exception {
+		TinyLfuKeyValueStore store = new TinyLfuKeyValueStore(100);
+		store.setStripes(1);
+		store.start();
+		for (int i = 0; i < 10; ++i)
+			store.set("hot." + i, i);
+		for (int round = 0; round < 5; ++round) {
+			for (int i = 0; i < 10; ++i)
+				assertEquals(i, store.get("hot." + i));
+		}
+		// a scan of keys used once should not flush the hot keys
+		for (int i = 0; i < 1000; ++i)
+			store.set("scan." + i, i);
+		for (int i = 0; i < 10; ++i)
+			assertEquals(i, store.get("hot." + i));
+		assertTrue(store.getSize() <= 100);
+		assertTrue(store.getEvictionCount() >= 910);
+		assertTrue(store.getHitRate() > 0.0);
+		store.stop();
+	}
+
+	public void testByteWeigher() throws Exception {
+		TinyLfuKeyValueStore store = new TinyLfuKeyValueStore(100000);
+		store.setWeigherName("bytes");
+		store.start();
+		for (int i = 0; i < 1000; ++i)
+			store.set("bytes." + i, new byte[1000]);
+		assertTrue(store.getWeightedSize() <= 100000);
+		assertTrue(store.getSize() < 100);
+		assertTrue(store.getEvictedWeight() > 800000);
+		store.stop();
+	}
+
+	public void testConcurrentAccess() throws Exception {
+		final TinyLfuKeyValueStore store = new TinyLfuKeyValueStore(500);
+		store.start();
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		List<Future<Object>> results = new ArrayList<Future<Object>>();
+		for (int t = 0; t < 8; ++t) {
+			final int thread = t;
+			results.add(executor.submit(new Callable<Object>() {
+				public Object call() throws Exception {
+					for (int i = 0; i < 20000; ++i) {
+						String key = "concurrent." + ((i * 31 + thread) % 2000);
+						if (store.get(key) == null)
+							store.set(key, key);
+						else if (i % 7 == 0)
+							store.delete(key);
+					}
+					return null;
+				}
+			}));
+		}
+		for (Future<Object> result : results)
+			result.get();
+		executor.shutdown();
+		assertTrue(store.getSize() <= 500);
+		assertEquals(store.getSize(), store.getWeightedSize());
+		store.stop();
+	}
+}
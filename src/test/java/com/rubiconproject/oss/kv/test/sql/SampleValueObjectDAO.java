@@ -6,6 +6,7 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.List;
+import java.util.Map;
 
 import com.rubiconproject.oss.kv.backends.sql.DefaultJdbcDAO;
 import com.rubiconproject.oss.kv.backends.sql.JdbcDAO;
@@ -89,6 +90,25 @@ public class SampleValueObjectDAO extends DefaultJdbcDAO implements JdbcDAO {
 		return ps;
 	}
 
+	public PreparedStatement prepareBulkInsert(Connection conn,
+			Map<String, Object> values, Transcoder transcoder)
+			throws SQLException, IOException {
+		PreparedStatement ps = conn
+				.prepareStatement(String
+						.format(
+								"insert into %1$s (id, x, y, s) values (?, ?, ?, ?) on duplicate key update x = values(x), y = values(y), s = values(s)",
+								table));
+		for (Map.Entry<String, Object> entry : values.entrySet()) {
+			SampleValueObject svo = (SampleValueObject) entry.getValue();
+			ps.setString(1, entry.getKey());
+			ps.setInt(2, svo.getX());
+			ps.setInt(3, svo.getY());
+			ps.setString(4, svo.getS());
+			ps.addBatch();
+		}
+		return ps;
+	}
+
 	public KeyValuePair read(ResultSet rs, Transcoder transcoder)
 			throws SQLException, IOException {
 		SampleValueObject svo = new SampleValueObject(rs.getString(1), rs